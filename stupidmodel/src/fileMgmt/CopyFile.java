@@ -2,7 +2,7 @@
  * CopyFile.java
  * 
  * Package Version: 5.0
- *   Class Version: 1.0
+ *   Class Version: 1.1
  *  
  * 		   Project: MEDLAND Project
  * 					Arizona State University
@@ -13,6 +13,10 @@
  * Fixes / Additions:
  * 1.0:
  * 	- None.
+ * 1.1:
+ * 	- Files are copied with FileChannel.transferTo rather than through a byte array.
+ * 	- Fixed the destination path of a file copied to a directory (the separator was missing).
+ * 	- Added link() and linkOrCopy() for hard link copies, and link() of file pairs in one process.
  * 
  * Bugs / Issues:
  * 1.0:
@@ -24,14 +28,16 @@ package fileMgmt;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
 /**
  * This class provides a common interface for copying one File to another.
  * 
- * @version Package: 5.0, Class: 1.0
+ * @version Package: 5.0, Class: 1.1
  * @author Gary R. Mayer, ASU Dept of Computer Science and Engineering
  */
 public final class CopyFile {
@@ -75,25 +81,164 @@ public final class CopyFile {
            	// Destination is a directory, copy source to
         	//	destination using source name.
             if ( destination.exists() && destination.isDirectory() ) {
-            	destination = new File(destination.getAbsolutePath() + source.getName());
+            	destination = new File(destination, source.getName());
             }
             
-            InputStream in = new FileInputStream(source);
-            OutputStream out = new FileOutputStream(destination);
-            
-            // Copy the bits from instream to outstream.
-            byte[] buffer = new byte[1024];
-            int length = in.read(buffer);
-
-            while ( length > 0) {
-            	out.write(buffer, 0, length);
-            	length = in.read(buffer);
+            // Copy the bits from the source channel to the destination channel; the
+            //	operating system may do so without copying them through the JVM.
+            FileChannel in = new FileInputStream(source).getChannel();
+            try {
+            	FileChannel out = new FileOutputStream(destination).getChannel();
+            	try {
+            		long size = in.size();
+            		long position = 0;
+            		while ( position < size ) {
+            			position += in.transferTo(position, size - position, out);
+            		}
+            	}
+            	finally {
+            		out.close();
+            	}
+            }
+            finally {
+            	in.close();
             }
-            
-            in.close();
-            out.close();
         }
 		
     }
+	
+	/**
+	 * Creates hard links to source files in a destination directory, where each link is
+	 * assigned the source file's name and replaces any existing file with that name. A
+	 * hard link shares the source file's data, so it costs no copying; it is only suitable
+	 * for files which are replaced (e.g., renamed over) rather than modified in place. All
+	 * of the links are made by one 'ln' process.
+	 * @param sources The files to link to.
+	 * @param destination_dir The directory in which to create the links.
+	 * @return true if all links were created; false if they could not be (e.g., the
+	 * destination is on another file system, or the OS does not support hard links).
+	 */
+	public static boolean link ( File[] sources, File destination_dir ) {
+		if ( sources.length == 0 ) {
+			return true;
+		}
+		if ( System.getProperty("os.name").startsWith("Windows") ) {
+			return false;
+		}
+		
+		ArrayList<String> cmd = new ArrayList<String> ();
+		cmd.add("ln");
+		cmd.add("-f");
+		for ( int i = 0; i < sources.length; i++ ) {
+			cmd.add(sources[i].getAbsolutePath());
+		}
+		cmd.add(destination_dir.getAbsolutePath());
+		
+		try {
+			ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+			processBuilder.redirectErrorStream(true);
+			Process process = processBuilder.start();
+			process.getOutputStream().close();
+			
+			// Discard any (error) output so the process cannot block on a full pipe.
+			InputStream output = process.getInputStream();
+			byte[] buffer = new byte[1024];
+			while ( output.read(buffer) != -1 ) {
+				// Discard.
+			}
+			output.close();
+			
+			return process.waitFor() == 0;
+		}
+		catch (IOException ioe) {
+			return false;
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		
+	}
+	
+	/**
+	 * Creates hard links to source files, each with its own destination path (so a link may be
+	 * given a name other than its source's), replacing any existing files at those paths. All of
+	 * the links are made by one shell process, which stops at the first link which fails.
+	 * @param sources The files to link to.
+	 * @param destinations The paths of the links, in the same order as the sources.
+	 * @return true if all links were created; false if they could not be (some may have been).
+	 */
+	public static boolean link ( File[] sources, File[] destinations ) {
+		if ( sources.length != destinations.length ) {
+			throw new IllegalArgumentException("Each source file must have one destination.");
+		}
+		if ( sources.length == 0 ) {
+			return true;
+		}
+		if ( System.getProperty("os.name").startsWith("Windows") ) {
+			return false;
+		}
+		
+		StringBuilder script = new StringBuilder("set -e\n");
+		for ( int i = 0; i < sources.length; i++ ) {
+			script.append("ln -f ").append(quote(sources[i].getAbsolutePath())).append(' ');
+			script.append(quote(destinations[i].getAbsolutePath())).append('\n');
+		}
+		
+		try {
+			ProcessBuilder processBuilder = new ProcessBuilder("sh");
+			processBuilder.redirectErrorStream(true);
+			Process process = processBuilder.start();
+			OutputStream input = process.getOutputStream();
+			input.write(script.toString().getBytes());
+			input.close();
+			
+			InputStream output = process.getInputStream();
+			byte[] buffer = new byte[1024];
+			while ( output.read(buffer) != -1 ) {
+				// Discard.
+			}
+			output.close();
+			
+			return process.waitFor() == 0;
+		}
+		catch (IOException ioe) {
+			return false;
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		
+	}
+	
+	/**
+	 * Quotes a path for the shell.
+	 */
+	private static String quote ( String path ) {
+		return "'" + path.replace("'", "'\\''") + "'";
+		
+	}
+	
+	/**
+	 * Creates hard links to source files in a destination directory (see link()), or copies
+	 * the files if the links cannot be created.
+	 * @param sources The files to link to or copy.
+	 * @param destination_dir The directory in which to create the links or copies.
+	 * @return true if the files were linked; false if they were copied.
+	 * @throws IOException if there is an error copying the files.
+	 */
+	public static boolean linkOrCopy ( File[] sources, File destination_dir ) throws IOException {
+		if ( link(sources, destination_dir) ) {
+			return true;
+		}
+		
+		for ( int i = 0; i < sources.length; i++ ) {
+			copy(sources[i], new File(destination_dir, sources[i].getName()));
+		}
+		
+		return false;
+		
+	}
 
 }
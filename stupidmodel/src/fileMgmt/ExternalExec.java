@@ -2,7 +2,7 @@
  * ExternalExec.java
  * 
  * Package Version: 5.0
- *   Class Version: 1.0
+ *   Class Version: 1.1
  *  
  * 		   Project: MEDLAND Project
  * 					Arizona State University
@@ -13,25 +13,49 @@
  * Fixes / Additions:
  * 1.0:
  * 	- None.
+ * 1.1:
+ * 	- Added asynchronous execution (executeAsync) returning a Future. Output and error streams
+ * 	  are drained on a shared thread pool into growable byte buffers.
+ * 	- Added a streaming output mode that passes each record of the output stream to a
+ * 	  RecordConsumer as the process produces it.
+ * 	- Added resource accounting of each process (see ProcessAccounting).
+ * 	- Process input is written by a task on the stream pool, concurrently with draining the
+ * 	  output and error streams, and the process input stream is closed once all input is written.
+ * 	  Input may be provided as a String, Reader, InputStream, or ByteBuffer.
+ * 	- Removed StreamCapture, which the stream pool replaced.
  * 
  * Bugs / Issues:
  * 1.0:
- *  - None.
+ *  - Process input was written before the output streams were drained and the process input
+ *    stream was never closed. A process which reads its input to the end (e.g., cat) or which
+ *    produces output before reading all of a large input never completed. Fixed in 1.1.
  */
 
 package fileMgmt;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 //import java.util.Enumeration;
 //import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import misc.StringPair;
 
@@ -46,15 +70,29 @@ import misc.StringPair;
  * modules, which may not return 0 for a properly executed function and/or may place
  * information, instead of errors, on the error stream.
  * 
- * @version Package: 5.0, Class: 1.0
+ * Processes may be executed synchronously (execute) or asynchronously (executeAsync). In both
+ * cases the output and error streams of the process are drained by tasks on a shared, cached
+ * thread pool so that no threads are created per execution once the pool is warm. Output may
+ * alternatively be streamed to a RecordConsumer, one line or delimited record at a time, which keeps
+ * memory use flat for modules that produce very large output.
+ * 
+ * Process input may be a String or be streamed from a Reader, InputStream, or ByteBuffer. The input
+ * is written by a pool task while the output streams are drained, so inputs of any size can be
+ * piped to a process without writing them to a file first. The input stream of the process is
+ * closed once all of the input has been written, signalling end of file to the process.
+ * 
+ * When ProcessAccounting is enabled, the resources used by each process are recorded when its
+ * result is retrieved.
+ * 
+ * @version Package: 5.0, Class: 1.1
  * @author Gary R. Mayer, ASU Dept of Computer Science and Engineering
  */
 public class ExternalExec
 {
-	private ProcessBuilder processBuilder = null;
-	private Process process = null;
-	private StreamCapture errorCapture = null;
-	private StreamCapture outputCapture = null;
+	private static ExecutorService streamPool = null;	// Shared pool used to drain process streams
+	private static Object padlock = new Object();		// Internal lock for thread-safe control
+	private static final int DRAIN_BUFFER_SIZE = 8192;	// Bytes read from a process stream at one time
+	private static final long EXIT_POLL_MILLIS = 10;	// Interval at which a timed wait checks for process exit
 	
 	/**
 	 * Default constructor.
@@ -74,7 +112,7 @@ public class ExternalExec
 	//public OpResult execute ( List<String> cmd, Hashtable<String, String> env )
 	public OpResult execute ( List<String> cmd, List<StringPair> env )
 	throws IllegalArgumentException, IOException {
-		return execute(cmd, env, null);
+		return execute(cmd, env, (String) null);
 		
 	}
 	
@@ -93,14 +131,255 @@ public class ExternalExec
 	//public OpResult execute ( List<String> cmd, Hashtable<String, String> env, String process_input )
 	public OpResult execute ( List<String> cmd, List<StringPair> env, String process_input )
 	throws IllegalArgumentException, IOException {
+		return waitFor(executeAsync(cmd, env, process_input));
+		
+	}
+	
+	/**
+	 * Execute a command with associated parameters and stream external input to the process from a
+	 * Reader. The characters are encoded with the platform default character set. The reader is
+	 * read to its end, concurrently with the process output, and is then closed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The source of the process input.
+	 * @return the result of the execution operation (output, errors, and return value).
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting or running the process, or while
+	 * reading the input.
+	 */
+	public OpResult execute ( List<String> cmd, List<StringPair> env, Reader process_input )
+	throws IllegalArgumentException, IOException {
+		return waitFor(executeAsync(cmd, env, process_input));
+		
+	}
+	
+	/**
+	 * Execute a command with associated parameters and stream external input to the process from an
+	 * InputStream. The stream is read to its end, concurrently with the process output, and is then
+	 * closed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The source of the process input.
+	 * @return the result of the execution operation (output, errors, and return value).
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting or running the process, or while
+	 * reading the input.
+	 */
+	public OpResult execute ( List<String> cmd, List<StringPair> env, InputStream process_input )
+	throws IllegalArgumentException, IOException {
+		return waitFor(executeAsync(cmd, env, process_input));
+		
+	}
+	
+	/**
+	 * Execute a command with associated parameters and provide the remaining bytes of a buffer to the
+	 * process as input. The position of the buffer is not changed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The process input.
+	 * @return the result of the execution operation (output, errors, and return value).
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting or running the process.
+	 */
+	public OpResult execute ( List<String> cmd, List<StringPair> env, ByteBuffer process_input )
+	throws IllegalArgumentException, IOException {
+		return waitFor(executeAsync(cmd, env, process_input));
+		
+	}
+	
+	/**
+	 * Execute a command with associated parameters and stream its output, one line at a time,
+	 * to a consumer as the process produces it. Line terminators are not passed to the consumer.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input An optional String of data to provide to the process as input. Set this
+	 * parameter to null if there is no external input to the process.
+	 * @param output_consumer The consumer to receive each line of the output stream.
+	 * @return the result of the execution operation. The output field is empty because the output
+	 * stream data has been passed to the consumer.
+	 * @throws IllegalArgumentException if the command list or consumer is null.
+	 * @throws IOException if an exception occurs while starting or running the process, or if the
+	 * consumer throws an exception.
+	 */
+	public OpResult execute ( List<String> cmd, List<StringPair> env, String process_input,
+			RecordConsumer output_consumer )
+	throws IllegalArgumentException, IOException {
+		return execute(cmd, env, process_input, output_consumer, '\n');
+		
+	}
+	
+	/**
+	 * Execute a command with associated parameters and stream its output, one record at a time,
+	 * to a consumer as the process produces it. Records are separated by the specified delimiter,
+	 * which is not passed to the consumer. When the delimiter is a line feed, a trailing carriage
+	 * return is also removed from each record.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input An optional String of data to provide to the process as input. Set this
+	 * parameter to null if there is no external input to the process.
+	 * @param output_consumer The consumer to receive each record of the output stream.
+	 * @param delimiter The character separating records on the output stream.
+	 * @return the result of the execution operation. The output field is empty because the output
+	 * stream data has been passed to the consumer.
+	 * @throws IllegalArgumentException if the command list or consumer is null.
+	 * @throws IOException if an exception occurs while starting or running the process, or if the
+	 * consumer throws an exception.
+	 */
+	public OpResult execute ( List<String> cmd, List<StringPair> env, String process_input,
+			RecordConsumer output_consumer, char delimiter )
+	throws IllegalArgumentException, IOException {
+		if ( output_consumer == null ) {
+			throw new IllegalArgumentException("Output consumer may not be null.");
+		}
+		
 		OpResult result = null;
+		Future<OpResult> pending = executeAsync(cmd, env, feederOf(process_input),
+				new RecordDrain(output_consumer, delimiter));
+		
+		try {
+			result = pending.get();
+		}
+		
+		catch (InterruptedException ie) {
+			// Do nothing; OK to just continue and then exit.
+			pending.cancel(true);
+		}
+		
+		catch (ExecutionException ee) {
+			pending.cancel(true);
+			throw asIOException(ee);
+		}
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Asynchronously execute a command with associated parameters. The process is started before
+	 * this method returns; its output and error streams are drained in the background.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	public Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env )
+	throws IllegalArgumentException, IOException {
+		return executeAsync(cmd, env, (String) null);
+		
+	}
+	
+	/**
+	 * Asynchronously execute a command with associated parameters and provide external input to the
+	 * process. The process is started before this method returns; its output and error streams are
+	 * drained in the background. Cancelling the returned Future destroys the process.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input An optional String of data to provide to the process as input. Set this
+	 * parameter to null if there is no external input to the process.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	public Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env, String process_input )
+	throws IllegalArgumentException, IOException {
+		return executeAsync(cmd, env, feederOf(process_input), null);
+		
+	}
+	
+	/**
+	 * Asynchronously execute a command with associated parameters and stream external input to the
+	 * process from a Reader. The characters are encoded with the platform default character set.
+	 * The reader is read to its end in the background and is then closed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The source of the process input.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	public Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env, Reader process_input )
+	throws IllegalArgumentException, IOException {
+		if ( process_input == null ) {
+			throw new IllegalArgumentException("Process input may not be null.");
+		}
+		
+		return executeAsync(cmd, env, new ReaderFeeder(process_input), null);
+		
+	}
+	
+	/**
+	 * Asynchronously execute a command with associated parameters and stream external input to the
+	 * process from an InputStream. The stream is read to its end in the background and is then closed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The source of the process input.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	public Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env, InputStream process_input )
+	throws IllegalArgumentException, IOException {
+		if ( process_input == null ) {
+			throw new IllegalArgumentException("Process input may not be null.");
+		}
+		
+		return executeAsync(cmd, env, new StreamFeeder(process_input), null);
+		
+	}
+	
+	/**
+	 * Asynchronously execute a command with associated parameters and provide the remaining bytes of
+	 * a buffer to the process as input. The position of the buffer is not changed.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the standard process environment variable
+	 * map. Set this parameter to null if there are no environment variables to add.
+	 * @param process_input The process input.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list or input is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	public Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env, ByteBuffer process_input )
+	throws IllegalArgumentException, IOException {
+		if ( process_input == null ) {
+			throw new IllegalArgumentException("Process input may not be null.");
+		}
+		
+		return executeAsync(cmd, env, new BufferFeeder(process_input.duplicate()), null);
 		
+	}
+	
+	/**
+	 * Starts the process and the tasks which drain its streams.
+	 * @param cmd The command and parameters to execute.
+	 * @param env Optional environment variables to add to the process environment.
+	 * @param input_feeder Optional task which writes the input of the process. Specify 'null' if
+	 * there is no input to the process.
+	 * @param record_drain Optional drain to pass the output stream to a consumer. Specify 'null' to
+	 * capture the output stream into the result.
+	 * @return a Future which provides the result of the execution operation once the process exits.
+	 * @throws IllegalArgumentException if the command list is null.
+	 * @throws IOException if an exception occurs while starting the process.
+	 */
+	private Future<OpResult> executeAsync ( List<String> cmd, List<StringPair> env, InputFeeder input_feeder,
+			RecordDrain record_drain )
+	throws IllegalArgumentException, IOException {
 		if ( cmd == null ) {
 			throw new IllegalArgumentException("Command list may not be null.");
 		}
 		
-		
-		processBuilder = new ProcessBuilder(cmd);
+		// The accounting record may wrap the command to measure the process when it exits.
+		ProcessAccounting.Record record = ProcessAccounting.begin(cmd);
+		ProcessBuilder processBuilder = new ProcessBuilder((record == null) ? cmd : record.getCommand());
 		
 		// Get current environment variable map and add new environment variables.
 		Map<String, String> proc_env = processBuilder.environment();
@@ -110,76 +389,72 @@ public class ExternalExec
 				proc_env.put(mapping.key, mapping.value);
 			}
 		}
-		/*
-		if ( env != null ) {
-			Enumeration<String> eKeys = env.keys();
-			while ( eKeys.hasMoreElements() ) {
-				String mapKey = eKeys.nextElement();
-				String mapValue = env.get(mapKey);
-				proc_env.put(mapKey, mapValue);
+		
+		// Start the command process.
+		Process process = null;
+		try {
+			process = processBuilder.start();
+		}
+		catch (IOException ioe) {
+			if ( record != null ) {
+				record.discard();
 			}
+			throw ioe;
 		}
-		*/
+		
 		try {
-			// Start the command process.
-			process = processBuilder.start();
-			
-			// If there is an external input stream into this subprocess,
-			// write the data by redirecting the output stream of the process builder.
-			if ( process_input != null ) {			
-				OutputStream os = process.getOutputStream();
-				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(os));
-				out.write(process_input);
-				out.flush();
+			// Start draining the output and error streams before any input is written.
+			ExecutorService pool = getStreamPool();
+			Future<byte[]> output = null;
+			if ( record_drain == null ) {
+				output = pool.submit(new StreamDrain(process.getInputStream()));
 			}
-			 
-			// Specify output and error handling streams.
-			outputCapture = new StreamCapture(process.getInputStream());
-			errorCapture = new StreamCapture(process.getErrorStream());
-			
-			// Start StreamCapture threads.
-			errorCapture.start();
-			outputCapture.start();
-			
-			// Wait for process thread to finish.
-			int exitValue = process.waitFor();
-			
-			// Check for output and error messages. 
-			String outputString = new String();
-			String outputData = outputCapture.getData();
-			while ( outputData != null ) {
-				outputString = outputString.concat(outputData);
-				outputData = outputCapture.getData();
+			else {
+				output = pool.submit(record_drain.from(process.getInputStream()));
 			}
+			Future<byte[]> errors = pool.submit(new StreamDrain(process.getErrorStream()));
 			
-			String errorString = new String();
-			String errorData = errorCapture.getData();
-			while ( errorData != null ) {
-				errorString = errorString.concat(errorData);
-				errorData = errorCapture.getData();
+			// If there is an external input stream into this subprocess, write the data to the
+			// output stream of the process builder while the process streams are being drained.
+			Future<Long> input = null;
+			if ( input_feeder != null ) {
+				input = pool.submit(input_feeder.to(process.getOutputStream()));
 			}
 			
-			// Save resultant data.
-			result = new OpResult(outputString, errorString, exitValue);
+			return new PendingResult(process, output, errors, input, record_drain, record);
+		}
+		
+		catch (RuntimeException re) {
+			process.destroy();
+			if ( record != null ) {
+				record.end(0, 0);
+			}
+			throw re;
+		}
+		
+	}
+	
+	/**
+	 * Waits for an execution to complete.
+	 * @param pending The pending execution result.
+	 * @return the result of the execution operation, or 'null' if the wait was interrupted.
+	 * @throws IOException if an exception occurred while running the process.
+	 */
+	private static OpResult waitFor ( Future<OpResult> pending ) throws IOException {
+		OpResult result = null;
+		
+		try {
+			result = pending.get();
 		}
 		
 		catch (InterruptedException ie) {
 			// Do nothing; OK to just continue and then exit.
+			pending.cancel(true);
 		}
-
-		finally {
-			// Clean up data streams and processes.
-			if ( errorCapture != null )
-				errorCapture.done();
-			if ( outputCapture != null )
-				outputCapture.done();
-			if ( process != null )
-				process.destroy();
-			
-			errorCapture = null;
-			outputCapture = null;
-			process = null;
-			processBuilder = null;
+		
+		catch (ExecutionException ee) {
+			pending.cancel(true);
+			throw asIOException(ee);
 		}
 		
 		return result;
@@ -187,156 +462,597 @@ public class ExternalExec
 	}
 	
 	/**
-	 * This class holds the resultant output stream data, error stream data, and
-	 * exit value generated by a process execution and completion.
-	 * @version Package: 5.0, Class: 1.0
-	 * @author Gary R. Mayer, ASU Dept of Computer Science and Engineering
+	 * Provides the task which writes a String as process input.
+	 * @param process_input The process input. May be 'null'.
+	 * @return the input feeder, or 'null' if there is no input.
 	 */
-	public class OpResult {
-		public final String output;
-		public final String errors;
-		public final int exitValue;
+	private static InputFeeder feederOf ( String process_input ) {
+		if ( process_input == null ) {
+			return null;
+		}
 		
-		public OpResult ( String output, String errors, int exit_value ) {
-			this.output = output;
-			this.errors = errors;
-			this.exitValue = exit_value;
+		return new ReaderFeeder(new StringReader(process_input));
+		
+	}
+	
+	/**
+	 * Provides the shared pool on which process streams are drained. The pool creates daemon
+	 * threads on demand and reuses idle threads for subsequent executions.
+	 * @return the shared stream pool.
+	 */
+	private static ExecutorService getStreamPool () {
+		synchronized (ExternalExec.padlock) {
+			if ( ExternalExec.streamPool == null ) {
+				ExternalExec.streamPool = Executors.newCachedThreadPool(new ThreadFactory() {
+					private int count = 0;
+					
+					public Thread newThread ( Runnable r ) {
+						Thread t = new Thread(r, "ExternalExec-stream-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
 			
+			return ExternalExec.streamPool;
 		}
 		
 	}
-
+	
 	/**
-	 * This class creates an input data stream which operates in its own
-	 * thread of execution.
-	 * @version Package: 5.0, Class: 1.0
-	 * @author Gary R. Mayer, ASU Dept of Computer Science and Engineering
+	 * Converts the cause of an execution exception into an IOException.
+	 * @param ee The execution exception thrown by a stream drain or process wait.
+	 * @return an IOException describing the cause.
+	 */
+	private static IOException asIOException ( ExecutionException ee ) {
+		Throwable cause = ee.getCause();
+		if ( cause instanceof IOException ) {
+			return (IOException) cause;
+		}
+		
+		IOException ioe = new IOException("Process execution failed: " + cause);
+		ioe.initCause(cause);
+		return ioe;
+		
+	}
+	
+	/**
+	 * This class is the Future returned by an asynchronous execution. The result is assembled
+	 * once the process has exited and both of its streams have been drained.
+	 * @version Package: 5.0, Class: 1.1
 	 */
-	protected class StreamCapture extends Thread {
-		private InputStream is;
-		private InputStreamReader isr;
-		private BufferedReader br;
-		private int buffer_size;
+	private class PendingResult implements Future<OpResult> {
+		private final Process process;
+		private final Future<byte[]> output;
+		private final Future<byte[]> errors;
+		private final Future<Long> input;				// Input feeder; 'null' if there is no input
+		private final RecordDrain record_drain;			// Output record drain; 'null' if captured
+		private final ProcessAccounting.Record record;	// Resource record; 'null' if not accounted
+		private boolean cancelled = false;
+		
+		public PendingResult ( Process process, Future<byte[]> output, Future<byte[]> errors,
+				Future<Long> input, RecordDrain record_drain, ProcessAccounting.Record record ) {
+			this.process = process;
+			this.output = output;
+			this.errors = errors;
+			this.input = input;
+			this.record_drain = record_drain;
+			this.record = record;
+			
+		}
+		
+		public synchronized boolean cancel ( boolean may_interrupt ) {
+			if ( isDone() ) {
+				return false;
+			}
+			
+			this.cancelled = true;
+			this.process.destroy();
+			this.output.cancel(may_interrupt);
+			this.errors.cancel(may_interrupt);
+			if ( this.input != null ) {
+				this.input.cancel(may_interrupt);
+			}
+			if ( this.record != null ) {
+				this.record.end(0, 0);
+			}
+			return true;
+			
+		}
+		
+		public synchronized boolean isCancelled () {
+			return this.cancelled;
+			
+		}
+		
+		public boolean isDone () {
+			if ( isCancelled() ) {
+				return true;
+			}
+			
+			try {
+				this.process.exitValue();
+			}
+			catch (IllegalThreadStateException itse) {
+				// Process is still running.
+				return false;
+			}
+			
+			return this.output.isDone() && this.errors.isDone() &&
+				((this.input == null) || this.input.isDone());
+			
+		}
+		
+		public OpResult get () throws InterruptedException, ExecutionException {
+			try {
+				// Wait for the streams to close, then for the process to finish.
+				byte[] outputData = this.output.get();
+				byte[] errorData = this.errors.get();
+				int exitValue = this.process.waitFor();
+				if ( this.input != null ) {
+					// Reports an error reading the input source, if one occurred.
+					this.input.get();
+				}
+				account(outputData, errorData);
+				
+				return new OpResult(new String(outputData), new String(errorData), exitValue);
+			}
+			
+			finally {
+				if ( isDone() ) {
+					release();
+				}
+			}
+			
+		}
+		
+		public OpResult get ( long timeout, TimeUnit unit )
+		throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			byte[] outputData = this.output.get(timeout, unit);
+			byte[] errorData = this.errors.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			
+			// Both streams are closed, so the process is exiting; wait for it to finish.
+			int exitValue = waitForExit(deadline);
+			if ( this.input != null ) {
+				this.input.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			account(outputData, errorData);
+			release();
+			
+			return new OpResult(new String(outputData), new String(errorData), exitValue);
+			
+		}
 		
 		/**
-		 * Convenience constructor to create a new stream capture from an input
-		 * stream using a default buffer of 128 characters.
-		 * @param is The input stream from which to capture data.
+		 * Waits for the process to exit, checking its exit value until the deadline.
+		 * @param deadline The System.nanoTime() value at which to stop waiting.
+		 * @return the exit value.
+		 * @throws TimeoutException if the process is still running at the deadline.
 		 */
-		public StreamCapture ( InputStream is ) {
-			this(is, 128);
+		private int waitForExit ( long deadline ) throws InterruptedException, TimeoutException {
+			while ( true ) {
+				try {
+					return this.process.exitValue();
+				}
+				catch (IllegalThreadStateException itse) {
+					// Process is still running.
+				}
+				
+				long remaining = deadline - System.nanoTime();
+				if ( remaining <= 0 ) {
+					throw new TimeoutException("The process did not exit within the timeout.");
+				}
+				Thread.sleep(Math.max(1, Math.min(EXIT_POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining))));
+			}
 			
 		}
 		
 		/**
-		 * Creates a new stream capture from an input stream using the specified
-		 * character buffer size.
-		 * @param is The input stream from which to capture data.
-		 * @param buffer_size The maximum number of characters read from the stream
-		 * at one time.
+		 * Completes the resource record of the process, if it is being accounted.
+		 * @param output_data The data drained from the output stream. For a streamed output, this
+		 * is empty and the record drain's byte count is used instead.
+		 * @param error_data The data drained from the error stream.
 		 */
-		public StreamCapture ( InputStream is, int buffer_size ) {
-			this.is = is;
-			this.isr = new InputStreamReader(this.is);
-			this.br = new BufferedReader(this.isr);
-			this.buffer_size = buffer_size;
+		private void account ( byte[] output_data, byte[] error_data ) {
+			if ( this.record != null ) {
+				long output_bytes = output_data.length;
+				if ( this.record_drain != null ) {
+					output_bytes = this.record_drain.getByteCount();
+				}
+				this.record.end(output_bytes, error_data.length);
+			}
 			
 		}
 		
 		/**
-		 * Reads the currently specified number of characters from the stream.
-		 * @return A String containing the characters read from the stream.
-		 * @throws IOException if there is an error reading the stream.
+		 * Clean up data streams and processes.
 		 */
-		protected String getData () throws IOException {
-			return getData(this.buffer_size);
+		private void release () {
+			try {
+				this.process.getOutputStream().close();
+			}
+			catch (IOException ioe) {
+				// Error while closing stream. Ignore; it is being destroyed anyway.
+			}
+			
+			this.process.destroy();
+			
+		}
+		
+	}
+	
+	/**
+	 * This class reads an input stream to its end into a growable byte buffer. It is run as a
+	 * task on the shared stream pool.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class StreamDrain implements Callable<byte[]> {
+		private final InputStream is;
+		
+		public StreamDrain ( InputStream is ) {
+			this.is = is;
 			
 		}
 		
+		public byte[] call () throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream(DRAIN_BUFFER_SIZE);
+			byte[] data_buffer = new byte[DRAIN_BUFFER_SIZE];
+			
+			try {
+				int length = this.is.read(data_buffer);
+				while ( length != -1 ) {
+					data.write(data_buffer, 0, length);
+					length = this.is.read(data_buffer);
+				}
+			}
+			
+			finally {
+				this.is.close();
+			}
+			
+			return data.toByteArray();
+			
+		}
+		
+	}
+	
+	/**
+	 * This class writes input to a process and then closes the process input stream. It is run as
+	 * a task on the shared stream pool, concurrently with the tasks draining the process output.
+	 * If the process exits (or closes its input) before all of the input is written, the remaining
+	 * input is discarded; the result of the process reports the outcome. An exception while reading
+	 * the input source is reported by the task.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static abstract class InputFeeder implements Callable<Long> {
+		private OutputStream os = null;
+		private long byte_count = 0;			// Bytes written to the process
+		
 		/**
-		 * Reads the specified number of characters from the stream. Note that
-		 * this does not overwrite the current buffer stream setting. Subsequent
-		 * calls to GetData() will return a maximum number of characters equal to
-		 * the set value. 
-		 * @param num_chars The maximum number of characters to read from the
-		 * stream.
-		 * @return A String containing the characters read from the stream.
-		 * @throws IOException if there is an error reading from the stream.
+		 * Specifies the process input stream to write.
+		 * @param os The process input stream.
+		 * @return this feeder.
 		 */
-		protected String getData ( int num_chars ) throws IOException {
-			String data = null;
-			char[] data_buffer = new char[num_chars];
+		public InputFeeder to ( OutputStream os ) {
+			this.os = os;
+			return this;
 			
-			try	{
-				int result = this.br.read(data_buffer, 0, num_chars);
-				
-				// copy data in buffer if not immediate end of file
-				if ( result != -1 )
-					data = new String(data_buffer);
+		}
+		
+		public Long call () throws IOException {
+			try {
+				feed();
 			}
 			
-			catch (IOException ioe) {
-				data = null;
-				throw ioe;
+			catch (ProcessClosedException pce) {
+				// The process no longer reads its input. Nothing more can be written.
 			}
 			
-			finally	{
-				data_buffer = null;
+			finally {
+				close();
+				try {
+					this.os.close();
+				}
+				catch (IOException ioe) {
+					// The process has already closed its input. Ignore.
+				}
 			}
 			
-			return data;
-
+			return Long.valueOf(this.byte_count);
+			
 		}
-	
+		
 		/**
-		 * Retrieves a line of data from the stream.
-		 * @return A String representing the line read from the stream or
-		 * null if there is no further data on the stream.
-		 * @throws IOException if there is an error reading the data.
+		 * Writes bytes to the process.
+		 * @throws ProcessClosedException if the process no longer accepts input.
 		 */
-		protected String getLine () throws IOException	{
-			String data = null;
+		protected void write ( byte[] data, int offset, int length ) throws ProcessClosedException {
+			try {
+				this.os.write(data, offset, length);
+				this.byte_count += length;
+			}
+			catch (IOException ioe) {
+				throw new ProcessClosedException();
+			}
+			
+		}
+		
+		/**
+		 * Reads the input source to its end, writing it with write().
+		 * @throws IOException if the input source cannot be read.
+		 */
+		protected abstract void feed () throws IOException;
+		
+		/**
+		 * Closes the input source.
+		 */
+		protected abstract void close ();
+		
+	}
+	
+	/**
+	 * This exception indicates that the process no longer accepts input.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class ProcessClosedException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+	}
+	
+	/**
+	 * This class writes the characters of a Reader to a process.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class ReaderFeeder extends InputFeeder {
+		private final Reader reader;
+		
+		public ReaderFeeder ( Reader reader ) {
+			this.reader = reader;
 			
-			try	{
-				data = this.br.readLine();
+		}
+		
+		protected void feed () throws IOException {
+			char[] data_buffer = new char[DRAIN_BUFFER_SIZE];
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream(DRAIN_BUFFER_SIZE * 2);
+			Writer encoder = new OutputStreamWriter(encoded);
+			
+			int length = this.reader.read(data_buffer);
+			while ( length != -1 ) {
+				encoder.write(data_buffer, 0, length);
+				encoder.flush();
+				write(encoded.toByteArray(), 0, encoded.size());
+				encoded.reset();
+				length = this.reader.read(data_buffer);
+			}
+			
+			encoder.close();
+			if ( encoded.size() > 0 ) {
+				write(encoded.toByteArray(), 0, encoded.size());
 			}
 			
+		}
+		
+		protected void close () {
+			try {
+				this.reader.close();
+			}
 			catch (IOException ioe) {
-				data = null;
-				throw ioe;
+				// Ignore; the input has been read.
 			}
+			
+		}
 		
-			return data;
-			 
+	}
+	
+	/**
+	 * This class writes the bytes of an InputStream to a process.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class StreamFeeder extends InputFeeder {
+		private final InputStream is;
+		
+		public StreamFeeder ( InputStream is ) {
+			this.is = is;
+			
 		}
+		
+		protected void feed () throws IOException {
+			byte[] data_buffer = new byte[DRAIN_BUFFER_SIZE];
+			
+			int length = this.is.read(data_buffer);
+			while ( length != -1 ) {
+				write(data_buffer, 0, length);
+				length = this.is.read(data_buffer);
+			}
+			
+		}
+		
+		protected void close () {
+			try {
+				this.is.close();
+			}
+			catch (IOException ioe) {
+				// Ignore; the input has been read.
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * This class writes the remaining bytes of a buffer to a process. Heap buffers are written
+	 * directly from their backing array.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class BufferFeeder extends InputFeeder {
+		private final ByteBuffer buffer;
+		
+		public BufferFeeder ( ByteBuffer buffer ) {
+			this.buffer = buffer;
+			
+		}
+		
+		protected void feed () throws IOException {
+			if ( this.buffer.hasArray() ) {
+				write(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(),
+						this.buffer.remaining());
+				return;
+			}
+			
+			byte[] data_buffer = new byte[DRAIN_BUFFER_SIZE];
+			while ( this.buffer.hasRemaining() ) {
+				int length = Math.min(data_buffer.length, this.buffer.remaining());
+				this.buffer.get(data_buffer, 0, length);
+				write(data_buffer, 0, length);
+			}
+			
+		}
+		
+		protected void close () {
+			// Nothing to close.
+			
+		}
+		
+	}
 	
+	/**
+	 * This interface receives the records of a process output stream as they are produced.
+	 * Records are passed in stream order from a single stream pool thread.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	public interface RecordConsumer {
 		/**
-		 * Convenience function to close the stream.
+		 * Receives one record (e.g., a line) of process output, without its delimiter.
+		 * @param record The record read from the output stream.
+		 * @throws IOException to abort the execution; the process is destroyed.
 		 */
-		protected void done () {
-			try	{
-				br.close();
-				isr.close();
+		public void consume ( String record ) throws IOException;
+		
+	}
+	
+	/**
+	 * This class splits an input stream into delimited records and passes each to a consumer.
+	 * It is run as a task on the shared stream pool.
+	 * @version Package: 5.0, Class: 1.1
+	 */
+	private static class RecordDrain implements Callable<byte[]> {
+		private final RecordConsumer consumer;
+		private final char delimiter;
+		private InputStream is = null;
+		private volatile long byte_count = 0;		// Bytes read from the stream
+		
+		public RecordDrain ( RecordConsumer consumer, char delimiter ) {
+			this.consumer = consumer;
+			this.delimiter = delimiter;
+			
+		}
+		
+		/**
+		 * Specifies the stream to drain.
+		 * @param is The input stream from which to read records.
+		 * @return this drain.
+		 */
+		public RecordDrain from ( InputStream is ) {
+			this.is = new FilterInputStream(is) {
+				public int read () throws IOException {
+					int c = super.read();
+					if ( c != -1 ) {
+						byte_count++;
+					}
+					return c;
+				}
+				
+				public int read ( byte[] b, int off, int len ) throws IOException {
+					int length = super.read(b, off, len);
+					if ( length > 0 ) {
+						byte_count += length;
+					}
+					return length;
+				}
+			};
+			return this;
+			
+		}
+		
+		/**
+		 * Gets the number of bytes read from the stream so far.
+		 * @return the byte count.
+		 */
+		public long getByteCount () {
+			return this.byte_count;
+			
+		}
+		
+		public byte[] call () throws IOException {
+			Reader reader = new InputStreamReader(this.is);
+			StringBuilder record = new StringBuilder();
+			char[] data_buffer = new char[DRAIN_BUFFER_SIZE];
+			
+			try {
+				int length = reader.read(data_buffer);
+				while ( length != -1 ) {
+					for ( int c = 0; c < length; c++ ) {
+						if ( data_buffer[c] == this.delimiter ) {
+							emit(record);
+						}
+						else {
+							record.append(data_buffer[c]);
+						}
+					}
+					length = reader.read(data_buffer);
+				}
+				
+				if ( record.length() > 0 ) {
+					emit(record);
+				}
 			}
 			
-			catch (IOException ioe)	{
-				// Error while closing stream. Ignore; it is being destroyed anyway.
+			finally {
+				reader.close();
 			}
 			
+			return new byte[0];
+			
 		}
 		
 		/**
-		 * Sets the size of the buffer for stream reads. Each read will read the
-		 * number of characters specified by the buffer size as long as this does
-		 * not exceed the number of charcters remaining in the stream. If this is
-		 * the case, it will just read the remaining characters.
-		 * @param num_chars
+		 * Passes the current record to the consumer and clears it.
+		 * @param record The record buffer.
+		 * @throws IOException if the consumer rejects the record.
 		 */
-		public void setBufferSize ( int num_chars ) {
-			this.buffer_size = num_chars;
+		private void emit ( StringBuilder record ) throws IOException {
+			int end = record.length();
+			if ( (this.delimiter == '\n') && (end > 0) && (record.charAt(end - 1) == '\r') ) {
+				end--;
+			}
+			
+			this.consumer.consume(record.substring(0, end));
+			record.setLength(0);
 			
 		}
+		
+	}
+	
+	/**
+	 * This class holds the resultant output stream data, error stream data, and
+	 * exit value generated by a process execution and completion. It is static so that
+	 * other process runners (e.g., a persistent shell) can report results in the same shape.
+	 * @version Package: 5.0, Class: 1.1
+	 * @author Gary R. Mayer, ASU Dept of Computer Science and Engineering
+	 */
+	public static class OpResult {
+		public final String output;
+		public final String errors;
+		public final int exitValue;
+		
+		public OpResult ( String output, String errors, int exit_value ) {
+			this.output = output;
+			this.errors = errors;
+			this.exitValue = exit_value;
 			
+		}
+		
 	}
 
 }
@@ -0,0 +1,537 @@
+/*
+ * ProcessAccounting.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - The CPU time and peak resident set size of a process are measured by GNU time (/usr/bin/time).
+ *    Where it is not installed (or is not GNU time), only the wall time and stream byte counts of
+ *    such processes are recorded.
+ *  - A process wrapped by time which cannot be started is reported by time (exit value 127) rather
+ *    than by an IOException, and destroying the process ends time but not the command it runs.
+ *  - The CPU time of resident processes is read from /proc and is therefore only available on Linux.
+ */
+
+package fileMgmt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class records the resources used by external processes (e.g., GRASS modules and scripts)
+ * and aggregates them by period (e.g., simulated year), label (e.g., the GrassFacade method which
+ * started the process), and module name. For each process the wall time, user and system CPU time,
+ * peak resident set size, and number of bytes on the output and error streams are recorded.
+ *
+ * A process is measured from the resource usage the kernel reports when the process is reaped,
+ * which is the only complete measure of a process that may exit within milliseconds. The process
+ * is therefore started through GNU time (see Record.getCommand()), which writes the usage to a file
+ * that is read when the record ends. CPU times include those of the process's reaped children, so a
+ * script is charged for the modules it runs. Processes which execute more than one request (e.g., a
+ * persistent shell) are recorded as 'resident': their CPU time is the difference between /proc
+ * readings taken at the start and end of each request and no peak resident set size is reported.
+ * Values which could not be measured are left empty in the totals file.
+ *
+ * Accounting is disabled by default. The period is global; the label is set per thread.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class ProcessAccounting {
+	private static boolean enabled = false;					// Record processes
+	private static String period = "";						// Current aggregation period
+	private static Object padlock = new Object();			// Internal lock for thread-safe control
+	private static Map<String, Totals> totals = new LinkedHashMap<String, Totals> ();
+	private static ThreadLocal<String> label = new ThreadLocal<String> ();
+	private static Boolean time_usable = null;				// GNU time can wrap processes; 'null' until checked
+	private static final long CLOCK_TICKS = 100;			// Kernel clock ticks per second (USER_HZ)
+	private static final File PROC = new File("/proc");
+	private static final String TIME = "/usr/bin/time";		// GNU time, which reports the usage of a process
+	private static final String TIME_FORMAT = "%U %S %M";	// User and system CPU seconds, peak resident set size (kB)
+
+	/**
+	 * Enables or disables process accounting. Processes started while accounting is disabled are
+	 * not recorded.
+	 * @param enable true to record processes.
+	 */
+	public static void setEnabled ( boolean enable ) {
+		synchronized (ProcessAccounting.padlock) {
+			ProcessAccounting.enabled = enable;
+		}
+
+	}
+
+	/**
+	 * Indicates if process accounting is enabled.
+	 * @return true if processes are being recorded.
+	 */
+	public static boolean isEnabled () {
+		synchronized (ProcessAccounting.padlock) {
+			return ProcessAccounting.enabled;
+		}
+
+	}
+
+	/**
+	 * Sets the period (e.g., the simulated year) to which subsequently completed processes are added.
+	 * @param name The period name.
+	 */
+	public static void setPeriod ( String name ) {
+		synchronized (ProcessAccounting.padlock) {
+			ProcessAccounting.period = (name == null) ? "" : name;
+		}
+
+	}
+
+	/**
+	 * Sets the label under which processes started by the current thread are recorded.
+	 * @param name The label (e.g., a method name). Specify 'null' to clear the label.
+	 * @return the previous label of the current thread, which may be 'null'.
+	 */
+	public static String setLabel ( String name ) {
+		String previous = ProcessAccounting.label.get();
+		ProcessAccounting.label.set(name);
+		return previous;
+
+	}
+
+	/**
+	 * Starts recording a process which is yet to be started. The process is to be started with the
+	 * command of the record (see Record.getCommand()). Returns 'null' if accounting is disabled.
+	 * @param cmd The command to execute. The module name is taken from it.
+	 * @return the record to complete with end(), or 'null'.
+	 * @throws IOException if the file to receive the usage of the process cannot be created.
+	 */
+	public static Record begin ( List<String> cmd ) throws IOException {
+		if ( !isEnabled() ) {
+			return null;
+		}
+
+		File usage = null;
+		if ( isTimeUsable() ) {
+			usage = File.createTempFile("process_usage", ".txt");
+		}
+
+		return new Record(cmd, ProcessAccounting.label.get(), -1, usage);
+
+	}
+
+	/**
+	 * Starts recording a request of a resident process (i.e., one which executes more than one
+	 * request, such as a persistent shell). Returns 'null' if accounting is disabled.
+	 * @param cmd The command of the request. The module name is taken from it.
+	 * @param process The resident process. Its CPU time, including that of the children it has reaped,
+	 * is read at the start and end of the request.
+	 * @return the record to complete with end(), or 'null'.
+	 */
+	public static Record begin ( List<String> cmd, Process process ) {
+		if ( !isEnabled() ) {
+			return null;
+		}
+
+		return new Record(cmd, ProcessAccounting.label.get(), pidOf(process), null);
+
+	}
+
+	/**
+	 * Writes the totals of all periods to a comma separated file and clears them. If the file
+	 * does not exist, it is created with a header line; otherwise the totals are appended.
+	 * @param file The file to write.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void writeTotals ( File file ) throws IOException {
+		ArrayList<Totals> rows = null;
+		synchronized (ProcessAccounting.padlock) {
+			rows = new ArrayList<Totals> (ProcessAccounting.totals.values());
+			ProcessAccounting.totals.clear();
+		}
+
+		boolean exists = file.exists();
+		BufferedWriter out = new BufferedWriter(new FileWriter(file, true));
+		try {
+			if ( !exists ) {
+				out.write("period,label,module,calls,wall ms,user cpu ms,system cpu ms,peak rss kB,output bytes,error bytes\n");
+			}
+			for ( Totals row : rows ) {
+				out.write(row.toString());
+				out.write("\n");
+			}
+		}
+		finally {
+			out.close();
+		}
+
+	}
+
+	/**
+	 * Gets the module name (e.g., 'r.walk') from a command list. If the command is an interpreter
+	 * (python, sh, bash) the name of the script is used instead.
+	 */
+	private static String moduleName ( List<String> cmd ) {
+		if ( (cmd == null) || cmd.isEmpty() ) {
+			return "";
+		}
+
+		String name = new File(cmd.get(0)).getName();
+		if ( (cmd.size() > 1) && !cmd.get(1).startsWith("-") &&
+				(name.startsWith("python") || name.equals("sh") || name.equals("bash")) ) {
+			name = new File(cmd.get(1)).getName();
+		}
+
+		return name;
+
+	}
+
+	/**
+	 * Gets the operating system process id. Process.pid() is used where it exists; otherwise the
+	 * private 'pid' field of the UNIX process implementation is read.
+	 * @return the process id, or -1 if it is not available.
+	 */
+	private static long pidOf ( Process process ) {
+		if ( (process == null) || !PROC.isDirectory() ) {
+			return -1;
+		}
+
+		try {
+			Method pid = Process.class.getMethod("pid");
+			return ((Number) pid.invoke(process)).longValue();
+		}
+		catch (Exception e) {
+			// Not available before Java 9; try the implementation field below.
+		}
+
+		try {
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return ((Number) pid.get(process)).longValue();
+		}
+		catch (Exception e) {
+			return -1;
+		}
+
+	}
+
+	/**
+	 * Determines, once, whether GNU time can wrap processes. The BSD time of other systems (e.g.,
+	 * Mac OS X) does not accept its options.
+	 * @return true if GNU time is available.
+	 */
+	private static boolean isTimeUsable () {
+		synchronized (ProcessAccounting.padlock) {
+			if ( ProcessAccounting.time_usable == null ) {
+				boolean usable = false;
+				if ( new File(TIME).canExecute() ) {
+					try {
+						ProcessBuilder processBuilder = new ProcessBuilder(TIME, "-f", TIME_FORMAT, "-o", "/dev/null", "true");
+						processBuilder.redirectErrorStream(true);
+						Process process = processBuilder.start();
+						process.getOutputStream().close();
+						InputStream is = process.getInputStream();
+						while ( is.read() != -1 ) {
+							// Discard any message.
+						}
+						usable = (process.waitFor() == 0);
+					}
+					catch (IOException ioe) {
+						// Not usable.
+					}
+					catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				ProcessAccounting.time_usable = usable;
+			}
+
+			return ProcessAccounting.time_usable;
+		}
+
+	}
+
+	/**
+	 * This class records the resources used by one process execution.
+	 * @version Package: 5.0, Class: 1.0
+	 */
+	public static class Record {
+		private final List<String> cmd;
+		private final String module;
+		private final String label;
+		private final long pid;					// Resident process; -1 if not resident
+		private final File usage;				// File to which time writes the usage; 'null' if not wrapped
+		private final long start = System.nanoTime();
+		private long[] first_cpu = null;		// CPU ticks at the start of a resident request
+		private long user_ticks = -1;			// Measured user CPU ticks
+		private long system_ticks = -1;			// Measured system CPU ticks
+		private long peak_rss = -1;				// Measured peak resident set size (kB)
+		private boolean ended = false;
+
+		private Record ( List<String> cmd, String label, long pid, File usage ) {
+			this.cmd = cmd;
+			this.module = moduleName(cmd);
+			this.label = (label == null) ? "" : label;
+			this.pid = pid;
+			this.usage = usage;
+			if ( pid > 0 ) {
+				this.first_cpu = readCpu(pid);
+			}
+
+		}
+
+		/**
+		 * Provides the command with which to start the process: the recorded command, wrapped by
+		 * GNU time if it is available.
+		 * @return the command to start.
+		 */
+		public List<String> getCommand () {
+			if ( this.usage == null ) {
+				return this.cmd;
+			}
+
+			ArrayList<String> wrapped = new ArrayList<String> (this.cmd.size() + 5);
+			wrapped.add(TIME);
+			wrapped.add("-f");
+			wrapped.add(TIME_FORMAT);
+			wrapped.add("-o");
+			wrapped.add(this.usage.getAbsolutePath());
+			wrapped.addAll(this.cmd);
+			return wrapped;
+
+		}
+
+		/**
+		 * Completes the record and adds it to the totals of the current period. The process must have
+		 * exited.
+		 * @param output_bytes Number of bytes read from the output stream.
+		 * @param error_bytes Number of bytes read from the error stream.
+		 */
+		public void end ( long output_bytes, long error_bytes ) {
+			long wall = System.nanoTime() - this.start;
+
+			if ( !close() ) {
+				return;
+			}
+
+			if ( this.pid > 0 ) {
+				long[] cpu = readCpu(this.pid);
+				if ( (cpu != null) && (this.first_cpu != null) ) {
+					this.user_ticks = cpu[0] - this.first_cpu[0];
+					this.system_ticks = cpu[1] - this.first_cpu[1];
+				}
+			}
+			else if ( this.usage != null ) {
+				readUsage();
+				this.usage.delete();
+			}
+
+			ProcessAccounting.add(this, wall, output_bytes, error_bytes);
+
+		}
+
+		/**
+		 * Drops the record without adding it to the totals (e.g., if the process could not be started).
+		 */
+		public void discard () {
+			if ( close() && (this.usage != null) ) {
+				this.usage.delete();
+			}
+
+		}
+
+		/**
+		 * Marks the record as ended.
+		 * @return true if the record had not already ended.
+		 */
+		private synchronized boolean close () {
+			if ( this.ended ) {
+				return false;
+			}
+			this.ended = true;
+			return true;
+
+		}
+
+		/**
+		 * Reads the usage written by time. Its last line holds the values of TIME_FORMAT; a preceding
+		 * line may report a non-zero exit status or a signal.
+		 */
+		private synchronized void readUsage () {
+			String last = null;
+			BufferedReader in = null;
+			try {
+				in = new BufferedReader(new FileReader(this.usage));
+				String line = in.readLine();
+				while ( line != null ) {
+					if ( line.trim().length() > 0 ) {
+						last = line.trim();
+					}
+					line = in.readLine();
+				}
+			}
+			catch (IOException ioe) {
+				// Not written (e.g., time was destroyed); the usage is not available.
+				return;
+			}
+			finally {
+				if ( in != null ) {
+					try {
+						in.close();
+					}
+					catch (IOException ioe) {
+						// Ignore; nothing was written.
+					}
+				}
+			}
+
+			if ( last == null ) {
+				return;
+			}
+			String[] fields = last.split(" ");
+			try {
+				long user = Math.round(Double.parseDouble(fields[0]) * CLOCK_TICKS);
+				long system = Math.round(Double.parseDouble(fields[1]) * CLOCK_TICKS);
+				long rss = Long.parseLong(fields[2]);
+				this.user_ticks = user;
+				this.system_ticks = system;
+				this.peak_rss = rss;
+			}
+			catch (RuntimeException re) {
+				// Not the usage line (e.g., time could not run the command).
+			}
+
+		}
+
+	}
+
+	/**
+	 * Adds a completed record with its measured values to the totals of the current period.
+	 */
+	private static void add ( Record record, long wall, long output_bytes, long error_bytes ) {
+		synchronized (ProcessAccounting.padlock) {
+			String key = ProcessAccounting.period + "\0" + record.label + "\0" + record.module;
+			Totals row = ProcessAccounting.totals.get(key);
+			if ( row == null ) {
+				row = new Totals(ProcessAccounting.period, record.label, record.module);
+				ProcessAccounting.totals.put(key, row);
+			}
+
+			synchronized (record) {
+				row.calls++;
+				row.wall += wall;
+				if ( record.user_ticks >= 0 ) {
+					row.measured++;
+					row.user += record.user_ticks;
+					row.system += Math.max(0, record.system_ticks);
+				}
+				row.peak_rss = Math.max(row.peak_rss, record.peak_rss);
+			}
+			row.output_bytes += output_bytes;
+			row.error_bytes += error_bytes;
+		}
+
+	}
+
+	/**
+	 * Reads the user and system CPU ticks of a process and its reaped children from /proc/[pid]/stat.
+	 * @return the user and system ticks, or 'null' if the process no longer exists.
+	 */
+	private static long[] readCpu ( long pid ) {
+		String stat = readFirstLine(new File(PROC, pid + File.separator + "stat"));
+		if ( stat == null ) {
+			return null;
+		}
+
+		// The command name (field 2) is in parentheses and may contain spaces.
+		String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		try {
+			// Fields 14 to 17 (utime, stime, cutime, cstime), counted from the process state (field 3).
+			long user = Long.parseLong(fields[11]) + Long.parseLong(fields[13]);
+			long system = Long.parseLong(fields[12]) + Long.parseLong(fields[14]);
+			return new long[] { user, system };
+		}
+		catch (RuntimeException re) {
+			return null;
+		}
+
+	}
+
+	/**
+	 * Reads the first line of a file.
+	 * @return the line, or 'null' if the file cannot be read.
+	 */
+	private static String readFirstLine ( File file ) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(file));
+			return in.readLine();
+		}
+		catch (IOException ioe) {
+			return null;
+		}
+		finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				}
+				catch (IOException ioe) {
+					// Ignore; nothing was written.
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * This class holds the aggregated resources of one period, label, and module.
+	 * @version Package: 5.0, Class: 1.0
+	 */
+	private static class Totals {
+		private final String period;
+		private final String label;
+		private final String module;
+		private long calls = 0;
+		private long measured = 0;			// Calls with measured CPU times
+		private long wall = 0;				// Nanoseconds
+		private long user = 0;				// Clock ticks
+		private long system = 0;			// Clock ticks
+		private long peak_rss = -1;			// kB
+		private long output_bytes = 0;
+		private long error_bytes = 0;
+
+		public Totals ( String period, String label, String module ) {
+			this.period = period;
+			this.label = label;
+			this.module = module;
+
+		}
+
+		public String toString () {
+			String user_ms = (this.measured > 0) ? Long.toString(this.user * 1000 / CLOCK_TICKS) : "";
+			String system_ms = (this.measured > 0) ? Long.toString(this.system * 1000 / CLOCK_TICKS) : "";
+			String rss_kb = (this.peak_rss >= 0) ? Long.toString(this.peak_rss) : "";
+			return this.period + "," + this.label + "," + this.module + "," + this.calls + "," +
+				(this.wall / 1000000) + "," + user_ms + "," + system_ms + "," + rss_kb + "," +
+				this.output_bytes + "," + this.error_bytes;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,774 @@
+/*
+ * CostDistance.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Moves whose cost is negative (possible only with unusual walk coefficients) are taken as free.
+ *  - Knight's moves do not test the cells they pass between for nulls.
+ */
+
+package grass;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class computes anisotropic cost (walking time) surfaces in the JVM, as an alternative to
+ * running r.walk. The rasters (elevation and, optionally, friction) are held as primitive arrays on
+ * one region, and the cost of every cell from the nearest start cell is found with Dijkstra's
+ * algorithm on a binary heap of cell indices (no boxed objects).
+ *
+ * The cost of a move uses the walking time model of r.walk, for a move of horizontal length S and
+ * height difference H (positive uphill):
+ *
+ * 		T = a * S + b * H (uphill), c * H (moderate downhill), or d * H (steep downhill)
+ * 		cost = T + lambda * S * (friction of the two cells) / 2
+ *
+ * where a downhill move is steep if H / S is at or below the slope factor. Moves go to the eight
+ * neighbouring cells, and to the eight knight's move cells if knight's moves are used. Cells whose
+ * elevation or friction is null are not crossed.
+ *
+ * Besides the cost from the nearest start cell (compute()), an allocation (allocate()) gives each cell
+ * the identifiers and costs of its k nearest sources (e.g., villages), each of which may have several
+ * start cells, in one pass over the region.
+ *
+ * A cost surface bounded by a maximum cost may also be kept sparse (computeSparse()): only the
+ * reached cells are held, and the search reuses region-sized arrays kept by the instance, so the
+ * cost of each surface follows the area within reach. One set of arrays (about 12 bytes per cell of
+ * the region) is kept for each search running at the same time, until releaseBuffers() is called.
+ *
+ * A catchment of a given area (growCatchment()) may then be grown over a sparse surface by a priority
+ * flood from its start cell.
+ *
+ * An instance may be shared by threads: the inputs are not changed, and each computation uses its
+ * own arrays (or, for sparse surfaces, a set no other search is using).
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class CostDistance {
+	public static final int NO_SOURCE = RasterReader.NULL_CELL;	// Source of a cell no source reaches
+
+	private final RasterMetadata region;	// Bounds and resolution of the rasters
+	private final int rows;
+	private final int cols;
+	private final double[] elevation;		// Elevation by row; null cells are NaN
+	private final double[] friction;		// Friction by row; 'null' if not used
+	private final double a;					// Walking time per metre of horizontal distance
+	private final double b;					// Per metre of height gained
+	private final double c;					// Per metre of height lost on moderate slopes
+	private final double d;					// Per metre of height lost on steep slopes
+	private final double lambda;			// Weight of the friction cost
+	private final double slope_factor;		// Slope (rise over run) at and below which a downhill move is steep
+	private final int[] move_rows;			// Row offset of each move
+	private final int[] move_cols;			// Column offset of each move
+	private final double[] move_lengths;	// Horizontal length of each move
+	private final ConcurrentLinkedQueue<CellHeap> idle_heaps = new ConcurrentLinkedQueue<CellHeap> ();	// Arrays of bounded searches, kept for the next ones
+
+	/**
+	 * This class holds an allocation: for each cell, the k nearest sources and their costs, nearest
+	 * first. Rank r (0 is the nearest) of cell i is held at [r * cells + i], so each rank is one raster.
+	 */
+	public static class Allocation {
+		public final int ranks;				// Sources held per cell (k)
+		public final int cells;				// Cells per rank
+		public final double[] costs;		// Cost of the source; NaN if fewer sources reach the cell
+		public final int[] sources;			// Source identifier; NO_SOURCE if fewer sources reach the cell
+
+		public Allocation ( int ranks, int cells ) {
+			this.ranks = ranks;
+			this.cells = cells;
+			this.costs = new double[ranks * cells];
+			this.sources = new int[ranks * cells];
+			Arrays.fill(this.costs, Double.NaN);
+			Arrays.fill(this.sources, NO_SOURCE);
+
+		}
+
+		/**
+		 * Provides one rank of the costs as a raster.
+		 * @param rank The rank (0 is the nearest source).
+		 * @return the costs of that rank by row; NaN where the cell has no such source.
+		 */
+		public double[] getCosts ( int rank ) {
+			double[] raster = new double[this.cells];
+			System.arraycopy(this.costs, rank * this.cells, raster, 0, this.cells);
+			return raster;
+
+		}
+
+		/**
+		 * Provides one rank of the sources as a raster.
+		 * @param rank The rank (0 is the nearest source).
+		 * @return the source identifiers of that rank by row; NO_SOURCE where the cell has no such source.
+		 */
+		public int[] getSources ( int rank ) {
+			int[] raster = new int[this.cells];
+			System.arraycopy(this.sources, rank * this.cells, raster, 0, this.cells);
+			return raster;
+
+		}
+
+	}
+
+	/**
+	 * Constructor.
+	 * @param region The bounds and resolution of the rasters (e.g., from RasterMetadata.readRegion()).
+	 * @param elevation The elevation of each cell by row (i.e., value [r * cols + c]); null cells are NaN.
+	 * @param friction The friction of each cell by row, or 'null' if there is no friction map.
+	 * @param walk_coefficient The coefficients a, b, c, and d, comma separated as for r.walk
+	 * (e.g., '0.72,6.0,1.9998,-1.9998').
+	 * @param lambda The weight of the friction cost.
+	 * @param slope_factor The slope at and below which a downhill move is steep (e.g., -0.2125).
+	 * @param knights_move Specifies if knight's moves are made (as r.walk does with the 'k' flag).
+	 * @throws IllegalArgumentException if the rasters do not hold one value per cell of the region, or
+	 * the walk coefficients are not four numbers.
+	 */
+	public CostDistance ( RasterMetadata region, double[] elevation, double[] friction, String walk_coefficient,
+			double lambda, double slope_factor, boolean knights_move ) throws IllegalArgumentException {
+		this.region = region;
+		this.rows = region.rows;
+		this.cols = region.cols;
+		long cells = (long) this.rows * this.cols;
+		if ( (elevation.length != cells) || ((friction != null) && (friction.length != cells)) ) {
+			throw new IllegalArgumentException("The rasters must hold one value for each of the " + cells + " cells of the region.");
+		}
+		this.elevation = elevation;
+		this.friction = friction;
+
+		String[] coefficients = walk_coefficient.split(",");
+		if ( coefficients.length != 4 ) {
+			throw new IllegalArgumentException("The walk coefficients, " + walk_coefficient + ", must be four numbers.");
+		}
+		try {
+			this.a = Double.parseDouble(coefficients[0].trim());
+			this.b = Double.parseDouble(coefficients[1].trim());
+			this.c = Double.parseDouble(coefficients[2].trim());
+			this.d = Double.parseDouble(coefficients[3].trim());
+		}
+		catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("The walk coefficients, " + walk_coefficient + ", must be four numbers.");
+		}
+		this.lambda = lambda;
+		this.slope_factor = slope_factor;
+
+		int moves = knights_move ? 16 : 8;
+		this.move_rows = new int[moves];
+		this.move_cols = new int[moves];
+		this.move_lengths = new double[moves];
+		int m = 0;
+		for ( int dr = -2; dr <= 2; dr++ ) {
+			for ( int dc = -2; dc <= 2; dc++ ) {
+				int reach = Math.abs(dr) + Math.abs(dc);
+				boolean neighbour = (Math.abs(dr) <= 1) && (Math.abs(dc) <= 1) && (reach > 0);
+				boolean knight = (reach == 3) && (dr != 0) && (dc != 0);
+				if ( neighbour || (knights_move && knight) ) {
+					this.move_rows[m] = dr;
+					this.move_cols[m] = dc;
+					this.move_lengths[m] = Math.sqrt((dr * region.ns_res) * (dr * region.ns_res) + (dc * region.ew_res) * (dc * region.ew_res));
+					m++;
+				}
+			}
+		}
+
+	}
+
+	public int getRows () {
+		return this.rows;
+
+	}
+
+	public int getCols () {
+		return this.cols;
+
+	}
+
+	/**
+	 * Provides the bounds and resolution of the rasters (and of the computed cost surfaces).
+	 * @return the region.
+	 */
+	public RasterMetadata getRegion () {
+		return this.region;
+
+	}
+
+	/**
+	 * Provides the index of the cell which holds a location.
+	 * @param east The easting of the location.
+	 * @param north The northing of the location.
+	 * @return the cell index (row * cols + col), or -1 if the location is outside the region.
+	 */
+	public int cellIndex ( double east, double north ) {
+		int row = (int) Math.floor((this.region.north - north) / this.region.ns_res);
+		int col = (int) Math.floor((east - this.region.west) / this.region.ew_res);
+		if ( (row < 0) || (row >= this.rows) || (col < 0) || (col >= this.cols) ) {
+			return -1;
+		}
+
+		return row * this.cols + col;
+
+	}
+
+	/**
+	 * Computes the cost of each cell from the nearest start cell.
+	 * @param start_cells The indices of the start cells (see cellIndex()). Null cells are ignored.
+	 * @param max_cost The cost beyond which the search stops (cells costing more are not reached), or
+	 * 0 for no limit.
+	 * @return the cost of each cell by row (i.e., value [r * cols + c]); NaN if the cell is not reached.
+	 */
+	public double[] compute ( int[] start_cells, double max_cost ) {
+		double[] costs = new double[this.rows * this.cols];
+		Arrays.fill(costs, Double.NaN);
+		search(new CellHeap(costs), start_cells, max_cost);
+
+		return costs;
+
+	}
+
+	/**
+	 * Computes the cost of each cell from the nearest start cell, holding only the cells within the
+	 * cost limit (see SparseCostSurface). The search works on arrays kept by this instance for later
+	 * searches (a set is made only when every kept one is in use), and clears only the cells it reached,
+	 * so a bounded search costs time and memory in proportion to the area it reaches rather than to the
+	 * region. The arrays are held until releaseBuffers() is called.
+	 * @param start_cells The indices of the start cells (see cellIndex()). Null cells are ignored.
+	 * @param max_cost The cost beyond which the search stops (cells costing more are not reached), or
+	 * 0 for no limit.
+	 * @return the reached cells and their costs.
+	 */
+	public SparseCostSurface computeSparse ( int[] start_cells, double max_cost ) {
+		CellHeap heap = this.idle_heaps.poll();
+		if ( heap == null ) {
+			double[] costs = new double[this.rows * this.cols];
+			Arrays.fill(costs, Double.NaN);
+			heap = new CellHeap(costs);
+		}
+		try {
+			search(heap, start_cells, max_cost);
+
+			return new SparseCostSurface(this.region, heap.costs, heap.touched, heap.touched_count);
+		}
+		finally {
+			heap.clear();
+			this.idle_heaps.offer(heap);
+		}
+
+	}
+
+	/**
+	 * Drops the arrays kept for bounded searches (see computeSparse()), so their memory can be
+	 * reclaimed once no more searches are expected. Searches running at the time keep their arrays for
+	 * the next searches; searches after that make new ones.
+	 */
+	public void releaseBuffers () {
+		this.idle_heaps.clear();
+
+	}
+
+	/**
+	 * Grows a catchment of a given area over a cost surface, as r.catchment.py does: cells are taken in
+	 * order of their cost until they cover the area, and the cells costing the same as the last one are
+	 * also taken (the catchment is every cell at or below a cost threshold). The cells are found by a
+	 * priority flood from the start cell over the moves of this engine; each cell of a cost surface made
+	 * by this engine is a move from a cell costing no more, so the flood takes the cells in order of
+	 * cost without sorting the surface. A catchment is smaller than the area if the surface reaches too
+	 * few cells.
+	 * @param surface The cost surface (made by this engine, or on its region with the same moves).
+	 * @param start_cell The index of the start cell of the surface (see cellIndex()).
+	 * @param area The area of the catchment, in square map units.
+	 * @return the indices of the catchment cells, in the order taken; empty if the surface does not
+	 * reach the start cell.
+	 */
+	public int[] growCatchment ( SparseCostSurface surface, int start_cell, double area ) {
+		int target = (int) Math.ceil(area / (this.region.ns_res * this.region.ew_res));
+		int start_row = start_cell / this.cols;
+		int start_offset = surface.offsetOf(start_row, start_cell - start_row * this.cols);
+		if ( (target <= 0) || (start_offset < 0) || Double.isNaN(surface.costAt(start_offset)) ) {
+			return new int[0];
+		}
+
+		boolean[] queued = new boolean[surface.getStoredCount()];	// Cells which have been in the heap
+		int[] taken = new int[Math.min(target, surface.getReachedCount())];
+		int count = 0;
+		double threshold = Double.POSITIVE_INFINITY;				// Cost of the cell which completes the area
+		EntryHeap heap = new EntryHeap();
+		queued[start_offset] = true;
+		heap.push(surface.costAt(start_offset), start_cell, 0);
+
+		while ( !heap.isEmpty() && (heap.topCost() <= threshold) ) {
+			double cost = heap.topCost();
+			int cell = heap.topCell();
+			heap.pop();
+			if ( count == taken.length ) {
+				taken = Arrays.copyOf(taken, count * 2);
+			}
+			taken[count++] = cell;
+			if ( count == target ) {
+				threshold = cost;
+			}
+
+			int row = cell / this.cols;
+			int col = cell - row * this.cols;
+			for ( int m = 0; m < this.move_rows.length; m++ ) {
+				int to_row = row + this.move_rows[m];
+				int to_col = col + this.move_cols[m];
+				int to_offset = surface.offsetOf(to_row, to_col);
+				if ( (to_offset < 0) || queued[to_offset] || Double.isNaN(surface.costAt(to_offset)) ) {
+					continue;
+				}
+				queued[to_offset] = true;
+				heap.push(surface.costAt(to_offset), to_row * this.cols + to_col, 0);
+			}
+		}
+
+		return Arrays.copyOf(taken, count);
+
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm from the start cells, leaving the cost of each reached cell in the
+	 * heap's costs (which must be NaN for every cell on entry).
+	 */
+	private void search ( CellHeap heap, int[] start_cells, double max_cost ) {
+		double limit = (max_cost > 0) ? max_cost : Double.POSITIVE_INFINITY;
+		double[] costs = heap.costs;
+
+		for ( int s = 0; s < start_cells.length; s++ ) {
+			int cell = start_cells[s];
+			if ( (cell >= 0) && (cell < costs.length) && passable(cell) ) {
+				costs[cell] = 0;
+				heap.update(cell);
+			}
+		}
+
+		while ( !heap.isEmpty() ) {
+			int cell = heap.pop();
+			double cost = costs[cell];
+			int row = cell / this.cols;
+			int col = cell - row * this.cols;
+
+			for ( int m = 0; m < this.move_rows.length; m++ ) {
+				int to_row = row + this.move_rows[m];
+				int to_col = col + this.move_cols[m];
+				if ( (to_row < 0) || (to_row >= this.rows) || (to_col < 0) || (to_col >= this.cols) ) {
+					continue;
+				}
+				int to_cell = to_row * this.cols + to_col;
+				if ( heap.isSettled(to_cell) || !passable(to_cell) ) {
+					continue;
+				}
+
+				double to_cost = cost + moveCost(cell, to_cell, this.move_lengths[m]);
+				if ( (to_cost <= limit) && !(to_cost >= costs[to_cell]) ) {
+					costs[to_cell] = to_cost;
+					heap.update(to_cell);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Computes, for each cell, the k nearest sources and their costs, in one pass over the region. Each
+	 * source may have several start cells; a cell's cost from a source is its cost from the nearest
+	 * start cell of that source. A cell gets fewer than k sources if fewer reach it.
+	 * @param start_cells The indices of the start cells (see cellIndex()). Null cells are ignored.
+	 * @param start_sources The source identifier of each start cell (e.g., the village number).
+	 * @param ranks The number of nearest sources (k) to find for each cell.
+	 * @param max_cost The cost beyond which the search stops (cells costing more are not reached), or
+	 * 0 for no limit.
+	 * @return the allocation.
+	 * @throws IllegalArgumentException if the start cells and sources differ in number, a source is
+	 * NO_SOURCE, or the number of ranks is less than one.
+	 */
+	public Allocation allocate ( int[] start_cells, int[] start_sources, int ranks, double max_cost )
+	throws IllegalArgumentException {
+		if ( start_cells.length != start_sources.length ) {
+			throw new IllegalArgumentException("Each start cell must have a source.");
+		}
+		if ( ranks < 1 ) {
+			throw new IllegalArgumentException("At least one source must be found for each cell.");
+		}
+
+		double limit = (max_cost > 0) ? max_cost : Double.POSITIVE_INFINITY;
+		int cells = this.rows * this.cols;
+		Allocation allocation = new Allocation(ranks, cells);
+		int[] settled = new int[cells];			// Ranks of each cell whose source is final
+		EntryHeap heap = new EntryHeap();
+
+		// Each cell keeps its best known costs from distinct sources, in order; those at ranks below
+		// settled[cell] are final. A heap entry is used only if it still matches one of them.
+		for ( int s = 0; s < start_cells.length; s++ ) {
+			int cell = start_cells[s];
+			if ( start_sources[s] == NO_SOURCE ) {
+				throw new IllegalArgumentException("A start cell has no source.");
+			}
+			if ( (cell >= 0) && (cell < cells) && passable(cell) && offer(allocation, settled, cell, start_sources[s], 0) ) {
+				heap.push(0, cell, start_sources[s]);
+			}
+		}
+
+		while ( !heap.isEmpty() ) {
+			double cost = heap.topCost();
+			int cell = heap.topCell();
+			int source = heap.topSource();
+			heap.pop();
+			if ( !settle(allocation, settled, cell, source, cost) ) {
+				continue;
+			}
+
+			int row = cell / this.cols;
+			int col = cell - row * this.cols;
+			for ( int m = 0; m < this.move_rows.length; m++ ) {
+				int to_row = row + this.move_rows[m];
+				int to_col = col + this.move_cols[m];
+				if ( (to_row < 0) || (to_row >= this.rows) || (to_col < 0) || (to_col >= this.cols) ) {
+					continue;
+				}
+				int to_cell = to_row * this.cols + to_col;
+				if ( (settled[to_cell] == ranks) || !passable(to_cell) ) {
+					continue;
+				}
+
+				double to_cost = cost + moveCost(cell, to_cell, this.move_lengths[m]);
+				if ( (to_cost <= limit) && offer(allocation, settled, to_cell, source, to_cost) ) {
+					heap.push(to_cost, to_cell, source);
+				}
+			}
+		}
+
+		return allocation;
+
+	}
+
+	/**
+	 * Offers a cost from a source to a cell. The cost is kept if it is lower than the cell's known cost
+	 * from that source, or (for a new source) lower than its highest kept cost from another source.
+	 * @return true if the cost was kept.
+	 */
+	private static boolean offer ( Allocation allocation, int[] settled, int cell, int source, double cost ) {
+		int cells = allocation.cells;
+		int ranks = allocation.ranks;
+		int slot = -1;		// Rank to free for the new cost
+		for ( int r = 0; r < ranks; r++ ) {
+			int i = r * cells + cell;
+			if ( allocation.sources[i] == source ) {
+				if ( (r < settled[cell]) || (allocation.costs[i] <= cost) ) {
+					return false;
+				}
+				slot = r;
+				break;
+			}
+			if ( allocation.sources[i] == NO_SOURCE ) {
+				slot = r;
+				break;
+			}
+		}
+		if ( slot == -1 ) {
+			slot = ranks - 1;
+			if ( (slot < settled[cell]) || (allocation.costs[slot * cells + cell] <= cost) ) {
+				return false;
+			}
+		}
+
+		// Move the higher costs down one rank, to the freed slot, and insert the cost in order.
+		int r = slot;
+		while ( (r > settled[cell]) && (allocation.costs[(r - 1) * cells + cell] > cost) ) {
+			allocation.costs[r * cells + cell] = allocation.costs[(r - 1) * cells + cell];
+			allocation.sources[r * cells + cell] = allocation.sources[(r - 1) * cells + cell];
+			r--;
+		}
+		allocation.costs[r * cells + cell] = cost;
+		allocation.sources[r * cells + cell] = source;
+
+		return true;
+
+	}
+
+	/**
+	 * Makes the cost of a cell from a source final, if the heap entry still matches the cell's known
+	 * cost from that source.
+	 * @return true if the cost was made final; false for an outdated heap entry.
+	 */
+	private static boolean settle ( Allocation allocation, int[] settled, int cell, int source, double cost ) {
+		int cells = allocation.cells;
+		int first = settled[cell];
+		for ( int r = first; r < allocation.ranks; r++ ) {
+			int i = r * cells + cell;
+			if ( allocation.sources[i] == source ) {
+				if ( allocation.costs[i] != cost ) {
+					return false;
+				}
+				// Entries leave the heap in cost order, so the ranks before this one have equal costs.
+				int j = first * cells + cell;
+				allocation.sources[i] = allocation.sources[j];
+				allocation.costs[i] = allocation.costs[j];
+				allocation.sources[j] = source;
+				allocation.costs[j] = cost;
+				settled[cell]++;
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Indicates if a cell may be crossed (its elevation and friction are not null).
+	 */
+	private boolean passable ( int cell ) {
+		return !Double.isNaN(this.elevation[cell]) && ((this.friction == null) || !Double.isNaN(this.friction[cell]));
+
+	}
+
+	/**
+	 * Provides the cost of a move between two cells.
+	 */
+	private double moveCost ( int from_cell, int to_cell, double length ) {
+		double height = this.elevation[to_cell] - this.elevation[from_cell];
+		double time = this.a * length;
+		if ( height >= 0 ) {
+			time += this.b * height;
+		}
+		else if ( height / length > this.slope_factor ) {
+			time += this.c * height;
+		}
+		else {
+			time += this.d * height;
+		}
+
+		if ( (this.friction != null) && (this.lambda != 0) ) {
+			time += this.lambda * length * (this.friction[from_cell] + this.friction[to_cell]) / 2.0;
+		}
+
+		return (time > 0) ? time : 0;
+
+	}
+
+	/**
+	 * This class is a binary min-heap of cell indices ordered by their costs, with the position of
+	 * each cell in the heap so a cell's cost may be lowered in place. The cells which have been in the
+	 * heap are listed, so the heap and the costs can be cleared for another search without going over
+	 * the region.
+	 */
+	private static class CellHeap {
+		private static final int UNSEEN = -1;		// Cell has not been in the heap
+		private static final int SETTLED = -2;		// Cell has left the heap; its cost is final
+
+		private final double[] costs;
+		private final int[] positions;				// Heap position of each cell, or UNSEEN or SETTLED
+		private int[] cells = new int[1024];
+		private int size = 0;
+		private int[] touched = new int[1024];		// Cells which have been in the heap
+		private int touched_count = 0;
+
+		public CellHeap ( double[] costs ) {
+			this.costs = costs;
+			this.positions = new int[costs.length];
+			Arrays.fill(this.positions, UNSEEN);
+
+		}
+
+		public boolean isEmpty () {
+			return this.size == 0;
+
+		}
+
+		public boolean isSettled ( int cell ) {
+			return this.positions[cell] == SETTLED;
+
+		}
+
+		/**
+		 * Adds a cell, or moves it up after its cost was lowered.
+		 */
+		public void update ( int cell ) {
+			int position = this.positions[cell];
+			if ( position == UNSEEN ) {
+				if ( this.size == this.cells.length ) {
+					int[] grown = new int[this.size * 2];
+					System.arraycopy(this.cells, 0, grown, 0, this.size);
+					this.cells = grown;
+				}
+				if ( this.touched_count == this.touched.length ) {
+					int[] grown = new int[this.touched_count * 2];
+					System.arraycopy(this.touched, 0, grown, 0, this.touched_count);
+					this.touched = grown;
+				}
+				this.touched[this.touched_count++] = cell;
+				position = this.size++;
+			}
+			siftUp(cell, position);
+
+		}
+
+		/**
+		 * Removes the cell with the lowest cost.
+		 */
+		public int pop () {
+			int top = this.cells[0];
+			this.positions[top] = SETTLED;
+			this.size--;
+			if ( this.size > 0 ) {
+				siftDown(this.cells[this.size], 0);
+			}
+
+			return top;
+
+		}
+
+		/**
+		 * Empties the heap and sets the cost of every cell which has been in it back to NaN.
+		 */
+		public void clear () {
+			for ( int i = 0; i < this.touched_count; i++ ) {
+				int cell = this.touched[i];
+				this.positions[cell] = UNSEEN;
+				this.costs[cell] = Double.NaN;
+			}
+			this.size = 0;
+			this.touched_count = 0;
+
+		}
+
+		private void siftUp ( int cell, int position ) {
+			double cost = this.costs[cell];
+			while ( position > 0 ) {
+				int parent = (position - 1) >>> 1;
+				int parent_cell = this.cells[parent];
+				if ( this.costs[parent_cell] <= cost ) {
+					break;
+				}
+				this.cells[position] = parent_cell;
+				this.positions[parent_cell] = position;
+				position = parent;
+			}
+			this.cells[position] = cell;
+			this.positions[cell] = position;
+
+		}
+
+		private void siftDown ( int cell, int position ) {
+			double cost = this.costs[cell];
+			int half = this.size >>> 1;
+			while ( position < half ) {
+				int child = 2 * position + 1;
+				int child_cell = this.cells[child];
+				if ( (child + 1 < this.size) && (this.costs[this.cells[child + 1]] < this.costs[child_cell]) ) {
+					child++;
+					child_cell = this.cells[child];
+				}
+				if ( cost <= this.costs[child_cell] ) {
+					break;
+				}
+				this.cells[position] = child_cell;
+				this.positions[child_cell] = position;
+				position = child;
+			}
+			this.cells[position] = cell;
+			this.positions[cell] = position;
+
+		}
+
+	}
+
+	/**
+	 * This class is a binary min-heap of (cost, cell, source) entries held in parallel arrays. Entries
+	 * are not updated in place; outdated entries are skipped when they leave the heap.
+	 */
+	private static class EntryHeap {
+		private double[] costs = new double[1024];
+		private int[] cells = new int[1024];
+		private int[] sources = new int[1024];
+		private int size = 0;
+
+		public boolean isEmpty () {
+			return this.size == 0;
+
+		}
+
+		public double topCost () {
+			return this.costs[0];
+
+		}
+
+		public int topCell () {
+			return this.cells[0];
+
+		}
+
+		public int topSource () {
+			return this.sources[0];
+
+		}
+
+		public void push ( double cost, int cell, int source ) {
+			if ( this.size == this.costs.length ) {
+				this.costs = Arrays.copyOf(this.costs, this.size * 2);
+				this.cells = Arrays.copyOf(this.cells, this.size * 2);
+				this.sources = Arrays.copyOf(this.sources, this.size * 2);
+			}
+
+			int position = this.size++;
+			while ( position > 0 ) {
+				int parent = (position - 1) >>> 1;
+				if ( this.costs[parent] <= cost ) {
+					break;
+				}
+				move(parent, position);
+				position = parent;
+			}
+			this.costs[position] = cost;
+			this.cells[position] = cell;
+			this.sources[position] = source;
+
+		}
+
+		public void pop () {
+			this.size--;
+			if ( this.size == 0 ) {
+				return;
+			}
+
+			double cost = this.costs[this.size];
+			int cell = this.cells[this.size];
+			int source = this.sources[this.size];
+			int position = 0;
+			int half = this.size >>> 1;
+			while ( position < half ) {
+				int child = 2 * position + 1;
+				if ( (child + 1 < this.size) && (this.costs[child + 1] < this.costs[child]) ) {
+					child++;
+				}
+				if ( cost <= this.costs[child] ) {
+					break;
+				}
+				move(child, position);
+				position = child;
+			}
+			this.costs[position] = cost;
+			this.cells[position] = cell;
+			this.sources[position] = source;
+
+		}
+
+		private void move ( int from, int to ) {
+			this.costs[to] = this.costs[from];
+			this.cells[to] = this.cells[from];
+			this.sources[to] = this.sources[from];
+
+		}
+
+	}
+
+}
@@ -0,0 +1,204 @@
+/*
+ * GrassBatch.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - The generated script is run with Bash and is therefore not available on Windows.
+ */
+
+package grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import fileMgmt.CreateFile;
+import fileMgmt.ExternalExec;
+
+/**
+ * This class records a sequence of GRASS module and script calls made through a GrassFacade and
+ * runs them as one generated Bash script, so that a series of independent calls (e.g., copying the
+ * base maps of a run, setting color tables) costs one process launch instead of one per call.
+ * A batch is created with GrassFacade.beginBatch(); while it is recording, calls made through the
+ * facade by the same thread return an empty output and are added to the batch.
+ *
+ * In the generated script each call is followed by commands which print a unique marker line on
+ * the output stream (with the call's exit value) and on the error stream, as done by GrassShell.
+ * The script's output and error streams are split at the markers to provide the result of each
+ * call. The calls are run in order and every call is run, whatever the exit values of earlier calls.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class GrassBatch {
+	private final GrassFacade grass;				// Facade through which calls are recorded
+	private final ArrayList<List<String>> commands = new ArrayList<List<String>> ();
+	private final ArrayList<String> inputs = new ArrayList<String> ();
+	private final String marker;					// Unique sentinel marker for this batch
+	private boolean recording = true;
+
+	// Result returned to a caller for a call which has been recorded but not yet run.
+	private static final ExternalExec.OpResult RECORDED = new ExternalExec.OpResult("", "", 0);
+
+	/**
+	 * Constructor. Batches are created by GrassFacade.beginBatch().
+	 * @param grass The facade through which calls are recorded.
+	 */
+	GrassBatch ( GrassFacade grass ) {
+		this.grass = grass;
+		this.marker = "__GRASS_BATCH_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE) + "__";
+
+	}
+
+	/**
+	 * Adds a call to the batch.
+	 * @param cmd The command and parameters to execute.
+	 * @param input Optional data to provide to the command as input. Specify 'null' if there is no
+	 * external input to the command.
+	 * @return an empty result, which is returned to the caller in place of the call's result.
+	 * @throws IllegalStateException if the batch has been committed or discarded.
+	 */
+	synchronized ExternalExec.OpResult record ( List<String> cmd, String input ) throws IllegalStateException {
+		if ( !this.recording ) {
+			throw new IllegalStateException("The batch is no longer recording.");
+		}
+
+		this.commands.add(new ArrayList<String> (cmd));
+		this.inputs.add(input);
+		return RECORDED;
+
+	}
+
+	/**
+	 * Gets the number of calls recorded so far. This is the index, in the list returned by commit(),
+	 * of the result of the next call recorded.
+	 * @return the number of recorded calls.
+	 */
+	public synchronized int size () {
+		return this.commands.size();
+
+	}
+
+	/**
+	 * Stops recording and runs the recorded calls, in order, as one script. The errors of each call
+	 * are displayed if the facade's show_errors flag is set.
+	 * @return the result of each call (output, errors, and exit value), in the order recorded.
+	 * @throws IllegalStateException if the batch has already been committed or discarded.
+	 * @throws IOException if the script cannot be written or run, or ends before all of the calls
+	 * have completed.
+	 */
+	public List<ExternalExec.OpResult> commit () throws IllegalStateException, IOException {
+		synchronized (this) {
+			if ( !this.recording ) {
+				throw new IllegalStateException("The batch is no longer recording.");
+			}
+			this.recording = false;
+		}
+		this.grass.endBatch(this);
+
+		if ( this.commands.isEmpty() ) {
+			return Collections.emptyList();
+		}
+
+		File script_file = File.createTempFile("grass_batch", ".sh");
+		try {
+			// The default CreateFile header is not used; its lines end with carriage returns.
+			CreateFile script = new CreateFile(script_file.getParent(), script_file.getName(), false);
+			script.add("#!/bin/bash\n# GRASS batch of " + this.commands.size() + " calls, generated by GrassBatch.\n");
+			for ( int c = 0; c < this.commands.size(); c++ ) {
+				script.add(GrassShell.commandScript(this.commands.get(c), this.inputs.get(c), this.marker, c));
+			}
+			script.writeFile();
+
+			ArrayList<String> cmdList = new ArrayList<String> ();
+			cmdList.add("/bin/bash");
+			cmdList.add(script_file.getAbsolutePath());
+
+			ExternalExec.OpResult result = new ExternalExec().execute(cmdList, this.grass.getScriptEnvironment());
+			if ( result == null ) {
+				throw new IOException("Interrupted while running the GRASS batch.");
+			}
+
+			return split(result);
+		}
+
+		finally {
+			script_file.delete();
+		}
+
+	}
+
+	/**
+	 * Stops recording without running any of the recorded calls.
+	 */
+	public void discard () {
+		synchronized (this) {
+			this.recording = false;
+		}
+		this.grass.endBatch(this);
+
+	}
+
+	/**
+	 * Splits the output and error streams of the script into the results of the recorded calls.
+	 * @param result The result of the script.
+	 * @return the result of each call.
+	 * @throws IOException if the script ended before all of the calls completed.
+	 */
+	private List<ExternalExec.OpResult> split ( ExternalExec.OpResult result ) throws IOException {
+		ArrayList<ExternalExec.OpResult> results = new ArrayList<ExternalExec.OpResult> ();
+		String separator = "\n" + this.marker;
+		int output_start = 0;
+		int errors_start = 0;
+
+		for ( int c = 0; c < this.commands.size(); c++ ) {
+			int output_end = result.output.indexOf(separator, output_start);
+			int errors_end = result.errors.indexOf(separator, errors_start);
+			if ( (output_end == -1) || (errors_end == -1) ) {
+				this.grass.printErrors(result.errors.substring(errors_start));
+				throw new IOException("The GRASS batch ended after " + c + " of " + this.commands.size() +
+						" calls (exit value " + result.exitValue + ") while executing " +
+						this.commands.get(c).get(0) + ".");
+			}
+
+			// The marker line holds the exit value of the call.
+			int trailer_start = output_end + separator.length();
+			int trailer_end = result.output.indexOf('\n', trailer_start);
+			if ( trailer_end == -1 ) {
+				trailer_end = result.output.length();
+			}
+			int exitValue = -1;
+			try {
+				exitValue = Integer.parseInt(result.output.substring(trailer_start, trailer_end).trim());
+			}
+			catch (NumberFormatException nfe) {
+				// Leave the exit value as unknown.
+			}
+
+			ExternalExec.OpResult call = new ExternalExec.OpResult(result.output.substring(output_start, output_end),
+					result.errors.substring(errors_start, errors_end), exitValue);
+			this.grass.printErrors(call.errors);
+			results.add(call);
+
+			output_start = Math.min(trailer_end + 1, result.output.length());
+			errors_end = result.errors.indexOf('\n', errors_end + separator.length());
+			errors_start = (errors_end == -1) ? result.errors.length() : errors_end + 1;
+		}
+
+		return results;
+
+	}
+
+}
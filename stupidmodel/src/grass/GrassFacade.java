@@ -25,12 +25,25 @@
 package grass;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
 import misc.StringPair;
 import fileMgmt.*;
 
@@ -42,9 +55,10 @@ import fileMgmt.*;
  * for raster map input while the g.region module in GRASS can take raster or vector maps. However,
  * there is a method to execute an external script using a command shell (e.g., Bash).
  * 
- * This class uses the singleton pattern to ensure that only one GRASS object can exist at a time.
- * This assures that all of the components within the program are using a GRASS object with the
- * same attributes.
+ * This class uses the singleton pattern to ensure that only one default GRASS object can exist at a
+ * time. This assures that all of the components within the program are using a GRASS object with the
+ * same attributes. Additional GRASS objects, each with its own GISRC file, lock, mapset, and region,
+ * may be created for concurrent work through GrassSession.
  * 
  * The initial design and implementation was executed by Gary Mayer. Subsequent additions and the inclusion of python methods was conducted by Sean Bergin
  * 
@@ -55,6 +69,17 @@ import fileMgmt.*;
 public class GrassFacade {
 	private static GrassFacade instance = null;			// GRASS object with specific attributes
 	private static Object padlock = new Object();	// Internal lock for thread-safe control
+	private static long session_count = 0;			// Number of GRASS objects (sessions) created
+	private static ExecutorService mapcalc_pool = null;	// Threads which evaluate r.mapcalc formulas in the JVM
+	private static final int MAPCALC_BAND_ROWS = 64;	// Rows evaluated together by one task
+	private static final int MAPCALC_THREADS = Runtime.getRuntime().availableProcessors();	// Threads of the mapcalc pool
+	private static final String TEMPLATE_FINGERPRINT = "TEMPLATE_INPUTS";	// File of a template mapset's fingerprint
+	// Parameters which name the output maps of the scripts (e.g., r.landscape.evol's 'outdem').
+	private static final String[] SCRIPT_OUTPUTS = { "output", "outmap", "outdem", "outsoil", "outbdrk", "outcfact", "buffer" };
+	// Modules whose 'output' parameter names raster maps (other modules write files or vector maps with it).
+	private static final String[] RASTER_OUTPUT_MODULES = { "r.in.bin", "r.in.poly", "r.in.gdal", "r.in.ascii", "r.neighbors",
+			"r.patch", "r.reclass", "r.recode", "r.rescale", "r.resample", "r.buffer", "r.grow", "r.walk", "r.cost",
+			"r.fill.dir", "r.series", "r.slope.aspect", "v.to.rast" };
 	private Object owner_key = null;				// A key representing the owner/creator
 													//	of the GRASS instance.
 	
@@ -70,6 +95,7 @@ public class GrassFacade {
 	private String EXECUTABLES = null;		// GRASS modules path.
 	private String SCRIPTS = null;			// Scripts path.
 	private String PYTHON = null;			// Python executable directory.
+	private String GIS_LOCK = null;			// Lock identifier, unique to this GRASS object.
 	
 	// *nux specifics
 	public String GROUP = null;				// User group to specify as owner of created files
@@ -79,6 +105,26 @@ public class GrassFacade {
 	// Note: In current versions of GRASS, the error stream contains information, not errors, from the
 	// execution of the GRASS modules (e.g., percentage complete). Setting this flag to false may reduce some
 	// extraneous output.
+	public boolean use_persistent_shell = false;	// Execute GRASS modules through one long-lived shell
+	// Note: When set, module calls are written to a single Bash coprocess (see GrassShell) rather than
+	// each starting a new process. Streaming (RecordConsumer) calls always start their own process.
+	
+	public boolean use_python_worker = false;		// Execute Python scripts in one resident interpreter
+	// Note: When set, Python scripts are run by a PythonWorker, which keeps the interpreter and the
+	// GRASS Python library loaded between scripts. Streaming (RecordConsumer) calls always start their
+	// own process.
+	
+	private ArrayList<StringPair> module_env = null;	// Cached GRASS module process environment
+	private ArrayList<StringPair> script_env = null;	// Cached script process environment
+	private ThreadLocal<GrassBatch> recording = new ThreadLocal<GrassBatch> ();	// Batch being recorded, per thread
+	private GrassShell shell = null;					// Persistent shell, if in use
+	private PythonWorker python_worker = null;			// Resident Python interpreter, if in use
+	private String region_key = null;					// Parameters of the last g.region call, while its region is current
+	private String region_output = null;				// Output of the last g.region call
+	private long region_stamp = 0;						// Region (WIND) file modification time after the last g.region call
+	private final MapRegistry map_registry = new MapRegistry(this);	// Raster maps made in the current mapset
+	private String base_mapset = null;					// Mapset in which sub-mapsets are made; 'null' if none begun
+	private final ArrayList<String> sub_mapsets = new ArrayList<String> ();	// Sub-mapsets begun, oldest first
 	
 	// GRASS Class (static) Methods
 	////////////////////////////////
@@ -205,7 +251,11 @@ public class GrassFacade {
 	public void destroy ( Object key ) throws IllegalArgumentException {
 		synchronized (GrassFacade.padlock) {
 			if ( this.owner_key.equals(key) ) {
-				GrassFacade.instance = null;
+				closeShell();
+				closePythonWorker();
+				if ( GrassFacade.instance == this ) {
+					GrassFacade.instance = null;
+				}
 			}
 			else {
 				throw new IllegalArgumentException("Invalid key. GRASS instance not destroyed.");
@@ -270,29 +320,23 @@ public class GrassFacade {
 				if(mapset_name.length()>11){
 					mapset_name = mapset_name.substring(0, 10); //added because some modules were failing with long mapset names
 				}
-				int run_num = 1;
-				String new_mapset = "";
 				String path = this.GISDBASE + File.separator + this.LOCATION  + File.separator;
 				File dir = new File(path + mapset_name);
 				this.MAPSET = mapset_name;
 			
-				if( dir.exists()){
-					String run = Integer.toString(run_num);	    
-					new_mapset = mapset_name + "_Run" + run;
-					dir = new File(path + new_mapset);
-			    
-					while ( dir.exists() )
-					{
-						run_num++;
-						run = Integer.toString(run_num);
-						new_mapset = mapset_name + "_Run" + run;
-						dir = new File(path + new_mapset);            
+				// Claim the mapset directory by creating it. Creating a directory is atomic, so
+				// concurrent runs cannot claim the same name; if the name is taken, try the next suffix.
+				int run_num = 0;
+				while ( !dir.mkdir() ) {
+					if ( !dir.getParentFile().isDirectory() ) {
+						throw new IOException("The location directory, " + dir.getParent() + ", does not exist.");
 					}
-			    this.MAPSET = new_mapset;
+					run_num++;
+					this.MAPSET = mapset_name + "_Run" + Integer.toString(run_num);
+					dir = new File(path + this.MAPSET);
 				}
 
 			// Copy files from the PERMANENT mapset to the mapset directory.
-			dir.mkdir();
 			CopyFile.copy(new File(permanent_path + File.separator + "WIND"), new File(dir.getAbsolutePath() + File.separator + "WIND"));
 			CopyFile.copy(new File(permanent_path + File.separator + "VAR"), new File(dir.getAbsolutePath() + File.separator + "VAR"));
 			File dbf_dir = new File(dir.getAbsolutePath() + File.separator + "dbf");
@@ -313,9 +357,357 @@ public class GrassFacade {
 		catch (UnsupportedOperationException uoe) {
 			// Thrown if SetGroup is used in an invalid OS. Ignore.
 		}
+		finally {
+			invalidateRegion();
+		}
 		
 		
 
+	}
+	
+	/**
+	 * Copies the raster maps of a template mapset (see publishMapset()) into the current mapset, if the
+	 * template was made from the same inputs: its fingerprint must equal the given one.
+	 * The map data and null files are hard linked, so they cost no copying; the support files
+	 * (header, range, colors, categories, and history), which GRASS modules rewrite in place, are
+	 * copied. Data files are copied instead if they cannot be linked (e.g., on another file system).
+	 * @param template_mapset The name of the template mapset in the current location.
+	 * @param fingerprint A description of the inputs the maps are made from (see describeRaster() and
+	 * describeFile()).
+	 * @return true if the maps were copied; false if the template mapset does not exist or was made
+	 * from other inputs.
+	 * @throws IOException if there is an error while copying the maps.
+	 */
+	public boolean cloneMapset ( String template_mapset, String fingerprint ) throws IOException {
+		File template_dir = new File(this.GISDBASE + this.LOCATION + File.separator + template_mapset);
+		if ( !new File(template_dir, "cellhd").isDirectory() || !fingerprint.equals(readFingerprint(template_dir)) ) {
+			return false;
+		}
+		
+		File mapset_dir = new File(getMapsetPath());
+		copyRasterElements(template_dir, mapset_dir);
+		this.map_registry.scan(mapset_dir, "cloneMapset");
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Saves the raster maps of the current mapset as a template mapset, from which later runs may
+	 * clone their initial maps (see cloneMapset()), together with the fingerprint of the inputs they
+	 * were made from. A template of the same fingerprint is kept; one of another fingerprint is
+	 * replaced. The template is assembled under a temporary name and then renamed, so a concurrent run
+	 * sees either no template or a complete one.
+	 * @param template_mapset The name of the template mapset to create in the current location.
+	 * @param fingerprint A description of the inputs the maps are made from.
+	 * @return true if the template was created; false if it already exists with this fingerprint (or
+	 * another run replaced it first).
+	 * @throws IOException if there is an error while copying the maps.
+	 */
+	public boolean publishMapset ( String template_mapset, String fingerprint ) throws IOException {
+		String location_path = this.GISDBASE + this.LOCATION + File.separator;
+		File template_dir = new File(location_path + template_mapset);
+		if ( template_dir.exists() && fingerprint.equals(readFingerprint(template_dir)) ) {
+			return false;
+		}
+		
+		File partial_dir = new File(location_path + "." + template_mapset + "." + this.GIS_LOCK);
+		if ( !partial_dir.mkdir() ) {
+			throw new IOException("Unable to create the directory, " + partial_dir.getAbsolutePath() + ".");
+		}
+		
+		try {
+			// The template is a mapset of its own, so its maps can also be read with '@template_mapset'.
+			File mapset_dir = new File(getMapsetPath());
+			CopyFile.copy(new File(mapset_dir, "WIND"), new File(partial_dir, "WIND"));
+			CopyFile.copy(new File(mapset_dir, "VAR"), new File(partial_dir, "VAR"));
+			copyRasterElements(mapset_dir, partial_dir);
+			FileWriter fw = new FileWriter(new File(partial_dir, TEMPLATE_FINGERPRINT));
+			try {
+				fw.write(fingerprint);
+			}
+			finally {
+				fw.close();
+			}
+		}
+		catch (IOException ioe) {
+			GrassSession.delete(partial_dir);
+			throw ioe;
+		}
+		
+		// A stale template is moved aside first. Either rename fails if another run has replaced or
+		// published the template in the meantime. Runs which cloned the stale template keep their
+		// hard linked data files.
+		File stale_dir = new File(location_path + "." + template_mapset + ".stale." + this.GIS_LOCK);
+		if ( template_dir.exists() && !template_dir.renameTo(stale_dir) ) {
+			GrassSession.delete(partial_dir);
+			return false;
+		}
+		boolean published = partial_dir.renameTo(template_dir);
+		if ( !published ) {
+			GrassSession.delete(partial_dir);
+		}
+		GrassSession.delete(stale_dir);
+		
+		return published;
+		
+	}
+	
+	/**
+	 * Describes a raster map for a template fingerprint: its name and mapset and the size and
+	 * modification time of its header and data files. A map which is made again or changed is
+	 * therefore described differently, without its cells being read.
+	 * @param map_name The map name, optionally with a mapset qualifier.
+	 * @return the description.
+	 * @throws IOException if the map does not exist.
+	 */
+	public String describeRaster ( String map_name ) throws IOException {
+		File mapset_dir = findRasterMapset(map_name);
+		if ( mapset_dir == null ) {
+			throw new IOException("The raster map, " + map_name + ", was not found.");
+		}
+		
+		String name = baseName(map_name);
+		StringBuilder description = new StringBuilder(name + "@" + mapset_dir.getName());
+		for ( String element : new String[] { "cellhd", "cell", "fcell" } ) {
+			File file = new File(new File(mapset_dir, element), name);
+			if ( file.exists() ) {
+				description.append(' ').append(element).append(':').append(file.length()).append(':').append(file.lastModified());
+			}
+		}
+		
+		return description.toString();
+		
+	}
+	
+	/**
+	 * Describes a file (e.g., reclass rules) for a template fingerprint: its path and a checksum of
+	 * its contents.
+	 * @param path The path of the file; 'null' for none.
+	 * @return the description.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static String describeFile ( String path ) throws IOException {
+		if ( path == null ) {
+			return "none";
+		}
+		
+		CRC32 checksum = new CRC32();
+		FileInputStream in = new FileInputStream(path);
+		try {
+			byte[] data_buffer = new byte[8192];
+			int length = in.read(data_buffer);
+			while ( length != -1 ) {
+				checksum.update(data_buffer, 0, length);
+				length = in.read(data_buffer);
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		return path + " crc32:" + Long.toHexString(checksum.getValue());
+		
+	}
+	
+	/**
+	 * Reads the fingerprint of a template mapset.
+	 * @return the fingerprint, or 'null' if the template has none (e.g., it predates fingerprints).
+	 */
+	private static String readFingerprint ( File template_dir ) {
+		File file = new File(template_dir, TEMPLATE_FINGERPRINT);
+		if ( !file.exists() ) {
+			return null;
+		}
+		
+		StringBuilder fingerprint = new StringBuilder();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				char[] data_buffer = new char[4096];
+				int length = in.read(data_buffer);
+				while ( length != -1 ) {
+					fingerprint.append(data_buffer, 0, length);
+					length = in.read(data_buffer);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ioe) {
+			return null;
+		}
+		
+		return fingerprint.toString();
+		
+	}
+	
+	/**
+	 * Places the current mapset on a memory-backed directory (/dev/shm, if available): the mapset
+	 * keeps its name and path, but its maps are read and written in memory. Only the maps and files
+	 * selected for retention are written back to the mapset on disk (see MapsetStaging).
+	 * @return the staging, which must be closed to restore the mapset on disk.
+	 * @throws IOException if the mapset cannot be staged (it is then left unchanged).
+	 */
+	public MapsetStaging stageMapset () throws IOException {
+		MapsetStaging staging = new MapsetStaging(new File(getMapsetPath()), exchangeDirectory(),
+				"grass_" + this.LOCATION + "_" + this.MAPSET + "_" + this.GIS_LOCK);
+		invalidateRegion();
+		
+		return staging;
+		
+	}
+	
+	/**
+	 * Begins a sub-mapset: a mapset named '[base mapset]_[suffix]' which becomes the current mapset, so
+	 * the maps made from now on are written to it rather than to the base mapset (the current mapset
+	 * when the first sub-mapset is begun). Giving each period of a run (e.g., each decade) its own
+	 * sub-mapset keeps the mapset directories small, so listing and removing maps do not slow down as
+	 * the run goes on.
+	 * 
+	 * Maps are read through the search path of the sub-mapset: the sub-mapset itself, the most recent
+	 * earlier sub-mapsets, and then the search path of the base mapset. The region is carried over.
+	 * Temporary maps left in the previous mapset are no longer tracked (see getMapRegistry()). An
+	 * existing sub-mapset is reused.
+	 * @param suffix The suffix of the sub-mapset name (e.g., 'y1230').
+	 * @param search_depth The number of earlier sub-mapsets to search for maps.
+	 * @return the sub-mapset name.
+	 * @throws IllegalStateException if a batch is being recorded.
+	 * @throws IOException if the sub-mapset cannot be created.
+	 */
+	public String beginSubMapset ( String suffix, int search_depth ) throws IllegalStateException, IOException {
+		if ( this.recording.get() != null ) {
+			throw new IllegalStateException("The mapset cannot be changed while a batch is being recorded.");
+		}
+		
+		if ( this.base_mapset == null ) {
+			this.base_mapset = this.MAPSET;
+		}
+		String location_path = this.GISDBASE + this.LOCATION + File.separator;
+		String sub_mapset = this.base_mapset + "_" + suffix;
+		File sub_dir = new File(location_path + sub_mapset);
+		
+		this.map_registry.unregisterMatching("*");
+		
+		if ( !sub_dir.isDirectory() ) {
+			if ( !sub_dir.mkdir() ) {
+				throw new IOException("Unable to create the sub-mapset directory, " + sub_dir.getAbsolutePath() + ".");
+			}
+			CopyFile.copy(regionFile(), new File(sub_dir, "WIND"));
+			File var_file = new File(location_path + this.base_mapset + File.separator + "VAR");
+			if ( var_file.exists() ) {
+				CopyFile.copy(var_file, new File(sub_dir, "VAR"));
+			}
+			new File(sub_dir, "dbf").mkdir();
+			if ( this.GROUP != null ) {
+				try {
+					setGroup(this.GROUP, sub_dir, true);
+				}
+				catch (UnsupportedOperationException uoe) {
+					// Thrown if SetGroup is used in an invalid OS. Ignore.
+				}
+			}
+		}
+		
+		ArrayList<String> search_path = new ArrayList<String> ();
+		search_path.add(sub_mapset);
+		for ( int s = this.sub_mapsets.size() - 1; (s >= 0) && (search_path.size() <= search_depth); s-- ) {
+			if ( !search_path.contains(this.sub_mapsets.get(s)) ) {
+				search_path.add(this.sub_mapsets.get(s));
+			}
+		}
+		for ( String mapset : readSearchPath(new File(location_path + this.base_mapset), this.base_mapset) ) {
+			if ( !search_path.contains(mapset) ) {
+				search_path.add(mapset);
+			}
+		}
+		
+		FileWriter fw = new FileWriter(new File(sub_dir, "SEARCH_PATH"));
+		for ( String mapset : search_path ) {
+			fw.write(mapset + "\n");
+		}
+		fw.close();
+		
+		if ( !this.sub_mapsets.contains(sub_mapset) ) {
+			this.sub_mapsets.add(sub_mapset);
+		}
+		this.MAPSET = sub_mapset;
+		setEnvironment();
+		invalidateRegion();
+		
+		return sub_mapset;
+		
+	}
+	
+	/**
+	 * Provides the base mapset: the mapset in which sub-mapsets are made (see beginSubMapset()).
+	 * @return the base mapset name; the current mapset name if no sub-mapset has been begun.
+	 */
+	public String getBaseMapset () {
+		return (this.base_mapset == null) ? this.MAPSET : this.base_mapset;
+		
+	}
+	
+	/**
+	 * Copies the raster elements of one mapset directory into another: data and null files are
+	 * hard linked where possible and the support files are copied.
+	 */
+	private static void copyRasterElements ( File from_dir, File to_dir ) throws IOException {
+		String[] elements = { "cellhd", "cell", "fcell", "cell_misc", "colr", "cats", "hist" };
+		for ( int e = 0; e < elements.length; e++ ) {
+			File from = new File(from_dir, elements[e]);
+			File[] files = from.listFiles();
+			if ( files == null ) {
+				continue;
+			}
+			File to = new File(to_dir, elements[e]);
+			to.mkdirs();
+			
+			if ( elements[e].equals("cell") || elements[e].equals("fcell") ) {
+				CopyFile.linkOrCopy(visibleFiles(files), to);
+			}
+			else if ( elements[e].equals("cell_misc") ) {
+				for ( int m = 0; m < files.length; m++ ) {
+					File[] misc_files = files[m].listFiles();
+					if ( (misc_files == null) || files[m].getName().startsWith(".") ) {
+						continue;
+					}
+					File map_dir = new File(to, files[m].getName());
+					map_dir.mkdirs();
+					for ( int f = 0; f < misc_files.length; f++ ) {
+						if ( misc_files[f].getName().equals("null") ) {
+							CopyFile.linkOrCopy(new File[] { misc_files[f] }, map_dir);
+						}
+						else {
+							CopyFile.copy(misc_files[f], new File(map_dir, misc_files[f].getName()));
+						}
+					}
+				}
+			}
+			else {
+				File[] visible = visibleFiles(files);
+				for ( int f = 0; f < visible.length; f++ ) {
+					CopyFile.copy(visible[f], new File(to, visible[f].getName()));
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Removes hidden (e.g., temporary) files from a file list.
+	 */
+	private static File[] visibleFiles ( File[] files ) {
+		ArrayList<File> visible = new ArrayList<File> ();
+		for ( int f = 0; f < files.length; f++ ) {
+			if ( !files[f].getName().startsWith(".") && files[f].isFile() ) {
+				visible.add(files[f]);
+			}
+		}
+		
+		return visible.toArray(new File[visible.size()]);
+		
 	}
 	
 	/**
@@ -404,6 +796,7 @@ public class GrassFacade {
 		}
 		
 		this.MAPSET = mapset_name;
+		invalidateRegion();
 		
 	}
 	
@@ -420,6 +813,9 @@ public class GrassFacade {
 		if ( !this.PYTHON.endsWith(File.separator) ) {
 			this.PYTHON = this.PYTHON.concat(File.separator);
 		}
+		
+		// A running worker uses the previous Python executable.
+		closePythonWorker();
 	}
 	
 	/**
@@ -583,6 +979,190 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * Creates raster maps in the current mapset which alias (share the data of) other raster maps,
+	 * rather than copying them with g.copy. The source maps may be in any mapset of the location
+	 * (e.g., the sub-mapset of an earlier period; see beginSubMapset()). The data and null files of
+	 * each new map are hard links to those of its source map, and the support files (header, range,
+	 * colors, categories, and history) are copied. GRASS modules replace (rather than modify) a map's
+	 * data files when they write it, so writing either map later does not change the other (i.e.,
+	 * copy-on-write), and deleting either map leaves the other intact. A new map which already exists
+	 * in the current mapset is replaced (a map aliased to itself is left as it is). A map is copied with g.copy instead if its source is a reclass
+	 * map, or if hard links cannot be created (e.g., the mapsets are on different file systems); the
+	 * maps copied for that reason are listed in the returned output. To alias several maps, provide
+	 * comma separated (no spaces) lists of equal length.
+	 * 
+	 * Aliases are created at once, even while a batch is being recorded; copies made with g.copy
+	 * are recorded in the batch.
+	 * @param from The name(s) of the raster maps to alias.
+	 * @param to The name(s) of the raster maps to create.
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return A String with the output of any g.copy operations.
+	 * @throws IllegalArgumentException if the lists are not of equal length.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error buffer output resulting from a copy operation.
+	 */
+	public String gAliasRast ( String from, String to, boolean run_quiet )
+	throws IllegalArgumentException, IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		String[] from_maps = from.split(",");
+		String[] to_maps = to.split(",");
+		if ( from_maps.length != to_maps.length ) {
+			throw new IllegalArgumentException("Each raster map to alias must have one new map name.");
+		}
+		
+		// Find the maps which can be aliased, and the data files to link for them.
+		File mapset_dir = new File(getMapsetPath());
+		File[] source_mapsets = new File[from_maps.length];
+		ArrayList<Integer> aliased = new ArrayList<Integer> ();
+		ArrayList<Integer> copied = new ArrayList<Integer> ();
+		ArrayList<File> link_sources = new ArrayList<File> ();
+		ArrayList<File> link_targets = new ArrayList<File> ();
+		for ( int m = 0; m < from_maps.length; m++ ) {
+			source_mapsets[m] = findRasterMapset(from_maps[m]);
+			String source = baseName(from_maps[m]);
+			RasterMetadata metadata = (source_mapsets[m] == null) ? null : RasterMetadata.lookup(source_mapsets[m], source);
+			if ( (metadata != null) && source_mapsets[m].getName().equals(this.MAPSET) && source.equals(to_maps[m]) ) {
+				continue;
+			}
+			
+			// The new map replaces an existing one, whether it is aliased or copied (g.copy does not overwrite).
+			if ( RasterMetadata.exists(mapset_dir, to_maps[m]) ) {
+				removeRasterFiles(mapset_dir, to_maps[m]);
+			}
+			
+			// Reclass maps have no data files of their own; they are copied.
+			if ( (metadata == null) || metadata.reclass ) {
+				copied.add(m);
+				continue;
+			}
+			
+			aliased.add(m);
+			String[] data_elements = { "cell", "fcell" };
+			for ( int e = 0; e < data_elements.length; e++ ) {
+				File data_file = new File(new File(source_mapsets[m], data_elements[e]), source);
+				if ( data_file.isFile() ) {
+					new File(mapset_dir, data_elements[e]).mkdirs();
+					link_sources.add(data_file);
+					link_targets.add(new File(new File(mapset_dir, data_elements[e]), to_maps[m]));
+				}
+			}
+			File null_file = new File(new File(new File(source_mapsets[m], "cell_misc"), source), "null");
+			if ( null_file.isFile() ) {
+				File misc_dir = new File(new File(mapset_dir, "cell_misc"), to_maps[m]);
+				misc_dir.mkdirs();
+				link_sources.add(null_file);
+				link_targets.add(new File(misc_dir, "null"));
+			}
+		}
+		
+		StringBuilder output = new StringBuilder();
+		if ( !CopyFile.link(link_sources.toArray(new File[link_sources.size()]), link_targets.toArray(new File[link_targets.size()])) ) {
+			// Remove any links which were made, and copy the maps instead.
+			for ( File link : link_targets ) {
+				link.delete();
+			}
+			if ( !aliased.isEmpty() ) {
+				output.append("Hard links could not be created; raster maps copied with g.copy:");
+				for ( Integer m : aliased ) {
+					new File(new File(mapset_dir, "cell_misc"), to_maps[m]).delete();
+					output.append(' ').append(to_maps[m]);
+				}
+				output.append('\n');
+			}
+			copied.addAll(aliased);
+			aliased.clear();
+		}
+		
+		// Copy the support files; the header is copied last, since the map exists once it has a header.
+		for ( Integer m : aliased ) {
+			String source = baseName(from_maps[m]);
+			String[] support_elements = { "colr", "cats", "hist" };
+			for ( int e = 0; e < support_elements.length; e++ ) {
+				File support_file = new File(new File(source_mapsets[m], support_elements[e]), source);
+				if ( support_file.isFile() ) {
+					new File(mapset_dir, support_elements[e]).mkdirs();
+					CopyFile.copy(support_file, new File(new File(mapset_dir, support_elements[e]), to_maps[m]));
+				}
+			}
+			File[] misc_files = new File(new File(source_mapsets[m], "cell_misc"), source).listFiles();
+			if ( misc_files != null ) {
+				File misc_dir = new File(new File(mapset_dir, "cell_misc"), to_maps[m]);
+				misc_dir.mkdirs();
+				for ( int f = 0; f < misc_files.length; f++ ) {
+					if ( !misc_files[f].getName().equals("null") ) {
+						CopyFile.copy(misc_files[f], new File(misc_dir, misc_files[f].getName()));
+					}
+				}
+			}
+			new File(mapset_dir, "cellhd").mkdirs();
+			CopyFile.copy(new File(new File(source_mapsets[m], "cellhd"), source), new File(new File(mapset_dir, "cellhd"), to_maps[m]));
+			this.map_registry.register(to_maps[m], "gAliasRast");
+		}
+		
+		for ( Integer m : copied ) {
+			output.append(gCopyRast(from_maps[m], to_maps[m], run_quiet));
+		}
+		
+		return output.toString();
+		
+	}
+	
+	/**
+	 * Deletes the files of a raster map in a mapset (as g.remove does, but at once, even while a batch
+	 * is being recorded).
+	 */
+	private static void removeRasterFiles ( File mapset_dir, String map_name ) {
+		String[] elements = { "cellhd", "cell", "fcell", "cats", "colr", "hist" };
+		for ( int e = 0; e < elements.length; e++ ) {
+			new File(new File(mapset_dir, elements[e]), map_name).delete();
+		}
+		
+		File misc_dir = new File(new File(mapset_dir, "cell_misc"), map_name);
+		File[] files = misc_dir.listFiles();
+		if ( files != null ) {
+			for ( int f = 0; f < files.length; f++ ) {
+				files[f].delete();
+			}
+		}
+		misc_dir.delete();
+		
+	}
+	
+	/**
+	 * g.copy mapping: GRASS module. Copy a vector map. The from location can be in any known
+	 * mapset location using the '@' designation (i.e., 'sites@PERMANENT').
+	 * @param from The name of the vector map to copy from.
+	 * @param to The name of the vector map to copy to.
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error buffer output resulting from the copy operation.
+	 */
+	public String gCopyVect ( String from, String to, boolean run_quiet ) 
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "g.copy");
+		cmdList.add("vect=" + from + "," + to);
+		
+		if ( run_quiet ) {
+			cmdList.add("--quiet");
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList);
+		printErrors(result.errors);
+		
+		return result.output;
+		
+	}
+	
 	/**
 	 * g.gisenv mapping: GRASS module. Set the current environment mapset.
 	 * @param mapset the mapset to set.
@@ -601,6 +1181,7 @@ public class GrassFacade {
 		
 		ExternalExec.OpResult result = executeCmd(cmdList);
 		printErrors(result.errors);
+		invalidateRegion();
 		
 		return result.output;
 		
@@ -649,6 +1230,7 @@ public class GrassFacade {
 		
 		ExternalExec.OpResult result = executeCmd(cmdList);
 		printErrors(result.errors);
+		invalidateRegion();
 		
 		return result.output;
 		
@@ -677,6 +1259,9 @@ public class GrassFacade {
 	
 	/**
 	 * g.region mapping: GRASS module. Sets the boundary conditions for the geographical region.
+	 * The module is not run (and the output of the previous call is returned) if the previous call
+	 * had the same parameters, the map has not been rewritten since, and the region has not been
+	 * changed by other means (see invalidateRegion()).
 	 * @param map_name The map to use for region settings.
 	 * @param flags An optional array of character flags to append to the operation. Specify 'null'
 	 * if no flags are to be set.
@@ -720,54 +1305,177 @@ public class GrassFacade {
 			cmdList.add("--quiet");
 		}
 		
+		// The region set by a map is the same each time, so the call is skipped if the same region was
+		// set last, the map has not been rewritten since, and nothing else has changed the region.
+		File map_mapset = findRasterMapset(map_name);
+		String key = cmdList.toString() + " " + ((map_mapset == null) ? 0 :
+			new File(map_mapset, "cellhd" + File.separator + baseName(map_name)).lastModified());
+		if ( this.recording.get() == null ) {
+			String cached_output = cachedRegion(key);
+			if ( cached_output != null ) {
+				return cached_output;
+			}
+		}
+		
+		invalidateRegion();
 		ExternalExec.OpResult result = executeCmd(cmdList);
 		printErrors(result.errors);
 		
+		if ( (this.recording.get() == null) && (result.exitValue == 0) ) {
+			cacheRegion(key, result.output);
+		}
+		
 		return result.output;
 		
 	}
 	
 	/**
-	 * g.remove mapping: GRASS module. Delete one or more raster maps. To delete one raster
-	 * map, just provide its name as the parameter. Multiple raster map names should be comma
-	 * separated (no spaces).
-	 * @param map_names The raster map name(s) to delete from the current mapset.
-	 * @param run_quiet Specifies if the operation should provide feedback while running.
-	 * @return A String with the operation output. Any output to the error stream is thrown
-	 * as an exception.
-	 * @throws IllegalStateException if the executable path is not set.
-	 * @throws IOException Error buffer output resulting from the delete operation.
+	 * Marks the current region as unknown, so that the next g.region call is run. This is done
+	 * automatically by the operations of this class which may change the region (e.g., scripts and
+	 * mapset changes); it must be called if the region is changed by other means.
 	 */
-	public String gRemoveRast ( String map_names, boolean run_quiet )
-	throws IllegalStateException, IOException {
-		if ( this.EXECUTABLES == null ) {
-			throw new IllegalStateException("Executable path not set.");
-		}
-		
-		ArrayList<String> cmdList = new ArrayList<String> ();
-		cmdList.add(this.EXECUTABLES + "g.remove");
-		cmdList.add("rast=" + map_names);
+	public synchronized void invalidateRegion () {
+		this.region_key = null;
+		this.region_output = null;
 		
-		if ( run_quiet ) {
-			cmdList.add("--quiet");
+	}
+	
+	/**
+	 * Provides the output of the last g.region call if it was made with the specified parameters
+	 * and the region has not changed since.
+	 * @param key The g.region parameters.
+	 * @return the output of the last call, or 'null' if the call must be run.
+	 */
+	private synchronized String cachedRegion ( String key ) {
+		if ( key.equals(this.region_key) && (regionFile().lastModified() == this.region_stamp) ) {
+			return this.region_output;
 		}
 		
-		ExternalExec.OpResult result = executeCmd(cmdList);
-		printErrors(result.errors);
+		return null;
 		
-		return result.output;
+	}
+	
+	/**
+	 * Records the parameters and output of a g.region call which has set the current region.
+	 */
+	private synchronized void cacheRegion ( String key, String output ) {
+		this.region_key = key;
+		this.region_output = output;
+		this.region_stamp = regionFile().lastModified();
 		
 	}
 	
-	public String gMRemoveRast ( String map_names, char[] flags, boolean run_quiet )
-	throws IllegalStateException, IOException {
-		if ( this.EXECUTABLES == null ) {
-			throw new IllegalStateException("Executable path not set.");
-		}
+	/**
+	 * Provides the region file (WIND) of the current mapset.
+	 */
+	private File regionFile () {
+		return new File(getMapsetPath() + File.separator + "WIND");
 		
-		ArrayList<String> cmdList = new ArrayList<String> ();
-		cmdList.add(this.EXECUTABLES + "g.mremove");
-		addFlagParameter(cmdList, flags);
+	}
+	
+	/**
+	 * Finds the mapset directory which holds a raster map. A map without a mapset qualifier is looked
+	 * for in the mapsets of the current mapset's search path (SEARCH_PATH file), or in the current
+	 * mapset and then PERMANENT if there is no search path, as GRASS modules do.
+	 * @param map_name The map name, optionally with a mapset qualifier (e.g., 'elev@PERMANENT').
+	 * @return the mapset directory, or 'null' if the map is not found.
+	 */
+	private File findRasterMapset ( String map_name ) {
+		String location_path = this.GISDBASE + this.LOCATION + File.separator;
+		int at = map_name.indexOf('@');
+		if ( at > 0 ) {
+			File mapset_dir = new File(location_path + map_name.substring(at + 1));
+			return RasterMetadata.exists(mapset_dir, map_name.substring(0, at)) ? mapset_dir : null;
+		}
+		
+		for ( String mapset : readSearchPath(new File(getMapsetPath()), this.MAPSET) ) {
+			File mapset_dir = new File(location_path + mapset);
+			if ( RasterMetadata.exists(mapset_dir, map_name) ) {
+				return mapset_dir;
+			}
+		}
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Reads the search path of a mapset (its SEARCH_PATH file): the mapsets in which maps without a
+	 * mapset qualifier are looked for, in order.
+	 * @param mapset_dir The mapset directory.
+	 * @param mapset The mapset name.
+	 * @return the mapset names; the mapset and then PERMANENT if it has no (readable) search path.
+	 */
+	private static ArrayList<String> readSearchPath ( File mapset_dir, String mapset ) {
+		ArrayList<String> search_path = new ArrayList<String> ();
+		File search_file = new File(mapset_dir, "SEARCH_PATH");
+		if ( search_file.exists() ) {
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(search_file));
+				String line = in.readLine();
+				while ( line != null ) {
+					if ( line.trim().length() > 0 ) {
+						search_path.add(line.trim());
+					}
+					line = in.readLine();
+				}
+				in.close();
+			}
+			catch (IOException ioe) {
+				// Use the default search path.
+				search_path.clear();
+			}
+		}
+		if ( search_path.isEmpty() ) {
+			search_path.add(mapset);
+			search_path.add("PERMANENT");
+		}
+		
+		return search_path;
+		
+	}
+	
+	/**
+	 * g.remove mapping: GRASS module. Delete one or more raster maps. To delete one raster
+	 * map, just provide its name as the parameter. Multiple raster map names should be comma
+	 * separated (no spaces).
+	 * @param map_names The raster map name(s) to delete from the current mapset.
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return A String with the operation output. Any output to the error stream is thrown
+	 * as an exception.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error buffer output resulting from the delete operation.
+	 */
+	public String gRemoveRast ( String map_names, boolean run_quiet )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "g.remove");
+		cmdList.add("rast=" + map_names);
+		
+		if ( run_quiet ) {
+			cmdList.add("--quiet");
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList);
+		printErrors(result.errors);
+		
+		return result.output;
+		
+	}
+	
+	public String gMRemoveRast ( String map_names, char[] flags, boolean run_quiet )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "g.mremove");
+		addFlagParameter(cmdList, flags);
 		cmdList.add("rast=" + map_names);
 		
 		if ( run_quiet ) {
@@ -1048,6 +1756,376 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * Indicates if a raster map exists, by looking for its header in the mapset directory (no GRASS
+	 * module is run).
+	 * @param map_name The map name, optionally with a mapset qualifier (e.g., 'elev@PERMANENT'). A
+	 * map without a qualifier is looked for in the current mapset's search path.
+	 * @return true if the map exists.
+	 */
+	public boolean rasterExists ( String map_name ) {
+		return findRasterMapset(map_name) != null;
+		
+	}
+	
+	/**
+	 * Provides the bounds, resolution, cell type, and value range of a raster map, read from the
+	 * map's header and range files (no GRASS module is run). The metadata is cached while the
+	 * files are unchanged.
+	 * @param map_name The map name, optionally with a mapset qualifier (e.g., 'elev@PERMANENT'). A
+	 * map without a qualifier is looked for in the current mapset's search path.
+	 * @return the map metadata, or 'null' if the map does not exist.
+	 * @throws IOException if the map's header or range file cannot be read.
+	 */
+	public RasterMetadata getRasterMetadata ( String map_name ) throws IOException {
+		File mapset_dir = findRasterMapset(map_name);
+		if ( mapset_dir == null ) {
+			return null;
+		}
+		
+		return RasterMetadata.lookup(mapset_dir, baseName(map_name));
+		
+	}
+	
+	/**
+	 * Opens a raster map for reading its cell values directly from the map's files (no GRASS module
+	 * is run). The map is read at its own bounds and resolution, not those of the current region.
+	 * @param map_name The map name, optionally with a mapset qualifier (e.g., 'elev@PERMANENT'). A
+	 * map without a qualifier is looked for in the current mapset's search path.
+	 * @return the reader, which must be closed when no longer needed.
+	 * @throws IOException if the map does not exist or cannot be read.
+	 */
+	public RasterReader openRaster ( String map_name ) throws IOException {
+		File mapset_dir = findRasterMapset(map_name);
+		if ( mapset_dir == null ) {
+			throw new IOException("The raster map, " + map_name + ", was not found.");
+		}
+		
+		return new RasterReader(mapset_dir, baseName(map_name));
+		
+	}
+	
+	/**
+	 * Creates a raster map in the current mapset whose cell values are written directly to the map's
+	 * files (no GRASS module is run). The map is registered in the map registry when the writer is
+	 * closed, under the facade method which made it (as for module calls; see callerMethod()).
+	 * @param map_name The map name. An existing map with this name is replaced when the writer is closed.
+	 * @param type The cell type of the map.
+	 * @param bounds The metadata of a map whose bounds and resolution are used (e.g., from
+	 * getRasterMetadata()).
+	 * @return the writer, which must be closed to complete the map.
+	 * @throws IOException if the map files cannot be created.
+	 */
+	public RasterWriter createRaster ( String map_name, RasterMetadata.CellType type, RasterMetadata bounds )
+	throws IOException {
+		RasterWriter writer = new RasterWriter(new File(getMapsetPath()), map_name, type, bounds);
+		writer.setRegistry(this.map_registry, callerMethod());
+		
+		return writer;
+		
+	}
+	
+	/**
+	 * Reads the elevation and friction maps into a cost distance engine, which computes cost surfaces
+	 * in the JVM with the walking time model of r.walk (see rWalk() and CostDistance). The engine
+	 * works on the current region. Maps aligned with the region are read directly from their files;
+	 * others (e.g., a reclass friction map) are exported at the region through r.out.bin (see rOutBin()).
+	 * @param flags 'k' to use knight's moves, as for r.walk; 'null' for none.
+	 * @param elevation_map The elevation map.
+	 * @param friction_map The friction map, or 'null' for none.
+	 * @param walk_coefficient The walk coefficients, as for r.walk (e.g., '0.72,6.0,1.9998,-1.9998').
+	 * @param lambda The weight of the friction cost.
+	 * @param slope_factor The slope at and below which a downhill move is steep (e.g., -0.2125).
+	 * @return the engine, which may be shared by threads and GRASS sessions.
+	 * @throws IllegalArgumentException if the walk coefficients are not valid.
+	 * @throws IOException if a map cannot be found or read.
+	 */
+	public CostDistance openCostDistance ( char[] flags, String elevation_map, String friction_map,
+			String walk_coefficient, double lambda, double slope_factor ) throws IllegalArgumentException, IOException {
+		boolean knights_move = false;
+		if ( flags != null ) {
+			for ( int f = 0; f < flags.length; f++ ) {
+				knights_move = knights_move || (flags[f] == 'k');
+			}
+		}
+		
+		RasterMetadata region = RasterMetadata.readRegion(new File(getMapsetPath()));
+		double[] elevation = readOnRegion(elevation_map, region);
+		double[] friction = (friction_map == null) ? null : readOnRegion(friction_map, region);
+		
+		return new CostDistance(region, elevation, friction, walk_coefficient, lambda, slope_factor, knights_move);
+		
+	}
+	
+	/**
+	 * Makes a cost surface map with a cost distance engine (see openCostDistance()), as rWalk() does
+	 * with r.walk from one start point. With a maximum cost, only the cells within it are searched and
+	 * the map covers only their bounding tile (see writeCostSurface()); GRASS reads the cells outside
+	 * the tile as null. The map is written directly to the current mapset and registered under the name
+	 * of the calling method.
+	 * @param engine The cost distance engine.
+	 * @param east The easting of the start point.
+	 * @param north The northing of the start point.
+	 * @param output_map The cost surface map to make.
+	 * @param max_cost The cost beyond which cells are not reached, or 0 for no limit.
+	 * @return A String describing the map made.
+	 * @throws IllegalArgumentException if the start point is outside the engine's region.
+	 * @throws IOException if the map cannot be written.
+	 */
+	public String costSurface ( CostDistance engine, double east, double north, String output_map, double max_cost )
+	throws IllegalArgumentException, IOException {
+		int start = engine.cellIndex(east, north);
+		if ( start < 0 ) {
+			throw new IllegalArgumentException("The start point, " + east + "," + north + ", is outside the region.");
+		}
+		
+		return writeCostSurface(engine.computeSparse(new int[] { start }, max_cost), output_map, callerMethod());
+		
+	}
+	
+	/**
+	 * Writes a bounded cost surface (see CostDistance.computeSparse()) as a DCELL map covering only
+	 * the bounding tile of the reached cells, on the grid of the surface's region; cells within the
+	 * tile which were not reached are null. A surface which reached no cell is written as one null cell
+	 * at the north-west corner of the region. The map is written directly to the current mapset and
+	 * registered under the name of the calling method.
+	 * @param surface The cost surface.
+	 * @param output_map The cost surface map to make.
+	 * @return A String describing the map made.
+	 * @throws IOException if the map cannot be written.
+	 */
+	public String writeCostSurface ( SparseCostSurface surface, String output_map ) throws IOException {
+		return writeCostSurface(surface, output_map, callerMethod());
+		
+	}
+	
+	/**
+	 * Writes a bounded cost surface as the bounding tile of its reached cells (see writeCostSurface()).
+	 * @param step The facade method (or model step) under which the map is registered.
+	 */
+	private String writeCostSurface ( SparseCostSurface surface, String output_map, String step ) throws IOException {
+		RasterMetadata region = surface.getRegion();
+		int rows = Math.max(surface.getRowCount(), 1);
+		int cols = Math.max(surface.getColCount(), 1);
+		double north = region.north - surface.getFirstRow() * region.ns_res;
+		double west = region.west + surface.getFirstCol() * region.ew_res;
+		
+		RasterWriter writer = new RasterWriter(new File(getMapsetPath()), output_map, RasterMetadata.CellType.DCELL,
+				north, north - rows * region.ns_res, west + cols * region.ew_res, west, rows, cols);
+		writer.setRegistry(this.map_registry, step);
+		try {
+			double[] values = new double[cols];
+			for ( int r = 0; r < rows; r++ ) {
+				if ( surface.isEmpty() ) {
+					values[0] = Double.NaN;
+				}
+				else {
+					surface.getTileRow(r, values);
+				}
+				writer.writeRow(values);
+			}
+			writer.close();
+		}
+		catch (IOException ioe) {
+			writer.discard();
+			throw ioe;
+		}
+		
+		return "Cost surface " + output_map + ": " + surface.getReachedCount() + " of " + (region.rows * region.cols) +
+				" cells reached, on a tile of " + rows + " x " + cols + " cells.\n";
+		
+	}
+	
+	/**
+	 * Makes a catchment map with a cost distance engine, as rCatchmentPy() does with r.catchment.py: a
+	 * catchment of the given area is grown over a cost surface from its start point (see
+	 * CostDistance.growCatchment()), and its cells are given a value. The map is a CELL map covering the
+	 * bounding tile of the catchment (GRASS reads the cells outside it as null), written directly to the
+	 * current mapset and registered under the name of the calling method.
+	 * @param engine The cost distance engine which made the cost surface.
+	 * @param surface The cost surface.
+	 * @param east The easting of the start point of the surface.
+	 * @param north The northing of the start point of the surface.
+	 * @param area The area of the catchment, in square map units.
+	 * @param value The value of the catchment cells; the other cells are null.
+	 * @param output_map The catchment map to make.
+	 * @return A String describing the map made.
+	 * @throws IllegalArgumentException if the start point is outside the engine's region.
+	 * @throws IOException if the map cannot be written.
+	 */
+	public String growCatchment ( CostDistance engine, SparseCostSurface surface, double east, double north,
+			double area, int value, String output_map ) throws IllegalArgumentException, IOException {
+		int start = engine.cellIndex(east, north);
+		if ( start < 0 ) {
+			throw new IllegalArgumentException("The start point, " + east + "," + north + ", is outside the region.");
+		}
+		
+		int[] cells = engine.growCatchment(surface, start, area);
+		RasterMetadata region = engine.getRegion();
+		int first_row = (cells.length > 0) ? Integer.MAX_VALUE : 0;	// Bounding tile; one cell if the catchment is empty
+		int last_row = 0;
+		int first_col = (cells.length > 0) ? Integer.MAX_VALUE : 0;
+		int last_col = 0;
+		for ( int cell : cells ) {
+			int row = cell / region.cols;
+			int col = cell - row * region.cols;
+			first_row = Math.min(first_row, row);
+			last_row = Math.max(last_row, row);
+			first_col = Math.min(first_col, col);
+			last_col = Math.max(last_col, col);
+		}
+		int rows = last_row - first_row + 1;
+		int cols = last_col - first_col + 1;
+		
+		int[] tile = new int[rows * cols];
+		Arrays.fill(tile, RasterReader.NULL_CELL);
+		for ( int cell : cells ) {
+			int row = cell / region.cols;
+			tile[(row - first_row) * cols + (cell - row * region.cols - first_col)] = value;
+		}
+		
+		double tile_north = region.north - first_row * region.ns_res;
+		double tile_west = region.west + first_col * region.ew_res;
+		RasterWriter writer = new RasterWriter(new File(getMapsetPath()), output_map, RasterMetadata.CellType.CELL,
+				tile_north, tile_north - rows * region.ns_res, tile_west + cols * region.ew_res, tile_west, rows, cols);
+		writer.setRegistry(this.map_registry, callerMethod());
+		try {
+			writer.writeAll(tile);
+			writer.close();
+		}
+		catch (IOException ioe) {
+			writer.discard();
+			throw ioe;
+		}
+		
+		return "Catchment " + output_map + ": " + cells.length + " cells (" + (cells.length * region.ns_res * region.ew_res) +
+				" of " + area + " square map units).\n";
+		
+	}
+	
+	/**
+	 * Makes cost allocation maps with a cost distance engine (see openCostDistance()): for each cell,
+	 * the cost from the nearest source (e.g., village) and the number of that source, found in one pass
+	 * for all sources rather than one cost surface per source. With more than one rank, the maps of the
+	 * n-th nearest source are also made, named '[map]_[n]'. The maps are written directly to the current
+	 * mapset (cost maps as DCELL, allocation maps as CELL; cells no source reaches are null) and
+	 * registered under the name of the calling method.
+	 * @param engine The cost distance engine.
+	 * @param easts The easting of each source; the source number is its index.
+	 * @param norths The northing of each source.
+	 * @param cost_map The map of the cost from the nearest source.
+	 * @param allocation_map The map of the number of the nearest source.
+	 * @param ranks The number of nearest sources to map.
+	 * @param max_cost The cost beyond which cells are not reached, or 0 for no limit.
+	 * @return A String describing the maps made.
+	 * @throws IllegalArgumentException if a source is outside the engine's region, or ranks is less than one.
+	 * @throws IOException if a map cannot be written.
+	 */
+	public String costAllocation ( CostDistance engine, double[] easts, double[] norths, String cost_map,
+			String allocation_map, int ranks, double max_cost ) throws IllegalArgumentException, IOException {
+		int[] start_cells = new int[easts.length];
+		int[] start_sources = new int[easts.length];
+		for ( int s = 0; s < easts.length; s++ ) {
+			start_cells[s] = engine.cellIndex(easts[s], norths[s]);
+			start_sources[s] = s;
+			if ( start_cells[s] < 0 ) {
+				throw new IllegalArgumentException("The source point, " + easts[s] + "," + norths[s] + ", is outside the region.");
+			}
+		}
+		
+		CostDistance.Allocation allocation = engine.allocate(start_cells, start_sources, ranks, max_cost);
+		String step = callerMethod();
+		StringBuilder output = new StringBuilder();
+		for ( int r = 0; r < ranks; r++ ) {
+			String suffix = (r == 0) ? "" : "_" + (r + 1);
+			
+			RasterWriter writer = new RasterWriter(new File(getMapsetPath()), cost_map + suffix, RasterMetadata.CellType.DCELL, engine.getRegion());
+			writer.setRegistry(this.map_registry, step);
+			try {
+				writer.writeAll(allocation.getCosts(r));
+				writer.close();
+			}
+			catch (IOException ioe) {
+				writer.discard();
+				throw ioe;
+			}
+			
+			writer = new RasterWriter(new File(getMapsetPath()), allocation_map + suffix, RasterMetadata.CellType.CELL, engine.getRegion());
+			writer.setRegistry(this.map_registry, step);
+			try {
+				writer.writeAll(allocation.getSources(r));
+				writer.close();
+			}
+			catch (IOException ioe) {
+				writer.discard();
+				throw ioe;
+			}
+			
+			output.append("Cost allocation " + cost_map + suffix + ", " + allocation_map + suffix + ": rank " + (r + 1) +
+					" of " + easts.length + " sources.\n");
+		}
+		
+		return output.toString();
+		
+	}
+	
+	/**
+	 * Reads a map on a region. A map with the region's resolution and aligned with it is read directly
+	 * from its files; cells of the region outside the map are null (NaN). Any other map (e.g., a reclass
+	 * map, which cannot be read directly, or one of another resolution) is exported at the region with
+	 * rOutBin(), so GRASS resamples it as it does for modules, at single precision.
+	 */
+	private double[] readOnRegion ( String map_name, RasterMetadata region ) throws IOException {
+		RasterReader reader = null;
+		try {
+			reader = openRaster(map_name);
+		}
+		catch (IOException ioe) {
+			// Not readable directly (e.g., a reclass map); exported below.
+		}
+		
+		if ( reader != null ) {
+			try {
+				RasterMetadata map = reader.getMetadata();
+				double first_row = (map.north - region.north) / region.ns_res;
+				double first_col = (region.west - map.west) / region.ew_res;
+				if ( (Math.abs(map.ns_res - region.ns_res) <= 1e-6 * region.ns_res) &&
+						(Math.abs(map.ew_res - region.ew_res) <= 1e-6 * region.ew_res) &&
+						(Math.abs(first_row - Math.rint(first_row)) <= 1e-6) && (Math.abs(first_col - Math.rint(first_col)) <= 1e-6) ) {
+					return reader.readTile((int) Math.rint(first_row), (int) Math.rint(first_col), region.rows, region.cols, null);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		
+		RasterBuffer data = rOutBin(map_name, true, true);
+		if ( (data.getRows() != region.rows) || (data.getCols() != region.cols) ) {
+			throw new IOException("The raster map, " + map_name + ", was not exported at the current region.");
+		}
+		double[] values = new double[region.rows * region.cols];
+		for ( int r = 0; r < region.rows; r++ ) {
+			for ( int c = 0; c < region.cols; c++ ) {
+				values[r * region.cols + c] = data.getValue(r, c);
+			}
+		}
+		
+		return values;
+		
+	}
+	
+	/**
+	 * Removes the mapset qualifier (e.g., '@PERMANENT') from a map name.
+	 * @param map_name The map name.
+	 * @return the map name without a qualifier.
+	 */
+	private static String baseName ( String map_name ) {
+		int at = map_name.indexOf('@');
+		return (at > 0) ? map_name.substring(0, at) : map_name;
+		
+	}
+	
 	/**
 	 * r.info mapping: GRASS module. Provides information about a raster map layer.
 	 * @param flags module flags.
@@ -1115,6 +2193,150 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * r.out.bin mapping: GRASS module. Export a raster map, at the current region, as a binary
+	 * file which is then memory mapped. The file is placed in shared memory (/dev/shm) if it is
+	 * available and is deleted once mapped, so no text is formatted or parsed.
+	 * @param input_map The name of the raster map to export.
+	 * @param floating_point Specifies if the values are exported as single precision (FCELL)
+	 * values rather than integers.
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return the mapped raster.
+	 * @throws IllegalStateException if the executable path is not set or a batch is being recorded.
+	 * @throws IOException if the export fails or the exported file cannot be mapped.
+	 */
+	public RasterBuffer rOutBin ( String input_map, boolean floating_point, boolean run_quiet )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		if ( this.recording.get() != null ) {
+			throw new IllegalStateException("r.out.bin calls cannot be recorded in a batch.");
+		}
+		
+		RasterMetadata region = RasterMetadata.readRegion(new File(getMapsetPath()));
+		File bin_file = File.createTempFile("grass_" + this.GIS_LOCK + "_", ".bin", exchangeDirectory());
+		
+		try {
+			ArrayList<String> cmdList = new ArrayList<String> ();
+			cmdList.add(this.EXECUTABLES + "r.out.bin");
+			if ( floating_point ) {
+				cmdList.add("-f");
+			}
+			cmdList.add("input=" + input_map);
+			cmdList.add("output=" + bin_file.getAbsolutePath());
+			cmdList.add("null=" + RasterBuffer.BIN_NULL);
+		
+			if ( run_quiet ) {
+				cmdList.add("--quiet");
+			}
+		
+			ExternalExec.OpResult result = executeCmd(cmdList);
+			printErrors(result.errors);
+			if ( result.exitValue != 0 ) {
+				throw new IOException("r.out.bin failed for the raster map, " + input_map + ".");
+			}
+		
+			return new RasterBuffer(bin_file, floating_point ? RasterMetadata.CellType.FCELL : RasterMetadata.CellType.CELL,
+					region, false);
+		}
+		finally {
+			// The mapping remains valid after the file is deleted.
+			bin_file.delete();
+		}
+		
+	}
+	
+	/**
+	 * Creates a memory mapped binary raster of the current region, to be filled by the model and
+	 * imported with rInBin(). The file is placed in shared memory (/dev/shm) if it is available.
+	 * All cells are initially zero.
+	 * @param type The cell type.
+	 * @return the raster buffer. Call its release() method to delete its file once it has been imported.
+	 * @throws IOException if the file cannot be created or mapped.
+	 */
+	public RasterBuffer createRasterBuffer ( RasterMetadata.CellType type ) throws IOException {
+		RasterMetadata region = RasterMetadata.readRegion(new File(getMapsetPath()));
+		File bin_file = File.createTempFile("grass_" + this.GIS_LOCK + "_", ".bin", exchangeDirectory());
+		bin_file.deleteOnExit();
+		
+		return new RasterBuffer(bin_file, type, region, true);
+		
+	}
+	
+	/**
+	 * r.in.bin mapping: GRASS module. Import a binary raster (see createRasterBuffer()) as a raster
+	 * map with the bounds and resolution of the region the buffer was made for. Cells holding
+	 * RasterBuffer.BIN_NULL are null. If the call is recorded in a batch, the buffer must not be
+	 * released until the batch has been committed.
+	 * @param data The binary raster.
+	 * @param output_map The name of the raster map to create.
+	 * @param overwrite Specifies if an existing map may be overwritten.
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if the executable path is not set or the buffer has been released.
+	 * @throws IOException Error buffer output resulting from the import operation.
+	 */
+	public String rInBin ( RasterBuffer data, String output_map, boolean overwrite, boolean run_quiet )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		if ( data.getFile() == null ) {
+			throw new IllegalStateException("The binary raster has been released.");
+		}
+		
+		RasterMetadata region = data.getRegion();
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "r.in.bin");
+		if ( data.getType() == RasterMetadata.CellType.FCELL ) {
+			cmdList.add("-f");
+		}
+		else if ( data.getType() == RasterMetadata.CellType.DCELL ) {
+			cmdList.add("-d");
+		}
+		else {
+			cmdList.add("bytes=4");
+		}
+		cmdList.add("input=" + data.getFile().getAbsolutePath());
+		cmdList.add("output=" + output_map);
+		cmdList.add("north=" + region.north);
+		cmdList.add("south=" + region.south);
+		cmdList.add("east=" + region.east);
+		cmdList.add("west=" + region.west);
+		cmdList.add("rows=" + region.rows);
+		cmdList.add("cols=" + region.cols);
+		cmdList.add("anull=" + RasterBuffer.BIN_NULL);
+		
+		if ( overwrite ) {
+			cmdList.add(("--overwrite"));
+		}
+		
+		if ( run_quiet ) {
+			cmdList.add("--quiet");
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList);
+		printErrors(result.errors);
+		
+		return result.output;
+		
+	}
+	
+	/**
+	 * Provides the directory for binary raster exchange files: shared memory (/dev/shm) if it is
+	 * available, or else the Java temporary directory.
+	 */
+	private static File exchangeDirectory () {
+		File shm = new File("/dev/shm");
+		if ( shm.isDirectory() && shm.canWrite() ) {
+			return shm;
+		}
+		
+		return new File(System.getProperty("java.io.tmpdir"));
+		
+	}
+
 	/**
 	 * r.landcover.update mapping: Core script. Revises landcover values based upon an
 	 * input impacts map.
@@ -1448,9 +2670,66 @@ public class GrassFacade {
 			throw new IllegalStateException("Python executable path not set.");
 		}
 		
-		ArrayList<StringPair> parameters = new ArrayList<StringPair> ();
+		ArrayList<StringPair> parameters = landAssessParameters(hhRequests, rain_value, max_barley_yeld, max_wheat_yield, wood_pc, oc_density_factor,
+				degrade_rate, recovery_rate, wood_intensity, wooddistweight, gdistweight, lcovweight, fdistweight, sfertilweight,
+				sdepthweight, maxfarmcost, maxgrazecost, maxlcov, slope_map, current_landcover, current_soil_fertility,
+				current_soil_depth, villageland_map, costsurface_maps, file_prefix, landcover_map_out, fertility_impacts_out,
+				impacts_out, sf_color, lc_rules, lc_color, statsfile_path, fertilitystats_path, farmbreaks, dropval, prevyr, flags);
 		
-		// Add individual flags to parameters list
+		String landchooserscript = this.SCRIPTS + "r.land.assess.py";
+		ExternalExec.OpResult result = executePythonScript(landchooserscript, parameters);
+		printErrors(result.errors);
+		
+		return result.output;
+	}
+	
+	/**
+	 * r.land.assess.py mapping: Python script. Identical to the String returning version except that
+	 * the household returns are streamed to a consumer as the script produces them. Each
+	 * semicolon-delimited record of the script output (e.g., 'HH#:returns,...') is passed to the
+	 * consumer in turn, so the output never has to be held in memory as a whole.
+	 * @param record_consumer The consumer to receive each semicolon-delimited output record.
+	 * @throws IllegalStateException if the scripts or Python path is not set.
+	 * @throws IOException Error buffer output resulting from the land assessment operation.
+	 */
+	public void rLandAssessPy (String hhRequests, double rain_value, double max_barley_yeld, double max_wheat_yield, double wood_pc, double oc_density_factor, 
+			double degrade_rate, double recovery_rate, double wood_intensity, double wooddistweight, double gdistweight, double lcovweight, double fdistweight, double sfertilweight,
+			double sdepthweight, double maxfarmcost, double maxgrazecost, String maxlcov,  String slope_map, String current_landcover, String current_soil_fertility, 
+			String current_soil_depth, String villageland_map, String costsurface_maps, String file_prefix, String landcover_map_out, String fertility_impacts_out,
+			String impacts_out, String sf_color, String lc_rules, String lc_color, String statsfile_path, String fertilitystats_path,
+			String farmbreaks, Double dropval, String prevyr, char[] flags, ExternalExec.RecordConsumer record_consumer)
+
+	throws IllegalStateException, IOException {
+		if ( this.SCRIPTS == null ) {
+			throw new IllegalStateException("Scripts path not set.");
+		}
+		if ( this.PYTHON == null ) {
+			throw new IllegalStateException("Python executable path not set.");
+		}
+		
+		ArrayList<StringPair> parameters = landAssessParameters(hhRequests, rain_value, max_barley_yeld, max_wheat_yield, wood_pc, oc_density_factor,
+				degrade_rate, recovery_rate, wood_intensity, wooddistweight, gdistweight, lcovweight, fdistweight, sfertilweight,
+				sdepthweight, maxfarmcost, maxgrazecost, maxlcov, slope_map, current_landcover, current_soil_fertility,
+				current_soil_depth, villageland_map, costsurface_maps, file_prefix, landcover_map_out, fertility_impacts_out,
+				impacts_out, sf_color, lc_rules, lc_color, statsfile_path, fertilitystats_path, farmbreaks, dropval, prevyr, flags);
+		
+		String landchooserscript = this.SCRIPTS + "r.land.assess.py";
+		ExternalExec.OpResult result = executePythonScript(landchooserscript, parameters, false, record_consumer, ';');
+		printErrors(result.errors);
+	}
+	
+	/**
+	 * Builds the r.land.assess.py parameter list.
+	 */
+	private ArrayList<StringPair> landAssessParameters (String hhRequests, double rain_value, double max_barley_yeld, double max_wheat_yield, double wood_pc, double oc_density_factor, 
+			double degrade_rate, double recovery_rate, double wood_intensity, double wooddistweight, double gdistweight, double lcovweight, double fdistweight, double sfertilweight,
+			double sdepthweight, double maxfarmcost, double maxgrazecost, String maxlcov,  String slope_map, String current_landcover, String current_soil_fertility, 
+			String current_soil_depth, String villageland_map, String costsurface_maps, String file_prefix, String landcover_map_out, String fertility_impacts_out,
+			String impacts_out, String sf_color, String lc_rules, String lc_color, String statsfile_path, String fertilitystats_path,
+			String farmbreaks, Double dropval, String prevyr, char[] flags) {
+		ArrayList<StringPair> parameters = new ArrayList<StringPair> ();
+		
+		// Add individual flags to parameters list
 		String flagString = null;
 		if ((flags != null) ) {
 			for ( int c = 0; c < flags.length; c++ ) {
@@ -1499,11 +2778,7 @@ public class GrassFacade {
 		parameters.add(new StringPair("statsfile", statsfile_path));
 		parameters.add(new StringPair("fertilstats", fertilitystats_path));		
 		
-		String landchooserscript = this.SCRIPTS + "r.land.assess.py";
-		ExternalExec.OpResult result = executePythonScript(landchooserscript, parameters);
-		printErrors(result.errors);
-		
-		return result.output;
+		return parameters;
 	}
 	
 	
@@ -1602,6 +2877,274 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * r.mapcalc mapping: GRASS module. Runs several formulas (e.g., "out = a + b") in a single
+	 * r.mapcalc invocation. The formulas are written to the module's input stream, one per line,
+	 * and are evaluated together in one pass over the region, so each input map is read once. The
+	 * formulas must not depend on each other's outputs (see MapcalcBatch).
+	 * @param formulas The formulas to evaluate. Quote characters are removed, as by rMapcalc(String).
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error resulting from the r.mapcalc operation.
+	 */
+	public String rMapcalc ( List<String> formulas ) throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "r.mapcalc");
+		
+		StringBuilder input = new StringBuilder();
+		for ( String formula : formulas ) {
+			input.append(formula.replace("'", "").replace("\"", "")).append('\n');
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList, input.toString());
+		printErrors(result.errors);
+		
+		return result.output;
+		
+	}
+	
+	/**
+	 * Creates a deferred r.mapcalc builder. Formulas added to it are collected and run together in
+	 * as few r.mapcalc invocations as their dependencies allow.
+	 * @return a new, empty mapcalc batch.
+	 */
+	public MapcalcBatch deferMapcalc () {
+		return new MapcalcBatch(this, false);
+		
+	}
+	
+	/**
+	 * Creates a deferred r.mapcalc builder whose formulas may be evaluated in the JVM (see
+	 * rMapcalc(List, boolean)).
+	 * @param in_jvm Whether formulas of the supported subset are evaluated in the JVM.
+	 * @return a new, empty mapcalc batch.
+	 */
+	public MapcalcBatch deferMapcalc ( boolean in_jvm ) {
+		return new MapcalcBatch(this, in_jvm);
+		
+	}
+	
+	/**
+	 * r.mapcalc mapping, optionally evaluated in the JVM. A formula of the subset of r.mapcalc which
+	 * MapcalcExpression supports (e.g., "out = if(isnull(a), null(), 40)" or "out = elev - bedrock")
+	 * is evaluated in the JVM, over the cells of the current region, with the input maps read
+	 * directly from their files; the output map is written directly to the current mapset and
+	 * registered under the name of the calling method. r.mapcalc is run instead if the formula is
+	 * outside the subset, an input map is not aligned with the current region (or is a reclass map),
+	 * a raster MASK is set in the current mapset (r.mapcalc writes null outside it), a batch is being
+	 * recorded, or the evaluation fails.
+	 * @param formula The map calculation formula to apply to create the new raster map.
+	 * @param in_jvm Whether the formula may be evaluated in the JVM; if false, as rMapcalc(String).
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if r.mapcalc is run and the executable path is not set.
+	 * @throws IOException Error resulting from the r.mapcalc operation.
+	 */
+	public String rMapcalc ( String formula, boolean in_jvm ) throws IllegalStateException, IOException {
+		String output = in_jvm ? evaluateMapcalc(formula, callerMethod()) : null;
+		
+		return (output != null) ? output : rMapcalc(formula);
+		
+	}
+	
+	/**
+	 * r.mapcalc mapping, optionally evaluated in the JVM. The formulas which can be are evaluated in
+	 * the JVM, one after another (see rMapcalc(String, boolean)), and the others are run in a single
+	 * r.mapcalc invocation (see rMapcalc(List)). The formulas must not depend on each other's outputs.
+	 * @param formulas The formulas to evaluate.
+	 * @param in_jvm Whether formulas may be evaluated in the JVM; if false, as rMapcalc(List).
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if r.mapcalc is run and the executable path is not set.
+	 * @throws IOException Error resulting from the r.mapcalc operation.
+	 */
+	public String rMapcalc ( List<String> formulas, boolean in_jvm ) throws IllegalStateException, IOException {
+		if ( !in_jvm ) {
+			return rMapcalc(formulas);
+		}
+		
+		String step = callerMethod();
+		StringBuilder output = new StringBuilder();
+		ArrayList<String> remaining = new ArrayList<String> ();
+		for ( String formula : formulas ) {
+			String evaluated = evaluateMapcalc(formula, step);
+			if ( evaluated != null ) {
+				output.append(evaluated);
+			}
+			else {
+				remaining.add(formula);
+			}
+		}
+		if ( !remaining.isEmpty() ) {
+			output.append(rMapcalc(remaining));
+		}
+		
+		return output.toString();
+		
+	}
+	
+	/**
+	 * Evaluates an r.mapcalc formula in the JVM, if it can be (see rMapcalc(String, boolean)). The
+	 * region is split into bands of rows, which are evaluated concurrently, each with its own readers
+	 * of the (memory mapped) input maps, and written in order. At most two bands per thread of the
+	 * mapcalc pool are evaluated or waiting to be written at once, so the memory used follows the band
+	 * size rather than the region.
+	 * @param formula The formula.
+	 * @param step The facade method (or model step) under which the output map is registered.
+	 * @return A String describing the map made, or 'null' if the formula was not evaluated.
+	 */
+	private String evaluateMapcalc ( String formula, String step ) {
+		MapcalcExpression expression = MapcalcExpression.compile(formula);
+		if ( (expression == null) || (this.recording.get() != null) ) {
+			return null;
+		}
+		
+		// r.mapcalc applies the MASK to the cells it writes; it is left to r.mapcalc.
+		if ( new File(getMapsetPath(), "cellhd" + File.separator + "MASK").exists() ) {
+			return null;
+		}
+		
+		// Each input must be read directly and lie on the grid of the region.
+		final RasterMetadata region;
+		List<String> input_maps = expression.getInputMaps();
+		final File[] input_mapsets = new File[input_maps.size()];
+		final String[] input_names = new String[input_maps.size()];
+		final int[] first_rows = new int[input_maps.size()];
+		final int[] first_cols = new int[input_maps.size()];
+		RasterMetadata.CellType[] input_types = new RasterMetadata.CellType[input_maps.size()];
+		try {
+			region = RasterMetadata.readRegion(new File(getMapsetPath()));
+			for ( int m = 0; m < input_names.length; m++ ) {
+				input_mapsets[m] = findRasterMapset(input_maps.get(m));
+				input_names[m] = baseName(input_maps.get(m));
+				RasterMetadata map = (input_mapsets[m] == null) ? null : RasterMetadata.lookup(input_mapsets[m], input_names[m]);
+				if ( (map == null) || map.reclass || (map.compressed < 0) ) {
+					return null;
+				}
+				double first_row = (map.north - region.north) / region.ns_res;
+				double first_col = (region.west - map.west) / region.ew_res;
+				if ( (Math.abs(map.ns_res - region.ns_res) > 1e-6 * region.ns_res) ||
+						(Math.abs(map.ew_res - region.ew_res) > 1e-6 * region.ew_res) ||
+						(Math.abs(first_row - Math.rint(first_row)) > 1e-6) || (Math.abs(first_col - Math.rint(first_col)) > 1e-6) ) {
+					return null;
+				}
+				first_rows[m] = (int) Math.rint(first_row);
+				first_cols[m] = (int) Math.rint(first_col);
+				input_types[m] = map.type;
+			}
+		}
+		catch (IOException ioe) {
+			return null;
+		}
+		final MapcalcExpression typed = expression.withInputTypes(input_types);
+		
+		RasterWriter writer = null;
+		LinkedList<Future<double[]>> bands = new LinkedList<Future<double[]>> ();	// Bands submitted and not yet written, in order
+		try {
+			writer = new RasterWriter(new File(getMapsetPath()), typed.getOutputMap(), typed.getType(), region);
+			writer.setRegistry(this.map_registry, step);
+			
+			ExecutorService pool = getMapcalcPool();
+			boolean integer = typed.getType() == RasterMetadata.CellType.CELL;
+			double[] row = new double[region.cols];
+			int[] int_row = new int[region.cols];
+			int next_first = 0;			// First row of the next band to submit
+			while ( (next_first < region.rows) || !bands.isEmpty() ) {
+				while ( (next_first < region.rows) && (bands.size() < 2 * MAPCALC_THREADS) ) {
+					bands.add(pool.submit(newMapcalcBand(typed, region, input_mapsets, input_names, first_rows, first_cols,
+							next_first, Math.min(MAPCALC_BAND_ROWS, region.rows - next_first))));
+					next_first += MAPCALC_BAND_ROWS;
+				}
+				
+				// The first band is the next in row order; it is written as soon as it is evaluated.
+				double[] values = bands.removeFirst().get();
+				for ( int offset = 0; offset < values.length; offset += region.cols ) {
+					if ( integer ) {
+						for ( int c = 0; c < region.cols; c++ ) {
+							double v = values[offset + c];
+							int_row[c] = Double.isNaN(v) ? RasterReader.NULL_CELL : (int) v;
+						}
+						writer.writeRow(int_row);
+					}
+					else {
+						System.arraycopy(values, offset, row, 0, region.cols);
+						writer.writeRow(row);
+					}
+				}
+			}
+			writer.close();
+		}
+		catch (Exception e) {
+			for ( Future<double[]> band : bands ) {
+				band.cancel(true);
+			}
+			if ( writer != null ) {
+				writer.discard();
+			}
+			if ( e instanceof InterruptedException ) {
+				Thread.currentThread().interrupt();
+			}
+			
+			return null;
+		}
+		
+		return "Mapcalc " + typed.getOutputMap() + ": evaluated in the JVM (" + region.rows + " x " + region.cols + " cells).\n";
+		
+	}
+	
+	/**
+	 * Creates the task which evaluates one band of rows of a formula (see evaluateMapcalc()).
+	 * @return the values of the band's cells by row; NaN for null cells.
+	 */
+	private static Callable<double[]> newMapcalcBand ( final MapcalcExpression typed, final RasterMetadata region,
+			final File[] input_mapsets, final String[] input_names, final int[] first_rows, final int[] first_cols,
+			final int band_first, final int band_rows ) {
+		return new Callable<double[]> () {
+			public double[] call () throws IOException {
+				int cells = band_rows * region.cols;
+				double[][] tiles = new double[input_names.length][];
+				for ( int m = 0; m < input_names.length; m++ ) {
+					RasterReader reader = new RasterReader(input_mapsets[m], input_names[m]);
+					try {
+						tiles[m] = reader.readTile(first_rows[m] + band_first, first_cols[m], band_rows, region.cols, null);
+					}
+					finally {
+						reader.close();
+					}
+				}
+				
+				return typed.evaluate(tiles, cells);
+			}
+		};
+		
+	}
+	
+	/**
+	 * Provides the shared pool on which r.mapcalc formulas are evaluated in the JVM, with one daemon
+	 * thread per processor.
+	 * @return the shared mapcalc pool.
+	 */
+	private static ExecutorService getMapcalcPool () {
+		synchronized (GrassFacade.padlock) {
+			if ( GrassFacade.mapcalc_pool == null ) {
+				GrassFacade.mapcalc_pool = Executors.newFixedThreadPool(MAPCALC_THREADS, new ThreadFactory() {
+					private int count = 0;
+					
+					public Thread newThread ( Runnable r ) {
+						Thread t = new Thread(r, "GrassFacade-mapcalc-" + (++count));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			
+			return GrassFacade.mapcalc_pool;
+		}
+		
+	}
+	
 	/**
 	 * r.neighbors mapping: GRASS module. Creates a new map of cell values based upon a specified neighborhood
 	 * size and using specified methods (average,median,mode,minimum,maximum,stddev,sum,variance,diversity,interspersion).
@@ -1988,6 +3531,48 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * r.stats mapping: GRASS module. Generates area statistics for raster maps and streams each
+	 * line of the statistics to a consumer as the module produces it.
+	 * @param flags
+	 * @param input_map One or more (comma delimited) input raster map names.
+	 * @param field_seperator  Optional field seperator. Specify 'null' to use default space.
+	 * @param no_value Optional no value character. Specifiy 'null' to use default '*'. 
+	 * @param num_steps Optional value to specify number of subranges to collect data from.
+	 * Specify '-1' to use default of 255.
+	 * @param line_consumer The consumer to receive each line of statistics.
+	 * @throws IllegalStateException if the execution path is not set.
+	 * @throws IOException Error buffer output resulting from the statistical operation.
+	 */
+	public void rStats ( char[] flags, String input_maps, String field_seperator, String no_value,
+			int num_steps, ExternalExec.RecordConsumer line_consumer )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "r.stats");
+		addFlagParameter(cmdList, flags);
+		cmdList.add("input=" + input_maps);
+		
+		if ( field_seperator != null ) {
+			cmdList.add("fs=" + field_seperator);
+		}
+		
+		if ( no_value != null ) {
+			cmdList.add("nv=" + no_value);
+		}
+		
+		if ( num_steps > 0 ) {
+			cmdList.add("nsteps=" + num_steps);
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList, null, line_consumer, '\n');
+		printErrors(result.errors);
+		
+	}
+	
 	// uses v flag, feature=point
 	public String rToVect(String inmap, char []flags, String feature, String outmap, boolean run_quiet, boolean overwrite)
 	throws IllegalStateException, IOException {
@@ -2129,6 +3714,38 @@ public class GrassFacade {
 		
 	}
 	
+	/**
+	 * r.what mapping: GRASS module. Queries raster map layers on their category values
+	 * and category labels, streaming each result line to a consumer as the module produces it.
+	 * The coordinates are provided to the module on its input stream.
+	 * @param input_map The input map from which to query values.
+	 * @param east_north A list of comma-delimited east-north coordinates to query.
+	 * @param line_consumer The consumer to receive each line of query results.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error buffer output resulting from the walk operation.
+	 */
+	public void rWhatEN ( String input_map, ArrayList<String> east_north, ExternalExec.RecordConsumer line_consumer )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "r.what");
+		cmdList.add("input=" + input_map);
+		
+		// Pass the coordinates on the input stream; a long coordinate list can exceed the
+		// maximum command line length.
+		StringBuilder coordinates = new StringBuilder();
+		for ( String coordinate : east_north ) {
+			coordinates.append(coordinate.replace(',', ' ')).append('\n');
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList, coordinates.toString(), line_consumer, '\n');
+		printErrors(result.errors);
+		
+	}
+	
 	/**
 	 * r.villages mapping: Core script. Patches a map of villages onto a land cover map.
 	 * @param input_map The landcover raster map to patch the village lcoations onto.
@@ -2252,6 +3869,46 @@ public class GrassFacade {
 		return result.output;
 		
 	}
+	
+	/**
+	 * v.in.ascii mapping: GRASS module. Creates a new vector map from data streamed to the
+	 * module's input (input=-), avoiding a temporary data file. The data is written to the module
+	 * as it is read, so large data sets need not be held in memory.
+	 * @param data The source of the ASCII vector data. It is read to its end and closed.
+	 * @param output_map The output vector map name.
+	 * @param parameters Additional module parameters (e.g., "format=point", "x=2", "y=3").
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @return A String with the operation output.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error resulting from the v.in.ascii operation or from reading the data.
+	 */
+	public String vInASCII ( Reader data, String output_map, String[] parameters, boolean run_quiet )
+	throws IllegalStateException, IOException {
+		if ( this.EXECUTABLES == null ) {
+			throw new IllegalStateException("Executable path not set.");
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(this.EXECUTABLES + "v.in.ascii");		
+		cmdList.add("input=-");
+		cmdList.add("output=" + output_map);
+		
+		if ( parameters != null) {
+			for ( String parameter : parameters) {
+				cmdList.add(parameter);
+			}
+		}
+		
+		if (run_quiet) {
+			cmdList.add("--quiet");
+		}
+		
+		ExternalExec.OpResult result = executeCmd(cmdList, data);
+		printErrors(result.errors);
+		
+		return result.output;
+		
+	}
 
 	/**
 	 * 
@@ -2327,7 +3984,7 @@ public class GrassFacade {
 	////////////////////////////////////////////////
 	private ExternalExec.OpResult executeCmd ( ArrayList<String> cmdList )
 	throws IOException {
-		return executeCmd(cmdList, null);
+		return executeCmd(cmdList, (String) null);
 		
 	}
 	
@@ -2347,58 +4004,425 @@ public class GrassFacade {
 	 */
 	private ExternalExec.OpResult executeCmd ( ArrayList<String> cmdList, String input )
 	throws IOException {
-		//Hashtable<String, String> env = null;
-		ArrayList<StringPair> env = null;
+		return executeCmd(cmdList, input, null, '\n');
+		
+	}
+	
+	/**
+	 * Executes the command list with associated parameters, streaming the process input from a
+	 * Reader while the output is captured. The reader is read to its end and closed, after which
+	 * the process input is closed. The command is always run in its own process (i.e., not through
+	 * the persistent shell).
+	 * @param cmdList Command to execute along with its input parameters
+	 * @param input The source of the process input.
+	 * @return An OpResult object that contains the data captured on both the output and
+	 * error streams, and the integer exit value
+	 * @throws IOException Error resulting from the command execution or from reading the input.
+	 */
+	private ExternalExec.OpResult executeCmd ( ArrayList<String> cmdList, Reader input )
+	throws IllegalStateException, IOException {
 		ExternalExec executor = new ExternalExec();
 		ExternalExec.OpResult result = null;
+		String previous_label = labelProcesses();
 		
 		try {
-			// Specify Java subprocess environment variables required to execute GRASS modules.
-			// Note that these are different than the GRASS environment variables themselves
-			// (e.g., location and mapset), which are specified by the GRASSRC variable.
-			//
-			// Note that the PATH variable is a command shell specific entity (e.g., Bash) and
-			// is not used by the Java runtime.exec process directly. 
-			env = new ArrayList<StringPair> (); //new Hashtable<String,String> ();
-			
-
-			env.add(new StringPair("GISBASE", this.GISBASE)); //env.put("GISBASE", this.GISBASE);
-			env.add(new StringPair("GISRC", this.GISRC));  // env.put("GISRC", this.GISRC);
-			
-			String libPath = System.getenv("LD_LIBRARY_PATH");
-			if (libPath == null) {
-				libPath = "/usr/local/bin/" + File.pathSeparator +	this.GISBASE + "lib/";
+			if ( this.recording.get() != null ) {
+				throw new IllegalStateException("Module calls with streamed input cannot be recorded in a batch.");
 			}
-			else {
-				libPath += File.pathSeparator + "/usr/local/bin/" + File.pathSeparator +	this.GISBASE + "lib/";
-			}
-
-			env.add(new StringPair("LD_LIBRARY_PATH", libPath));
 			
-			//env.add(new StringPair("LD_LIBRARY_PATH", System.getenv("LD_LIBRARY_PATH") + File.pathSeparator +
-			//		"/usr/local/bin" + File.pathSeparator +	this.GISBASE + "lib"));
-			env.add(new StringPair("GIS_LOCK", "$$"));
-			/*env.put("LD_LIBRARY_PATH", System.getenv("LD_LIBRARY_PATH") + File.pathSeparator +
-					"/usr/local/bin" + File.pathSeparator +	this.GISBASE + "lib");
-			env.put("GIS_LOCK", "$$");
-			*/
-
+			result = executor.execute(cmdList, getModuleEnvironment(), input);
+			trackMaps(cmdList, null);
+		}
+		catch (IOException ioe) {
+			// Specify what command was being executed and forward the received error.
+			throw new IOException("An exception occurred while executing, " + cmdList.get(0) + ":\n  " +
+					ioe.getMessage());
+		}
+		finally {
+			ProcessAccounting.setLabel(previous_label);
+		}
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Executes the command list with associated parameters. If an output consumer is specified,
+	 * the output stream of the command is passed to it one record at a time as it is produced and
+	 * the output field of the returned result is empty.
+	 * @param cmdList Command to execute along with its input parameters
+	 * @param input External input to provide to the process. 
+	 * @param output_consumer Optional consumer of the output stream records. Specify 'null' to
+	 * capture the output stream in the returned result.
+	 * @param delimiter The character which separates output stream records.
+	 * @return An OpResult object that contains the data captured on both the output and
+	 * error streams, and the integer exit value
+	 * @throws IOException Error resulting from the command execution.
+	 */
+	private ExternalExec.OpResult executeCmd ( ArrayList<String> cmdList, String input,
+			ExternalExec.RecordConsumer output_consumer, char delimiter )
+	throws IOException {
+		//Hashtable<String, String> env = null;
+		ArrayList<StringPair> env = null;
+		ExternalExec executor = new ExternalExec();
+		ExternalExec.OpResult result = null;
+		String previous_label = labelProcesses();
+		
+		try {
+			env = getModuleEnvironment();
 			
-			if ( input == null )
+			GrassBatch batch = this.recording.get();
+			if ( (batch != null) && (output_consumer != null) ) {
+				throw new IllegalStateException("Streaming module calls cannot be recorded in a batch.");
+			}
+			else if ( batch != null ) {
+				result = batch.record(cmdList, input);
+			}
+			else if ( this.use_persistent_shell && (output_consumer == null) ) {
+				result = getShell().run(cmdList, input);
+			}
+			else if ( output_consumer != null )
+				result = executor.execute(cmdList, env, input, output_consumer, delimiter);
+			else if ( input == null )
 				result = executor.execute(cmdList, env);
 			else
 				result = executor.execute(cmdList, env, input);
+			
+			trackMaps(cmdList, input);
 		}
 		catch (IOException ioe) {
 			// Specify what command was being executed and forward the received error.
 			throw new IOException("An exception occurred while executing, " + cmdList.get(0) + ":\n  " +
 					ioe.getMessage());
 		}
+		finally {
+			ProcessAccounting.setLabel(previous_label);
+		}
 		
 		return result;
 		
 	}
 	
+	/**
+	 * Labels the processes subsequently started by the current thread with the name of the
+	 * GrassFacade method which was called to start them (e.g., rWalk), so that ProcessAccounting
+	 * aggregates their resources by method. The label is cleared if accounting is disabled.
+	 * @return the previous label of the current thread, to restore once the process has completed.
+	 */
+	private String labelProcesses () {
+		if ( !ProcessAccounting.isEnabled() ) {
+			return ProcessAccounting.setLabel(null);
+		}
+		
+		return ProcessAccounting.setLabel(callerMethod());
+		
+	}
+	
+	/**
+	 * Provides the name of the GrassFacade method (e.g., rWalk) which was called to run the current
+	 * module or script, i.e., the first method of this class on the stack which is not a helper.
+	 * @return the method name, or an empty String if it is not found.
+	 */
+	private String callerMethod () {
+		for ( StackTraceElement frame : new Throwable().getStackTrace() ) {
+			String method = frame.getMethodName();
+			if ( frame.getClassName().equals(GrassFacade.class.getName()) &&
+					!method.startsWith("execute") && !method.equals("labelProcesses") &&
+					!method.equals("callerMethod") && !method.equals("trackMaps") ) {
+				return method;
+			}
+		}
+		
+		return "";
+		
+	}
+	
+	/**
+	 * Provides the registry of the raster maps made in the current mapset through this object. The
+	 * output maps of module calls and scripts are registered as the calls are run (or recorded in a
+	 * batch); those of scripts are taken from their output parameters.
+	 * @return the map registry.
+	 */
+	public MapRegistry getMapRegistry () {
+		return this.map_registry;
+		
+	}
+	
+	/**
+	 * Updates the map registry for a module call: raster maps written by the module are registered,
+	 * and maps deleted or renamed with g.remove, g.mremove, or g.rename are unregistered. Maps in
+	 * other mapsets are ignored.
+	 * @param cmdList The module and its parameters.
+	 * @param input The module input, which holds the formulas of a multi-expression r.mapcalc call.
+	 */
+	private void trackMaps ( List<String> cmdList, String input ) {
+		String module = new File(cmdList.get(0)).getName();
+		List<String> parameters = cmdList.subList(1, cmdList.size());
+		String step = null;
+		
+		if ( module.equals("r.mapcalc") ) {
+			ArrayList<String> formulas = new ArrayList<String> ();
+			for ( String parameter : parameters ) {
+				if ( !parameter.startsWith("-") ) {
+					formulas.add(parameter);
+				}
+			}
+			if ( input != null ) {
+				for ( String line : input.split("\n") ) {
+					formulas.add(line);
+				}
+			}
+			
+			step = callerMethod();
+			for ( String formula : formulas ) {
+				int assignment = formula.indexOf('=');
+				if ( assignment > 0 ) {
+					registerMap(formula.substring(0, assignment).trim(), step);
+				}
+			}
+			return;
+		}
+		
+		for ( String parameter : parameters ) {
+			if ( module.equals("g.copy") && parameter.startsWith("rast=") ) {
+				String[] names = parameter.substring(5).split(",");
+				if ( names.length == 2 ) {
+					registerMap(names[1], callerMethod());
+				}
+			}
+			else if ( module.equals("g.rename") && parameter.startsWith("rast=") ) {
+				String[] names = parameter.substring(5).split(",");
+				if ( names.length == 2 ) {
+					MapRegistry.MapRecord record = this.map_registry.getRecord(names[0]);
+					this.map_registry.unregister(names[0]);
+					registerMap(names[1], (record == null) ? callerMethod() : record.step);
+				}
+			}
+			else if ( module.equals("g.remove") && parameter.startsWith("rast=") ) {
+				for ( String name : parameter.substring(5).split(",") ) {
+					this.map_registry.unregister(name);
+				}
+			}
+			else if ( module.equals("g.mremove") && parameter.startsWith("rast=") ) {
+				this.map_registry.unregisterMatching(parameter.substring(5));
+			}
+			else if ( parameter.startsWith("output=") && writesRaster(module) ) {
+				step = (step == null) ? callerMethod() : step;
+				for ( String name : parameter.substring(7).split(",") ) {
+					registerMap(name, step);
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Registers a map if it is in the current mapset.
+	 */
+	private void registerMap ( String map_name, String step ) {
+		map_name = map_name.replace("'", "").replace("\"", "").trim();
+		int at = map_name.indexOf('@');
+		if ( at > 0 ) {
+			if ( !map_name.substring(at + 1).equals(this.MAPSET) ) {
+				return;
+			}
+			map_name = map_name.substring(0, at);
+		}
+		
+		if ( map_name.length() > 0 ) {
+			this.map_registry.register(map_name, step);
+		}
+		
+	}
+	
+	/**
+	 * Registers the output maps of a script, named by its output parameters (see SCRIPT_OUTPUTS).
+	 */
+	private void registerScriptOutputs ( ArrayList<StringPair> parameters, String step ) {
+		for ( StringPair parameter : parameters ) {
+			if ( (parameter.value != null) && Arrays.asList(SCRIPT_OUTPUTS).contains(parameter.key) ) {
+				for ( String name : parameter.value.split(",") ) {
+					registerMap(name, step);
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Indicates if the output parameter of a module names a raster map (see RASTER_OUTPUT_MODULES).
+	 */
+	private static boolean writesRaster ( String module ) {
+		return Arrays.asList(RASTER_OUTPUT_MODULES).contains(module);
+		
+	}
+	
+	/**
+	 * Provides the Java subprocess environment variables required to execute GRASS modules. The
+	 * list is built once and reused for every module call.
+	 * 
+	 * Note that these are different than the GRASS environment variables themselves
+	 * (e.g., location and mapset), which are specified by the GRASSRC variable.
+	 * 
+	 * Note that the PATH variable is a command shell specific entity (e.g., Bash) and
+	 * is not used by the Java runtime.exec process directly. 
+	 * @return the GRASS module environment variables.
+	 */
+	private synchronized ArrayList<StringPair> getModuleEnvironment () {
+		if ( this.module_env == null ) {
+			ArrayList<StringPair> env = new ArrayList<StringPair> (); //new Hashtable<String,String> ();
+			
+			env.add(new StringPair("GISBASE", this.GISBASE)); //env.put("GISBASE", this.GISBASE);
+			env.add(new StringPair("GISRC", this.GISRC));  // env.put("GISRC", this.GISRC);
+			
+			String libPath = System.getenv("LD_LIBRARY_PATH");
+			if (libPath == null) {
+				libPath = "/usr/local/bin/" + File.pathSeparator +	this.GISBASE + "lib/";
+			}
+			else {
+				libPath += File.pathSeparator + "/usr/local/bin/" + File.pathSeparator +	this.GISBASE + "lib/";
+			}
+
+			env.add(new StringPair("LD_LIBRARY_PATH", libPath));
+			env.add(new StringPair("GIS_LOCK", this.GIS_LOCK));
+			
+			this.module_env = env;
+		}
+		
+		return this.module_env;
+		
+	}
+	
+	/**
+	 * Provides the Java subprocess environment variables required to execute scripts (e.g., Bash and
+	 * Python scripts) which run GRASS modules. In addition to the GRASS variables, the PATH includes
+	 * the GRASS module and script directories. The list is built once and reused for every script call.
+	 * 
+	 * Note that these are different than the GRASS environment variables themselves
+	 * (e.g., location and mapset), which are specified by the GRASSRC variable. These
+	 * will be passed to the command shell which is executed by the subprocess.
+	 * @return the script environment variables.
+	 */
+	synchronized ArrayList<StringPair> getScriptEnvironment () {
+		if ( this.script_env == null ) {
+			ArrayList<StringPair> env = new ArrayList<StringPair> ();
+			
+			env.add(new StringPair("GISBASE", this.GISBASE));
+			//env.add(new StringPair("GRASS_ADDON_PATH", "/Users/sbergin/Documents/APSIModel/APSIM/Scripts"));
+			env.add(new StringPair("GISRC", this.GISRC));
+			env.add(new StringPair("PATH", System.getenv("PATH") + File.pathSeparator + 
+					this.GISBASE + "bin" + File.pathSeparator +
+					this.GISBASE + "scripts"));
+			env.add(new StringPair("LD_LIBRARY_PATH", System.getenv("LD_LIBRARY_PATH") + File.pathSeparator +
+					"/usr/local/bin" + File.pathSeparator +	this.GISBASE + "lib"));
+			env.add(new StringPair("GIS_LOCK", this.GIS_LOCK));
+			
+			this.script_env = env;
+		}
+		
+		return this.script_env;
+		
+	}
+	
+	/**
+	 * Provides the persistent shell used to execute GRASS modules, starting a new one if it
+	 * has not been started or is no longer running.
+	 * @return the persistent shell.
+	 * @throws IOException if the shell cannot be started.
+	 * @throws UnsupportedOperationException if the current operating system has no Bash shell.
+	 */
+	private synchronized GrassShell getShell () throws IOException, UnsupportedOperationException {
+		OSFlavor osFlavor = getOSFlavor();
+		if ( (osFlavor != OSFlavor.UNIX) && (osFlavor != OSFlavor.MAC) ) {
+			throw new UnsupportedOperationException("A persistent shell is not available for the current operating system.");
+		}
+		
+		if ( (this.shell == null) || !this.shell.isAlive() ) {
+			this.shell = new GrassShell("/bin/bash", getModuleEnvironment());
+		}
+		
+		return this.shell;
+		
+	}
+	
+	/**
+	 * Ends the persistent shell, if one is running. A new shell is started by the next module
+	 * call if use_persistent_shell is still set.
+	 */
+	public synchronized void closeShell () {
+		if ( this.shell != null ) {
+			this.shell.close();
+			this.shell = null;
+		}
+		
+	}
+	
+	/**
+	 * Provides the resident Python interpreter used to execute Python scripts, starting a new one
+	 * if it has not been started or is no longer running. The GRASS Python library is imported once
+	 * when the worker starts.
+	 * @param env The process environment for the interpreter.
+	 * @return the Python worker.
+	 * @throws IOException if the worker cannot be started.
+	 */
+	private synchronized PythonWorker getPythonWorker ( ArrayList<StringPair> env ) throws IOException {
+		if ( (this.python_worker == null) || !this.python_worker.isAlive() ) {
+			this.python_worker = new PythonWorker(this.PYTHON + "python", env, new String[] { "grass.script" });
+		}
+		
+		return this.python_worker;
+		
+	}
+	
+	/**
+	 * Ends the resident Python interpreter, if one is running. A new interpreter is started by the
+	 * next Python script call if use_python_worker is still set.
+	 */
+	public synchronized void closePythonWorker () {
+		if ( this.python_worker != null ) {
+			this.python_worker.close();
+			this.python_worker = null;
+		}
+		
+	}
+	
+	/**
+	 * Starts recording a batch of GRASS module and script calls on the current thread. Until the
+	 * batch is committed or discarded, calls made by this thread are not executed; each returns
+	 * an empty output immediately and is added to the batch. Committing the batch runs all of the
+	 * recorded calls, in order, as one generated script (i.e., one process) and provides the
+	 * result of each call. Calls made by other threads are not affected.
+	 * 
+	 * Only calls whose results are not needed before the batch is committed should be recorded.
+	 * Calls which stream their input or output (e.g., with a RecordConsumer) cannot be recorded.
+	 * @return the batch, to be committed with commit() or discarded with discard().
+	 * @throws IllegalStateException if a batch is already being recorded on the current thread.
+	 */
+	public GrassBatch beginBatch () throws IllegalStateException {
+		if ( this.recording.get() != null ) {
+			throw new IllegalStateException("A batch is already being recorded.");
+		}
+		
+		GrassBatch batch = new GrassBatch(this);
+		this.recording.set(batch);
+		return batch;
+		
+	}
+	
+	/**
+	 * Stops recording a batch on the current thread.
+	 * @param batch The batch being recorded.
+	 */
+	void endBatch ( GrassBatch batch ) {
+		if ( this.recording.get() == batch ) {
+			this.recording.remove();
+		}
+		
+		// The batch may hold region changes.
+		invalidateRegion();
+		
+	}
+	
 	/**
 	 * Executes a Bash script with associated parameters. The script must exist within the directory
 	 * specified by a call to the setScriptsDirectory() method. Otherwise, an 'Executable Not Found'
@@ -2439,24 +4463,15 @@ public class GrassFacade {
 	//private ExternalExec.OpResult executeBashScript ( String script, HashMap<String, String> parameters, boolean run_quiet ) throws IOException {
 	private ExternalExec.OpResult executeBashScript ( String script, ArrayList<StringPair> parameters, boolean run_quiet ) throws IOException {
 		//Hashtable<String, String> env = new Hashtable<String, String> ();
-		ArrayList<StringPair> env = new ArrayList<StringPair> ();
+		ArrayList<StringPair> env = null;
 		ExternalExec executor = new ExternalExec();
 		ExternalExec.OpResult result = null;
 		ArrayList<String> cmdList = new ArrayList<String> ();
+		String previous_label = labelProcesses();
 		
 		try {
 			// Specify Java subprocess environment variables required to execute GRASS modules.
-			// Note that these are different than the GRASS environment variables themselves
-			// (e.g., location and mapset), which are specified by the GRASSRC variable. These
-			// will be passed to the command shell which is executed by the subprocess.
-			env.add(new StringPair("GISBASE", this.GISBASE));
-			env.add(new StringPair("GISRC", this.GISRC));
-			env.add(new StringPair("PATH", System.getenv("PATH") + File.pathSeparator + 
-					this.GISBASE + "bin" + File.pathSeparator +
-					this.GISBASE + "scripts"));
-			env.add(new StringPair("LD_LIBRARY_PATH", System.getenv("LD_LIBRARY_PATH") + File.pathSeparator +
-					"/usr/local/bin" + File.pathSeparator +	this.GISBASE + "lib"));
-			env.add(new StringPair("GIS_LOCK", "$$"));
+			env = getScriptEnvironment();
 			
 			/*
 			env.put("GISBASE", this.GISBASE);
@@ -2509,12 +4524,28 @@ public class GrassFacade {
 				cmdList.add("--quiet");
 			}
 			
-			result = executor.execute(cmdList, env);
+			GrassBatch batch = this.recording.get();
+			if ( batch != null ) {
+				result = batch.record(cmdList, null);
+			}
+			else {
+				result = executor.execute(cmdList, env);
+			}
 		}
 		catch (IOException ioe) {
 			throw new IOException("An exception occurred while executing " +
 					script + ":\n  " + ioe.getMessage());
 		}
+		finally {
+			ProcessAccounting.setLabel(previous_label);
+			// Scripts may change the region.
+			invalidateRegion();
+		}
+		
+		// The output maps of a script which succeeded are named by its parameters.
+		if ( result.exitValue == 0 ) {
+			registerScriptOutputs(parameters, callerMethod());
+		}
 		
 		return result;
 		
@@ -2527,26 +4558,35 @@ public class GrassFacade {
 	
 
 	private ExternalExec.OpResult executePythonScript ( String script, ArrayList<StringPair> parameters, boolean run_quiet ) throws IOException {
+		return executePythonScript(script, parameters, run_quiet, null, '\n');
+	}
+	
+	/**
+	 * Executes a Python script with associated parameters. If an output consumer is specified,
+	 * the output stream of the script is passed to it one record at a time as it is produced and
+	 * the output field of the returned result is empty.
+	 * @param script Full path of the script to execute
+	 * @param parameters Script input parameters
+	 * @param run_quiet Specifies if the operation should provide feedback while running.
+	 * @param output_consumer Optional consumer of the output stream records. Specify 'null' to
+	 * capture the output stream in the returned result.
+	 * @param delimiter The character which separates output stream records.
+	 * @return An OpResult object that contains the data captured on both the output and
+	 * error streams, and the integer exit value
+	 * @throws IOException Error resulting from the command execution.
+	 */
+	private ExternalExec.OpResult executePythonScript ( String script, ArrayList<StringPair> parameters, boolean run_quiet,
+			ExternalExec.RecordConsumer output_consumer, char delimiter ) throws IOException {
 
-		ArrayList<StringPair> env = new ArrayList<StringPair> ();
+		ArrayList<StringPair> env = null;
 		ExternalExec executor = new ExternalExec();
 		ExternalExec.OpResult result = null;
 		ArrayList<String> cmdList = new ArrayList<String> ();
+		String previous_label = labelProcesses();
 		
 		try {
 			// Specify Java subprocess environment variables required to execute GRASS modules.
-			// Note that these are different than the GRASS environment variables themselves
-			// (e.g., location and mapset), which are specified by the GRASSRC variable. These
-			// will be passed to the command shell which is executed by the subprocess.
-			env.add(new StringPair("GISBASE", this.GISBASE));
-			//env.add(new StringPair("GRASS_ADDON_PATH", "/Users/sbergin/Documents/APSIModel/APSIM/Scripts"));
-			env.add(new StringPair("GISRC", this.GISRC));
-			env.add(new StringPair("PATH", System.getenv("PATH") + File.pathSeparator + 
-					this.GISBASE + "bin" + File.pathSeparator +
-					this.GISBASE + "scripts"));
-			env.add(new StringPair("LD_LIBRARY_PATH", System.getenv("LD_LIBRARY_PATH") + File.pathSeparator +
-					"/usr/local/bin" + File.pathSeparator +	this.GISBASE + "lib"));
-			env.add(new StringPair("GIS_LOCK", "$$"));
+			env = getScriptEnvironment();
 
 
 			// Set the python executable path and name
@@ -2568,12 +4608,38 @@ public class GrassFacade {
 				cmdList.add("--quiet");
 			}
 
-			result = executor.execute(cmdList, env);
+			GrassBatch batch = this.recording.get();
+			if ( (batch != null) && (output_consumer != null) ) {
+				throw new IllegalStateException("Streaming script calls cannot be recorded in a batch.");
+			}
+			else if ( batch != null ) {
+				result = batch.record(cmdList, null);
+			}
+			else if ( output_consumer != null ) {
+				result = executor.execute(cmdList, env, null, output_consumer, delimiter);
+			}
+			else if ( this.use_python_worker ) {
+				// The worker is given the script parameters only (i.e., without the executable and script).
+				result = getPythonWorker(env).run(script, cmdList.subList(2, cmdList.size()));
+			}
+			else {
+				result = executor.execute(cmdList, env);
+			}
 		}
 		catch (IOException ioe) {
 			throw new IOException("An exception occurred while executing " +
 					script + ":\n  " + ioe.getMessage());
 		}
+		finally {
+			ProcessAccounting.setLabel(previous_label);
+			// Scripts may change the region.
+			invalidateRegion();
+		}
+		
+		// The output maps of a script which succeeded are named by its parameters.
+		if ( result.exitValue == 0 ) {
+			registerScriptOutputs(parameters, callerMethod());
+		}
 		
 		return result;
 		
@@ -2648,9 +4714,118 @@ public class GrassFacade {
 			this.SCRIPTS = this.SCRIPTS.concat(File.separator);
 		}
 */
+		this.GIS_LOCK = newLock();
 		setEnvironment();		
 	}
 	
+	/**
+	 * Session constructor. The new object uses the same GRASS installation, database, location, and
+	 * options as the parent object, with its own GISRC file and lock.
+	 * @param parent The GRASS object from which the settings are taken.
+	 * @param owner_key An object key used to identify the owner of the session.
+	 */
+	private GrassFacade ( GrassFacade parent, Object owner_key ) {
+		this.owner_key = owner_key;
+		this.GISBASE = parent.GISBASE;
+		this.GISDBASE = parent.GISDBASE;
+		this.LOCATION = parent.LOCATION;
+		this.EXECUTABLES = parent.EXECUTABLES;
+		this.SCRIPTS = parent.SCRIPTS;
+		this.PYTHON = parent.PYTHON;
+		this.GROUP = parent.GROUP;
+		this.show_errors = parent.show_errors;
+		this.use_persistent_shell = parent.use_persistent_shell;
+		this.use_python_worker = parent.use_python_worker;
+		
+		this.GIS_LOCK = newLock();
+		this.GISRC = parent.GISRC + "." + this.GIS_LOCK;
+		
+	}
+	
+	/**
+	 * Creates a GRASS object for a session (see GrassSession). The session has its own GISRC file,
+	 * lock, and mapset. The mapset starts with the parent's current region and searches the parent's
+	 * search path (its mapset, then PERMANENT by default) for maps, so that maps made by the parent may be
+	 * used as input.
+	 * @param parent The GRASS object from which the settings, region, and input maps are taken.
+	 * @param owner_key An object key used to identify the owner of the session.
+	 * @param mapset_name The name to use for the session mapset. A suffix is added if it already exists.
+	 * @return the session GRASS object.
+	 * @throws IOException if there is an error while creating the mapset or the GISRC file.
+	 */
+	static GrassFacade createSession ( GrassFacade parent, Object owner_key, String mapset_name ) throws IOException {
+		GrassFacade session = new GrassFacade(parent, owner_key);
+		
+		// Mapset names are claimed under the lock so concurrent sessions do not choose the same name.
+		synchronized (GrassFacade.padlock) {
+			session.createMapset(mapset_name, true);
+		}
+		
+		File mapset_dir = new File(session.getMapsetPath());
+		File parent_wind = new File(parent.getMapsetPath() + File.separator + "WIND");
+		if ( parent_wind.exists() ) {
+			CopyFile.copy(parent_wind, new File(mapset_dir, "WIND"));
+		}
+		
+		// The session searches itself and then the parent's search path.
+		FileWriter fw = new FileWriter(new File(mapset_dir, "SEARCH_PATH"));
+		fw.write(session.MAPSET + "\n");
+		for ( String mapset : readSearchPath(new File(parent.getMapsetPath()), parent.MAPSET) ) {
+			if ( !mapset.equals(session.MAPSET) ) {
+				fw.write(mapset + "\n");
+			}
+		}
+		fw.close();
+		
+		session.setEnvironment();
+		return session;
+		
+	}
+	
+	/**
+	 * Provides the GISRC file path of this GRASS object.
+	 * @return the GISRC file path.
+	 */
+	String getGisrc () {
+		return this.GISRC;
+		
+	}
+	
+	/**
+	 * Provides the lock identifier (GIS_LOCK) of this GRASS object.
+	 * @return the lock identifier.
+	 */
+	String getLock () {
+		return this.GIS_LOCK;
+		
+	}
+	
+	/**
+	 * Generates a lock identifier unique to a GRASS object, built from the Java process id and the
+	 * number of objects created (e.g., '12345_7'), so that no two objects of any run share one.
+	 * @return the lock identifier.
+	 */
+	private static String newLock () {
+		long count;
+		synchronized (GrassFacade.padlock) {
+			GrassFacade.session_count++;
+			count = GrassFacade.session_count;
+		}
+		
+		long pid = 0;
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			pid = Long.parseLong(name.substring(0, name.indexOf('@')));
+		}
+		catch (RuntimeException re) {
+			// The name is not in the usual 'pid@host' form.
+			pid = name.hashCode() & 0xFFFF;
+		}
+		
+		return pid + "_" + count;
+		
+	}
+	
 	/**
 	 * Add a string representing the flag parameters if there are any.
 	 * @param cmdList The array list in which to insert the flag parameters.
@@ -2716,8 +4891,8 @@ public class GrassFacade {
 	 * is set to true.
 	 * @param errors A String containing the errors to print.
 	 */
-	private void printErrors ( String errors ) {
-		if ( show_errors && (errors != null) )
+	void printErrors ( String errors ) {
+		if ( show_errors && (errors != null) && (errors.length() > 0) )
 			System.err.println(errors);
 				
 	}
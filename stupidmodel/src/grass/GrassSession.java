@@ -0,0 +1,194 @@
+/*
+ * GrassSession.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - A session's search path is fixed when it is opened. Maps made by the parent after that time
+ *    are visible to the session only if the parent's mapset is unchanged.
+ */
+
+package grass;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * This class is a GRASS environment in which GRASS modules and scripts may be run independently of
+ * (and concurrently with) other sessions. Each session has its own GISRC file, lock (GIS_LOCK), mapset,
+ * and therefore its own region, since the region is kept in the mapset. The session's GrassFacade
+ * provides the module and script methods.
+ *
+ * The default session is the GrassFacade singleton. Other sessions are opened from an existing
+ * session; they start with that session's current region and can read its maps (its mapset is on the
+ * new session's search path). Maps made in a session are written to the session's own mapset and must
+ * be copied (e.g., g.copy with 'map@mapset') by the parent to be kept when the session's mapset is
+ * removed.
+ *
+ * A GrassFacade object is not meant to be shared by threads which change its region or mapset;
+ * each worker thread should open its own session.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class GrassSession {
+	private final GrassFacade grass;			// GRASS object of this session
+	private final boolean is_default;			// Session is the GrassFacade singleton
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 */
+	private GrassSession ( GrassFacade grass, boolean is_default ) {
+		this.grass = grass;
+		this.is_default = is_default;
+
+	}
+
+	/**
+	 * Gets the default session, which uses the GrassFacade singleton instance.
+	 * @return the default session, or 'null' if the GRASS instance has not been initialized.
+	 */
+	public static GrassSession getDefault () {
+		GrassFacade instance = GrassFacade.getInstance();
+		if ( instance == null ) {
+			return null;
+		}
+
+		return new GrassSession(instance, true);
+
+	}
+
+	/**
+	 * Opens a new session from the default session.
+	 * @param mapset_name The name to use for the session mapset. A suffix is added if a mapset with
+	 * the name already exists.
+	 * @return the new session.
+	 * @throws IllegalStateException if the GRASS instance has not been initialized.
+	 * @throws IOException if there is an error while creating the session mapset or GISRC file.
+	 */
+	public static GrassSession open ( String mapset_name ) throws IllegalStateException, IOException {
+		GrassSession default_session = getDefault();
+		if ( default_session == null ) {
+			throw new IllegalStateException("The GRASS instance has not been initialized.");
+		}
+
+		return default_session.openSession(mapset_name);
+
+	}
+
+	/**
+	 * Opens a new session from this session. The new session starts with this session's current
+	 * region and can read the maps in this session's mapset.
+	 * @param mapset_name The name to use for the session mapset. A suffix is added if a mapset with
+	 * the name already exists.
+	 * @return the new session.
+	 * @throws IllegalStateException if this session has been closed.
+	 * @throws IOException if there is an error while creating the session mapset or GISRC file.
+	 */
+	public GrassSession openSession ( String mapset_name ) throws IllegalStateException, IOException {
+		if ( this.closed ) {
+			throw new IllegalStateException("The GRASS session has been closed.");
+		}
+
+		return new GrassSession(GrassFacade.createSession(this.grass, new Object(), mapset_name), false);
+
+	}
+
+	/**
+	 * Provides the GRASS object through which modules and scripts are run in this session.
+	 * @return the session's GrassFacade.
+	 */
+	public GrassFacade getGrass () {
+		return this.grass;
+
+	}
+
+	/**
+	 * Provides the name of the session mapset.
+	 * @return the mapset name.
+	 */
+	public String getMapset () {
+		return this.grass.getMapset();
+
+	}
+
+	/**
+	 * Provides the path of the session's GISRC file.
+	 * @return the GISRC file path.
+	 */
+	public String getGisrc () {
+		return this.grass.getGisrc();
+
+	}
+
+	/**
+	 * Provides the session's lock identifier (the GIS_LOCK process variable).
+	 * @return the lock identifier.
+	 */
+	public String getLock () {
+		return this.grass.getLock();
+
+	}
+
+	/**
+	 * Indicates if this is the default session (i.e., the GrassFacade singleton).
+	 * @return true if this is the default session.
+	 */
+	public boolean isDefault () {
+		return this.is_default;
+
+	}
+
+	/**
+	 * Closes the session: its persistent shell and Python worker (if any) are stopped and its GISRC
+	 * file is deleted. The default session is not closed; use GrassFacade.destroy() instead.
+	 * @param remove_mapset Specifies if the session mapset (and all of the maps in it) is deleted.
+	 * @throws IOException if the mapset cannot be completely deleted.
+	 */
+	public synchronized void close ( boolean remove_mapset ) throws IOException {
+		if ( this.is_default || this.closed ) {
+			return;
+		}
+		this.closed = true;
+
+		this.grass.closeShell();
+		this.grass.closePythonWorker();
+		new File(this.grass.getGisrc()).delete();
+
+		if ( remove_mapset ) {
+			File mapset_dir = new File(this.grass.getMapsetPath());
+			if ( !delete(mapset_dir) ) {
+				throw new IOException("The session mapset, " + mapset_dir.getAbsolutePath() +
+						", was not completely deleted.");
+			}
+		}
+
+	}
+
+	/**
+	 * Deletes a file or a directory and all of its contents.
+	 * @return true if everything was deleted.
+	 */
+	static boolean delete ( File file ) {
+		boolean deleted = true;
+		File[] children = file.listFiles();
+		if ( children != null ) {
+			for ( int c = 0; c < children.length; c++ ) {
+				deleted = delete(children[c]) && deleted;
+			}
+		}
+
+		return file.delete() && deleted;
+
+	}
+
+}
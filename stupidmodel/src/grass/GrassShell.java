@@ -0,0 +1,392 @@
+/*
+ * GrassShell.java
+ * 
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *  
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ * 
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ * 
+ * Bugs / Issues:
+ * 1.0:
+ *  - Input provided to a command is passed through a shell here-document, which always ends
+ *    with a line feed. A line feed is appended to input that does not end with one.
+ */
+
+package grass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import misc.StringPair;
+import fileMgmt.ExternalExec;
+import fileMgmt.ProcessAccounting;
+
+/**
+ * This class keeps one long-lived Bash process (a coprocess) through which GRASS module commands
+ * are executed. Each command is written to the shell's input stream followed by commands which print
+ * a unique sentinel marker (and the command's exit value) on both the output and error streams. The
+ * data on each stream up to its marker is the result of that command. This avoids the cost of
+ * starting a new process from the Java runtime for every module call.
+ * 
+ * Commands are run one at a time; run() may be called from multiple threads but calls are serialized.
+ * The environment of the shell is fixed when it is started, so a shell must be restarted if the
+ * GRASS process environment changes (the GISRC file contents may change freely, since GRASS
+ * modules read the file each time they are run).
+ * 
+ * @version Package: 5.0, Class: 1.0
+ */
+public class GrassShell {
+	private Process process = null;			// The Bash coprocess
+	private OutputStream commands = null;	// Input stream of the coprocess
+	private MarkerDrain outputDrain = null;	// Splits the output stream at markers
+	private MarkerDrain errorDrain = null;	// Splits the error stream at markers
+	private final String marker;			// Unique sentinel marker for this shell
+	private long sequence = 0;				// Number of commands executed
+	
+	/**
+	 * Starts a new Bash coprocess.
+	 * @param shell The shell executable (e.g., '/bin/bash').
+	 * @param env Optional environment variables to add to the standard process environment. Specify
+	 * 'null' if there are no environment variables to add.
+	 * @throws IOException if the shell process cannot be started.
+	 */
+	public GrassShell ( String shell, List<StringPair> env ) throws IOException {
+		this.marker = "__GRASS_SHELL_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE) + "__";
+		
+		ProcessBuilder processBuilder = new ProcessBuilder(shell);
+		Map<String, String> proc_env = processBuilder.environment();
+		if ( env != null ) {
+			for (StringPair mapping : env) {
+				proc_env.put(mapping.key, mapping.value);
+			}
+		}
+		
+		this.process = processBuilder.start();
+		this.commands = this.process.getOutputStream();
+		
+		byte[] marker_bytes = ("\n" + this.marker).getBytes();
+		this.outputDrain = new MarkerDrain(this.process.getInputStream(), marker_bytes);
+		this.errorDrain = new MarkerDrain(this.process.getErrorStream(), marker_bytes);
+		startDaemon(this.outputDrain, "GrassShell-output");
+		startDaemon(this.errorDrain, "GrassShell-errors");
+		
+	}
+	
+	/**
+	 * Executes a command in the shell and waits for it to complete.
+	 * @param cmd The command and parameters to execute. Each element is quoted for the shell, so no
+	 * shell expansion is applied to the parameters.
+	 * @param input Optional data to provide to the command as input. Specify 'null' if there is no
+	 * external input to the command.
+	 * @return the result of the execution operation (output, errors, and return value).
+	 * @throws IllegalArgumentException if the command list is null or empty.
+	 * @throws IOException if the shell is no longer running or an error occurs while communicating
+	 * with it.
+	 */
+	public synchronized ExternalExec.OpResult run ( List<String> cmd, String input )
+	throws IllegalArgumentException, IOException {
+		if ( (cmd == null) || cmd.isEmpty() ) {
+			throw new IllegalArgumentException("Command list may not be null or empty.");
+		}
+		
+		if ( this.process == null ) {
+			throw new IOException("The GRASS shell has been closed.");
+		}
+		
+		String script = commandScript(cmd, input, this.marker, this.sequence);
+		this.sequence++;
+		
+		ProcessAccounting.Record record = ProcessAccounting.begin(cmd, this.process);
+		try {
+			this.commands.write(script.getBytes());
+			this.commands.flush();
+			
+			Segment output = this.outputDrain.next();
+			Segment errors = this.errorDrain.next();
+			
+			if ( (output == null) || (errors == null) ) {
+				close();
+				throw new IOException("The GRASS shell terminated while executing " + cmd.get(0) + ".");
+			}
+			
+			int exitValue = -1;
+			try {
+				exitValue = Integer.parseInt(output.trailer.trim());
+			}
+			catch (NumberFormatException nfe) {
+				// Leave the exit value as unknown.
+			}
+			
+			if ( record != null ) {
+				record.end(output.data.length(), errors.data.length());
+			}
+			
+			return new ExternalExec.OpResult(output.data, errors.data, exitValue);
+		}
+		
+		catch (InterruptedException ie) {
+			// The command may still be running; the shell can no longer be kept in step.
+			close();
+			throw new IOException("Interrupted while waiting for " + cmd.get(0) + ".");
+		}
+		
+		catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+		
+	}
+	
+	/**
+	 * Indicates if the shell process is still available to run commands.
+	 * @return true if the shell has not been closed and is still running.
+	 */
+	public synchronized boolean isAlive () {
+		if ( this.process == null ) {
+			return false;
+		}
+		
+		try {
+			this.process.exitValue();
+			return false;
+		}
+		catch (IllegalThreadStateException itse) {
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Ends the shell process. Any further call to run() will fail.
+	 */
+	public synchronized void close () {
+		if ( this.process == null ) {
+			return;
+		}
+		
+		try {
+			this.commands.write("exit\n".getBytes());
+			this.commands.close();
+		}
+		catch (IOException ioe) {
+			// Shell is already gone. Ignore; it is being destroyed anyway.
+		}
+		
+		this.process.destroy();
+		this.process = null;
+		
+	}
+	
+	/**
+	 * Quotes a String so that the shell passes it to a command as a single, unexpanded parameter.
+	 * @param arg The parameter to quote.
+	 * @return the quoted parameter.
+	 */
+	public static String quote ( String arg ) {
+		return "'" + arg.replace("'", "'\\''") + "'";
+		
+	}
+	
+	/**
+	 * Generates the shell commands which execute a command and then print a marker line on the
+	 * output stream (with the command's exit value) and on the error stream.
+	 * @param cmd The command and parameters to execute.
+	 * @param input Optional data to provide to the command as input, through a here-document.
+	 * Specify 'null' if there is no input; the command then reads from /dev/null.
+	 * @param marker The sentinel marker.
+	 * @param sequence A number unique to the command, used to build the here-document delimiter.
+	 * @return the shell commands, ending with a line feed.
+	 */
+	static String commandScript ( List<String> cmd, String input, String marker, long sequence ) {
+		StringBuilder script = new StringBuilder();
+		for ( int c = 0; c < cmd.size(); c++ ) {
+			if ( c > 0 ) {
+				script.append(' ');
+			}
+			script.append(quote(cmd.get(c)));
+		}
+		
+		if ( input == null ) {
+			script.append(" < /dev/null\n");
+		}
+		else {
+			String eof = marker + "EOF" + sequence;
+			script.append(" <<'").append(eof).append("'\n");
+			script.append(input);
+			if ( !input.endsWith("\n") ) {
+				script.append('\n');
+			}
+			script.append(eof).append('\n');
+		}
+		
+		// Print the markers (with the exit value on the output stream) once the command completes.
+		script.append("__rc=$?; printf '\\n%s %d\\n' '").append(marker).append("' $__rc; ");
+		script.append("printf '\\n%s\\n' '").append(marker).append("' >&2\n");
+		
+		return script.toString();
+		
+	}
+	
+	/**
+	 * Starts a daemon thread to run the specified task.
+	 */
+	private static void startDaemon ( Runnable task, String name ) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		t.start();
+		
+	}
+	
+	/**
+	 * This class holds the data on one stream for one command, along with the text that
+	 * followed the marker on the marker line.
+	 */
+	private static class Segment {
+		public final String data;
+		public final String trailer;
+		
+		public Segment ( String data, String trailer ) {
+			this.data = data;
+			this.trailer = trailer;
+			
+		}
+		
+	}
+	
+	/**
+	 * This class reads a shell stream and splits it into segments at each marker line. Each
+	 * segment is queued for the command which produced it. A null segment is queued when the
+	 * stream ends.
+	 */
+	private static class MarkerDrain implements Runnable {
+		private static final Segment END = new Segment(null, null);
+		
+		private final InputStream is;
+		private final byte[] marker;
+		private final BlockingQueue<Segment> segments = new LinkedBlockingQueue<Segment>();
+		private byte[] buffer = new byte[8192];
+		private int length = 0;
+		private int searched = 0;		// Buffer position before which no marker starts
+		
+		public MarkerDrain ( InputStream is, byte[] marker ) {
+			this.is = is;
+			this.marker = marker;
+			
+		}
+		
+		/**
+		 * Waits for the next segment on the stream.
+		 * @return the segment, or null if the stream has ended.
+		 * @throws InterruptedException if interrupted while waiting.
+		 */
+		public Segment next () throws InterruptedException {
+			Segment segment = this.segments.take();
+			if ( segment == END ) {
+				// Leave the end indicator for any subsequent callers.
+				this.segments.add(END);
+				return null;
+			}
+			
+			return segment;
+			
+		}
+		
+		public void run () {
+			byte[] data_buffer = new byte[8192];
+			
+			try {
+				int count = this.is.read(data_buffer);
+				while ( count != -1 ) {
+					append(data_buffer, count);
+					split();
+					count = this.is.read(data_buffer);
+				}
+			}
+			catch (IOException ioe) {
+				// Stream closed; the shell has ended.
+			}
+			finally {
+				this.segments.add(END);
+			}
+			
+		}
+		
+		/**
+		 * Appends data read from the stream to the unsplit buffer.
+		 */
+		private void append ( byte[] data, int count ) {
+			if ( this.length + count > this.buffer.length ) {
+				byte[] larger = new byte[Math.max(this.buffer.length * 2, this.length + count)];
+				System.arraycopy(this.buffer, 0, larger, 0, this.length);
+				this.buffer = larger;
+			}
+			
+			System.arraycopy(data, 0, this.buffer, this.length, count);
+			this.length += count;
+			
+		}
+		
+		/**
+		 * Queues each complete segment (data followed by a full marker line) in the buffer.
+		 */
+		private void split () {
+			int start = indexOfMarker(this.searched);
+			while ( start != -1 ) {
+				int trailer_start = start + this.marker.length;
+				int end = trailer_start;
+				while ( (end < this.length) && (this.buffer[end] != '\n') ) {
+					end++;
+				}
+				
+				if ( end >= this.length ) {
+					// Marker line is not complete yet.
+					this.searched = start;
+					return;
+				}
+				
+				this.segments.add(new Segment(new String(this.buffer, 0, start),
+						new String(this.buffer, trailer_start, end - trailer_start)));
+				
+				this.length -= end + 1;
+				System.arraycopy(this.buffer, end + 1, this.buffer, 0, this.length);
+				start = indexOfMarker(0);
+			}
+			
+			this.searched = Math.max(0, this.length - this.marker.length + 1);
+			
+		}
+		
+		/**
+		 * Finds the marker in the buffer.
+		 * @return the index of the marker, or -1 if it is not present.
+		 */
+		private int indexOfMarker ( int from ) {
+			int last = this.length - this.marker.length;
+			for ( int i = from; i <= last; i++ ) {
+				int m = 0;
+				while ( (m < this.marker.length) && (this.buffer[i + m] == this.marker[m]) ) {
+					m++;
+				}
+				if ( m == this.marker.length ) {
+					return i;
+				}
+			}
+			
+			return -1;
+			
+		}
+		
+	}
+	
+}
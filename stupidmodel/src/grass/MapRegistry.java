@@ -0,0 +1,265 @@
+/*
+ * MapRegistry.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Maps made inside scripts other than their outputs are not registered. Those which match a
+ *    temporary pattern are found by one listing of the mapset's raster headers in collect().
+ */
+
+package grass;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * This class records the raster maps made in the current mapset of a GrassFacade: the name of each
+ * map, the facade method (step) which made it, and the model year in which it was made. The facade
+ * registers the output maps of the module calls and scripts it runs.
+ *
+ * Maps which match a temporary pattern (e.g., '*temp_landcover*') are temporary. When collect() is
+ * called (e.g., at the end of a model year), each temporary map is deleted by exact name with g.remove,
+ * in batches. The deletes end before collect() returns, so a map of the same name made afterwards
+ * (e.g., in the next year) is never deleted by them. No maps are deleted while keep_maps is set.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class MapRegistry {
+	public boolean keep_maps = false;		// Do not delete temporary maps (e.g., to inspect them later)
+
+	private static final int REMOVE_BATCH_SIZE = 100;	// Maps deleted by one g.remove call
+
+	private final GrassFacade grass;								// Facade which made the maps
+	private final LinkedHashMap<String, MapRecord> maps = new LinkedHashMap<String, MapRecord> ();
+	private final ArrayList<String> temporary_patterns = new ArrayList<String> ();
+	private String year = "";										// Current model year
+
+	/**
+	 * This class holds what is known about one map.
+	 */
+	public static class MapRecord {
+		public final String name;			// Map name (without a mapset qualifier)
+		public final String step;			// Facade method which made the map
+		public final String year;			// Model year in which the map was made
+		public boolean temporary;			// Map is deleted by collect()
+
+		public MapRecord ( String name, String step, String year, boolean temporary ) {
+			this.name = name;
+			this.step = step;
+			this.year = year;
+			this.temporary = temporary;
+
+		}
+
+	}
+
+	/**
+	 * Constructor. A registry is created by its GrassFacade (see GrassFacade.getMapRegistry()).
+	 * @param grass The facade which makes the maps.
+	 */
+	MapRegistry ( GrassFacade grass ) {
+		this.grass = grass;
+
+	}
+
+	/**
+	 * Sets the model year recorded with the maps made from now on.
+	 * @param year The model year (e.g., 'y0001_').
+	 */
+	public synchronized void setYear ( String year ) {
+		this.year = year;
+
+	}
+
+	/**
+	 * Adds a pattern for temporary map names. Registered maps which match the pattern become temporary,
+	 * as do maps registered later.
+	 * @param pattern A map name pattern, where '*' matches any characters (e.g., '*Returns_map*').
+	 */
+	public synchronized void addTemporaryPattern ( String pattern ) {
+		this.temporary_patterns.add(pattern);
+		for ( MapRecord record : this.maps.values() ) {
+			if ( matches(pattern, record.name) ) {
+				record.temporary = true;
+			}
+		}
+
+	}
+
+	/**
+	 * Records a map made in the current mapset. If the map is already registered (i.e., it has been
+	 * overwritten), its record is replaced.
+	 * @param map_name The map name.
+	 * @param step The facade method (or model step) which made the map.
+	 */
+	public synchronized void register ( String map_name, String step ) {
+		MapRecord record = new MapRecord(map_name, step, this.year, isTemporary(map_name));
+		MapRecord previous = this.maps.put(map_name, record);
+		if ( previous != null ) {
+			record.temporary = record.temporary || previous.temporary;
+		}
+
+	}
+
+	/**
+	 * Removes the record of a map which has been deleted or renamed.
+	 * @param map_name The map name.
+	 */
+	public synchronized void unregister ( String map_name ) {
+		this.maps.remove(map_name);
+
+	}
+
+	/**
+	 * Removes the records of the maps which match a pattern (e.g., after g.mremove).
+	 * @param pattern A map name pattern, where '*' matches any characters.
+	 */
+	public synchronized void unregisterMatching ( String pattern ) {
+		ArrayList<String> matched = new ArrayList<String> ();
+		for ( String name : this.maps.keySet() ) {
+			if ( matches(pattern, name) ) {
+				matched.add(name);
+			}
+		}
+		for ( String name : matched ) {
+			this.maps.remove(name);
+		}
+
+	}
+
+	/**
+	 * Provides the record of a map.
+	 * @param map_name The map name.
+	 * @return the record, or 'null' if the map is not registered.
+	 */
+	public synchronized MapRecord getRecord ( String map_name ) {
+		return this.maps.get(map_name);
+
+	}
+
+	/**
+	 * Registers the maps in a mapset directory which are not yet registered, e.g., those copied from
+	 * a template mapset.
+	 * @param mapset_dir The mapset directory.
+	 * @param step The facade method (or model step) which made the maps.
+	 * @return the names of the newly registered maps.
+	 */
+	public synchronized List<String> scan ( File mapset_dir, String step ) {
+		ArrayList<String> found = new ArrayList<String> ();
+		String[] names = new File(mapset_dir, "cellhd").list();
+		if ( names != null ) {
+			for ( int n = 0; n < names.length; n++ ) {
+				if ( !this.maps.containsKey(names[n]) ) {
+					register(names[n], step);
+					found.add(names[n]);
+				}
+			}
+		}
+
+		return found;
+
+	}
+
+	/**
+	 * Deletes each temporary map, by name, and removes it from the registry. Temporary maps made inside
+	 * scripts, which are not registered, are found by one listing of the mapset. Nothing is deleted
+	 * while keep_maps is set.
+	 * @return the names of the deleted maps.
+	 */
+	public synchronized List<String> collect () {
+		ArrayList<String> unused = new ArrayList<String> ();
+		if ( this.keep_maps ) {
+			return unused;
+		}
+
+		for ( MapRecord record : this.maps.values() ) {
+			if ( record.temporary ) {
+				unused.add(record.name);
+			}
+		}
+		String[] names = new File(this.grass.getMapsetPath(), "cellhd").list();
+		if ( names != null ) {
+			for ( int n = 0; n < names.length; n++ ) {
+				if ( !this.maps.containsKey(names[n]) && isTemporary(names[n]) ) {
+					unused.add(names[n]);
+				}
+			}
+		}
+		for ( String name : unused ) {
+			this.maps.remove(name);
+		}
+
+		for ( int start = 0; start < unused.size(); start += REMOVE_BATCH_SIZE ) {
+			StringBuilder map_names = new StringBuilder();
+			for ( String name : unused.subList(start, Math.min(start + REMOVE_BATCH_SIZE, unused.size())) ) {
+				if ( map_names.length() > 0 ) {
+					map_names.append(',');
+				}
+				map_names.append(name);
+			}
+
+			try {
+				this.grass.gRemoveRast(map_names.toString(), true);
+			}
+			catch (Exception e) {
+				System.out.println("An error occurred while deleting temporary maps: " + e.getMessage());
+			}
+		}
+
+		return unused;
+
+	}
+
+	private boolean isTemporary ( String map_name ) {
+		for ( String pattern : this.temporary_patterns ) {
+			if ( matches(pattern, map_name) ) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Matches a map name against a pattern in which '*' matches any characters.
+	 * @param pattern The pattern.
+	 * @param name The map name.
+	 * @return true if the name matches the pattern.
+	 */
+	static boolean matches ( String pattern, String name ) {
+		String[] parts = pattern.split("\\*", -1);
+		if ( parts.length == 1 ) {
+			return pattern.equals(name);
+		}
+
+		if ( !name.startsWith(parts[0]) ) {
+			return false;
+		}
+		int position = parts[0].length();
+		for ( int p = 1; p < parts.length - 1; p++ ) {
+			position = name.indexOf(parts[p], position);
+			if ( position == -1 ) {
+				return false;
+			}
+			position += parts[p].length();
+		}
+
+		String last = parts[parts.length - 1];
+		return (name.length() - last.length() >= position) && name.endsWith(last);
+
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * MapcalcBatch.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Map references are found by scanning the expression for names; a function name which equals
+ *    a pending output map name is also taken as a reference. This only causes an early flush.
+ */
+
+package grass;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class collects r.mapcalc formulas (e.g., "out = a + b") and runs them together as a single
+ * multi-expression r.mapcalc invocation, with the formulas passed on the module's input stream. All
+ * of the expressions of one invocation are evaluated in a single pass over the region, so each
+ * input map is read once per invocation instead of once per formula.
+ *
+ * Formulas in the same invocation must not depend on each other's outputs. When a formula is added
+ * which reads a pending output map, writes a map which a pending formula reads, or writes a pending
+ * output map again, the pending formulas are run first (i.e., the batch is flushed) so that the
+ * formulas take effect in the order added.
+ *
+ * A batch is created with GrassFacade.deferMapcalc(). Formulas are not run until the batch is
+ * flushed, either explicitly or by a dependency. A batch may also evaluate the formulas it can in the
+ * JVM, running only the rest with r.mapcalc.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class MapcalcBatch {
+	private final GrassFacade grass;					// Facade which runs r.mapcalc
+	private final boolean in_jvm;						// Formulas may be evaluated in the JVM
+	private final ArrayList<String> formulas = new ArrayList<String> ();
+	private final Set<String> outputs = new HashSet<String> ();		// Pending output maps
+	private final Set<String> inputs = new HashSet<String> ();		// Maps read by pending formulas
+	private final StringBuilder output = new StringBuilder();		// Output of flushed invocations
+
+	/**
+	 * Constructor. Batches are created by GrassFacade.deferMapcalc().
+	 * @param grass The facade which runs r.mapcalc.
+	 * @param in_jvm Whether formulas of the subset supported by MapcalcExpression are evaluated in the
+	 * JVM rather than by r.mapcalc (see GrassFacade.rMapcalc(List, boolean)).
+	 */
+	MapcalcBatch ( GrassFacade grass, boolean in_jvm ) {
+		this.grass = grass;
+		this.in_jvm = in_jvm;
+
+	}
+
+	/**
+	 * Adds a formula to the batch. If the formula depends on a pending formula (or a pending formula
+	 * depends on it), the pending formulas are run first.
+	 * @param formula The r.mapcalc formula, in the form "output = expression". As with
+	 * GrassFacade.rMapcalc(), quote characters are removed.
+	 * @throws IllegalArgumentException if the formula has no assignment.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error resulting from running the pending formulas.
+	 */
+	public synchronized void add ( String formula ) throws IllegalArgumentException, IllegalStateException, IOException {
+		formula = formula.replace("'", "").replace("\"", "");
+
+		int assignment = formula.indexOf('=');
+		if ( assignment <= 0 ) {
+			throw new IllegalArgumentException("The formula, " + formula + ", has no output map.");
+		}
+
+		String target = mapName(formula.substring(0, assignment).trim());
+		Set<String> references = references(formula.substring(assignment + 1));
+
+		boolean dependent = this.outputs.contains(target) || this.inputs.contains(target);
+		for ( String reference : references ) {
+			dependent = dependent || this.outputs.contains(reference);
+		}
+
+		if ( dependent ) {
+			runPending();
+		}
+
+		this.formulas.add(formula.trim());
+		this.outputs.add(target);
+		this.inputs.addAll(references);
+
+	}
+
+	/**
+	 * Adds a formula to the batch.
+	 * @param output_map The output map name.
+	 * @param expression The r.mapcalc expression.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error resulting from running the pending formulas.
+	 * @see #add(String)
+	 */
+	public void add ( String output_map, String expression ) throws IllegalStateException, IOException {
+		add(output_map + " = " + expression);
+
+	}
+
+	/**
+	 * Gets the number of formulas waiting to be run.
+	 * @return the number of pending formulas.
+	 */
+	public synchronized int size () {
+		return this.formulas.size();
+
+	}
+
+	/**
+	 * Runs the pending formulas as a single r.mapcalc invocation. Nothing is run if there are no
+	 * pending formulas.
+	 * @return A String with the output of all of the invocations run by this batch since the
+	 * last flush() call.
+	 * @throws IllegalStateException if the executable path is not set.
+	 * @throws IOException Error resulting from the r.mapcalc operation.
+	 */
+	public synchronized String flush () throws IllegalStateException, IOException {
+		runPending();
+
+		String result = this.output.toString();
+		this.output.setLength(0);
+		return result;
+
+	}
+
+	/**
+	 * Runs the pending formulas, if any, and keeps the output for the next flush() call.
+	 */
+	private void runPending () throws IllegalStateException, IOException {
+		if ( !this.formulas.isEmpty() ) {
+			List<String> pending = new ArrayList<String> (this.formulas);
+			this.formulas.clear();
+			this.outputs.clear();
+			this.inputs.clear();
+
+			this.output.append(this.grass.rMapcalc(pending, this.in_jvm));
+		}
+
+	}
+
+	/**
+	 * Finds the names of the maps referenced by an expression. Every name-like token is taken as a
+	 * reference; mapset qualifiers are removed.
+	 */
+	private static Set<String> references ( String expression ) {
+		Set<String> names = new HashSet<String> ();
+		int c = 0;
+		while ( c < expression.length() ) {
+			char ch = expression.charAt(c);
+			if ( Character.isLetter(ch) || (ch == '_') ) {
+				int start = c;
+				while ( (c < expression.length()) && isNameChar(expression.charAt(c)) ) {
+					c++;
+				}
+				String name = mapName(expression.substring(start, c));
+				names.add(name);
+
+				// A map name followed by a color or modifier suffix (e.g., map.r) is also a reference to map.
+				int dot = name.lastIndexOf('.');
+				if ( dot > 0 ) {
+					names.add(name.substring(0, dot));
+				}
+			}
+			else if ( Character.isDigit(ch) ) {
+				// Numbers are not references, but map names may also start with a digit (e.g., 00100village_0_clearing).
+				int start = c;
+				while ( (c < expression.length()) && isNameChar(expression.charAt(c)) ) {
+					c++;
+				}
+				String token = expression.substring(start, c);
+				if ( !isNumber(token) ) {
+					names.add(mapName(token));
+				}
+			}
+			else {
+				c++;
+			}
+		}
+
+		return names;
+
+	}
+
+	/**
+	 * Removes the mapset qualifier (e.g., '@PERMANENT') from a map name.
+	 */
+	private static String mapName ( String name ) {
+		int at = name.indexOf('@');
+		return (at > 0) ? name.substring(0, at) : name;
+
+	}
+
+	private static boolean isNameChar ( char ch ) {
+		return Character.isLetterOrDigit(ch) || (ch == '_') || (ch == '.') || (ch == '@');
+
+	}
+
+	private static boolean isNumber ( String token ) {
+		try {
+			Double.parseDouble(token);
+			return true;
+		}
+		catch (NumberFormatException nfe) {
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,681 @@
+/*
+ * MapcalcExpression.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Integer results of 2^31 and beyond wrap around, as in r.mapcalc, but -2^31 is not taken as null.
+ */
+
+package grass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class compiles an r.mapcalc formula (e.g., "out = if(isnull(a), null(), 40)") so that it can be
+ * evaluated in the JVM, over tiles of cells held as primitive arrays, rather than by running r.mapcalc.
+ * Only a subset of the r.mapcalc syntax is supported:
+ *
+ * 		numbers, maps (optionally with a mapset qualifier), and parentheses
+ * 		unary - and !
+ * 		* / %, + -, < <= > >=, == !=, &&, || (with the precedence of r.mapcalc)
+ * 		if(x), if(x, a), if(x, a, b), isnull(x), and null()
+ *
+ * compile() returns 'null' for any other formula (e.g., other functions, map modifiers, or the ?:
+ * operator), which must then be run by r.mapcalc.
+ *
+ * Values are evaluated as r.mapcalc does: each expression has the cell type of its operands (CELL for
+ * integers, FCELL, or DCELL, the widest operand type being used), integer division truncates, and
+ * FCELL results are rounded to single precision. Null cells are NaN; an operation with a null operand
+ * gives null (including && and ||, as in GRASS 6), as does division by zero, except that isnull() is
+ * never null and if() is null only if its condition is.
+ *
+ * A compiled expression does not change, and may be evaluated by several threads at once.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class MapcalcExpression {
+	private final String output_map;				// Map assigned by the formula
+	private final List<String> input_maps;			// Maps read by the expression, in order of their index
+	private final Node root;
+
+	private MapcalcExpression ( String output_map, List<String> input_maps, Node root ) {
+		this.output_map = output_map;
+		this.input_maps = input_maps;
+		this.root = root;
+
+	}
+
+	/**
+	 * Compiles a formula of the supported subset of r.mapcalc.
+	 * @param formula The formula, in the form "output = expression". Quote characters are removed, as
+	 * by GrassFacade.rMapcalc().
+	 * @return the compiled expression, or 'null' if the formula is not in the supported subset.
+	 */
+	public static MapcalcExpression compile ( String formula ) {
+		formula = formula.replace("'", "").replace("\"", "");
+		int assignment = formula.indexOf('=');
+		if ( (assignment <= 0) || (assignment == formula.length() - 1) || (formula.charAt(assignment + 1) == '=') ) {
+			return null;
+		}
+
+		String output_map = formula.substring(0, assignment).trim();
+		if ( (output_map.length() == 0) || (output_map.indexOf('@') >= 0) ) {
+			return null;
+		}
+		for ( int c = 0; c < output_map.length(); c++ ) {
+			if ( !isNameChar(output_map.charAt(c)) ) {
+				return null;
+			}
+		}
+
+		Parser parser = new Parser(formula.substring(assignment + 1));
+		Node root = parser.parse();
+		if ( root == null ) {
+			return null;
+		}
+
+		return new MapcalcExpression(output_map, parser.maps, root);
+
+	}
+
+	/**
+	 * Provides the name of the map assigned by the formula.
+	 * @return the output map name.
+	 */
+	public String getOutputMap () {
+		return this.output_map;
+
+	}
+
+	/**
+	 * Provides the maps read by the expression. The tiles passed to evaluate() are in the same order.
+	 * @return the map names, as written in the formula (with any mapset qualifier).
+	 */
+	public List<String> getInputMaps () {
+		return this.input_maps;
+
+	}
+
+	/**
+	 * Provides the cell type of the expression's value, i.e., of the output map.
+	 * @return the cell type.
+	 */
+	public RasterMetadata.CellType getType () {
+		return this.root.type;
+
+	}
+
+	/**
+	 * Gives the input maps their cell types, which decide the types of the expressions which use them.
+	 * Map inputs are taken as DCELL until their types are set.
+	 * @param types The cell type of each input map (see getInputMaps()).
+	 * @return an expression with the given input types.
+	 */
+	public MapcalcExpression withInputTypes ( RasterMetadata.CellType[] types ) {
+		return new MapcalcExpression(this.output_map, this.input_maps, this.root.retype(types));
+
+	}
+
+	/**
+	 * Evaluates the expression for a tile of cells.
+	 * @param inputs The tile of each input map (see getInputMaps()), each holding at least 'cells'
+	 * values; null cells are NaN.
+	 * @param cells The number of cells in the tile.
+	 * @return the value of each cell; null cells are NaN.
+	 */
+	public double[] evaluate ( double[][] inputs, int cells ) {
+		double[] values = new double[cells];
+		this.root.evaluate(inputs, cells, values);
+
+		return values;
+
+	}
+
+	private static boolean isNameChar ( char ch ) {
+		return Character.isLetterOrDigit(ch) || (ch == '_') || (ch == '.') || (ch == '@');
+
+	}
+
+	private static RasterMetadata.CellType wider ( RasterMetadata.CellType a, RasterMetadata.CellType b ) {
+		return (a.ordinal() >= b.ordinal()) ? a : b;
+
+	}
+
+	/**
+	 * This class parses an expression by recursive descent, one method per precedence level. A method
+	 * returns 'null' if the expression is not in the supported subset.
+	 */
+	private static class Parser {
+		private final List<String> tokens = new ArrayList<String> ();
+		private final List<String> maps = new ArrayList<String> ();
+		private int position = 0;
+		private boolean supported = true;
+
+		public Parser ( String expression ) {
+			int c = 0;
+			while ( c < expression.length() ) {
+				char ch = expression.charAt(c);
+				if ( Character.isWhitespace(ch) ) {
+					c++;
+				}
+				else if ( isNameChar(ch) ) {
+					int start = c;
+					while ( (c < expression.length()) && isNameChar(expression.charAt(c)) ) {
+						c++;
+					}
+					this.tokens.add(expression.substring(start, c));
+				}
+				else {
+					String pair = expression.substring(c, Math.min(c + 2, expression.length()));
+					if ( pair.equals("==") || pair.equals("!=") || pair.equals("<=") || pair.equals(">=") ||
+							pair.equals("&&") || pair.equals("||") ) {
+						this.tokens.add(pair);
+						c += 2;
+					}
+					else if ( "()+-*/%<>!,".indexOf(ch) >= 0 ) {
+						this.tokens.add(String.valueOf(ch));
+						c++;
+					}
+					else {
+						this.supported = false;
+						return;
+					}
+				}
+			}
+
+		}
+
+		public Node parse () {
+			if ( !this.supported ) {
+				return null;
+			}
+			Node root = parseOr();
+
+			return ((root != null) && (this.position == this.tokens.size())) ? root : null;
+
+		}
+
+		private String peek () {
+			return (this.position < this.tokens.size()) ? this.tokens.get(this.position) : "";
+
+		}
+
+		private boolean accept ( String token ) {
+			if ( peek().equals(token) ) {
+				this.position++;
+				return true;
+			}
+
+			return false;
+
+		}
+
+		private Node parseOr () {
+			Node node = parseAnd();
+			while ( (node != null) && accept("||") ) {
+				node = Binary.create("||", node, parseAnd());
+			}
+
+			return node;
+
+		}
+
+		private Node parseAnd () {
+			Node node = parseEquality();
+			while ( (node != null) && accept("&&") ) {
+				node = Binary.create("&&", node, parseEquality());
+			}
+
+			return node;
+
+		}
+
+		private Node parseEquality () {
+			Node node = parseRelation();
+			while ( (node != null) && (peek().equals("==") || peek().equals("!=")) ) {
+				String operator = this.tokens.get(this.position++);
+				node = Binary.create(operator, node, parseRelation());
+			}
+
+			return node;
+
+		}
+
+		private Node parseRelation () {
+			Node node = parseSum();
+			while ( (node != null) && (peek().equals("<") || peek().equals("<=") || peek().equals(">") || peek().equals(">=")) ) {
+				String operator = this.tokens.get(this.position++);
+				node = Binary.create(operator, node, parseSum());
+			}
+
+			return node;
+
+		}
+
+		private Node parseSum () {
+			Node node = parseProduct();
+			while ( (node != null) && (peek().equals("+") || peek().equals("-")) ) {
+				String operator = this.tokens.get(this.position++);
+				node = Binary.create(operator, node, parseProduct());
+			}
+
+			return node;
+
+		}
+
+		private Node parseProduct () {
+			Node node = parseUnary();
+			while ( (node != null) && (peek().equals("*") || peek().equals("/") || peek().equals("%")) ) {
+				String operator = this.tokens.get(this.position++);
+				node = Binary.create(operator, node, parseUnary());
+			}
+
+			return node;
+
+		}
+
+		private Node parseUnary () {
+			if ( accept("-") ) {
+				Node operand = parseUnary();
+				return (operand == null) ? null : new Negate(operand);
+			}
+			if ( accept("!") ) {
+				Node operand = parseUnary();
+				return (operand == null) ? null : new Not(operand);
+			}
+
+			return parsePrimary();
+
+		}
+
+		private Node parsePrimary () {
+			if ( accept("(") ) {
+				Node node = parseOr();
+				return accept(")") ? node : null;
+			}
+
+			String token = peek();
+			if ( (token.length() == 0) || !isNameChar(token.charAt(0)) ) {
+				return null;
+			}
+			this.position++;
+
+			if ( accept("(") ) {
+				List<Node> arguments = new ArrayList<Node> ();
+				if ( !accept(")") ) {
+					do {
+						Node argument = parseOr();
+						if ( argument == null ) {
+							return null;
+						}
+						arguments.add(argument);
+					} while ( accept(",") );
+					if ( !accept(")") ) {
+						return null;
+					}
+				}
+				return Function.create(token, arguments);
+			}
+
+			Node number = Constant.parse(token);
+			if ( number != null ) {
+				return number;
+			}
+
+			int index = this.maps.indexOf(token);
+			if ( index < 0 ) {
+				index = this.maps.size();
+				this.maps.add(token);
+			}
+
+			return new MapInput(index, RasterMetadata.CellType.DCELL);
+
+		}
+
+	}
+
+	/**
+	 * This class is a node of an expression tree, with the cell type of its value. A node evaluates
+	 * a whole tile at a time, so the tree is walked once per tile rather than once per cell.
+	 */
+	private static abstract class Node {
+		protected RasterMetadata.CellType type;
+
+		/**
+		 * Evaluates the node for a tile.
+		 * @param inputs The tiles of the input maps.
+		 * @param cells The number of cells in the tile.
+		 * @param values The array to receive the node's values; null cells are NaN.
+		 */
+		public abstract void evaluate ( double[][] inputs, int cells, double[] values );
+
+		/**
+		 * Copies the node with the given input map types.
+		 */
+		public abstract Node retype ( RasterMetadata.CellType[] types );
+
+		/**
+		 * Rounds FCELL values to single precision.
+		 */
+		protected void round ( int cells, double[] values ) {
+			if ( this.type == RasterMetadata.CellType.FCELL ) {
+				for ( int i = 0; i < cells; i++ ) {
+					values[i] = (float) values[i];
+				}
+			}
+
+		}
+
+	}
+
+	private static class Constant extends Node {
+		private final double value;
+
+		public Constant ( double value, RasterMetadata.CellType type ) {
+			this.value = value;
+			this.type = type;
+
+		}
+
+		/**
+		 * Parses a number: an integer is a CELL value, and a number with a decimal point or exponent
+		 * (or too large for a CELL value) is a DCELL value.
+		 * @return the constant, or 'null' if the token is not a number.
+		 */
+		public static Constant parse ( String token ) {
+			try {
+				if ( (token.indexOf('.') < 0) && (token.indexOf('e') < 0) && (token.indexOf('E') < 0) ) {
+					long value = Long.parseLong(token);
+					if ( value <= Integer.MAX_VALUE ) {
+						return new Constant(value, RasterMetadata.CellType.CELL);
+					}
+				}
+				if ( Character.isDigit(token.charAt(0)) || (token.charAt(0) == '.') ) {
+					return new Constant(Double.parseDouble(token), RasterMetadata.CellType.DCELL);
+				}
+			}
+			catch (NumberFormatException nfe) {
+			}
+
+			return null;
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			Arrays.fill(values, 0, cells, this.value);
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			return this;
+
+		}
+
+	}
+
+	private static class MapInput extends Node {
+		private final int index;
+
+		public MapInput ( int index, RasterMetadata.CellType type ) {
+			this.index = index;
+			this.type = type;
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			System.arraycopy(inputs[this.index], 0, values, 0, cells);
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			return new MapInput(this.index, types[this.index]);
+
+		}
+
+	}
+
+	private static class Negate extends Node {
+		private final Node operand;
+
+		public Negate ( Node operand ) {
+			this.operand = operand;
+			this.type = operand.type;
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			this.operand.evaluate(inputs, cells, values);
+			for ( int i = 0; i < cells; i++ ) {
+				if ( !Double.isNaN(values[i]) ) {
+					values[i] = (this.type == RasterMetadata.CellType.CELL) ? (int) -(long) values[i] : -values[i];
+				}
+			}
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			return new Negate(this.operand.retype(types));
+
+		}
+
+	}
+
+	private static class Not extends Node {
+		private final Node operand;
+
+		public Not ( Node operand ) {
+			this.operand = operand;
+			this.type = RasterMetadata.CellType.CELL;
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			this.operand.evaluate(inputs, cells, values);
+			for ( int i = 0; i < cells; i++ ) {
+				if ( !Double.isNaN(values[i]) ) {
+					values[i] = (values[i] == 0) ? 1 : 0;
+				}
+			}
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			return new Not(this.operand.retype(types));
+
+		}
+
+	}
+
+	/**
+	 * This class is a binary operator. Arithmetic operators have the wider type of their operands;
+	 * comparisons and logical operators are CELL (1 or 0).
+	 */
+	private static class Binary extends Node {
+		private final String operator;
+		private final Node left;
+		private final Node right;
+
+		private Binary ( String operator, Node left, Node right ) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+			boolean arithmetic = (operator.length() == 1) && ("+-*/%".indexOf(operator.charAt(0)) >= 0);
+			this.type = arithmetic ? wider(left.type, right.type) : RasterMetadata.CellType.CELL;
+
+		}
+
+		/**
+		 * Creates an operator node.
+		 * @return the node, or 'null' if the right operand is not supported.
+		 */
+		public static Node create ( String operator, Node left, Node right ) {
+			return (right == null) ? null : new Binary(operator, left, right);
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			double[] right_values = new double[cells];
+			this.left.evaluate(inputs, cells, values);
+			this.right.evaluate(inputs, cells, right_values);
+			boolean integer = this.type == RasterMetadata.CellType.CELL;
+			char op = this.operator.charAt(0);
+			boolean two_chars = this.operator.length() == 2;
+
+			for ( int i = 0; i < cells; i++ ) {
+				double a = values[i];
+				double b = right_values[i];
+				if ( Double.isNaN(a) || Double.isNaN(b) ) {
+					values[i] = Double.NaN;
+					continue;
+				}
+
+				double v;
+				switch ( op ) {
+				case '+':
+					v = integer ? (int) ((long) a + (long) b) : a + b;
+					break;
+				case '-':
+					v = integer ? (int) ((long) a - (long) b) : a - b;
+					break;
+				case '*':
+					v = integer ? (int) ((long) a * (long) b) : a * b;
+					break;
+				case '/':
+					v = (b == 0) ? Double.NaN : (integer ? (int) ((long) a / (long) b) : a / b);
+					break;
+				case '%':
+					v = (b == 0) ? Double.NaN : (integer ? (int) ((long) a % (long) b) : a % b);
+					break;
+				case '<':
+					v = (two_chars ? (a <= b) : (a < b)) ? 1 : 0;
+					break;
+				case '>':
+					v = (two_chars ? (a >= b) : (a > b)) ? 1 : 0;
+					break;
+				case '=':
+					v = (a == b) ? 1 : 0;
+					break;
+				case '!':
+					v = (a != b) ? 1 : 0;
+					break;
+				case '&':
+					v = ((a != 0) && (b != 0)) ? 1 : 0;
+					break;
+				default:	// '|'
+					v = ((a != 0) || (b != 0)) ? 1 : 0;
+					break;
+				}
+				values[i] = v;
+			}
+			round(cells, values);
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			return new Binary(this.operator, this.left.retype(types), this.right.retype(types));
+
+		}
+
+	}
+
+	/**
+	 * This class is one of the supported functions: if(), isnull(), or null().
+	 */
+	private static class Function extends Node {
+		private final String name;
+		private final Node[] arguments;
+
+		private Function ( String name, Node[] arguments ) {
+			this.name = name;
+			this.arguments = arguments;
+			if ( name.equals("if") && (arguments.length == 2) ) {
+				this.type = arguments[1].type;
+			}
+			else if ( name.equals("if") && (arguments.length == 3) ) {
+				this.type = wider(arguments[1].type, arguments[2].type);
+			}
+			else {
+				this.type = RasterMetadata.CellType.CELL;
+			}
+
+		}
+
+		/**
+		 * Creates a function node.
+		 * @return the node, or 'null' if the function (or its number of arguments) is not supported.
+		 */
+		public static Node create ( String name, List<Node> arguments ) {
+			int count = arguments.size();
+			boolean supported = (name.equals("if") && (count >= 1) && (count <= 3)) ||
+					(name.equals("isnull") && (count == 1)) || (name.equals("null") && (count == 0));
+
+			return supported ? new Function(name, arguments.toArray(new Node[count])) : null;
+
+		}
+
+		public void evaluate ( double[][] inputs, int cells, double[] values ) {
+			if ( this.name.equals("null") ) {
+				Arrays.fill(values, 0, cells, Double.NaN);
+				return;
+			}
+
+			this.arguments[0].evaluate(inputs, cells, values);
+			if ( this.name.equals("isnull") ) {
+				for ( int i = 0; i < cells; i++ ) {
+					values[i] = Double.isNaN(values[i]) ? 1 : 0;
+				}
+				return;
+			}
+
+			// if(x): 1 or 0; if(x, a): a or 0; if(x, a, b): a or b. Null if x is null.
+			double[] when_true = null;
+			double[] when_false = null;
+			if ( this.arguments.length > 1 ) {
+				when_true = new double[cells];
+				this.arguments[1].evaluate(inputs, cells, when_true);
+			}
+			if ( this.arguments.length > 2 ) {
+				when_false = new double[cells];
+				this.arguments[2].evaluate(inputs, cells, when_false);
+			}
+			for ( int i = 0; i < cells; i++ ) {
+				double x = values[i];
+				if ( Double.isNaN(x) ) {
+					continue;
+				}
+				if ( x != 0 ) {
+					values[i] = (when_true == null) ? 1 : when_true[i];
+				}
+				else {
+					values[i] = (when_false == null) ? 0 : when_false[i];
+				}
+			}
+			round(cells, values);
+
+		}
+
+		public Node retype ( RasterMetadata.CellType[] types ) {
+			Node[] retyped = new Node[this.arguments.length];
+			for ( int a = 0; a < retyped.length; a++ ) {
+				retyped[a] = this.arguments[a].retype(types);
+			}
+
+			return new Function(this.name, retyped);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+ * MapsetStaging.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - If the JVM is killed (so its shutdown hooks do not run), the persistent mapset is left under its
+ *    hidden name ('.[mapset].store') and the staged mapset is lost with the memory-backed directory.
+ *  - Retained maps which are deleted in the staged mapset are not deleted from the persistent mapset.
+ *  - Requires symbolic links (not available on Windows).
+ */
+
+package grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import fileMgmt.CopyFile;
+
+/**
+ * This class places the working mapset of a GrassFacade on a memory-backed directory (e.g., /dev/shm),
+ * so the maps made and rewritten each year are read and written at memory speed. The mapset keeps its
+ * name and path: the mapset directory in the location is replaced by a symbolic link to the staged
+ * directory, and the original (persistent) directory is kept under a hidden name.
+ *
+ * Only the maps and files selected for retention are copied back to the persistent directory. Each
+ * call to writeBack() copies, in the background, the retained files and the retained maps which are new
+ * or have changed since the last call. When the staging is closed, the retained maps and files are
+ * written back, the link and staged directory are removed, and the persistent directory gets its name
+ * back. The staging is closed by a shutdown hook if the JVM exits before close() is called.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class MapsetStaging {
+	private static final String[] MAP_ELEMENTS = { "cellhd", "cell", "fcell", "colr", "cats", "hist" };
+
+	private final File mapset_dir;			// Mapset path in the location (a link while staged)
+	private final File store_dir;			// Persistent directory, under a hidden name while staged
+	private final File stage_dir;			// Staged (memory-backed) directory
+	private final ArrayList<String> map_patterns = new ArrayList<String> ();
+	private final ArrayList<String> file_patterns = new ArrayList<String> ();
+	private final HashMap<String, Long> written = new HashMap<String, Long> ();	// Map header times at write-back
+	private ExecutorService writer = null;
+	private final ArrayList<Future<?>> writes = new ArrayList<Future<?>> ();
+	private final Thread shutdown_hook;		// Closes the staging if the JVM exits first
+	private boolean closed = false;
+
+	/**
+	 * Constructor. Moves a mapset to a staged directory.
+	 * @param mapset_dir The mapset directory in the location.
+	 * @param stage_root The memory-backed directory in which to stage the mapset.
+	 * @param stage_name A unique name for the staged directory.
+	 * @throws IOException if the mapset cannot be staged (it is then left unchanged).
+	 */
+	MapsetStaging ( File mapset_dir, File stage_root, String stage_name ) throws IOException {
+		this.mapset_dir = mapset_dir;
+		this.store_dir = new File(mapset_dir.getParentFile(), "." + mapset_dir.getName() + ".store");
+		this.stage_dir = new File(stage_root, stage_name);
+
+		if ( System.getProperty("os.name").startsWith("Windows") ) {
+			throw new IOException("Mapset staging requires symbolic links.");
+		}
+		if ( !this.stage_dir.mkdirs() ) {
+			throw new IOException("Unable to create the staging directory, " + this.stage_dir.getAbsolutePath() + ".");
+		}
+
+		try {
+			CopyFile.copy(mapset_dir, this.stage_dir);
+			if ( !mapset_dir.renameTo(this.store_dir) ) {
+				throw new IOException("Unable to rename the mapset directory, " + mapset_dir.getAbsolutePath() + ".");
+			}
+			if ( !symlink(this.stage_dir, mapset_dir) ) {
+				this.store_dir.renameTo(mapset_dir);
+				throw new IOException("Unable to link the mapset directory to " + this.stage_dir.getAbsolutePath() + ".");
+			}
+		}
+		catch (IOException ioe) {
+			GrassSession.delete(this.stage_dir);
+			throw ioe;
+		}
+
+		this.shutdown_hook = new Thread("MapsetStaging-shutdown") {
+			public void run () {
+				try {
+					closeStaging();
+				}
+				catch (Exception e) {
+					System.out.println("An error occurred while closing the staged mapset, " + MapsetStaging.this.mapset_dir.getAbsolutePath() +
+							": " + e.getMessage());
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(this.shutdown_hook);
+
+	}
+
+	/**
+	 * Selects raster maps to retain, i.e., to write back to the persistent mapset.
+	 * @param pattern A map name pattern, where '*' matches any characters (e.g., '*landcover').
+	 */
+	public synchronized void retainMaps ( String pattern ) {
+		this.map_patterns.add(pattern);
+
+	}
+
+	/**
+	 * Selects files or directories in the mapset directory (other than maps) to retain, i.e., to write
+	 * back to the persistent mapset at each write-back and when the staging is closed.
+	 * @param pattern A file name pattern, where '*' matches any characters (e.g., 'APSimLogs', 'stats*').
+	 */
+	public synchronized void retainFiles ( String pattern ) {
+		this.file_patterns.add(pattern);
+
+	}
+
+	/**
+	 * Provides the staged (memory-backed) directory.
+	 * @return the staged directory.
+	 */
+	public File getStageDirectory () {
+		return this.stage_dir;
+
+	}
+
+	/**
+	 * Copies, in the background, the retained files and the retained maps which are new or have changed
+	 * since the last write-back to the persistent mapset. Should be called when no module is writing the
+	 * maps or files (e.g., at the end of a model year).
+	 * @throws IllegalStateException if the staging has been closed.
+	 */
+	public synchronized void writeBack () throws IllegalStateException {
+		if ( this.closed ) {
+			throw new IllegalStateException("The mapset staging has been closed.");
+		}
+
+		final List<String> maps = changedMaps();
+		this.writes.add(getWriter().submit(new Runnable() {
+			public void run () {
+				try {
+					for ( String map_name : maps ) {
+						copyMap(map_name);
+					}
+					copyFiles();
+				}
+				catch (IOException ioe) {
+					System.out.println("An error occurred while writing back staged maps: " + ioe.getMessage());
+				}
+			}
+		}));
+
+	}
+
+	/**
+	 * Waits for the background write-backs to complete.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void awaitWriteBack () throws InterruptedException {
+		List<Future<?>> pending;
+		synchronized (this) {
+			pending = new ArrayList<Future<?>> (this.writes);
+			this.writes.clear();
+		}
+
+		for ( Future<?> write : pending ) {
+			try {
+				write.get();
+			}
+			catch (ExecutionException ee) {
+				// Errors are reported by the write-back task.
+			}
+		}
+
+	}
+
+	/**
+	 * Ends the staging: the retained maps and files are written back, the staged directory is deleted,
+	 * and the persistent mapset directory is restored to its name. GRASS modules must not be run in
+	 * the mapset while it is being closed. Closing a closed staging has no effect.
+	 * @throws InterruptedException if interrupted while waiting for the write-backs.
+	 * @throws IOException if the retained maps or files cannot be written back, or the mapset directory
+	 * cannot be restored.
+	 */
+	public void close () throws InterruptedException, IOException {
+		try {
+			Runtime.getRuntime().removeShutdownHook(this.shutdown_hook);
+		}
+		catch (IllegalStateException ise) {
+			// The JVM is exiting; the hook closes the staging (or is closing it).
+		}
+		closeStaging();
+
+	}
+
+	/**
+	 * Closes the staging (see close()), from close() or the shutdown hook.
+	 */
+	private void closeStaging () throws InterruptedException, IOException {
+		synchronized (this) {
+			if ( this.closed ) {
+				return;
+			}
+			this.closed = true;
+		}
+
+		awaitWriteBack();
+		synchronized (this) {
+			if ( this.writer != null ) {
+				this.writer.shutdown();
+				this.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				this.writer = null;
+			}
+		}
+
+		for ( String map_name : changedMaps() ) {
+			copyMap(map_name);
+		}
+		copyFiles();
+
+		// The link is deleted (not the directory it refers to), and the persistent directory renamed back.
+		if ( !this.mapset_dir.delete() || !this.store_dir.renameTo(this.mapset_dir) ) {
+			throw new IOException("Unable to restore the mapset directory, " + this.mapset_dir.getAbsolutePath() +
+					", from " + this.store_dir.getAbsolutePath() + ".");
+		}
+		GrassSession.delete(this.stage_dir);
+
+	}
+
+	/**
+	 * Lists the retained maps whose headers are new or have changed since they were last written back.
+	 */
+	private synchronized List<String> changedMaps () {
+		ArrayList<String> changed = new ArrayList<String> ();
+		File[] headers = new File(this.stage_dir, "cellhd").listFiles();
+		if ( headers == null ) {
+			return changed;
+		}
+
+		for ( int h = 0; h < headers.length; h++ ) {
+			String name = headers[h].getName();
+			if ( name.startsWith(".") || !retainsMap(name) ) {
+				continue;
+			}
+			Long stamp = Long.valueOf(headers[h].lastModified());
+			if ( !stamp.equals(this.written.get(name)) ) {
+				this.written.put(name, stamp);
+				changed.add(name);
+			}
+		}
+
+		return changed;
+
+	}
+
+	/**
+	 * Copies the files of one map from the staged directory to the persistent directory.
+	 */
+	private void copyMap ( String map_name ) throws IOException {
+		for ( int e = 0; e < MAP_ELEMENTS.length; e++ ) {
+			File staged = new File(new File(this.stage_dir, MAP_ELEMENTS[e]), map_name);
+			if ( staged.isFile() ) {
+				File stored_dir = new File(this.store_dir, MAP_ELEMENTS[e]);
+				stored_dir.mkdirs();
+				CopyFile.copy(staged, new File(stored_dir, map_name));
+			}
+		}
+
+		File staged_misc = new File(new File(this.stage_dir, "cell_misc"), map_name);
+		if ( staged_misc.isDirectory() ) {
+			File stored_misc = new File(new File(this.store_dir, "cell_misc"), map_name);
+			stored_misc.mkdirs();
+			CopyFile.copy(staged_misc, stored_misc);
+		}
+
+	}
+
+	/**
+	 * Copies the retained files and directories from the staged directory to the persistent directory.
+	 */
+	private void copyFiles () throws IOException {
+		String[] names = this.stage_dir.list();
+		if ( names == null ) {
+			return;
+		}
+
+		for ( int n = 0; n < names.length; n++ ) {
+			if ( retainsFile(names[n]) ) {
+				File staged = new File(this.stage_dir, names[n]);
+				File stored = new File(this.store_dir, names[n]);
+				if ( staged.isDirectory() ) {
+					stored.mkdirs();
+				}
+				CopyFile.copy(staged, stored);
+			}
+		}
+
+	}
+
+	private synchronized boolean retainsMap ( String map_name ) {
+		for ( String pattern : this.map_patterns ) {
+			if ( MapRegistry.matches(pattern, map_name) ) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private synchronized boolean retainsFile ( String file_name ) {
+		for ( String pattern : this.file_patterns ) {
+			if ( MapRegistry.matches(pattern, file_name) ) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Provides the single thread which runs the write-backs, so they are run in order.
+	 */
+	private synchronized ExecutorService getWriter () {
+		if ( this.writer == null ) {
+			this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread ( Runnable task ) {
+					Thread t = new Thread(task, "MapsetStaging-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		return this.writer;
+
+	}
+
+	/**
+	 * Creates a symbolic link.
+	 * @return true if the link was created.
+	 */
+	private static boolean symlink ( File target, File link ) {
+		try {
+			ProcessBuilder processBuilder = new ProcessBuilder("ln", "-s", target.getAbsolutePath(), link.getAbsolutePath());
+			processBuilder.redirectErrorStream(true);
+			Process process = processBuilder.start();
+			process.getOutputStream().close();
+
+			InputStream output = process.getInputStream();
+			byte[] buffer = new byte[1024];
+			while ( output.read(buffer) != -1 ) {
+				// Discard.
+			}
+			output.close();
+
+			return process.waitFor() == 0;
+		}
+		catch (IOException ioe) {
+			return false;
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+	}
+
+}
@@ -0,0 +1,433 @@
+/*
+ * PythonWorker.java
+ * 
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *  
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ * 
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ * 
+ * Bugs / Issues:
+ * 1.0:
+ *  - Scripts with a g.parser header are given their options and flags as the GIS_OPT_* and GIS_FLAG_*
+ *    variables by the worker itself (as GRASS 6's grass.script.parser() expects once g.parser has run),
+ *    since g.parser would replace the worker through exec. Unlike g.parser, the worker does not check
+ *    the arguments against the header (e.g., required options, '--help'), and only reads options
+ *    which name their key (not standard G_OPT_* options).
+ */
+
+package grass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import misc.StringPair;
+import fileMgmt.ExternalExec;
+import fileMgmt.ProcessAccounting;
+
+/**
+ * This class keeps one resident Python interpreter which runs Python scripts (e.g., the r.*.py
+ * APSIM scripts) on request. Modules named when the worker is started (e.g., 'grass.script') are
+ * imported once and remain loaded for every subsequent script, avoiding the interpreter start-up
+ * and import cost of launching a new Python process per script.
+ * 
+ * Requests are framed on the worker's input stream as a count of arguments followed by each
+ * argument's byte length and bytes, where the first argument is the script path. The worker runs
+ * the script as '__main__' with the arguments as sys.argv, capturing everything written to file
+ * descriptors 1 and 2 (including output of modules the script starts). The response holds the exit
+ * value and the lengths of the captured output and errors, followed by their bytes. The result is
+ * returned in the same shape as an ExternalExec.OpResult.
+ * 
+ * A script with a g.parser interface header ('#%module', '#%option', '#%flag') is run as g.parser
+ * runs it under GRASS 6: the options (with the defaults of the header) and flags are exported as
+ * GIS_OPT_<KEY> and GIS_FLAG_<F>, and sys.argv is [script, '@ARGS_PARSED@'], so that
+ * grass.script.parser() reads them rather than executing g.parser in place of the worker. The
+ * environment, sys.argv and the modules imported by a script are restored after each script.
+ * 
+ * Scripts are run one at a time; run() may be called from multiple threads but calls are serialized.
+ * 
+ * @version Package: 5.0, Class: 1.0
+ */
+public class PythonWorker {
+	// The worker script run by the resident interpreter. It is compatible with Python 2.7 and 3.
+	private static final String[] WORKER_SCRIPT = {
+		"import os, sys, runpy, tempfile, traceback",
+		"proto_in = os.fdopen(os.dup(0), 'rb', 0)",
+		"proto_out = os.fdopen(os.dup(1), 'wb', 0)",
+		"null_fd = os.open(os.devnull, os.O_RDONLY)",
+		"os.dup2(null_fd, 0)",
+		"os.close(null_fd)",
+		"for name in sys.argv[1:]:",
+		"    try:",
+		"        __import__(name)",
+		"    except Exception:",
+		"        traceback.print_exc()",
+		"def read_line():",
+		"    line = b''",
+		"    while True:",
+		"        c = proto_in.read(1)",
+		"        if not c:",
+		"            return None",
+		"        if c == b'\\n':",
+		"            return line",
+		"        line += c",
+		"def read_exact(n):",
+		"    data = b''",
+		"    while len(data) < n:",
+		"        chunk = proto_in.read(n - len(data))",
+		"        if not chunk:",
+		"            raise EOFError()",
+		"        data += chunk",
+		"    return data",
+		"def interface(path):",
+		"    # Options and flags declared in the '#%' header of a g.parser script, with their defaults.",
+		"    options = {}",
+		"    flags = {}",
+		"    found = False",
+		"    kind = None",
+		"    block = {}",
+		"    f = open(path, 'rb')",
+		"    try:",
+		"        for raw in f:",
+		"            line = raw.decode('utf-8', 'replace').strip()",
+		"            if not line.startswith('#%'):",
+		"                continue",
+		"            line = line[2:].strip()",
+		"            if line.split(' ')[0] in ('module', 'option', 'flag'):",
+		"                found = True",
+		"                kind = line.split(' ')[0]",
+		"                block = {}",
+		"            elif line == 'end':",
+		"                if (kind == 'option') and ('key' in block):",
+		"                    options[block['key']] = block.get('answer', '')",
+		"                elif (kind == 'flag') and ('key' in block):",
+		"                    flags[block['key']] = '0'",
+		"                kind = None",
+		"            elif (kind is not None) and (':' in line):",
+		"                name, value = line.split(':', 1)",
+		"                block[name.strip()] = value.strip()",
+		"    finally:",
+		"        f.close()",
+		"    return found, options, flags",
+		"def export_args(path, args):",
+		"    # Does what g.parser does before running a script: exports the options and flags as GIS_OPT_*",
+		"    # and GIS_FLAG_* variables. Returns False if the script has no g.parser header.",
+		"    found, options, flags = interface(path)",
+		"    if not found:",
+		"        return False",
+		"    for arg in args:",
+		"        if arg in ('--o', '--overwrite'):",
+		"            os.environ['GRASS_OVERWRITE'] = '1'",
+		"        elif arg in ('--q', '--quiet'):",
+		"            os.environ['GRASS_VERBOSE'] = '0'",
+		"        elif arg in ('--v', '--verbose'):",
+		"            os.environ['GRASS_VERBOSE'] = '3'",
+		"        elif '=' in arg:",
+		"            name, value = arg.split('=', 1)",
+		"            options[name] = value",
+		"        elif arg.startswith('-'):",
+		"            for c in arg[1:]:",
+		"                flags[c] = '1'",
+		"    for name in options:",
+		"        os.environ['GIS_OPT_' + name.upper()] = options[name]",
+		"    for name in flags:",
+		"        os.environ['GIS_FLAG_' + name.upper()] = flags[name]",
+		"    return True",
+		"def exit_value(code):",
+		"    if code is None:",
+		"        return 0",
+		"    if isinstance(code, int):",
+		"        return code",
+		"    sys.stderr.write(str(code) + '\\n')",
+		"    return 1",
+		"while True:",
+		"    line = read_line()",
+		"    if line is None:",
+		"        break",
+		"    args = []",
+		"    for i in range(int(line)):",
+		"        args.append(read_exact(int(read_line())).decode('utf-8'))",
+		"    out = tempfile.TemporaryFile()",
+		"    err = tempfile.TemporaryFile()",
+		"    saved_env = dict(os.environ)",
+		"    saved_cwd = os.getcwd()",
+		"    saved_argv = sys.argv",
+		"    saved_modules = dict(sys.modules)",
+		"    sys.stdout.flush()",
+		"    sys.stderr.flush()",
+		"    saved_out = os.dup(1)",
+		"    saved_err = os.dup(2)",
+		"    os.dup2(out.fileno(), 1)",
+		"    os.dup2(err.fileno(), 2)",
+		"    code = 0",
+		"    try:",
+		"        try:",
+		"            if export_args(args[0], args[1:]):",
+		"                sys.argv = [args[0], '@ARGS_PARSED@']",
+		"            else:",
+		"                sys.argv = args",
+		"            runpy.run_path(args[0], run_name='__main__')",
+		"        except SystemExit as e:",
+		"            code = exit_value(e.code)",
+		"        except BaseException:",
+		"            traceback.print_exc()",
+		"            code = 1",
+		"    finally:",
+		"        sys.stdout.flush()",
+		"        sys.stderr.flush()",
+		"        os.dup2(saved_out, 1)",
+		"        os.dup2(saved_err, 2)",
+		"        os.close(saved_out)",
+		"        os.close(saved_err)",
+		"        os.environ.clear()",
+		"        os.environ.update(saved_env)",
+		"        os.chdir(saved_cwd)",
+		"        sys.argv = saved_argv",
+		"        for name in list(sys.modules):",
+		"            if name not in saved_modules:",
+		"                del sys.modules[name]",
+		"        sys.modules.update(saved_modules)",
+		"    out.seek(0)",
+		"    err.seek(0)",
+		"    o = out.read()",
+		"    e = err.read()",
+		"    out.close()",
+		"    err.close()",
+		"    proto_out.write(('%d %d %d\\n' % (code, len(o), len(e))).encode('ascii'))",
+		"    proto_out.write(o)",
+		"    proto_out.write(e)",
+		"    proto_out.flush()",
+	};
+	
+	private Process process = null;			// The resident Python interpreter
+	private OutputStream requests = null;	// Input stream of the interpreter
+	private InputStream responses = null;	// Output stream of the interpreter
+	private File workerScript = null;		// Generated worker script file
+	
+	/**
+	 * Starts a new resident Python interpreter.
+	 * @param python The Python executable (path and name).
+	 * @param env Optional environment variables to add to the standard process environment. Specify
+	 * 'null' if there are no environment variables to add.
+	 * @param preload Optional names of Python modules to import once when the worker starts (e.g.,
+	 * 'grass.script'). Specify 'null' if no modules are to be preloaded.
+	 * @throws IOException if the worker script cannot be written or the interpreter cannot be started.
+	 */
+	public PythonWorker ( String python, List<StringPair> env, String[] preload ) throws IOException {
+		this.workerScript = File.createTempFile("grass_worker", ".py");
+		this.workerScript.deleteOnExit();
+		
+		FileWriter fw = new FileWriter(this.workerScript);
+		try {
+			for ( String line : WORKER_SCRIPT ) {
+				fw.write(line);
+				fw.write("\n");
+			}
+		}
+		finally {
+			fw.close();
+		}
+		
+		ArrayList<String> cmdList = new ArrayList<String> ();
+		cmdList.add(python);
+		cmdList.add("-u");
+		cmdList.add(this.workerScript.getAbsolutePath());
+		if ( preload != null ) {
+			for ( String module : preload ) {
+				cmdList.add(module);
+			}
+		}
+		
+		ProcessBuilder processBuilder = new ProcessBuilder(cmdList);
+		Map<String, String> proc_env = processBuilder.environment();
+		if ( env != null ) {
+			for (StringPair mapping : env) {
+				proc_env.put(mapping.key, mapping.value);
+			}
+		}
+		
+		this.process = processBuilder.start();
+		this.requests = new BufferedOutputStream(this.process.getOutputStream());
+		this.responses = new BufferedInputStream(this.process.getInputStream());
+		
+		// Anything the interpreter writes to its error stream outside of a request (e.g., preload
+		// failures) is passed through to the error stream of this program.
+		final InputStream errors = this.process.getErrorStream();
+		Thread t = new Thread(new Runnable() {
+			public void run () {
+				byte[] data_buffer = new byte[1024];
+				try {
+					int length = errors.read(data_buffer);
+					while ( length != -1 ) {
+						System.err.write(data_buffer, 0, length);
+						length = errors.read(data_buffer);
+					}
+				}
+				catch (IOException ioe) {
+					// Stream closed; the worker has ended.
+				}
+			}
+		}, "PythonWorker-errors");
+		t.setDaemon(true);
+		t.start();
+		
+	}
+	
+	/**
+	 * Runs a Python script in the resident interpreter and waits for it to complete.
+	 * @param script The full path of the script to run.
+	 * @param args The parameters to pass to the script (sys.argv[1:]).
+	 * @return the result of the execution operation (output, errors, and return value).
+	 * @throws IOException if the worker is no longer running or an error occurs while communicating
+	 * with it.
+	 */
+	public synchronized ExternalExec.OpResult run ( String script, List<String> args ) throws IOException {
+		if ( this.process == null ) {
+			throw new IOException("The Python worker has been closed.");
+		}
+		
+		ArrayList<String> cmd = new ArrayList<String> ();
+		cmd.add(script);
+		ProcessAccounting.Record record = ProcessAccounting.begin(cmd, this.process);
+		
+		try {
+			writeArgument(Integer.toString(args.size() + 1));
+			writeFramed(script);
+			for ( String arg : args ) {
+				writeFramed(arg);
+			}
+			this.requests.flush();
+			
+			String[] header = readLine().split(" ");
+			int exitValue = Integer.parseInt(header[0]);
+			byte[] output = readExact(Integer.parseInt(header[1]));
+			byte[] errors = readExact(Integer.parseInt(header[2]));
+			if ( record != null ) {
+				record.end(output.length, errors.length);
+			}
+			
+			return new ExternalExec.OpResult(new String(output, "UTF-8"), new String(errors, "UTF-8"), exitValue);
+		}
+		
+		catch (IOException ioe) {
+			close();
+			throw new IOException("The Python worker failed while running " + script + ":\n  " + ioe.getMessage());
+		}
+		
+		catch (RuntimeException re) {
+			close();
+			throw new IOException("Invalid response from the Python worker while running " + script + ".");
+		}
+		
+	}
+	
+	/**
+	 * Indicates if the worker is still available to run scripts.
+	 * @return true if the worker has not been closed and is still running.
+	 */
+	public synchronized boolean isAlive () {
+		if ( this.process == null ) {
+			return false;
+		}
+		
+		try {
+			this.process.exitValue();
+			return false;
+		}
+		catch (IllegalThreadStateException itse) {
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * Ends the worker. Closing its input stream causes the interpreter to exit. Any further call to
+	 * run() will fail.
+	 */
+	public synchronized void close () {
+		if ( this.process == null ) {
+			return;
+		}
+		
+		try {
+			this.requests.close();
+		}
+		catch (IOException ioe) {
+			// Worker is already gone. Ignore; it is being destroyed anyway.
+		}
+		
+		this.process.destroy();
+		this.process = null;
+		this.workerScript.delete();
+		
+	}
+	
+	/**
+	 * Writes a line to the request stream.
+	 */
+	private void writeArgument ( String line ) throws IOException {
+		this.requests.write(line.getBytes("US-ASCII"));
+		this.requests.write('\n');
+		
+	}
+	
+	/**
+	 * Writes a length-prefixed argument to the request stream.
+	 */
+	private void writeFramed ( String arg ) throws IOException {
+		byte[] data = arg.getBytes("UTF-8");
+		writeArgument(Integer.toString(data.length));
+		this.requests.write(data);
+		
+	}
+	
+	/**
+	 * Reads a line from the response stream.
+	 */
+	private String readLine () throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+		int c = this.responses.read();
+		while ( c != '\n' ) {
+			if ( c == -1 ) {
+				throw new IOException("The Python worker terminated.");
+			}
+			line.write(c);
+			c = this.responses.read();
+		}
+		
+		return line.toString("US-ASCII");
+		
+	}
+	
+	/**
+	 * Reads the specified number of bytes from the response stream.
+	 */
+	private byte[] readExact ( int length ) throws IOException {
+		byte[] data = new byte[length];
+		int offset = 0;
+		while ( offset < length ) {
+			int count = this.responses.read(data, offset, length - offset);
+			if ( count == -1 ) {
+				throw new IOException("The Python worker terminated.");
+			}
+			offset += count;
+		}
+		
+		return data;
+		
+	}
+	
+}
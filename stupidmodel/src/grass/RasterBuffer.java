@@ -0,0 +1,242 @@
+/*
+ * RasterBuffer.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - The mapped memory is released only when the buffer is garbage collected (Java cannot unmap a
+ *    buffer explicitly), although its file is deleted by release().
+ *  - A floating point cell whose value is BIN_NULL is read as null.
+ */
+
+package grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class is a raster held in a memory mapped binary file, the exchange format of r.out.bin and
+ * r.in.bin: the cells of the current region by row, in the machine's byte order, four bytes per cell
+ * (eight for DCELL). The file is placed in shared memory (/dev/shm) when it is available, so moving a
+ * raster between GRASS and the model costs one sequential write and one mapping rather than the
+ * formatting and parsing of a text file.
+ *
+ * Buffers are made by GrassFacade.rOutBin() (a map exported from GRASS) and
+ * GrassFacade.createRasterBuffer() (a map to be filled and imported with GrassFacade.rInBin()). Null
+ * cells are NULL_CELL in integer buffers and NaN (read) or BIN_NULL (stored) in floating point buffers.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class RasterBuffer {
+	public static final int BIN_NULL = RasterReader.NULL_CELL;		// Value stored for null cells
+
+	private final RasterMetadata.CellType type;
+	private final int rows;
+	private final int cols;
+	private final RasterMetadata region;		// Bounds and resolution of the raster
+	private File file;							// Mapped file; 'null' once deleted
+	private final MappedByteBuffer data;
+
+	/**
+	 * Constructor. Maps a binary raster file.
+	 * @param file The file, which holds (or will hold) rows * cols cells.
+	 * @param type The cell type.
+	 * @param region The bounds and resolution of the raster.
+	 * @param writable Specifies if the buffer may be written.
+	 * @throws IOException if the file cannot be mapped or is not of the expected size.
+	 */
+	RasterBuffer ( File file, RasterMetadata.CellType type, RasterMetadata region, boolean writable ) throws IOException {
+		this.file = file;
+		this.type = type;
+		this.region = region;
+		this.rows = region.rows;
+		this.cols = region.cols;
+
+		long size = (long) this.rows * this.cols * cellBytes(type);
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException("Rasters larger than 2 GB cannot be mapped.");
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			if ( writable ) {
+				raf.setLength(size);
+			}
+			else if ( raf.length() != size ) {
+				throw new IOException("The binary raster, " + file.getAbsolutePath() + ", holds " + raf.length() +
+						" bytes, not the " + size + " bytes of the region.");
+			}
+			this.data = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+			this.data.order(ByteOrder.nativeOrder());
+		}
+		finally {
+			// The mapping remains valid after the file is closed.
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Provides the number of bytes per cell of a cell type.
+	 * @param type The cell type.
+	 * @return 8 for DCELL; 4 otherwise.
+	 */
+	static int cellBytes ( RasterMetadata.CellType type ) {
+		return (type == RasterMetadata.CellType.DCELL) ? 8 : 4;
+
+	}
+
+	public RasterMetadata.CellType getType () {
+		return this.type;
+
+	}
+
+	public int getRows () {
+		return this.rows;
+
+	}
+
+	public int getCols () {
+		return this.cols;
+
+	}
+
+	/**
+	 * Provides the bounds and resolution of the raster (the region it was made for).
+	 * @return the region.
+	 */
+	public RasterMetadata getRegion () {
+		return this.region;
+
+	}
+
+	/**
+	 * Provides the mapped file.
+	 * @return the file, or 'null' if it has been deleted.
+	 */
+	public File getFile () {
+		return this.file;
+
+	}
+
+	/**
+	 * Provides the cells of an integer (CELL) raster by row (i.e., cell [r * cols + c]).
+	 * @return a view of the mapped cells.
+	 * @throws IllegalStateException if the raster holds floating point values.
+	 */
+	public IntBuffer asIntBuffer () throws IllegalStateException {
+		checkType(RasterMetadata.CellType.CELL);
+		return duplicate().asIntBuffer();
+
+	}
+
+	/**
+	 * Provides the cells of a single precision (FCELL) raster by row (i.e., cell [r * cols + c]).
+	 * @return a view of the mapped cells.
+	 * @throws IllegalStateException if the raster does not hold single precision values.
+	 */
+	public FloatBuffer asFloatBuffer () throws IllegalStateException {
+		checkType(RasterMetadata.CellType.FCELL);
+		return duplicate().asFloatBuffer();
+
+	}
+
+	/**
+	 * Provides the cells of a double precision (DCELL) raster by row (i.e., cell [r * cols + c]).
+	 * @return a view of the mapped cells.
+	 * @throws IllegalStateException if the raster does not hold double precision values.
+	 */
+	public DoubleBuffer asDoubleBuffer () throws IllegalStateException {
+		checkType(RasterMetadata.CellType.DCELL);
+		return duplicate().asDoubleBuffer();
+
+	}
+
+	/**
+	 * Provides the value of a cell.
+	 * @param row The row number (0 is the northern row).
+	 * @param col The column number (0 is the western column).
+	 * @return the cell value; NaN if the cell is null.
+	 */
+	public double getValue ( int row, int col ) {
+		int index = row * this.cols + col;
+		double value;
+		switch ( this.type ) {
+			case CELL:
+				int cell = this.data.getInt(index * 4);
+				return (cell == BIN_NULL) ? Double.NaN : cell;
+			case FCELL:
+				value = this.data.getFloat(index * 4);
+				break;
+			default:
+				value = this.data.getDouble(index * 8);
+				break;
+		}
+
+		return (value == BIN_NULL) ? Double.NaN : value;
+
+	}
+
+	/**
+	 * Sets the value of a cell.
+	 * @param row The row number (0 is the northern row).
+	 * @param col The column number (0 is the western column).
+	 * @param value The cell value; NaN for a null cell. Integer rasters store the value rounded.
+	 */
+	public void setValue ( int row, int col, double value ) {
+		int index = row * this.cols + col;
+		switch ( this.type ) {
+			case CELL:
+				this.data.putInt(index * 4, Double.isNaN(value) ? BIN_NULL : (int) Math.round(value));
+				break;
+			case FCELL:
+				this.data.putFloat(index * 4, Double.isNaN(value) ? BIN_NULL : (float) value);
+				break;
+			default:
+				this.data.putDouble(index * 8, Double.isNaN(value) ? BIN_NULL : value);
+				break;
+		}
+
+	}
+
+	/**
+	 * Deletes the mapped file. The buffer may still be read (the mapping remains until the buffer is
+	 * garbage collected) but it can no longer be imported.
+	 */
+	public void release () {
+		if ( this.file != null ) {
+			this.file.delete();
+			this.file = null;
+		}
+
+	}
+
+	private java.nio.ByteBuffer duplicate () {
+		return this.data.duplicate().order(ByteOrder.nativeOrder());
+
+	}
+
+	private void checkType ( RasterMetadata.CellType expected ) throws IllegalStateException {
+		if ( this.type != expected ) {
+			throw new IllegalStateException("The binary raster holds " + this.type + " values, not " + expected + ".");
+		}
+
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+ * RasterMetadata.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Only the GRASS 6 header and range file layouts are read. The bounds of a reclass map are
+ *    taken from the header of the map it reclassifies.
+ */
+
+package grass;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the metadata of a GRASS raster map (bounds, resolution, cell type, and value
+ * range), read directly from the map's files in its mapset directory rather than by running r.info:
+ * the header (cellhd/[name]), the floating point data file (fcell/[name]) and format file, and the
+ * range file (cell_misc/[name]/range or f_range).
+ *
+ * Metadata is cached by header path. A cached entry is used for as long as the modification times
+ * of the header and range files are unchanged, so a lookup normally costs a few file status checks.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class RasterMetadata {
+	public enum CellType { CELL, FCELL, DCELL };
+
+	public final String name;			// Map name
+	public final String mapset;			// Mapset which holds the map
+	public final CellType type;			// Cell type
+	public final boolean reclass;		// Map is a reclass of another map
+	public final double north;
+	public final double south;
+	public final double east;
+	public final double west;
+	public final int rows;
+	public final int cols;
+	public final double ns_res;			// North-South resolution
+	public final double ew_res;			// East-West resolution
+	public final int format;			// Bytes per cell minus one for CELL maps; -1 for floating point maps
+	public final int compressed;		// Compression indicator from the header
+	public final double min;			// Minimum value; NaN if unknown or all cells are null
+	public final double max;			// Maximum value; NaN if unknown or all cells are null
+
+	private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry> ();
+
+	/**
+	 * Constructor.
+	 */
+	private RasterMetadata ( String name, String mapset, CellType type, boolean reclass, Header header,
+			double min, double max ) {
+		this.name = name;
+		this.mapset = mapset;
+		this.type = type;
+		this.reclass = reclass;
+		this.north = header.north;
+		this.south = header.south;
+		this.east = header.east;
+		this.west = header.west;
+		this.rows = header.rows;
+		this.cols = header.cols;
+		this.ns_res = header.ns_res;
+		this.ew_res = header.ew_res;
+		this.format = header.format;
+		this.compressed = header.compressed;
+		this.min = min;
+		this.max = max;
+
+	}
+
+	/**
+	 * Indicates if a raster map exists in a mapset (i.e., it has a header file).
+	 * @param mapset_dir The mapset directory.
+	 * @param name The map name, without a mapset qualifier.
+	 * @return true if the map exists.
+	 */
+	public static boolean exists ( File mapset_dir, String name ) {
+		return headerFile(mapset_dir, name).isFile();
+
+	}
+
+	/**
+	 * Provides the metadata of a raster map, from the cache if the map's files are unchanged.
+	 * @param mapset_dir The mapset directory.
+	 * @param name The map name, without a mapset qualifier.
+	 * @return the map metadata, or 'null' if the map does not exist.
+	 * @throws IOException if the map's header or range file cannot be read.
+	 */
+	public static RasterMetadata lookup ( File mapset_dir, String name ) throws IOException {
+		File header = headerFile(mapset_dir, name);
+		String key = header.getAbsolutePath();
+		long header_stamp = header.lastModified();
+		if ( header_stamp == 0 ) {
+			cache.remove(key);
+			return null;
+		}
+
+		File misc_dir = new File(new File(mapset_dir, "cell_misc"), name);
+		long range_stamp = Math.max(new File(misc_dir, "range").lastModified(),
+				new File(misc_dir, "f_range").lastModified());
+
+		Entry entry = cache.get(key);
+		if ( (entry != null) && (entry.header_stamp == header_stamp) && (entry.range_stamp == range_stamp) ) {
+			return entry.metadata;
+		}
+
+		RasterMetadata metadata = read(mapset_dir, name);
+		cache.put(key, new Entry(metadata, header_stamp, range_stamp));
+		return metadata;
+
+	}
+
+	/**
+	 * Reads the current region of a mapset (its WIND file, which has the layout of a raster header).
+	 * @param mapset_dir The mapset directory.
+	 * @return the region bounds and resolution, as the metadata of an integer map named 'WIND' with
+	 * an unknown range.
+	 * @throws IOException if the region file cannot be read.
+	 */
+	public static RasterMetadata readRegion ( File mapset_dir ) throws IOException {
+		Header header = new Header(new File(mapset_dir, "WIND"));
+		return new RasterMetadata("WIND", mapset_dir.getName(), CellType.CELL, false, header, Double.NaN, Double.NaN);
+
+	}
+
+	/**
+	 * Removes all cached metadata.
+	 */
+	public static void clearCache () {
+		cache.clear();
+
+	}
+
+	/**
+	 * Indicates if the map holds floating point values.
+	 * @return true for FCELL and DCELL maps.
+	 */
+	public boolean isFloatingPoint () {
+		return this.type != CellType.CELL;
+
+	}
+
+	/**
+	 * Indicates if the value range of the map is known.
+	 * @return true if the minimum and maximum values are known.
+	 */
+	public boolean hasRange () {
+		return !Double.isNaN(this.min);
+
+	}
+
+	/**
+	 * Reads the metadata of a raster map from its files.
+	 */
+	private static RasterMetadata read ( File mapset_dir, String name ) throws IOException {
+		File header_file = headerFile(mapset_dir, name);
+		Header header = new Header(header_file);
+		boolean reclass = false;
+
+		// The header of a reclass map names the map it reclassifies; its bounds are those of that map.
+		if ( header.reclass_name != null ) {
+			reclass = true;
+			File base_mapset = new File(mapset_dir.getParentFile(), header.reclass_mapset);
+			header = new Header(headerFile(base_mapset, header.reclass_name));
+		}
+
+		CellType type = CellType.CELL;
+		File misc_dir = new File(new File(mapset_dir, "cell_misc"), name);
+		if ( (header.format == -1) || new File(new File(mapset_dir, "fcell"), name).exists() ) {
+			type = CellType.FCELL;
+			File format_file = new File(misc_dir, "f_format");
+			if ( format_file.exists() ) {
+				BufferedReader in = new BufferedReader(new FileReader(format_file));
+				try {
+					String line = in.readLine();
+					while ( line != null ) {
+						if ( line.trim().startsWith("type:") && line.contains("double") ) {
+							type = CellType.DCELL;
+						}
+						line = in.readLine();
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+
+		double min = Double.NaN;
+		double max = Double.NaN;
+		if ( type == CellType.CELL ) {
+			// The range file holds the minimum and maximum on one line; it is empty if all cells are null.
+			File range_file = new File(misc_dir, "range");
+			if ( range_file.exists() ) {
+				BufferedReader in = new BufferedReader(new FileReader(range_file));
+				try {
+					String line = in.readLine();
+					if ( line != null ) {
+						String[] values = line.trim().split("\\s+");
+						if ( values.length >= 2 ) {
+							min = Double.parseDouble(values[0]);
+							max = Double.parseDouble(values[1]);
+						}
+					}
+				}
+				catch (NumberFormatException nfe) {
+					throw new IOException("Invalid range file, " + range_file.getAbsolutePath() + ".");
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		else {
+			// The floating point range file holds two big-endian (XDR) doubles; it is empty if all cells are null.
+			File range_file = new File(misc_dir, "f_range");
+			if ( range_file.length() >= 16 ) {
+				DataInputStream in = new DataInputStream(new FileInputStream(range_file));
+				try {
+					min = in.readDouble();
+					max = in.readDouble();
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+
+		return new RasterMetadata(name, mapset_dir.getName(), type, reclass, header, min, max);
+
+	}
+
+	/**
+	 * Provides the header file of a map.
+	 */
+	private static File headerFile ( File mapset_dir, String name ) {
+		return new File(new File(mapset_dir, "cellhd"), name);
+
+	}
+
+	/**
+	 * Parses a coordinate or resolution, which may be in degrees, minutes and seconds
+	 * (e.g., '45:30:15N') in latitude-longitude locations.
+	 */
+	private static double parseCoordinate ( String value ) throws NumberFormatException {
+		value = value.trim();
+		if ( value.indexOf(':') == -1 ) {
+			return Double.parseDouble(value);
+		}
+
+		double sign = 1;
+		char hemisphere = Character.toUpperCase(value.charAt(value.length() - 1));
+		if ( Character.isLetter(hemisphere) ) {
+			if ( (hemisphere == 'S') || (hemisphere == 'W') ) {
+				sign = -1;
+			}
+			value = value.substring(0, value.length() - 1);
+		}
+
+		String[] parts = value.split(":");
+		double degrees = 0;
+		double unit = 1;
+		for ( int p = 0; p < parts.length; p++ ) {
+			degrees += Double.parseDouble(parts[p]) / unit;
+			unit *= 60;
+		}
+
+		return sign * degrees;
+
+	}
+
+	/**
+	 * This class holds the values of a raster header (cellhd) file.
+	 */
+	private static class Header {
+		public double north, south, east, west, ns_res, ew_res;
+		public int rows, cols, format, compressed;
+		public String reclass_name = null;
+		public String reclass_mapset = null;
+
+		public Header ( File file ) throws IOException {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			boolean is_reclass = false;
+			try {
+				String line = in.readLine();
+				is_reclass = (line != null) && line.trim().equals("reclass");
+				while ( line != null ) {
+					int colon = line.indexOf(':');
+					if ( colon > 0 ) {
+						String key = line.substring(0, colon).trim();
+						String value = line.substring(colon + 1).trim();
+						if ( is_reclass ) {
+							if ( key.equals("name") ) this.reclass_name = value;
+							else if ( key.equals("mapset") ) this.reclass_mapset = value;
+						}
+						else if ( key.equals("north") ) this.north = parseCoordinate(value);
+						else if ( key.equals("south") ) this.south = parseCoordinate(value);
+						else if ( key.equals("east") ) this.east = parseCoordinate(value);
+						else if ( key.equals("west") ) this.west = parseCoordinate(value);
+						else if ( key.equals("rows") ) this.rows = Integer.parseInt(value);
+						else if ( key.equals("cols") ) this.cols = Integer.parseInt(value);
+						else if ( key.equals("n-s resol") ) this.ns_res = parseCoordinate(value);
+						else if ( key.equals("e-w resol") ) this.ew_res = parseCoordinate(value);
+						else if ( key.equals("format") ) this.format = Integer.parseInt(value);
+						else if ( key.equals("compressed") ) this.compressed = Integer.parseInt(value);
+					}
+					line = in.readLine();
+				}
+			}
+			catch (NumberFormatException nfe) {
+				throw new IOException("Invalid raster header, " + file.getAbsolutePath() + ": " + nfe.getMessage());
+			}
+			finally {
+				in.close();
+			}
+
+			if ( is_reclass && ((this.reclass_name == null) || (this.reclass_mapset == null)) ) {
+				throw new IOException("Invalid reclass header, " + file.getAbsolutePath() + ".");
+			}
+
+		}
+
+	}
+
+	/**
+	 * This class holds cached metadata along with the file modification times it was read at.
+	 */
+	private static class Entry {
+		public final RasterMetadata metadata;
+		public final long header_stamp;
+		public final long range_stamp;
+
+		public Entry ( RasterMetadata metadata, long header_stamp, long range_stamp ) {
+			this.metadata = metadata;
+			this.header_stamp = header_stamp;
+			this.range_stamp = range_stamp;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,579 @@
+/*
+ * RasterReader.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - Maps are read at their own bounds and resolution; the current region is not applied (no
+ *    resampling), unlike GRASS modules.
+ *  - Reclass maps and maps in the pre-3.0 compressed format are not supported.
+ *  - As in GRASS, if an integer (CELL) map has no null file, its zero cells are null.
+ */
+
+package grass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class reads the cell values of a GRASS raster map (CELL, FCELL, or DCELL) directly from the
+ * map's files in its mapset directory, which are memory mapped (FileChannel.map) rather than read
+ * through a GRASS module's text output. Rows may be uncompressed, run-length encoded, or zlib
+ * compressed, as written by GRASS 6; null cells are taken from the map's null bitmap.
+ *
+ * Integer null cells are returned as NULL_CELL (the GRASS CELL null value) and floating point null
+ * cells as NaN. A reader keeps the last row it decoded, so sampling cells along a row is cheap.
+ * A reader is not thread-safe; each thread should open its own reader.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class RasterReader {
+	public static final int NULL_CELL = Integer.MIN_VALUE;		// Integer null value, as in GRASS
+
+	private final RasterMetadata metadata;
+	private final int rows;
+	private final int cols;
+	private final boolean floating_point;
+	private final int cell_bytes;				// Bytes per cell for uncompressed rows (FP: 4 or 8)
+	private final boolean compressed;
+	private final boolean zlib;					// Integer rows are zlib (not run-length) compressed
+	private final boolean zero_is_null;			// Integer map without a null file
+	private RandomAccessFile data_file;
+	private RandomAccessFile null_file = null;
+	private MappedByteBuffer data;
+	private MappedByteBuffer nulls = null;
+	private long[] row_offsets = null;			// Start of each row (and end of the last row)
+	private final Inflater inflater = new Inflater();
+
+	private byte[] row_bytes;					// Decoded (uncompressed) bytes of the current row
+	private int row_cell_bytes;					// Bytes per cell of the current row
+	private int current_row = -1;				// Row held in row_bytes
+	private byte[] packed;						// Compressed bytes of a row
+
+	/**
+	 * Opens a raster map for reading.
+	 * @param mapset_dir The directory of the mapset which holds the map.
+	 * @param name The map name, without a mapset qualifier.
+	 * @throws IOException if the map does not exist, is not supported, or cannot be mapped.
+	 */
+	public RasterReader ( File mapset_dir, String name ) throws IOException {
+		this.metadata = RasterMetadata.lookup(mapset_dir, name);
+		if ( this.metadata == null ) {
+			throw new IOException("The raster map, " + name + ", does not exist in " + mapset_dir.getAbsolutePath() + ".");
+		}
+		if ( this.metadata.reclass ) {
+			throw new IOException("The raster map, " + name + ", is a reclass map, which cannot be read directly.");
+		}
+		if ( this.metadata.compressed < 0 ) {
+			throw new IOException("The raster map, " + name + ", uses the pre-3.0 compressed format.");
+		}
+
+		this.rows = this.metadata.rows;
+		this.cols = this.metadata.cols;
+		this.floating_point = this.metadata.isFloatingPoint();
+		this.compressed = this.metadata.compressed > 0;
+		this.zlib = this.metadata.compressed == 2;
+		if ( this.floating_point ) {
+			this.cell_bytes = (this.metadata.type == RasterMetadata.CellType.DCELL) ? 8 : 4;
+		}
+		else {
+			this.cell_bytes = this.metadata.format + 1;
+		}
+
+		File data_path = new File(new File(mapset_dir, this.floating_point ? "fcell" : "cell"), name);
+		File null_path = new File(new File(new File(mapset_dir, "cell_misc"), name), "null");
+		this.zero_is_null = !this.floating_point && !null_path.exists();
+
+		try {
+			this.data_file = new RandomAccessFile(data_path, "r");
+			this.data = map(this.data_file);
+			if ( null_path.exists() ) {
+				this.null_file = new RandomAccessFile(null_path, "r");
+				this.nulls = map(this.null_file);
+			}
+
+			if ( this.compressed ) {
+				readRowOffsets();
+			}
+		}
+		catch (IOException ioe) {
+			close();
+			throw new IOException("Unable to open the raster map, " + name + ": " + ioe.getMessage());
+		}
+
+		this.row_bytes = new byte[this.cols * Math.max(this.cell_bytes, 4)];
+
+	}
+
+	/**
+	 * Provides the metadata of the map (bounds, resolution, type, and range).
+	 * @return the map metadata.
+	 */
+	public RasterMetadata getMetadata () {
+		return this.metadata;
+
+	}
+
+	public int getRows () {
+		return this.rows;
+
+	}
+
+	public int getCols () {
+		return this.cols;
+
+	}
+
+	/**
+	 * Indicates if the map holds floating point values.
+	 * @return true for FCELL and DCELL maps.
+	 */
+	public boolean isFloatingPoint () {
+		return this.floating_point;
+
+	}
+
+	/**
+	 * Reads a row of an integer (CELL) map.
+	 * @param row The row number (0 is the northern row).
+	 * @param values An array of at least getCols() values to receive the row, or 'null' to allocate one.
+	 * @return the row values; null cells are NULL_CELL.
+	 * @throws IllegalStateException if the map holds floating point values.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public int[] readRow ( int row, int[] values ) throws IllegalStateException, IOException {
+		if ( this.floating_point ) {
+			throw new IllegalStateException("The raster map, " + this.metadata.name + ", holds floating point values.");
+		}
+		if ( values == null ) {
+			values = new int[this.cols];
+		}
+
+		decodeRow(row);
+		for ( int c = 0; c < this.cols; c++ ) {
+			values[c] = isNull(row, c) ? NULL_CELL : intValue(c);
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * Reads a row of a map of any type.
+	 * @param row The row number (0 is the northern row).
+	 * @param values An array of at least getCols() values to receive the row, or 'null' to allocate one.
+	 * @return the row values; null cells are NaN.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public double[] readRow ( int row, double[] values ) throws IOException {
+		if ( values == null ) {
+			values = new double[this.cols];
+		}
+
+		decodeRow(row);
+		for ( int c = 0; c < this.cols; c++ ) {
+			values[c] = isNull(row, c) ? Double.NaN : doubleValue(c);
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * Reads a row of a map of any type as single precision values.
+	 * @param row The row number (0 is the northern row).
+	 * @param values An array of at least getCols() values to receive the row, or 'null' to allocate one.
+	 * @return the row values; null cells are NaN.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public float[] readRow ( int row, float[] values ) throws IOException {
+		if ( values == null ) {
+			values = new float[this.cols];
+		}
+
+		decodeRow(row);
+		for ( int c = 0; c < this.cols; c++ ) {
+			values[c] = isNull(row, c) ? Float.NaN : (float) doubleValue(c);
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * Reads the null cells of a row.
+	 * @param row The row number (0 is the northern row).
+	 * @param flags An array of at least getCols() flags to receive the row, or 'null' to allocate one.
+	 * @return true for each null cell of the row.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public boolean[] readNullRow ( int row, boolean[] flags ) throws IOException {
+		if ( flags == null ) {
+			flags = new boolean[this.cols];
+		}
+
+		decodeRow(row);
+		for ( int c = 0; c < this.cols; c++ ) {
+			flags[c] = isNull(row, c);
+		}
+
+		return flags;
+
+	}
+
+	/**
+	 * Reads a rectangular block (tile) of cells of an integer (CELL) map. Cells outside the map are null.
+	 * @param first_row The northern row of the tile.
+	 * @param first_col The western column of the tile.
+	 * @param tile_rows The number of rows in the tile.
+	 * @param tile_cols The number of columns in the tile.
+	 * @return the tile values, by row (i.e., value [r * tile_cols + c]); null cells are NULL_CELL.
+	 * @throws IllegalStateException if the map holds floating point values.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public int[] readTile ( int first_row, int first_col, int tile_rows, int tile_cols )
+	throws IllegalStateException, IOException {
+		if ( this.floating_point ) {
+			throw new IllegalStateException("The raster map, " + this.metadata.name + ", holds floating point values.");
+		}
+
+		int[] tile = new int[tile_rows * tile_cols];
+		for ( int r = 0; r < tile_rows; r++ ) {
+			int row = first_row + r;
+			boolean row_inside = (row >= 0) && (row < this.rows);
+			if ( row_inside ) {
+				decodeRow(row);
+			}
+			for ( int c = 0; c < tile_cols; c++ ) {
+				int col = first_col + c;
+				boolean inside = row_inside && (col >= 0) && (col < this.cols);
+				tile[r * tile_cols + c] = (!inside || isNull(row, col)) ? NULL_CELL : intValue(col);
+			}
+		}
+
+		return tile;
+
+	}
+
+	/**
+	 * Reads a rectangular block (tile) of cells of a map of any type. Cells outside the map are null.
+	 * @param first_row The northern row of the tile.
+	 * @param first_col The western column of the tile.
+	 * @param tile_rows The number of rows in the tile.
+	 * @param tile_cols The number of columns in the tile.
+	 * @param tile An array of at least tile_rows * tile_cols values to receive the tile, or 'null' to
+	 * allocate one.
+	 * @return the tile values, by row (i.e., value [r * tile_cols + c]); null cells are NaN.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public double[] readTile ( int first_row, int first_col, int tile_rows, int tile_cols, double[] tile )
+	throws IOException {
+		if ( tile == null ) {
+			tile = new double[tile_rows * tile_cols];
+		}
+
+		for ( int r = 0; r < tile_rows; r++ ) {
+			int row = first_row + r;
+			boolean row_inside = (row >= 0) && (row < this.rows);
+			if ( row_inside ) {
+				decodeRow(row);
+			}
+			for ( int c = 0; c < tile_cols; c++ ) {
+				int col = first_col + c;
+				boolean inside = row_inside && (col >= 0) && (col < this.cols);
+				tile[r * tile_cols + c] = (!inside || isNull(row, col)) ? Double.NaN : doubleValue(col);
+			}
+		}
+
+		return tile;
+
+	}
+
+	/**
+	 * Reads the value of one cell.
+	 * @param row The row number (0 is the northern row).
+	 * @param col The column number (0 is the western column).
+	 * @return the cell value; NaN if the cell is null or outside the map.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public double getValue ( int row, int col ) throws IOException {
+		if ( (row < 0) || (row >= this.rows) || (col < 0) || (col >= this.cols) ) {
+			return Double.NaN;
+		}
+
+		decodeRow(row);
+		return isNull(row, col) ? Double.NaN : doubleValue(col);
+
+	}
+
+	/**
+	 * Reads the value of the cell which holds a location.
+	 * @param east The easting of the location.
+	 * @param north The northing of the location.
+	 * @return the cell value; NaN if the cell is null or the location is outside the map.
+	 * @throws IOException if the row data is not valid.
+	 */
+	public double sample ( double east, double north ) throws IOException {
+		int row = (int) Math.floor((this.metadata.north - north) / this.metadata.ns_res);
+		int col = (int) Math.floor((east - this.metadata.west) / this.metadata.ew_res);
+		return getValue(row, col);
+
+	}
+
+	/**
+	 * Closes the map files. The mapped data is released when the reader is no longer referenced.
+	 */
+	public void close () {
+		try {
+			if ( this.data_file != null ) {
+				this.data_file.close();
+			}
+			if ( this.null_file != null ) {
+				this.null_file.close();
+			}
+		}
+		catch (IOException ioe) {
+			// Closing a read-only file. Ignore.
+		}
+		this.data_file = null;
+		this.null_file = null;
+		this.inflater.end();
+
+	}
+
+	/**
+	 * Maps a whole file, read-only.
+	 */
+	private static MappedByteBuffer map ( RandomAccessFile file ) throws IOException {
+		FileChannel channel = file.getChannel();
+		if ( channel.size() > Integer.MAX_VALUE ) {
+			throw new IOException("Files larger than 2 GB cannot be mapped.");
+		}
+
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		return buffer;
+
+	}
+
+	/**
+	 * Reads the row pointer table at the start of a compressed data file: a byte giving the size of
+	 * each pointer, followed by rows + 1 big-endian pointers.
+	 */
+	private void readRowOffsets () throws IOException {
+		int pointer_bytes = this.data.get(0) & 0xFF;
+		if ( (pointer_bytes == 0) || (pointer_bytes > 8) || (1 + (long) pointer_bytes * (this.rows + 1) > this.data.capacity()) ) {
+			throw new IOException("Invalid row pointer table.");
+		}
+
+		this.row_offsets = new long[this.rows + 1];
+		int position = 1;
+		int largest = 0;
+		for ( int r = 0; r <= this.rows; r++ ) {
+			long offset = 0;
+			for ( int b = 0; b < pointer_bytes; b++ ) {
+				offset = (offset << 8) | (this.data.get(position++) & 0xFF);
+			}
+			this.row_offsets[r] = offset;
+			if ( (r > 0) && ((offset < this.row_offsets[r - 1]) || (offset > this.data.capacity())) ) {
+				throw new IOException("Invalid row pointer table.");
+			}
+			if ( r > 0 ) {
+				largest = Math.max(largest, (int) (offset - this.row_offsets[r - 1]));
+			}
+		}
+
+		this.packed = new byte[largest];
+
+	}
+
+	/**
+	 * Decodes a row into row_bytes, unless it is already held.
+	 */
+	private void decodeRow ( int row ) throws IOException {
+		if ( (row < 0) || (row >= this.rows) ) {
+			throw new IndexOutOfBoundsException("Row " + row + " is outside the map (" + this.rows + " rows).");
+		}
+		if ( row == this.current_row ) {
+			return;
+		}
+		this.current_row = -1;
+
+		int row_size = this.cols * this.cell_bytes;
+		if ( !this.compressed ) {
+			this.data.position((int) ((long) row * row_size));
+			this.data.get(this.row_bytes, 0, row_size);
+			this.row_cell_bytes = this.cell_bytes;
+		}
+		else {
+			int start = (int) this.row_offsets[row];
+			int length = (int) (this.row_offsets[row + 1] - start);
+			this.data.position(start);
+			this.data.get(this.packed, 0, length);
+
+			if ( this.floating_point ) {
+				// The first byte indicates if the row is zlib compressed ('1') or not ('0').
+				this.row_cell_bytes = this.cell_bytes;
+				if ( (length > 0) && (this.packed[0] == '1') ) {
+					inflate(1, length - 1, row_size);
+				}
+				else if ( length - 1 >= row_size ) {
+					System.arraycopy(this.packed, 1, this.row_bytes, 0, row_size);
+				}
+				else {
+					throw new IOException("Invalid data in row " + row + ".");
+				}
+			}
+			else {
+				// The first byte is the number of bytes per cell in this row. The row is compressed
+				// only if it is shorter than the uncompressed row.
+				int n = (length > 0) ? (this.packed[0] & 0xFF) : 0;
+				this.row_cell_bytes = n;
+				int size = this.cols * n;
+				if ( n == 0 ) {
+					java.util.Arrays.fill(this.row_bytes, 0, this.cols, (byte) 0);
+				}
+				else if ( length - 1 >= size ) {
+					System.arraycopy(this.packed, 1, this.row_bytes, 0, size);
+				}
+				else if ( this.zlib ) {
+					inflate(1, length - 1, size);
+				}
+				else {
+					expandRuns(1, length - 1, n, size);
+				}
+			}
+		}
+
+		this.current_row = row;
+
+	}
+
+	/**
+	 * Expands zlib compressed row data into row_bytes.
+	 */
+	private void inflate ( int offset, int length, int size ) throws IOException {
+		this.inflater.reset();
+		this.inflater.setInput(this.packed, offset, length);
+		try {
+			int count = 0;
+			while ( (count < size) && !this.inflater.finished() ) {
+				int inflated = this.inflater.inflate(this.row_bytes, count, size - count);
+				if ( (inflated == 0) && (this.inflater.needsInput() || this.inflater.needsDictionary()) ) {
+					break;
+				}
+				count += inflated;
+			}
+			if ( count != size ) {
+				throw new IOException("Compressed row holds " + count + " of " + size + " bytes.");
+			}
+		}
+		catch (DataFormatException dfe) {
+			throw new IOException("Invalid compressed row: " + dfe.getMessage());
+		}
+
+	}
+
+	/**
+	 * Expands run-length encoded row data (pairs of a repeat count byte and an n-byte value) into
+	 * row_bytes.
+	 */
+	private void expandRuns ( int offset, int length, int n, int size ) throws IOException {
+		int count = 0;
+		int end = offset + length - n;
+		for ( int p = offset; p <= end; p += n + 1 ) {
+			int repeat = this.packed[p] & 0xFF;
+			if ( count + (repeat * n) > size ) {
+				throw new IOException("Run-length encoded row is longer than the map.");
+			}
+			for ( int r = 0; r < repeat; r++ ) {
+				System.arraycopy(this.packed, p + 1, this.row_bytes, count, n);
+				count += n;
+			}
+		}
+
+		if ( count != size ) {
+			throw new IOException("Run-length encoded row holds " + count + " of " + size + " bytes.");
+		}
+
+	}
+
+	/**
+	 * Indicates if a cell of the current row is null.
+	 */
+	private boolean isNull ( int row, int col ) {
+		if ( this.nulls != null ) {
+			int row_bytes = (this.cols + 7) / 8;
+			int index = row * row_bytes + (col >> 3);
+			return (index < this.nulls.capacity()) && ((this.nulls.get(index) & (0x80 >> (col & 7))) != 0);
+		}
+
+		if ( this.zero_is_null ) {
+			return intValue(col) == 0;
+		}
+
+		return this.floating_point && Double.isNaN(doubleValue(col));
+
+	}
+
+	/**
+	 * Provides the integer value of a cell of the current row. Values of four or more bytes are
+	 * stored with a sign bit (sign and magnitude), as GRASS does.
+	 */
+	private int intValue ( int col ) {
+		int n = this.row_cell_bytes;
+		if ( n == 0 ) {
+			return 0;
+		}
+
+		int p = col * n;
+		int first = this.row_bytes[p] & 0xFF;
+		boolean negative = (n >= 4) && ((first & 0x80) != 0);
+		int value = negative ? (first & 0x7F) : first;
+		for ( int b = 1; b < n; b++ ) {
+			value = (value << 8) | (this.row_bytes[p + b] & 0xFF);
+		}
+
+		return negative ? -value : value;
+
+	}
+
+	/**
+	 * Provides the value of a cell of the current row as a double.
+	 */
+	private double doubleValue ( int col ) {
+		if ( !this.floating_point ) {
+			return intValue(col);
+		}
+
+		int p = col * this.cell_bytes;
+		if ( this.cell_bytes == 4 ) {
+			int bits = ((this.row_bytes[p] & 0xFF) << 24) | ((this.row_bytes[p + 1] & 0xFF) << 16) |
+					((this.row_bytes[p + 2] & 0xFF) << 8) | (this.row_bytes[p + 3] & 0xFF);
+			return Float.intBitsToFloat(bits);
+		}
+
+		long bits = 0;
+		for ( int b = 0; b < 8; b++ ) {
+			bits = (bits << 8) | (this.row_bytes[p + b] & 0xFF);
+		}
+		return Double.longBitsToDouble(bits);
+
+	}
+
+}
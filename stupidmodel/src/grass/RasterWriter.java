@@ -0,0 +1,667 @@
+/*
+ * RasterWriter.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - No color table or history file is written; GRASS modules use their defaults (r.info reports
+ *    the history as missing).
+ *  - Integer rows are run-length encoded (header 'compressed: 1') rather than zlib compressed, since
+ *    GRASS 6.3 cannot read zlib compressed integer maps.
+ */
+
+package grass;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes a GRASS raster map (CELL, FCELL, or DCELL) directly into a mapset directory, row
+ * by row from primitive arrays, without going through an ASCII file and r.in.ascii. It writes the
+ * files GRASS 6 writes: the header (cellhd), the compressed rows, the null bitmap, the range file,
+ * and, for floating point maps, the format and quantization files.
+ *
+ * Rows are written north to south. Integer null cells are given as RasterReader.NULL_CELL and floating
+ * point null cells as NaN. The data files are written under temporary names and the header is written
+ * last, when the writer is closed, so an incomplete map is never seen by GRASS modules or readers.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class RasterWriter {
+	private static final int POINTER_BYTES = 8;		// Size of each row pointer (as GRASS, with 64-bit offsets)
+
+	private final File mapset_dir;
+	private final String name;
+	private final RasterMetadata.CellType type;
+	private final double north, south, east, west;
+	private final int rows;
+	private final int cols;
+	private final boolean floating_point;
+	private final int cell_bytes;				// Bytes per floating point cell (4 or 8)
+	private final File data_temp;
+	private final File null_temp;
+	private RandomAccessFile data_file;
+	private OutputStream data_out;
+	private OutputStream null_out;
+	private long[] row_offsets;
+	private long position;						// Current position in the data file
+	private int row = 0;						// Next row to write
+	private boolean closed = false;
+	private MapRegistry registry = null;		// Registry to record the map in when it is closed
+	private String step = null;
+
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private byte[] raw;							// Uncompressed bytes of a row
+	private byte[] packed;						// Compressed bytes of a row
+	private final byte[] null_bits;				// Null bitmap of a row
+	private final Deflater deflater = new Deflater();
+
+	/**
+	 * Constructor. Creates a map whose bounds and resolution are given.
+	 * @param mapset_dir The directory of the mapset in which to write the map (normally the current
+	 * mapset; see GrassFacade.createRaster()).
+	 * @param name The map name. An existing map with this name is replaced when the writer is closed.
+	 * @param type The cell type of the map.
+	 * @param north The northern edge of the map.
+	 * @param south The southern edge of the map.
+	 * @param east The eastern edge of the map.
+	 * @param west The western edge of the map.
+	 * @param rows The number of rows.
+	 * @param cols The number of columns.
+	 * @throws IOException if the map files cannot be created.
+	 */
+	public RasterWriter ( File mapset_dir, String name, RasterMetadata.CellType type, double north, double south,
+			double east, double west, int rows, int cols ) throws IOException {
+		if ( (rows <= 0) || (cols <= 0) || (north <= south) || (east <= west) ) {
+			throw new IllegalArgumentException("Invalid bounds for the raster map, " + name + ".");
+		}
+
+		this.mapset_dir = mapset_dir;
+		this.name = name;
+		this.type = type;
+		this.north = north;
+		this.south = south;
+		this.east = east;
+		this.west = west;
+		this.rows = rows;
+		this.cols = cols;
+		this.floating_point = type != RasterMetadata.CellType.CELL;
+		this.cell_bytes = (type == RasterMetadata.CellType.DCELL) ? 8 : 4;
+		this.raw = new byte[cols * this.cell_bytes];
+		this.packed = new byte[cols * (this.cell_bytes + 1) + 64];
+		this.null_bits = new byte[(cols + 7) / 8];
+
+		File data_dir = new File(mapset_dir, this.floating_point ? "fcell" : "cell");
+		File misc_dir = new File(mapset_dir, "cell_misc");
+		data_dir.mkdirs();
+		misc_dir.mkdirs();
+		this.data_temp = new File(data_dir, "." + name + ".tmp");
+		this.null_temp = new File(misc_dir, "." + name + ".null.tmp");
+
+		try {
+			this.data_file = new RandomAccessFile(this.data_temp, "rw");
+			this.data_file.setLength(0);
+			this.data_out = new BufferedOutputStream(new FileOutputStream(this.data_file.getFD()), 1 << 16);
+			this.null_out = new BufferedOutputStream(new FileOutputStream(this.null_temp), 1 << 16);
+
+			// Space for the row pointer table, which is written when the writer is closed.
+			this.row_offsets = new long[rows + 1];
+			this.position = 1 + (long) POINTER_BYTES * (rows + 1);
+			this.data_out.write(new byte[(int) this.position]);
+		}
+		catch (IOException ioe) {
+			discard();
+			throw new IOException("Unable to create the raster map, " + name + ": " + ioe.getMessage());
+		}
+
+	}
+
+	/**
+	 * Constructor. Creates a map with the same bounds and resolution as another map.
+	 * @param mapset_dir The directory of the mapset in which to write the map.
+	 * @param name The map name. An existing map with this name is replaced when the writer is closed.
+	 * @param type The cell type of the map.
+	 * @param bounds The metadata of the map whose bounds and resolution are used.
+	 * @throws IOException if the map files cannot be created.
+	 */
+	public RasterWriter ( File mapset_dir, String name, RasterMetadata.CellType type, RasterMetadata bounds )
+	throws IOException {
+		this(mapset_dir, name, type, bounds.north, bounds.south, bounds.east, bounds.west, bounds.rows, bounds.cols);
+
+	}
+
+	/**
+	 * Sets the registry in which the map is recorded when the writer is closed.
+	 * @param registry The map registry of the facade whose mapset holds the map.
+	 * @param step The facade method (or model step) which makes the map.
+	 */
+	void setRegistry ( MapRegistry registry, String step ) {
+		this.registry = registry;
+		this.step = step;
+
+	}
+
+	public String getName () {
+		return this.name;
+
+	}
+
+	public int getRows () {
+		return this.rows;
+
+	}
+
+	public int getCols () {
+		return this.cols;
+
+	}
+
+	/**
+	 * Writes the next row of an integer (CELL) map.
+	 * @param values The row values; null cells are RasterReader.NULL_CELL.
+	 * @throws IllegalStateException if the map holds floating point values, or all rows have been written.
+	 * @throws IOException if the row cannot be written.
+	 */
+	public void writeRow ( int[] values ) throws IllegalStateException, IOException {
+		if ( this.floating_point ) {
+			throw new IllegalStateException("The raster map, " + this.name + ", holds floating point values.");
+		}
+		checkRow(values.length);
+
+		// Values are written with four bytes (sign and magnitude, as GRASS does), and the leading bytes
+		// which are zero for every cell in the row are then dropped.
+		Arrays.fill(this.null_bits, (byte) 0);
+		int all_bits = 0;
+		for ( int c = 0; c < this.cols; c++ ) {
+			int v = values[c];
+			if ( v == RasterReader.NULL_CELL ) {
+				this.null_bits[c >> 3] |= (byte) (0x80 >> (c & 7));
+				v = 0;
+			}
+			else {
+				updateRange(v);
+			}
+			int magnitude = Math.abs(v);
+			int p = c * 4;
+			this.raw[p] = (byte) ((magnitude >>> 24) | ((v < 0) ? 0x80 : 0));
+			this.raw[p + 1] = (byte) (magnitude >>> 16);
+			this.raw[p + 2] = (byte) (magnitude >>> 8);
+			this.raw[p + 3] = (byte) magnitude;
+			all_bits |= this.raw[p] << 24 | (this.raw[p + 1] & 0xFF) << 16 | (this.raw[p + 2] & 0xFF) << 8;
+		}
+
+		int n = 4;
+		while ( (n > 1) && (((all_bits >>> (8 * (n - 1))) & 0xFF) == 0) ) {
+			n--;
+		}
+		if ( n < 4 ) {
+			for ( int c = 0; c < this.cols; c++ ) {
+				System.arraycopy(this.raw, c * 4 + (4 - n), this.raw, c * n, n);
+			}
+		}
+
+		// The first byte of the row is the number of bytes per cell. The row is run-length encoded
+		// (pairs of a repeat count and a value) if that makes it shorter.
+		int size = this.cols * n;
+		this.packed[0] = (byte) n;
+		int length = encodeRuns(n, size);
+		if ( length < size ) {
+			writeData(this.packed, 1 + length);
+		}
+		else {
+			System.arraycopy(this.raw, 0, this.packed, 1, size);
+			writeData(this.packed, 1 + size);
+		}
+
+	}
+
+	/**
+	 * Writes the next row of a floating point (FCELL or DCELL) map.
+	 * @param values The row values; null cells are NaN.
+	 * @throws IllegalStateException if the map holds integer values, or all rows have been written.
+	 * @throws IOException if the row cannot be written.
+	 */
+	public void writeRow ( double[] values ) throws IllegalStateException, IOException {
+		checkFloatingPoint();
+		checkRow(values.length);
+
+		Arrays.fill(this.null_bits, (byte) 0);
+		for ( int c = 0; c < this.cols; c++ ) {
+			double v = values[c];
+			if ( Double.isNaN(v) ) {
+				this.null_bits[c >> 3] |= (byte) (0x80 >> (c & 7));
+			}
+			else {
+				updateRange((this.cell_bytes == 4) ? (float) v : v);
+			}
+			putFloatingPoint(c, v);
+		}
+
+		writeFloatingPointRow();
+
+	}
+
+	/**
+	 * Writes the next row of a floating point (FCELL or DCELL) map.
+	 * @param values The row values; null cells are NaN.
+	 * @throws IllegalStateException if the map holds integer values, or all rows have been written.
+	 * @throws IOException if the row cannot be written.
+	 */
+	public void writeRow ( float[] values ) throws IllegalStateException, IOException {
+		checkFloatingPoint();
+		checkRow(values.length);
+
+		Arrays.fill(this.null_bits, (byte) 0);
+		for ( int c = 0; c < this.cols; c++ ) {
+			float v = values[c];
+			if ( Float.isNaN(v) ) {
+				this.null_bits[c >> 3] |= (byte) (0x80 >> (c & 7));
+			}
+			else {
+				updateRange(v);
+			}
+			putFloatingPoint(c, v);
+		}
+
+		writeFloatingPointRow();
+
+	}
+
+	/**
+	 * Writes all of the rows of an integer (CELL) map.
+	 * @param values The map values by row (i.e., value [r * cols + c]); null cells are RasterReader.NULL_CELL.
+	 * @throws IllegalStateException if the map holds floating point values, or rows have already been written.
+	 * @throws IOException if the rows cannot be written.
+	 */
+	public void writeAll ( int[] values ) throws IllegalStateException, IOException {
+		checkAll(values.length);
+		int[] row_values = new int[this.cols];
+		for ( int r = 0; r < this.rows; r++ ) {
+			System.arraycopy(values, r * this.cols, row_values, 0, this.cols);
+			writeRow(row_values);
+		}
+
+	}
+
+	/**
+	 * Writes all of the rows of a floating point (FCELL or DCELL) map.
+	 * @param values The map values by row (i.e., value [r * cols + c]); null cells are NaN.
+	 * @throws IllegalStateException if the map holds integer values, or rows have already been written.
+	 * @throws IOException if the rows cannot be written.
+	 */
+	public void writeAll ( double[] values ) throws IllegalStateException, IOException {
+		checkAll(values.length);
+		double[] row_values = new double[this.cols];
+		for ( int r = 0; r < this.rows; r++ ) {
+			System.arraycopy(values, r * this.cols, row_values, 0, this.cols);
+			writeRow(row_values);
+		}
+
+	}
+
+	/**
+	 * Completes the map: the row pointers, null file, range, and header are written and the data files
+	 * are given their final names, replacing any existing map with the same name.
+	 * @throws IllegalStateException if not all rows have been written (the map is discarded).
+	 * @throws IOException if the map cannot be completed (the map is discarded).
+	 */
+	public void close () throws IllegalStateException, IOException {
+		if ( this.closed ) {
+			return;
+		}
+		if ( this.row < this.rows ) {
+			discard();
+			throw new IllegalStateException("Only " + this.row + " of " + this.rows + " rows of the raster map, " +
+					this.name + ", were written.");
+		}
+
+		try {
+			this.data_out.flush();
+			this.row_offsets[this.rows] = this.position;
+			byte[] table = new byte[1 + POINTER_BYTES * (this.rows + 1)];
+			table[0] = POINTER_BYTES;
+			int p = 1;
+			for ( int r = 0; r <= this.rows; r++ ) {
+				for ( int b = POINTER_BYTES - 1; b >= 0; b-- ) {
+					table[p++] = (byte) (this.row_offsets[r] >>> (8 * b));
+				}
+			}
+			this.data_file.seek(0);
+			this.data_file.write(table);
+			this.data_out.close();
+			this.null_out.close();
+			this.closed = true;
+
+			removeMap();
+			File data_dir = new File(this.mapset_dir, this.floating_point ? "fcell" : "cell");
+			File misc_dir = new File(new File(this.mapset_dir, "cell_misc"), this.name);
+			misc_dir.mkdirs();
+			rename(this.data_temp, new File(data_dir, this.name));
+			rename(this.null_temp, new File(misc_dir, "null"));
+
+			if ( this.floating_point ) {
+				// GRASS keeps an empty integer data file for floating point maps.
+				File cell_dir = new File(this.mapset_dir, "cell");
+				cell_dir.mkdirs();
+				new FileOutputStream(new File(cell_dir, this.name)).close();
+				writeText(new File(misc_dir, "f_format"), "type: " + ((this.type == RasterMetadata.CellType.DCELL) ? "double" : "float") +
+						"\nbyte_order: xdr\n");
+				writeText(new File(misc_dir, "f_quant"), "round\n");
+				DataOutputStream range_out = new DataOutputStream(new FileOutputStream(new File(misc_dir, "f_range")));
+				try {
+					if ( !Double.isNaN(this.min) ) {
+						range_out.writeDouble(this.min);
+						range_out.writeDouble(this.max);
+					}
+				}
+				finally {
+					range_out.close();
+				}
+			}
+			else {
+				writeText(new File(misc_dir, "range"), Double.isNaN(this.min) ? "" : ((long) this.min + " " + (long) this.max + "\n"));
+			}
+
+			File cats_dir = new File(this.mapset_dir, "cats");
+			cats_dir.mkdirs();
+			writeText(new File(cats_dir, this.name), "# " + (Double.isNaN(this.max) ? 0 : Math.max(0, (long) this.max)) +
+					" categories\n" + this.name + "\n\n0.00 0.00 0.00 0.00\n");
+
+			// The header is written last; the map exists once it has been written.
+			File header_dir = new File(this.mapset_dir, "cellhd");
+			header_dir.mkdirs();
+			writeText(new File(header_dir, this.name), header());
+		}
+		catch (IOException ioe) {
+			discard();
+			throw new IOException("Unable to complete the raster map, " + this.name + ": " + ioe.getMessage());
+		}
+		finally {
+			this.deflater.end();
+		}
+
+		if ( this.registry != null ) {
+			this.registry.register(this.name, this.step);
+		}
+
+	}
+
+	/**
+	 * Abandons the map: the temporary files are deleted and any existing map with the same name is
+	 * left unchanged.
+	 */
+	public void discard () {
+		this.closed = true;
+		try {
+			if ( this.data_out != null ) {
+				this.data_out.close();
+			}
+			else if ( this.data_file != null ) {
+				this.data_file.close();
+			}
+			if ( this.null_out != null ) {
+				this.null_out.close();
+			}
+		}
+		catch (IOException ioe) {
+			// The files are being deleted. Ignore.
+		}
+		this.data_temp.delete();
+		this.null_temp.delete();
+		this.deflater.end();
+
+	}
+
+	private void checkRow ( int length ) throws IllegalStateException {
+		if ( this.closed || (this.row >= this.rows) ) {
+			throw new IllegalStateException("All rows of the raster map, " + this.name + ", have been written.");
+		}
+		if ( length < this.cols ) {
+			throw new IllegalArgumentException("A row of the raster map, " + this.name + ", has " + this.cols + " cells.");
+		}
+
+	}
+
+	private void checkAll ( int length ) throws IllegalStateException {
+		if ( this.row > 0 ) {
+			throw new IllegalStateException("Rows of the raster map, " + this.name + ", have already been written.");
+		}
+		if ( length < this.rows * this.cols ) {
+			throw new IllegalArgumentException("The raster map, " + this.name + ", has " + (this.rows * this.cols) + " cells.");
+		}
+
+	}
+
+	private void checkFloatingPoint () throws IllegalStateException {
+		if ( !this.floating_point ) {
+			throw new IllegalStateException("The raster map, " + this.name + ", holds integer values.");
+		}
+
+	}
+
+	private void updateRange ( double v ) {
+		if ( Double.isNaN(this.min) || (v < this.min) ) {
+			this.min = v;
+		}
+		if ( Double.isNaN(this.max) || (v > this.max) ) {
+			this.max = v;
+		}
+
+	}
+
+	/**
+	 * Puts a floating point value (big-endian, XDR) into the row bytes. Null cells are all one bits,
+	 * as GRASS writes them.
+	 */
+	private void putFloatingPoint ( int col, double v ) {
+		int p = col * this.cell_bytes;
+		if ( this.cell_bytes == 4 ) {
+			int bits = Double.isNaN(v) ? 0xFFFFFFFF : Float.floatToRawIntBits((float) v);
+			for ( int b = 3; b >= 0; b-- ) {
+				this.raw[p++] = (byte) (bits >>> (8 * b));
+			}
+		}
+		else {
+			long bits = Double.isNaN(v) ? 0xFFFFFFFFFFFFFFFFL : Double.doubleToRawLongBits(v);
+			for ( int b = 7; b >= 0; b-- ) {
+				this.raw[p++] = (byte) (bits >>> (8 * b));
+			}
+		}
+
+	}
+
+	/**
+	 * Writes a floating point row: a flag byte, '1' for a zlib compressed row or '0' if compression
+	 * would not make the row shorter, followed by the row bytes.
+	 */
+	private void writeFloatingPointRow () throws IOException {
+		int size = this.cols * this.cell_bytes;
+		this.deflater.reset();
+		this.deflater.setInput(this.raw, 0, size);
+		this.deflater.finish();
+		int length = 0;
+		while ( !this.deflater.finished() && (length < size) ) {
+			length += this.deflater.deflate(this.packed, 1 + length, this.packed.length - 1 - length);
+		}
+
+		if ( this.deflater.finished() && (length < size) ) {
+			this.packed[0] = '1';
+			writeData(this.packed, 1 + length);
+		}
+		else {
+			this.packed[0] = '0';
+			System.arraycopy(this.raw, 0, this.packed, 1, size);
+			writeData(this.packed, 1 + size);
+		}
+
+	}
+
+	/**
+	 * Run-length encodes the row bytes (n bytes per cell) into packed, after the first byte.
+	 * @return the encoded length, or size if encoding would not make the row shorter.
+	 */
+	private int encodeRuns ( int n, int size ) {
+		int length = 0;
+		int c = 0;
+		while ( c < this.cols ) {
+			int repeat = 1;
+			while ( (c + repeat < this.cols) && (repeat < 255) && sameValue(c, c + repeat, n) ) {
+				repeat++;
+			}
+			if ( length + n + 1 >= size ) {
+				return size;
+			}
+			this.packed[1 + length] = (byte) repeat;
+			System.arraycopy(this.raw, c * n, this.packed, 2 + length, n);
+			length += n + 1;
+			c += repeat;
+		}
+
+		return length;
+
+	}
+
+	private boolean sameValue ( int a, int b, int n ) {
+		int pa = a * n;
+		int pb = b * n;
+		for ( int i = 0; i < n; i++ ) {
+			if ( this.raw[pa + i] != this.raw[pb + i] ) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Writes a row of data and its null bitmap.
+	 */
+	private void writeData ( byte[] bytes, int length ) throws IOException {
+		this.row_offsets[this.row] = this.position;
+		this.data_out.write(bytes, 0, length);
+		this.position += length;
+		this.null_out.write(this.null_bits);
+		this.row++;
+
+	}
+
+	/**
+	 * Deletes the files of any existing map with this name, so no stale support files (e.g., color
+	 * table or a data file of another cell type) are left.
+	 */
+	private void removeMap () {
+		String[] elements = { "cellhd", "cell", "fcell", "cats", "colr", "hist" };
+		for ( int e = 0; e < elements.length; e++ ) {
+			new File(new File(this.mapset_dir, elements[e]), this.name).delete();
+		}
+
+		File misc_dir = new File(new File(this.mapset_dir, "cell_misc"), this.name);
+		File[] files = misc_dir.listFiles();
+		if ( files != null ) {
+			for ( int f = 0; f < files.length; f++ ) {
+				files[f].delete();
+			}
+		}
+
+	}
+
+	/**
+	 * Provides the header (cellhd) text. The projection and zone are those of the mapset's region.
+	 */
+	private String header () {
+		String proj = "99";
+		String zone = "0";
+		File wind = new File(this.mapset_dir, "WIND");
+		if ( !wind.exists() ) {
+			wind = new File(new File(this.mapset_dir.getParentFile(), "PERMANENT"), "DEFAULT_WIND");
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(wind));
+			try {
+				String line = in.readLine();
+				while ( line != null ) {
+					int colon = line.indexOf(':');
+					if ( colon > 0 ) {
+						String key = line.substring(0, colon).trim();
+						if ( key.equals("proj") ) proj = line.substring(colon + 1).trim();
+						else if ( key.equals("zone") ) zone = line.substring(colon + 1).trim();
+					}
+					line = in.readLine();
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ioe) {
+			// Use an unreferenced projection (XY).
+		}
+
+		StringBuilder text = new StringBuilder();
+		text.append("proj:       ").append(proj).append('\n');
+		text.append("zone:       ").append(zone).append('\n');
+		text.append("north:      ").append(plain(this.north)).append('\n');
+		text.append("south:      ").append(plain(this.south)).append('\n');
+		text.append("east:       ").append(plain(this.east)).append('\n');
+		text.append("west:       ").append(plain(this.west)).append('\n');
+		text.append("cols:       ").append(this.cols).append('\n');
+		text.append("rows:       ").append(this.rows).append('\n');
+		text.append("e-w resol:  ").append(plain((this.east - this.west) / this.cols)).append('\n');
+		text.append("n-s resol:  ").append(plain((this.north - this.south) / this.rows)).append('\n');
+		text.append("format:     ").append(this.floating_point ? -1 : 3).append('\n');
+		text.append("compressed: 1\n");
+
+		return text.toString();
+
+	}
+
+	/**
+	 * Formats a coordinate or resolution without an exponent.
+	 */
+	private static String plain ( double value ) {
+		return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+
+	}
+
+	private static void rename ( File from, File to ) throws IOException {
+		to.delete();
+		if ( !from.renameTo(to) ) {
+			throw new IOException("Unable to rename " + from.getAbsolutePath() + " to " + to.getAbsolutePath() + ".");
+		}
+
+	}
+
+	private static void writeText ( File file, String text ) throws IOException {
+		FileWriter out = new FileWriter(file);
+		try {
+			out.write(text);
+		}
+		finally {
+			out.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,243 @@
+/*
+ * SparseCostSurface.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ *  - A span covers every cell between the first and last reached cells of its row, so a row which
+ *    the search reaches in several separate stretches also holds the unreached cells between them.
+ */
+
+package grass;
+
+import java.util.Arrays;
+
+/**
+ * This class holds a bounded cost surface (see CostDistance.computeSparse()): only the cells a search
+ * reached, as one span of columns per row. The rows run from the first to the last reached row, and
+ * each span from the first to the last reached cell of its row, so the memory (and, when written, the
+ * disk) used scales with the area within the cost limit rather than with the region. Unreached cells
+ * within a span are NaN.
+ *
+ * Rows and columns are those of the region of the search. The surface does not change once made.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class SparseCostSurface {
+	private final RasterMetadata region;	// Bounds and resolution of the search
+	private final int first_row;			// Region row of the first span
+	private final int[] span_starts;		// Region column of the first cell of each span
+	private final int[] offsets;			// Index in 'costs' of each span, and of the end of the last
+	private final double[] costs;			// Costs of the spans, one after another
+	private final int first_col;			// Region column of the first cell of the widest extent
+	private final int last_col;				// Region column of the last cell of the widest extent
+	private final int reached;				// Number of cells with a cost
+
+	/**
+	 * Constructor. Gathers the reached cells of a search.
+	 * @param region The region of the search.
+	 * @param region_costs The cost of each cell of the region by row; NaN if the cell is not reached.
+	 * @param cells The indices of the reached cells, in any order.
+	 * @param count The number of reached cells.
+	 */
+	SparseCostSurface ( RasterMetadata region, double[] region_costs, int[] cells, int count ) {
+		this.region = region;
+		int cols = region.cols;
+		int min_row = Integer.MAX_VALUE;
+		int max_row = -1;
+		for ( int i = 0; i < count; i++ ) {
+			int row = cells[i] / cols;
+			min_row = Math.min(min_row, row);
+			max_row = Math.max(max_row, row);
+		}
+
+		int rows = Math.max(max_row - min_row + 1, 0);
+		int[] span_ends = new int[rows];
+		this.first_row = (rows > 0) ? min_row : 0;
+		this.span_starts = new int[rows];
+		Arrays.fill(this.span_starts, Integer.MAX_VALUE);
+		Arrays.fill(span_ends, -1);
+		for ( int i = 0; i < count; i++ ) {
+			int row = cells[i] / cols;
+			int col = cells[i] - row * cols;
+			int r = row - min_row;
+			this.span_starts[r] = Math.min(this.span_starts[r], col);
+			span_ends[r] = Math.max(span_ends[r], col);
+		}
+
+		this.offsets = new int[rows + 1];
+		int min_col = Integer.MAX_VALUE;
+		int max_col = -1;
+		for ( int r = 0; r < rows; r++ ) {
+			if ( span_ends[r] < 0 ) {
+				// Not possible for a connected search, but kept valid as an empty span.
+				this.span_starts[r] = 0;
+			}
+			else {
+				min_col = Math.min(min_col, this.span_starts[r]);
+				max_col = Math.max(max_col, span_ends[r]);
+			}
+			this.offsets[r + 1] = this.offsets[r] + (span_ends[r] - this.span_starts[r] + 1);
+		}
+		this.first_col = (rows > 0) ? min_col : 0;
+		this.last_col = (rows > 0) ? max_col : -1;
+
+		this.costs = new double[this.offsets[rows]];
+		for ( int r = 0; r < rows; r++ ) {
+			int length = this.offsets[r + 1] - this.offsets[r];
+			System.arraycopy(region_costs, (this.first_row + r) * cols + this.span_starts[r], this.costs, this.offsets[r], length);
+		}
+		this.reached = count;
+
+	}
+
+	/**
+	 * Provides the bounds and resolution of the search (not of the spans).
+	 * @return the region.
+	 */
+	public RasterMetadata getRegion () {
+		return this.region;
+
+	}
+
+	/**
+	 * Determines whether the search reached any cell.
+	 * @return true if no cell was reached.
+	 */
+	public boolean isEmpty () {
+		return this.reached == 0;
+
+	}
+
+	public int getReachedCount () {
+		return this.reached;
+
+	}
+
+	/**
+	 * Provides the number of cells held, reached or not.
+	 * @return the total length of the spans.
+	 */
+	public int getStoredCount () {
+		return this.costs.length;
+
+	}
+
+	/**
+	 * Provides the region row of the first span.
+	 * @return the first row; 0 if the surface is empty.
+	 */
+	public int getFirstRow () {
+		return this.first_row;
+
+	}
+
+	/**
+	 * Provides the number of rows (spans), from the first to the last reached row.
+	 * @return the number of rows.
+	 */
+	public int getRowCount () {
+		return this.span_starts.length;
+
+	}
+
+	/**
+	 * Provides the region column of the westernmost reached cell.
+	 * @return the first column; 0 if the surface is empty.
+	 */
+	public int getFirstCol () {
+		return this.first_col;
+
+	}
+
+	/**
+	 * Provides the number of columns from the westernmost to the easternmost reached cell.
+	 * @return the number of columns.
+	 */
+	public int getColCount () {
+		return this.last_col - this.first_col + 1;
+
+	}
+
+	/**
+	 * Provides the cost of a cell.
+	 * @param row The region row of the cell.
+	 * @param col The region column of the cell.
+	 * @return the cost; NaN if the cell was not reached.
+	 */
+	public double getCost ( int row, int col ) {
+		int offset = offsetOf(row, col);
+
+		return (offset < 0) ? Double.NaN : this.costs[offset];
+
+	}
+
+	/**
+	 * Provides the cost of a cell.
+	 * @param cell The index of the cell in the region (row * cols + col).
+	 * @return the cost; NaN if the cell was not reached.
+	 */
+	public double getCost ( int cell ) {
+		int row = cell / this.region.cols;
+
+		return getCost(row, cell - row * this.region.cols);
+
+	}
+
+	/**
+	 * Provides the position of a cell among the stored cells, e.g., to mark the cells of a search over
+	 * the surface in an array of getStoredCount() elements.
+	 * @param row The region row of the cell.
+	 * @param col The region column of the cell.
+	 * @return the position, or -1 if the cell is outside the spans.
+	 */
+	int offsetOf ( int row, int col ) {
+		int r = row - this.first_row;
+		if ( (r < 0) || (r >= this.span_starts.length) ) {
+			return -1;
+		}
+		int c = col - this.span_starts[r];
+		int offset = this.offsets[r] + c;
+		if ( (c < 0) || (offset >= this.offsets[r + 1]) ) {
+			return -1;
+		}
+
+		return offset;
+
+	}
+
+	/**
+	 * Provides the cost of a stored cell.
+	 * @param offset The position of the cell (see offsetOf()).
+	 * @return the cost; NaN if the cell was not reached.
+	 */
+	double costAt ( int offset ) {
+		return this.costs[offset];
+
+	}
+
+	/**
+	 * Copies one row of the bounding tile (getFirstCol() to the easternmost reached column).
+	 * @param r The row of the tile (0 for the first span).
+	 * @param values The array to fill, at least getColCount() long; cells not reached are NaN.
+	 */
+	public void getTileRow ( int r, double[] values ) {
+		int width = getColCount();
+		Arrays.fill(values, 0, width, Double.NaN);
+		int length = this.offsets[r + 1] - this.offsets[r];
+		if ( length > 0 ) {
+			System.arraycopy(this.costs, this.offsets[r], values, this.span_starts[r] - this.first_col, length);
+		}
+
+	}
+
+}
@@ -9,17 +9,31 @@ package stupidmodel;
 
 import fileMgmt.CopyFile;
 import fileMgmt.CreateFile;
+import fileMgmt.ExternalExec;
+import fileMgmt.ProcessAccounting;
+import grass.CostDistance;
+import grass.GrassBatch;
 import grass.GrassFacade;
+import grass.GrassSession;
+import grass.MapRegistry;
+import grass.MapcalcBatch;
+import grass.MapsetStaging;
+import grass.SparseCostSurface;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import stupidmodel.agents.Household;
 import stupidmodel.agents.Village;
@@ -30,6 +44,7 @@ import repast.simphony.context.space.grid.GridFactoryFinder;
 import repast.simphony.dataLoader.ContextBuilder;
 import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.engine.environment.RunState;
+import repast.simphony.engine.schedule.ScheduleParameters;
 import repast.simphony.engine.schedule.ScheduledMethod;
 import repast.simphony.parameter.IllegalParameterException;
 import repast.simphony.parameter.Parameters;
@@ -82,9 +97,16 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 	public InfoLog ilog = null;
 
 	private GrassFacade grass = null;
+	private MapsetStaging staging = null;		// Set if the working mapset is kept in memory
+	private String year_mapset = null;			// Sub-mapset of the current period, if SubMapsetYears is set
 	String mapset;
 	String mapsetpath;
 	private double REGION_AGENT_RES = 10.0;
+	// Walking cost model of the village cost surfaces (r.walk coefficients, friction weight, and slope factor)
+	private static final String WALK_COEFFICIENT = "0.72,6.0,1.9998,-1.9998";
+	private static final double WALK_LAMBDA = 0;
+	private static final double WALK_SLOPE_FACTOR = -0.2125;
+	private CostDistance cost_engine = null;	// Makes the village cost surfaces if JavaCostSurface is set
 	public int HH_ID_COUNTER = 0;
 	private Date startDate;
 	private Date yearStart;
@@ -94,6 +116,7 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 	private Date landRequestEndTime;
 	
 	BufferedWriter performanceFile;
+	File processStatsFile = new File("process_stats.csv");
 	
 
 	@Override
@@ -153,78 +176,150 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 
 		boolean run_quiet = true;
 		String lastoutput;
-		int vCount = this.mp.VData.size();	
+		final int vCount = this.mp.VData.size();	
 		char[] gregionflags = {'a'};
+		final int village_clearing_landcover_value = 40; // Landcover value that will represent a village
+		
+		// The site, cost surface, and catchment maps of each village do not depend on the other villages.
+		// They are made concurrently, each worker in its own GRASS session (mapset and region), and then
+		// copied to the model mapset in village order.
+		final String[] village_mapset = new String[vCount];		// Mapset holding the village's maps; null if not made
+		final StringBuilder[] village_log = new StringBuilder[vCount];
+		final AtomicInteger next_village = new AtomicInteger(0);
+		final List<GrassSession> sessions = Collections.synchronizedList(new ArrayList<GrassSession>());
+		int workers = Math.min(this.mp.GrassWorkers, vCount);
+		
+		// The cost surfaces (and allocation maps) may be made in the JVM; the elevation and friction maps are
+		// then read once, on the region of the village maps, and shared by the workers. r.walk is used if
+		// they cannot be read.
+		if ( this.mp.JavaCostSurface || (this.mp.CostAllocationRanks > 0) ) {
+			try {
+				char[] rwalkflags = {'k'};
+				this.grass.gRegion(CurrentMapLoc(TypeMaps.ELEVATION), null, gregionflags, REGION_AGENT_RES, REGION_AGENT_RES, run_quiet);
+				this.cost_engine = this.grass.openCostDistance(rwalkflags, CurrentMapLoc(TypeMaps.ELEVATION), CurrentMapLoc(TypeMaps.FRICTION),
+						WALK_COEFFICIENT, WALK_LAMBDA, WALK_SLOPE_FACTOR);
+			}
+			catch (Exception e) {
+				System.out.println("The cost surfaces will be made with r.walk: " + e.getMessage());
+			}
+		}
 		
-		for (int i = 0; i < vCount; ++i) {
-			VillageData villageData = (VillageData) this.mp.VData.get(i);
-			String vlg_id = "village_" + i + "_";	
-			String site_map = CurrentMap(vlg_id, TypeMaps.SITE);
-			String data_fname = site_map + ".dat";
-			String villageNumber = Integer.toString(i);
-			String vector_site_location2 = cm.Year()+vlg_id+"site2@"+mapset;
-			// create data file
-			CreateFile sitedata = new CreateFile(mapsetpath, data_fname, true);
-			String ew = Float.toString(villageData.getEW());
-			String ns = Float.toString(villageData.getNS());
-			String cost_map = CurrentMap(vlg_id, TypeMaps.COSTSFC);;
-			try{
-				
-				lastoutput = this.grass.gRegion(CurrentMapLoc(TypeMaps.ELEVATION), null, gregionflags, REGION_AGENT_RES, REGION_AGENT_RES, run_quiet);
-				
-				String loc = ew + "|" + ns;
-				sitedata.addLine(villageNumber + "|" + loc);
-				sitedata.addNewLine();
-				sitedata.writeFile();
+		if ( workers > 1 ) {
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			for (int w = 0; w < workers; ++w) {
+				final String session_name = "village_w" + w;
+				pool.execute(new Runnable() {
+					public void run() {
+						GrassSession session = null;
+						try {
+							session = GrassSession.open(session_name);
+							sessions.add(session);
+						}
+						catch (Exception e) {
+							System.out.println("An error occurred while opening a GRASS session for village initialization"+	e.getMessage());
+							return;
+						}
+						
+						for (int i = next_village.getAndIncrement(); i < vCount; i = next_village.getAndIncrement()) {
+							village_log[i] = new StringBuilder();
+							if (InitializeVillageSite(session.getGrass(), session.getMapset(), i, village_clearing_landcover_value, village_log[i])) {
+								village_mapset[i] = session.getMapset();
+							}
+						}
+					}
+				});
+			}
+			
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException ie) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
 		
-				// create vector map from data file
-				String[] parameters = {"format=point", "cat=1", "x=2", "y=3"};
-
-				lastoutput = this.grass.vInASCII(sitedata.getPathName(), site_map, parameters, run_quiet);
-				System.out.println(lastoutput);
+		// Villages not taken by a worker (e.g., no session could be opened) are made in the model mapset.
+		for (int i = next_village.getAndIncrement(); i < vCount; i = next_village.getAndIncrement()) {
+			village_log[i] = new StringBuilder();
+			if (InitializeVillageSite(this.grass, mapset, i, village_clearing_landcover_value, village_log[i])) {
+				village_mapset[i] = mapset;
+			}
+		}
 		
-				//convert vector point to raster and then back again, used to make sure that the village catchment matches the other grids
-				String raster_village = "village_temp_locR"+ villageNumber;
-				String use = "cat";
-				String type = "point";
-				lastoutput = this.grass.vToRast(cm.Year()+vlg_id+"site@"+mapset, raster_village, use, type, null, null, run_quiet);
-				System.out.println(lastoutput);
-					
-				boolean overwrite = true;
-				char[] flags = {'v'};
-				String feature = "point";
-				lastoutput = this.grass.rToVect(raster_village, flags, feature, vector_site_location2, run_quiet, overwrite);
-				System.out.println(lastoutput);
-				
-				// create cost surface map
-				char[] rwalkflags = {'k'};
-				double max_cost = 0;
-				int percent_memory = 0;
-				int num_segments = 4;
-				String walk_coefficient = "0.72,6.0,1.9998,-1.9998";
-				double lambda = 0;
-				double slope_factor = -0.2125; //site_map_loc
-				lastoutput = this.grass.rWalk(rwalkflags, CurrentMapLoc(TypeMaps.ELEVATION), CurrentMapLoc(TypeMaps.FRICTION), cost_map, vector_site_location2 , max_cost, percent_memory, num_segments, walk_coefficient, lambda, slope_factor, run_quiet);
-				System.out.println(lastoutput);			
+		// The cost surfaces of all villages are made; the arrays their searches reused are not needed again.
+		if ( this.cost_engine != null ) {
+			this.cost_engine.releaseBuffers();
+		}
+		
+		// Copy the maps made in worker sessions to the model mapset, in village order.
+		GrassBatch batch = this.grass.beginBatch();
+		try {
+			for (int i = 0; i < vCount; ++i) {
+				if (village_log[i] != null) {
+					System.out.print(village_log[i]);
+				}
+				if ( (village_mapset[i] == null) || village_mapset[i].equals(mapset) ) {
+					continue;
+				}
 				
-				// create/update village location based upon site and population			
-				char[] rcatchflags = null;
-				double a = 0.72;
-				double b = 6;
-				double c = 1.9998;
-				double d = -1.9998;
-				double density = 0.0159;	 // people per sq.m
-				int population = mp.init_hh_pop * villageData.getHHCount();
-				int area = (int) Math.round(population/density);
-				int village_clearing_landcover_value = 40; // Landcover value that will represent a village
-				final String village_catchment_map = cm.Year() + vlg_id + "catchment";
-				final String village_catchment_map_loc = village_catchment_map + "@" + mapset;	
-			    lastoutput = this.grass.rCatchmentPy(rcatchflags, CurrentMapLoc(vlg_id, TypeMaps.COSTSFC), CurrentMapLoc(TypeMaps.ELEVATION), vector_site_location2, a, b, c, d, lambda, slope_factor, village_catchment_map, area, village_clearing_landcover_value);	
-				System.out.println(lastoutput);
-								
-				lastoutput = this.grass.rMapcalc(CurrentMap(vlg_id, TypeMaps.CLEARING) + "='if(isnull(\"" + village_catchment_map_loc + "\"), null(), " + village_clearing_landcover_value + ")'");
-				System.out.println(lastoutput);
-
+				String vlg_id = "village_" + i + "_";
+				String[] vector_maps = {CurrentMap(vlg_id, TypeMaps.SITE), cm.Year()+vlg_id+"site2"};
+				String[] raster_maps = {CurrentMap(vlg_id, TypeMaps.COSTSFC), cm.Year() + vlg_id + "catchment"};
+				for (String vector_map : vector_maps) {
+					this.grass.gCopyVect(vector_map + "@" + village_mapset[i], vector_map, run_quiet);
+				}
+				for (String raster_map : raster_maps) {
+					this.grass.gCopyRast(raster_map + "@" + village_mapset[i], raster_map, run_quiet);
+				}
+			}
+			
+			for (ExternalExec.OpResult result : batch.commit()) {
+				System.out.print(result.output);
+			}
+		}
+		catch (Exception e)
+		{
+			batch.discard();
+			System.out.println("An error occurred while copying the village maps to the model mapset"+	e.getMessage());
+		}
+		
+		for (GrassSession session : sessions) {
+			try {
+				session.close(true);
+			}
+			catch (IOException e) {
+				System.out.println("An error occurred while closing a village GRASS session"+	e.getMessage());
+			}
+		}
+		
+		// The clearing maps of all villages are created by one r.mapcalc run (or in the JVM) once every
+		// catchment exists.
+		MapcalcBatch clearings = this.grass.deferMapcalc(this.mp.JavaMapcalc);
+		try{
+			for (int i = 0; i < vCount; ++i) {
+				if ( village_mapset[i] != null ) {
+					String vlg_id = "village_" + i + "_";
+					final String village_catchment_map_loc = cm.Year() + vlg_id + "catchment" + "@" + mapset;
+					clearings.add(CurrentMap(vlg_id, TypeMaps.CLEARING) + "='if(isnull(\"" + village_catchment_map_loc + "\"), null(), " + village_clearing_landcover_value + ")'");
+				}
+			}
+			lastoutput = clearings.flush();
+			System.out.println(lastoutput);
+		}
+		catch (Exception e)
+		{
+			System.out.println("An error occurred while creating the village clearing maps"+	e.getMessage());
+		}
+		
+		for (int i = 0; i < vCount; ++i) {
+			if ( village_mapset[i] == null ) {
+				continue;
+			}
+			
+			String vlg_id = "village_" + i + "_";	
+			try{
 				final String temp_landcover_map = cm.Year() + vlg_id + "temp_" + TypeMaps.LANDCOVER.toString();
 				lastoutput = this.grass.rVillagesPy(CurrentMapLoc(TypeMaps.LANDCOVER), CurrentMapLoc(vlg_id, TypeMaps.CLEARING), village_clearing_landcover_value, temp_landcover_map);
 				System.out.println(lastoutput);
@@ -240,6 +335,131 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 			}
 		}
 		
+		// The cost from the nearest villages and the number of the nearest village are mapped for all
+		// villages in one pass, so reading them does not grow with the number of villages.
+		if ( (this.mp.CostAllocationRanks > 0) && (this.cost_engine != null) ) {
+			double[] east = new double[vCount];
+			double[] north = new double[vCount];
+			for (int i = 0; i < vCount; ++i) {
+				VillageData villageData = (VillageData) this.mp.VData.get(i);
+				east[i] = villageData.getEW();
+				north[i] = villageData.getNS();
+			}
+			try{
+				lastoutput = this.grass.costAllocation(this.cost_engine, east, north, CurrentMap(TypeMaps.NEAREST_COST), CurrentMap(TypeMaps.NEAREST_VILLAGE),
+						this.mp.CostAllocationRanks, Math.max(mp.maxfarmcost, mp.maxgrazecost));
+				System.out.println(lastoutput);
+			}
+			catch (Exception e)
+			{
+				System.out.println("An error occurred while making the village cost allocation maps"+	e.getMessage());
+			}
+		}
+		
+	}
+	
+	/**
+	 * Makes the site, cost surface, and catchment maps of one village in the specified GRASS session.
+	 * Input maps are read from the model mapset; the village's maps are written to the session mapset.
+	 * @param grass The GRASS object of the session.
+	 * @param work_mapset The mapset of the session.
+	 * @param i The village index.
+	 * @param village_clearing_landcover_value Landcover value that will represent a village.
+	 * @param log Receives the output of the GRASS operations (and any error message).
+	 * @return true if all of the maps were made.
+	 */
+	private boolean InitializeVillageSite(GrassFacade grass, String work_mapset, int i, int village_clearing_landcover_value, StringBuilder log){
+
+		boolean run_quiet = true;
+		String lastoutput;
+		char[] gregionflags = {'a'};
+		
+		VillageData villageData = (VillageData) this.mp.VData.get(i);
+		String vlg_id = "village_" + i + "_";	
+		String site_map = CurrentMap(vlg_id, TypeMaps.SITE);
+		String villageNumber = Integer.toString(i);
+		String vector_site_location2 = cm.Year()+vlg_id+"site2@"+work_mapset;
+		String ew = Float.toString(villageData.getEW());
+		String ns = Float.toString(villageData.getNS());
+		String cost_map = CurrentMap(vlg_id, TypeMaps.COSTSFC);;
+		try{
+			
+			lastoutput = grass.gRegion(CurrentMapLoc(TypeMaps.ELEVATION), null, gregionflags, REGION_AGENT_RES, REGION_AGENT_RES, run_quiet);
+			
+			String loc = ew + "|" + ns;
+	
+			// create vector map from the site data, streamed to v.in.ascii
+			String[] parameters = {"format=point", "cat=1", "x=2", "y=3"};
+
+			lastoutput = grass.vInASCII(new StringReader(villageNumber + "|" + loc + "\n"), site_map, parameters, run_quiet);
+			log.append(lastoutput).append('\n');
+	
+			//convert vector point to raster and then back again, used to make sure that the village catchment matches the other grids
+			String raster_village = "village_temp_locR"+ villageNumber;
+			String use = "cat";
+			String type = "point";
+			lastoutput = grass.vToRast(site_map+"@"+work_mapset, raster_village, use, type, null, null, run_quiet);
+			log.append(lastoutput).append('\n');
+				
+			boolean overwrite = true;
+			char[] flags = {'v'};
+			String feature = "point";
+			lastoutput = grass.rToVect(raster_village, flags, feature, vector_site_location2, run_quiet, overwrite);
+			log.append(lastoutput).append('\n');
+			
+			// create cost surface map
+			char[] rwalkflags = {'k'};
+			double max_cost = 0;
+			int percent_memory = 0;
+			int num_segments = 4;
+			String walk_coefficient = WALK_COEFFICIENT;
+			double lambda = WALK_LAMBDA;
+			double slope_factor = WALK_SLOPE_FACTOR; //site_map_loc
+			SparseCostSurface cost_surface = null;		// Cost surface made in the JVM, kept for the catchment
+			if ( this.mp.JavaCostSurface && (this.cost_engine != null) ) {
+				// Cells beyond the farming and grazing costs are never used, so the search stops there and
+				// the map holds only the tile of cells within reach.
+				max_cost = Math.max(mp.maxfarmcost, mp.maxgrazecost);
+				int start = this.cost_engine.cellIndex(villageData.getEW(), villageData.getNS());
+				if ( start < 0 ) {
+					throw new IllegalArgumentException("The village is outside the region.");
+				}
+				cost_surface = this.cost_engine.computeSparse(new int[] { start }, max_cost);
+				lastoutput = grass.writeCostSurface(cost_surface, cost_map);
+			}
+			else {
+				lastoutput = grass.rWalk(rwalkflags, CurrentMapLoc(TypeMaps.ELEVATION), CurrentMapLoc(TypeMaps.FRICTION), cost_map, vector_site_location2 , max_cost, percent_memory, num_segments, walk_coefficient, lambda, slope_factor, run_quiet);
+			}
+			log.append(lastoutput).append('\n');
+			
+			// create/update village location based upon site and population			
+			char[] rcatchflags = null;
+			double a = 0.72;
+			double b = 6;
+			double c = 1.9998;
+			double d = -1.9998;
+			double density = 0.0159;	 // people per sq.m
+			int population = mp.init_hh_pop * villageData.getHHCount();
+			int area = (int) Math.round(population/density);
+			final String village_catchment_map = cm.Year() + vlg_id + "catchment";
+			if ( cost_surface != null ) {
+				// The catchment is grown over the cost surface in memory rather than by r.catchment.py.
+				lastoutput = grass.growCatchment(this.cost_engine, cost_surface, villageData.getEW(), villageData.getNS(), area, village_clearing_landcover_value, village_catchment_map);
+			}
+			else {
+				lastoutput = grass.rCatchmentPy(rcatchflags, cost_map + "@" + work_mapset, CurrentMapLoc(TypeMaps.ELEVATION), vector_site_location2, a, b, c, d, lambda, slope_factor, village_catchment_map, area, village_clearing_landcover_value);
+			}
+			log.append(lastoutput).append('\n');
+			
+			return true;
+
+		}
+		catch (Exception e)
+		{
+			log.append("An error occurred while initializing the village on the landscape"+	e.getMessage()).append('\n');
+			return false;
+		}
+		
 	}
 	
 	
@@ -263,6 +483,39 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		this.grass.setExecutablePath(new File(this.mp.GrassPath + "bin" + File.separator));
 		this.grass.setScriptsPath(new File(this.mp.APSIMPath + "Scripts" + File.separator));
 		this.grass.setPythonPath(new File (this.mp.PythonPath));	
+		
+		// Temporary maps of each year are deleted by name at the end of the year (see RunLandscapeEvol).
+		MapRegistry maps = this.grass.getMapRegistry();
+		maps.keep_maps = this.mp.KeepRasterMaps;
+		maps.setYear(cm.Year());
+		maps.addTemporaryPattern("*V*");
+		maps.addTemporaryPattern("*temp_landcover*");
+		maps.addTemporaryPattern("*Returns_map*");
+		maps.addTemporaryPattern("*woodgathering*");
+		
+		// The working mapset may be kept in memory. The landscape state maps of each year (all maps if
+		// KeepRasterMaps is set), the logs, and the stats files are written back to the mapset on disk.
+		if ( this.mp.StageMapset ) {
+			try {
+				this.staging = this.grass.stageMapset();
+				if ( this.mp.KeepRasterMaps ) {
+					this.staging.retainMaps("*");
+				}
+				else {
+					this.staging.retainMaps("*" + TypeMaps.ELEVATION.toString());
+					this.staging.retainMaps("*" + TypeMaps.LANDCOVER.toString());
+					this.staging.retainMaps("*" + TypeMaps.FERTILITY.toString());
+					this.staging.retainMaps("*" + TypeMaps.SOILDEPTH.toString());
+				}
+				this.staging.retainFiles("APSimLogs");
+				this.staging.retainFiles("parameters.csv");
+				this.staging.retainFiles("stats*");
+				this.staging.retainFiles("fertility*");
+			}
+			catch (IOException e) {
+				System.out.println("The mapset could not be staged in memory: " + e.getMessage());
+			}
+		}
 
 		this.mapsetpath = this.mp.GISDBASE + this.mp.location + File.separator + this.mapset + File.separator;
 		//source, destination
@@ -287,48 +540,68 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		
 			lastresult = this.grass.gRegion(TypeMaps.ELEVATION.toString() + "@PERMANENT", null, run_quiet);
 			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.gCopyRast(this.mp.DEM + PermanentMapset, CurrentMap(TypeMaps.ELEVATION), run_quiet);
-			ilog.LogInfoLine(lastresult);
-
-			if ( TypeMaps.SOILS_KFACTOR != null ){
-				lastresult = this.grass.gCopyRast(this.mp.soilK_map + PermanentMapset, CurrentMap(TypeMaps.SOILS_KFACTOR), run_quiet);
+			
+			// With a template mapset, the initial maps made by an earlier run from the same inputs are
+			// linked into this run's mapset rather than made again. A template made from other inputs
+			// is replaced once the maps have been made.
+			String template_fingerprint = (this.mp.TemplateMapset == null) ? null : TemplateFingerprint();
+			if ( (template_fingerprint != null) && this.grass.cloneMapset(this.mp.TemplateMapset, template_fingerprint) ) {
+				ilog.LogInfoLine("Initial landscape maps cloned from the template mapset, " + this.mp.TemplateMapset + ".");
+				ilog.LogInfoLine("~	Returning from InitializeLandscapeModel()");
+				System.out.println();
+				return;
 			}
+			
+			// The base map copies and derived maps are independent of the model state; run them
+			// as one GRASS batch (one process) and log the output of each call once it completes.
+			GrassBatch batch = this.grass.beginBatch();
+			MapcalcBatch mapcalc = this.grass.deferMapcalc();
+			try {
+				this.grass.gCopyRast(this.mp.DEM + PermanentMapset, CurrentMap(TypeMaps.ELEVATION), run_quiet);
+
+				if ( TypeMaps.SOILS_KFACTOR != null ){
+					this.grass.gCopyRast(this.mp.soilK_map + PermanentMapset, CurrentMap(TypeMaps.SOILS_KFACTOR), run_quiet);
+				}
 
-			ilog.LogInfoLine(lastresult);
-
-			lastresult = this.grass.gCopyRast(this.mp.friction_map + PermanentMapset, CurrentMap(TypeMaps.FRICTION), run_quiet);
-
-			ilog.LogInfoLine(lastresult);
-
-			lastresult = this.grass.gCopyRast(this.mp.fertility_map + PermanentMapset, CurrentMap(TypeMaps.FERTILITY), run_quiet);
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.gCopyRast(this.mp.land_cover + PermanentMapset, "temp_" + CurrentMap(TypeMaps.LANDCOVER), run_quiet);
-			ilog.LogInfoLine(lastresult);
+				this.grass.gCopyRast(this.mp.friction_map + PermanentMapset, CurrentMap(TypeMaps.FRICTION), run_quiet);
+				this.grass.gCopyRast(this.mp.fertility_map + PermanentMapset, CurrentMap(TypeMaps.FERTILITY), run_quiet);
+				this.grass.gCopyRast(this.mp.land_cover + PermanentMapset, "temp_" + CurrentMap(TypeMaps.LANDCOVER), run_quiet);
 			
-			if(this.mp.bedrock_map != null){
-				ilog.LogInfoLine("Creating soil map from existing bedrock map");
-				lastresult = this.grass.gCopyRast(this.mp.bedrock_map + PermanentMapset, CurrentMap(TypeMaps.BEDROCK), run_quiet);
-				ilog.LogInfoLine(lastresult);	
-				lastresult = this.grass.rMapcalc(CurrentMap(TypeMaps.SOILDEPTH) + "="+CurrentMap(TypeMaps.ELEVATION)+ "-"+ CurrentMap(TypeMaps.BEDROCK));
+				if(this.mp.bedrock_map != null){
+					ilog.LogInfoLine("Creating soil map from existing bedrock map");
+					this.grass.gCopyRast(this.mp.bedrock_map + PermanentMapset, CurrentMap(TypeMaps.BEDROCK), run_quiet);
+					mapcalc.add(CurrentMap(TypeMaps.SOILDEPTH) + "="+CurrentMap(TypeMaps.ELEVATION)+ "-"+ CurrentMap(TypeMaps.BEDROCK));
+				}
+				else{
+					ilog.LogInfoLine("Creating soil map with normal procedure");
+					this.grass.rSoilDepthPy(CurrentMap(TypeMaps.ELEVATION), CurrentMap(TypeMaps.BEDROCK), CurrentMap(TypeMaps.SOILDEPTH), this.mp.soil_depth_min, this.mp.soil_depth_max);
+				}
+			
+				this.grass.rSlopeAspect(CurrentMap(TypeMaps.ELEVATION), CurrentMap(TypeMaps.SLOPE), run_quiet);
+				this.grass.rReclass(this.mp.landcover_reclass_rules, "temp_" +CurrentMap(TypeMaps.LANDCOVER), "temp_" +CurrentMap(TypeMaps.LANDCOVER)+ "_reclass", null, true);
+				// The soil depth (if from a bedrock map) and landcover maps are created by one r.mapcalc.
+				mapcalc.add(CurrentMap(TypeMaps.LANDCOVER) + "=temp_" + CurrentMap(TypeMaps.LANDCOVER) + "_reclass");
+				mapcalc.flush();
+				this.grass.gRemoveRast("temp_" + CurrentMap(TypeMaps.LANDCOVER) + "_reclass,temp_" + CurrentMap(TypeMaps.LANDCOVER), run_quiet);
+				this.grass.rColors(CurrentMap(TypeMaps.LANDCOVER), flags, GrassFacade.ColorSource.RULES_FILE, this.mp.landcover_color_rules, run_quiet);
+				this.grass.rColors(CurrentMap(TypeMaps.FERTILITY), flags, GrassFacade.ColorSource.RULES_FILE, this.mp.fertility_color_rules, run_quiet);
 			}
-			else{
-				ilog.LogInfoLine("Creating soil map with normal procedure");
-				lastresult = this.grass.rSoilDepthPy(CurrentMap(TypeMaps.ELEVATION), CurrentMap(TypeMaps.BEDROCK), CurrentMap(TypeMaps.SOILDEPTH), this.mp.soil_depth_min, this.mp.soil_depth_max);
-				ilog.LogInfoLine(lastresult);
+			catch (IOException e) {
+				batch.discard();
+				throw e;
+			}
+			catch (RuntimeException e) {
+				batch.discard();
+				throw e;
 			}
 			
-			lastresult = this.grass.rSlopeAspect(CurrentMap(TypeMaps.ELEVATION), CurrentMap(TypeMaps.SLOPE), run_quiet);
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.rReclass(this.mp.landcover_reclass_rules, "temp_" +CurrentMap(TypeMaps.LANDCOVER), "temp_" +CurrentMap(TypeMaps.LANDCOVER)+ "_reclass", null, true);
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.rMapcalc(CurrentMap(TypeMaps.LANDCOVER) + "=temp_" + CurrentMap(TypeMaps.LANDCOVER) + "_reclass");
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.gRemoveRast("temp_" + CurrentMap(TypeMaps.LANDCOVER) + "_reclass,temp_" + CurrentMap(TypeMaps.LANDCOVER), run_quiet);
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.rColors(CurrentMap(TypeMaps.LANDCOVER), flags, GrassFacade.ColorSource.RULES_FILE, this.mp.landcover_color_rules, run_quiet);
-			ilog.LogInfoLine(lastresult);
-			lastresult = this.grass.rColors(CurrentMap(TypeMaps.FERTILITY), flags, GrassFacade.ColorSource.RULES_FILE, this.mp.fertility_color_rules, run_quiet);
-			ilog.LogInfoLine(lastresult);			
+			for ( ExternalExec.OpResult result : batch.commit() ) {
+				ilog.LogInfoLine(result.output);
+			}
+			
+			if ( (template_fingerprint != null) && this.grass.publishMapset(this.mp.TemplateMapset, template_fingerprint) ) {
+				ilog.LogInfoLine("Initial landscape maps saved as the template mapset, " + this.mp.TemplateMapset + ".");
+			}
 
 		} catch (IllegalArgumentException e) {
 			System.out.println("ERROR: IOException encountered while Initializing InitializeLandModel.");
@@ -341,6 +614,38 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		
 	}
 	
+	/**
+	 * Describes the inputs of the initial landscape maps: the base maps, the rules files, and the
+	 * bedrock map or soil depth range. A template mapset is cloned only if it was made from the same
+	 * inputs (see GrassFacade.cloneMapset()).
+	 * @return the fingerprint of the inputs.
+	 * @throws IOException if a base map or rules file cannot be found.
+	 */
+	private String TemplateFingerprint () throws IOException 
+	{
+		String PermanentMapset = "@PERMANENT";
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append("dem=").append(this.grass.describeRaster(this.mp.DEM + PermanentMapset)).append('\n');
+		fingerprint.append("friction=").append(this.grass.describeRaster(this.mp.friction_map + PermanentMapset)).append('\n');
+		fingerprint.append("fertility=").append(this.grass.describeRaster(this.mp.fertility_map + PermanentMapset)).append('\n');
+		if ( TypeMaps.SOILS_KFACTOR != null ) {
+			fingerprint.append("soil_k=").append(this.grass.describeRaster(this.mp.soilK_map + PermanentMapset)).append('\n');
+		}
+		fingerprint.append("land_cover=").append(this.grass.describeRaster(this.mp.land_cover + PermanentMapset)).append('\n');
+		fingerprint.append("landcover_reclass_rules=").append(GrassFacade.describeFile(this.mp.landcover_reclass_rules)).append('\n');
+		fingerprint.append("landcover_color_rules=").append(GrassFacade.describeFile(this.mp.landcover_color_rules)).append('\n');
+		fingerprint.append("fertility_color_rules=").append(GrassFacade.describeFile(this.mp.fertility_color_rules)).append('\n');
+		if ( this.mp.bedrock_map != null ) {
+			fingerprint.append("bedrock=").append(this.grass.describeRaster(this.mp.bedrock_map + PermanentMapset)).append('\n');
+		}
+		else {
+			fingerprint.append("soil_depth=").append(this.mp.soil_depth_min).append(',').append(this.mp.soil_depth_max).append('\n');
+		}
+		
+		return fingerprint.toString();
+		
+	}
+	
 	private String RunLandAssesser (String LandChoices ) throws IOException 
 	{
 		System.out.println();
@@ -381,14 +686,6 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 			last_output = this.grass.gRegion(CurrentMapLoc(TypeMaps.ELEVATION), null, gregionflags, REGION_AGENT_RES, REGION_AGENT_RES, run_quiet);
 			ilog.LogInfoLine(last_output);	
 			
-			if (cm.IntYear() > 0 ){
-				int vId = 0;
-				while (vId < this.mp.VData.size()){ 
-					last_output = this.grass.gCopyRast(cm.PrevYear()+"village_"+vId+"_"+ TypeMaps.CLEARING, CurrentMap("village_"+vId+"_", TypeMaps.CLEARING), run_quiet);
-					vId++;
-				}
-			}
-						
 			//Combine Multiple Cost Surface Maps and Clearing Maps for each village into one variable with multiple maps
 			String CostSurfaceMaps = CurrentMap("village_0_", TypeMaps.COSTSFC);
 			String villageLand = CurrentMap("village_0_", TypeMaps.CLEARING);
@@ -404,7 +701,44 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 				vId++;	
 				}
 			}
-			last_output = this.grass.rPatch(VillageMaps, villageLand, run_quiet);
+			
+			// The clearing map copies and the patch of all village maps run as one GRASS batch. The
+			// clearing maps of the previous year are aliased (their data is shared, not copied).
+			GrassBatch batch = this.grass.beginBatch();
+			try {
+				if (cm.IntYear() > 0 ){
+					StringBuilder prev_clearings = new StringBuilder();
+					StringBuilder clearings = new StringBuilder();
+					vId = 0;
+					while (vId < this.mp.VData.size()){ 
+						if ( vId > 0 ) {
+							prev_clearings.append(',');
+							clearings.append(',');
+						}
+						prev_clearings.append(cm.PrevYear()+"village_"+vId+"_"+ TypeMaps.CLEARING);
+						clearings.append(CurrentMap("village_"+vId+"_", TypeMaps.CLEARING));
+						vId++;
+					}
+					ilog.LogInfoLine(this.grass.gAliasRast(prev_clearings.toString(), clearings.toString(), run_quiet));
+				}
+				this.grass.rPatch(VillageMaps, villageLand, run_quiet);
+			}
+			catch (IOException e) {
+				batch.discard();
+				throw e;
+			}
+			catch (RuntimeException e) {
+				batch.discard();
+				throw e;
+			}
+			
+			for ( ExternalExec.OpResult result : batch.commit() ) {
+				ilog.LogInfoLine(result.output);
+				if ( result.exitValue != 0 ) {
+					ilog.LogInfoLine(result.errors);
+					throw new IOException("The village clearing maps could not be copied or patched:\n  " + result.errors);
+				}
+			}
 
 			final String next_landcover = cm.NextYear() + TypeMaps.LANDCOVER.toString();
 			final String next_fertility = cm.NextYear() + TypeMaps.FERTILITY.toString();
@@ -476,7 +810,7 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		}	
 		else{	soil_K_factor = String.valueOf(mp.soilK_value); }
 		
-		final String C_factor =  cm.NextYear() + TypeMaps.LCVR_CFACTOR.toString() + "@" + mapset;
+		final String C_factor =  MapLoc(cm.NextYear() + TypeMaps.LCVR_CFACTOR.toString());
 		char[] flags = {'s'}; // was p and g
 		String stats_file = this.mp.GISDBASE + this.mp.location + "/" + this.mapset + "/" + this.mapset + "_"+"Stats";
 
@@ -490,16 +824,10 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 					mp.r_factor, soil_K_factor, C_factor, Double.toString(mp.kappa), mp.evolSmoothing, mp.cutoff1,  mp.cutoff2, mp.cutoff3, run_quiet);	
 			ilog.LogInfoLine(last_output);	
 			
-			if (mp.KeepRasterMaps){ }else{
-			char[] deleteflags = {'f','b'};
-			last_output = this.grass.gMRemoveRast("*V*", deleteflags, run_quiet);
-			
-			last_output = this.grass.gMRemoveRast("*temp_landcover*", deleteflags, run_quiet);
-			
-			last_output = this.grass.gMRemoveRast("*Returns_map*", deleteflags, run_quiet);
-			
-			last_output = this.grass.gMRemoveRast("*woodgathering*", deleteflags, run_quiet);
-
+			// Delete this year's temporary maps by name before the next year makes its maps (none if KeepRasterMaps is set).
+			this.grass.getMapRegistry().collect();
+			if ( this.staging != null ) {
+				this.staging.writeBack();
 			}
 			
 		}
@@ -579,6 +907,11 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 			mp.date_prefix,				// date prefix
 			mp.date_suffix,				// date suffix
 			mp.date_end);				// end year	;
+		
+		// Record the resources used by GRASS modules and scripts, per year and per GrassFacade method.
+		this.processStatsFile.delete();
+		ProcessAccounting.setEnabled(mp.ProcessStats);
+		ProcessAccounting.setPeriod(cm.Year());
 	
 		TypeMaps.ELEVATION = new TypeMaps(this.mp.DEM, true);
 		TypeMaps.LANDCOVER = new TypeMaps(this.mp.land_cover, true);	
@@ -613,6 +946,7 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 	
 		InitializeLandscapeModel();
 		InitializeVillagesOnLandscape();
+		BeginYearMapset();
 		this.HH_ID_COUNTER = getHhCount();
 		this.startDate = new Date();
 		this.performanceFile = new BufferedWriter(new FileWriter(new File("performance.csv")));
@@ -743,6 +1077,9 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		}
 */		
 		cm.Increment();				// increment calendar year
+		ProcessAccounting.setPeriod(cm.Year());
+		this.grass.getMapRegistry().setYear(cm.Year());
+		BeginYearMapset();
 		System.out.println();
 		System.out.println();
 		System.out.println("               ********************************************* " + cm.Year() + " *********************************************");
@@ -753,6 +1090,24 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 	}
 	
 	
+	/**
+	 * Ends the run: the staged mapset (if any) is written back and restored on disk. Run after every
+	 * other action at the end of the run, however the run was stopped (end year, abandonment, or the
+	 * GUI); if the JVM exits instead, MapsetStaging closes itself from a shutdown hook.
+	 */
+	@ScheduledMethod(start = ScheduleParameters.END, priority = ScheduleParameters.LAST_PRIORITY)
+	public void endModel() {
+		if ( this.staging != null ) {
+			try {
+				this.staging.close();
+			}
+			catch (Exception e) {
+				System.out.println("An error occurred while closing the staged mapset: " + e.getMessage());
+			}
+		}
+	}
+	
+	
 	protected ArrayList<VillageReturnsMsg>landRequestGangPlank (ArrayList<HouseholdRequest> allHHRequests){
 		
 		String LandRequestString = "";
@@ -985,7 +1340,7 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		String full_name = CurrentMap(map);
 		
 		if ( full_name.compareTo("") != 0 ){
-			return (full_name + "@" + mapset);
+			return MapLoc(full_name);
 		}
 		else{
 			return "";
@@ -1014,7 +1369,45 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 	{
 		String full_name = CurrentMap(specifier, map);
 
-		return (full_name + "@" + mapset);
+		return MapLoc(full_name);
+	}
+	
+	// return map name with mapset suffix; without it if the maps are in year sub-mapsets, where they
+	// are found through the search path
+	private String MapLoc ( String map_name )
+	{
+		if ( this.year_mapset != null ){
+			return map_name;
+		}
+		return (map_name + "@" + mapset);
+	}
+	
+	/**
+	 * With SubMapsetYears set, writes the maps of each period of SubMapsetYears years to their own
+	 * sub-mapset of the run mapset, so the mapset directories do not grow through long runs. Logs and
+	 * stats files stay in the run mapset. Maps of the current and the two earlier periods, and the
+	 * initial maps, are read through the search path of the sub-mapset.
+	 */
+	private void BeginYearMapset ()
+	{
+		if ( this.mp.SubMapsetYears <= 0 ){
+			return;
+		}
+		
+		int period = (int) Math.floor((double) cm.IntYear() / this.mp.SubMapsetYears) * this.mp.SubMapsetYears;
+		String suffix = "y" + period;
+		if ( (this.year_mapset != null) && this.year_mapset.endsWith("_" + suffix) ){
+			return;
+		}
+		
+		try {
+			this.year_mapset = this.grass.beginSubMapset(suffix, 2);
+			ilog.LogInfoLine("Maps are written to the sub-mapset " + this.year_mapset + ".");
+		}
+		catch (IOException e) {
+			System.out.println("The sub-mapset for " + cm.Year() + " could not be made; maps are written to " +
+					this.grass.getMapset() + ": " + e.getMessage());
+		}
 	}
 
 	private int getTotalPopulation(){
@@ -1031,6 +1424,9 @@ public class StupidModelContextBuilder extends DefaultContext<Object> implements
 		long time = this.yearEnd.getTime() - this.yearStart.getTime();
 		double timeInSec = ((double)time)/((double)1000);
 		this.performanceFile.write(cm.IntYear()+","+timeInSec+","+landRequestDuration+","+landscapeEvolDuration+","+getTotalPopulation()+"\n");
+		if ( ProcessAccounting.isEnabled() ) {
+			ProcessAccounting.writeTotals(this.processStatsFile);
+		}
 	}
 	
 }
@@ -135,6 +135,14 @@ public class ModelParameters {
 	public boolean IMLogShow = false;
 	public boolean popeconlogs  = true;
 	public boolean KeepRasterMaps = false;
+	public boolean ProcessStats = false;	// record GRASS process resource use in process_stats.csv (CPU time and peak memory need GNU time)
+	public int GrassWorkers = Runtime.getRuntime().availableProcessors();	// concurrent GRASS sessions for village initialization (with JavaCostSurface, each concurrent search holds about 12 bytes per region cell until the villages are initialized)
+	public String TemplateMapset = null;	// mapset holding the initial landscape maps shared by runs (null: make them in each run)
+	public boolean StageMapset = false;	// keep the working mapset in memory (/dev/shm); only retained maps and logs are written to disk
+	public int SubMapsetYears = 0;	// write the maps of each period of this many years to its own sub-mapset (0: all maps in the run mapset)
+	public boolean JavaCostSurface = false;	// make the village cost surfaces (COSTSFC) and catchments in the JVM rather than with r.walk and r.catchment.py
+	public int CostAllocationRanks = 0;	// map the cost from, and number of, the nearest villages up to this rank (0: no allocation maps)
+	public boolean JavaMapcalc = false;	// evaluate the simple r.mapcalc formulas (e.g., the village clearings) in the JVM
 	
 	public boolean landTenure = false;
 	public int hhSizeExtreme =  50 ;
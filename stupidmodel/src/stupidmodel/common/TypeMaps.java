@@ -49,6 +49,8 @@ public class TypeMaps
 	public static TypeMaps SOILS_KFACTOR = new TypeMaps("soil.Kfactor", false);
 	public static final TypeMaps VILLAGES = new TypeMaps("villages", true);
 	public static final TypeMaps NETCHANGE = new TypeMaps("ED_rate", true);
+	public static final TypeMaps NEAREST_COST = new TypeMaps("nearest_village_cost", false);
+	public static final TypeMaps NEAREST_VILLAGE = new TypeMaps("nearest_village", false);
 	
 	private final String map_name;			// the core name of the map
 	private final boolean dynamic;			// indicates that the map changes during the simulation
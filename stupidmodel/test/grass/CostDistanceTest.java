@@ -0,0 +1,321 @@
+/*
+ * CostDistanceTest.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ */
+
+package grass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of CostDistance against a reference: the cost of each cell is found by Bellman-Ford
+ * relaxation of every move until no cost changes, with the walking time model of r.walk written out
+ * again here. The surfaces are small and random, with null elevation and friction cells.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class CostDistanceTest {
+	private static final String WALK_COEFFICIENT = "0.72,6.0,1.9998,-1.9998";
+	private static final double LAMBDA = 0.5;
+	private static final double SLOPE_FACTOR = -0.2125;
+	private static final int ROWS = 14;
+	private static final int COLS = 17;
+	private static final double TOLERANCE = 1e-9;
+
+	private File mapset_dir = null;		// Directory of the region (WIND) file
+	private RasterMetadata region = null;
+
+	@Before
+	public void setUp () throws IOException {
+		this.mapset_dir = File.createTempFile("cost_distance", "");
+		this.mapset_dir.delete();
+		this.mapset_dir.mkdir();
+
+		FileWriter fw = new FileWriter(new File(this.mapset_dir, "WIND"));
+		try {
+			fw.write("proj:       99\nzone:       0\nnorth:      140\nsouth:      0\n" +
+					"east:       170\nwest:       0\ncols:       " + COLS + "\nrows:       " + ROWS + "\n" +
+					"e-w resol:  10\nn-s resol:  10\n");
+		}
+		finally {
+			fw.close();
+		}
+		this.region = RasterMetadata.readRegion(this.mapset_dir);
+
+	}
+
+	@After
+	public void tearDown () {
+		new File(this.mapset_dir, "WIND").delete();
+		this.mapset_dir.delete();
+
+	}
+
+	/**
+	 * Compares the costs from several start cells, with and without knight's moves and a cost limit,
+	 * on full and sparse surfaces.
+	 */
+	@Test
+	public void computesReferenceCosts () {
+		for ( int seed = 0; seed < 20; seed++ ) {
+			Random random = new Random(seed);
+			double[] elevation = randomSurface(random, 200, 0.08);
+			double[] friction = (seed % 2 == 0) ? randomSurface(random, 5, 0.05) : null;
+			boolean knights_move = seed % 4 < 2;
+			double max_cost = (seed % 3 == 0) ? 0 : 100 + random.nextInt(300);
+			int[] start_cells = { random.nextInt(ROWS * COLS), random.nextInt(ROWS * COLS) };
+
+			CostDistance engine = new CostDistance(this.region, elevation, friction, WALK_COEFFICIENT, LAMBDA, SLOPE_FACTOR, knights_move);
+			double[] expected = reference(elevation, friction, knights_move, start_cells, max_cost);
+			double[] costs = engine.compute(start_cells, max_cost);
+			SparseCostSurface sparse = engine.computeSparse(start_cells, max_cost);
+			for ( int cell = 0; cell < expected.length; cell++ ) {
+				assertCost("Seed " + seed + ", cell " + cell, expected[cell], costs[cell]);
+				assertCost("Seed " + seed + ", sparse cell " + cell, expected[cell], sparse.getCost(cell));
+			}
+		}
+
+	}
+
+	/**
+	 * Compares the k nearest sources of each cell with the costs from each source found separately.
+	 */
+	@Test
+	public void allocatesReferenceSources () {
+		for ( int seed = 0; seed < 20; seed++ ) {
+			Random random = new Random(100 + seed);
+			double[] elevation = randomSurface(random, 200, 0.08);
+			double[] friction = (seed % 2 == 0) ? randomSurface(random, 5, 0.05) : null;
+			boolean knights_move = seed % 4 < 2;
+			double max_cost = (seed % 3 == 0) ? 0 : 150 + random.nextInt(300);
+			int sources = 2 + random.nextInt(4);
+			int ranks = 1 + random.nextInt(3);
+
+			// Each source has one or two start cells.
+			int[] start_cells = new int[2 * sources];
+			int[] start_sources = new int[2 * sources];
+			for ( int s = 0; s < start_cells.length; s++ ) {
+				start_cells[s] = random.nextInt(ROWS * COLS);
+				start_sources[s] = s % sources;
+			}
+
+			CostDistance engine = new CostDistance(this.region, elevation, friction, WALK_COEFFICIENT, LAMBDA, SLOPE_FACTOR, knights_move);
+			CostDistance.Allocation allocation = engine.allocate(start_cells, start_sources, ranks, max_cost);
+
+			double[][] source_costs = new double[sources][];
+			for ( int source = 0; source < sources; source++ ) {
+				int[] cells = new int[2];
+				cells[0] = start_cells[source];
+				cells[1] = start_cells[source + sources];
+				source_costs[source] = reference(elevation, friction, knights_move, cells, max_cost);
+			}
+
+			for ( int cell = 0; cell < ROWS * COLS; cell++ ) {
+				double[] nearest = new double[sources];
+				for ( int source = 0; source < sources; source++ ) {
+					double cost = source_costs[source][cell];
+					nearest[source] = Double.isNaN(cost) ? Double.POSITIVE_INFINITY : cost;
+				}
+				Arrays.sort(nearest);
+
+				HashSet<Integer> found = new HashSet<Integer> ();
+				for ( int rank = 0; rank < ranks; rank++ ) {
+					String label = "Seed " + seed + ", cell " + cell + ", rank " + rank;
+					double cost = allocation.getCosts(rank)[cell];
+					int source = allocation.getSources(rank)[cell];
+					if ( (rank >= sources) || Double.isInfinite(nearest[rank]) ) {
+						assertTrue(label + " has a source.", Double.isNaN(cost) && (source == CostDistance.NO_SOURCE));
+						continue;
+					}
+					assertCost(label, nearest[rank], cost);
+					assertTrue(label + " repeats a source.", found.add(Integer.valueOf(source)));
+					assertCost(label + " (cost from its source)", source_costs[source][cell], cost);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Compares catchments with the cells of the surface taken in order of cost (as r.catchment.py
+	 * does), up to the cost of the cell which completes the area.
+	 */
+	@Test
+	public void growsReferenceCatchments () {
+		for ( int seed = 0; seed < 20; seed++ ) {
+			Random random = new Random(200 + seed);
+			double[] elevation = randomSurface(random, 200, 0.08);
+			double[] friction = (seed % 2 == 0) ? randomSurface(random, 5, 0.05) : null;
+			boolean knights_move = seed % 4 < 2;
+			double max_cost = (seed % 3 == 0) ? 0 : 150 + random.nextInt(300);
+			int start = random.nextInt(ROWS * COLS);
+			while ( Double.isNaN(elevation[start]) || ((friction != null) && Double.isNaN(friction[start])) ) {
+				start = random.nextInt(ROWS * COLS);
+			}
+			int target = 1 + random.nextInt(ROWS * COLS / 2);
+
+			CostDistance engine = new CostDistance(this.region, elevation, friction, WALK_COEFFICIENT, LAMBDA, SLOPE_FACTOR, knights_move);
+			double[] expected_costs = reference(elevation, friction, knights_move, new int[] { start }, max_cost);
+			SparseCostSurface surface = engine.computeSparse(new int[] { start }, max_cost);
+			int[] catchment = engine.growCatchment(surface, start, target * 100.0);
+
+			// The threshold is the cost of the target-th cheapest reached cell (or the highest cost).
+			double[] reached = new double[ROWS * COLS];
+			int count = 0;
+			for ( int cell = 0; cell < reached.length; cell++ ) {
+				assertCost("Seed " + seed + ", cell " + cell, expected_costs[cell], surface.getCost(cell));
+				if ( !Double.isNaN(surface.getCost(cell)) ) {
+					reached[count++] = surface.getCost(cell);
+				}
+			}
+			Arrays.sort(reached, 0, count);
+			double threshold = reached[Math.min(target, count) - 1];
+
+			HashSet<Integer> expected = new HashSet<Integer> ();
+			for ( int cell = 0; cell < ROWS * COLS; cell++ ) {
+				if ( surface.getCost(cell) <= threshold ) {
+					expected.add(Integer.valueOf(cell));
+				}
+			}
+			HashSet<Integer> actual = new HashSet<Integer> ();
+			for ( int c = 0; c < catchment.length; c++ ) {
+				assertTrue("Seed " + seed + ": cell " + catchment[c] + " is taken twice.", actual.add(Integer.valueOf(catchment[c])));
+			}
+			assertEquals("Seed " + seed, expected, actual);
+		}
+
+	}
+
+	/**
+	 * Makes a random surface with values from 0 to the maximum, and the given share of null cells.
+	 */
+	private static double[] randomSurface ( Random random, double max, double null_share ) {
+		double[] values = new double[ROWS * COLS];
+		for ( int cell = 0; cell < values.length; cell++ ) {
+			values[cell] = (random.nextDouble() < null_share) ? Double.NaN : random.nextDouble() * max;
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * Finds the cost of each cell from the nearest start cell by Bellman-Ford relaxation.
+	 * @return the costs by row; NaN for cells not reached within the limit.
+	 */
+	private double[] reference ( double[] elevation, double[] friction, boolean knights_move, int[] start_cells, double max_cost ) {
+		double limit = (max_cost > 0) ? max_cost : Double.POSITIVE_INFINITY;
+		double[] costs = new double[ROWS * COLS];
+		Arrays.fill(costs, Double.POSITIVE_INFINITY);
+		for ( int s = 0; s < start_cells.length; s++ ) {
+			if ( passable(elevation, friction, start_cells[s]) ) {
+				costs[start_cells[s]] = 0;
+			}
+		}
+
+		boolean changed = true;
+		while ( changed ) {
+			changed = false;
+			for ( int cell = 0; cell < costs.length; cell++ ) {
+				if ( Double.isInfinite(costs[cell]) ) {
+					continue;
+				}
+				int row = cell / COLS;
+				int col = cell % COLS;
+				for ( int dr = -2; dr <= 2; dr++ ) {
+					for ( int dc = -2; dc <= 2; dc++ ) {
+						boolean neighbour = (Math.abs(dr) <= 1) && (Math.abs(dc) <= 1) && ((dr != 0) || (dc != 0));
+						boolean knight = (Math.abs(dr) + Math.abs(dc) == 3) && (dr != 0) && (dc != 0);
+						int to_row = row + dr;
+						int to_col = col + dc;
+						if ( !(neighbour || (knights_move && knight)) || (to_row < 0) || (to_row >= ROWS) || (to_col < 0) || (to_col >= COLS) ) {
+							continue;
+						}
+						int to_cell = to_row * COLS + to_col;
+						if ( !passable(elevation, friction, to_cell) ) {
+							continue;
+						}
+						double cost = costs[cell] + moveCost(elevation, friction, cell, to_cell, Math.sqrt(dr * dr + dc * dc) * 10);
+						if ( (cost <= limit) && (cost < costs[to_cell] - TOLERANCE) ) {
+							costs[to_cell] = cost;
+							changed = true;
+						}
+					}
+				}
+			}
+		}
+
+		for ( int cell = 0; cell < costs.length; cell++ ) {
+			if ( Double.isInfinite(costs[cell]) ) {
+				costs[cell] = Double.NaN;
+			}
+		}
+
+		return costs;
+
+	}
+
+	private static boolean passable ( double[] elevation, double[] friction, int cell ) {
+		return !Double.isNaN(elevation[cell]) && ((friction == null) || !Double.isNaN(friction[cell]));
+
+	}
+
+	/**
+	 * The walking time of r.walk for a move, plus the friction cost; negative times are taken as 0.
+	 */
+	private static double moveCost ( double[] elevation, double[] friction, int from_cell, int to_cell, double length ) {
+		String[] coefficients = WALK_COEFFICIENT.split(",");
+		double height = elevation[to_cell] - elevation[from_cell];
+		double time = Double.parseDouble(coefficients[0]) * length;
+		if ( height >= 0 ) {
+			time += Double.parseDouble(coefficients[1]) * height;
+		}
+		else if ( height / length > SLOPE_FACTOR ) {
+			time += Double.parseDouble(coefficients[2]) * height;
+		}
+		else {
+			time += Double.parseDouble(coefficients[3]) * height;
+		}
+		if ( friction != null ) {
+			time += LAMBDA * length * (friction[from_cell] + friction[to_cell]) / 2.0;
+		}
+
+		return Math.max(time, 0);
+
+	}
+
+	private static void assertCost ( String label, double expected, double actual ) {
+		if ( Double.isNaN(expected) ) {
+			assertTrue(label + " is reached.", Double.isNaN(actual));
+		}
+		else {
+			assertEquals(label, expected, actual, TOLERANCE * Math.max(1, expected));
+		}
+
+	}
+
+}
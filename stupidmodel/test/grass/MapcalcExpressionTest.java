@@ -0,0 +1,191 @@
+/*
+ * MapcalcExpressionTest.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ */
+
+package grass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of MapcalcExpression: the results r.mapcalc gives for operator precedence, the cell type of
+ * results, and null cells.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class MapcalcExpressionTest {
+	private static final RasterMetadata.CellType CELL = RasterMetadata.CellType.CELL;
+	private static final RasterMetadata.CellType FCELL = RasterMetadata.CellType.FCELL;
+	private static final RasterMetadata.CellType DCELL = RasterMetadata.CellType.DCELL;
+	private static final double NULL = Double.NaN;
+
+	@Test
+	public void parsesFormula () {
+		MapcalcExpression expression = MapcalcExpression.compile("'out' = \"a@PERMANENT\" + b * a@PERMANENT");
+		assertEquals("out", expression.getOutputMap());
+		assertEquals(Arrays.asList("a@PERMANENT", "b"), expression.getInputMaps());
+
+	}
+
+	@Test
+	public void rejectsUnsupportedFormulas () {
+		String[] formulas = { "out = sqrt(a)", "out = a ^ 2", "out = a ? 1 : 0", "out = a[1,0]", "out = a & b",
+				"out = if(a, 1, 2, 3)", "out = isnull()", "out = (a + 1", "out = a +", "out == a", "out@PERMANENT = a",
+				"= a", "out = " };
+		for ( String formula : formulas ) {
+			assertTrue(formula + " was compiled.", MapcalcExpression.compile(formula) == null);
+		}
+
+	}
+
+	@Test
+	public void followsOperatorPrecedence () {
+		assertConstant(14, "2 + 3 * 4");
+		assertConstant(20, "(2 + 3) * 4");
+		assertConstant(3, "10 - 4 - 3");
+		assertConstant(6, "24 / 2 / 2");
+		assertConstant(-2, "-2 * 3 % 4");
+		assertConstant(2, "!0 + 1");
+		assertConstant(1, "1 + 2 == 3");
+		assertConstant(1, "1 < 2 == 1");
+		assertConstant(0, "2 > 1 != 1");
+		assertConstant(0, "0 || 1 && 0");
+		assertConstant(1, "1 || 0 && 0");
+		assertConstant(1, "!(1 && 0)");
+		assertConstant(4, "- -4");
+
+	}
+
+	@Test
+	public void typesResultsAsMapcalc () {
+		// Integer arithmetic truncates toward zero, and wraps around.
+		assertConstant(3, "7 / 2");
+		assertConstant(-3, "-7 / 2");
+		assertConstant(-1, "-7 % 2");
+		assertConstant(Integer.MIN_VALUE, "2147483647 + 1");
+		assertEquals(CELL, type("7 / 2"));
+		assertEquals(DCELL, type("7.0 / 2"));
+		assertConstant(3.5, "7.0 / 2");
+
+		// The types are those of the maps in order of their first use; c is CELL, f FCELL, and d DCELL.
+		RasterMetadata.CellType[] c = { CELL };
+		RasterMetadata.CellType[] cf = { CELL, FCELL };
+		RasterMetadata.CellType[] fd = { FCELL, DCELL };
+		RasterMetadata.CellType[] f = { FCELL };
+		RasterMetadata.CellType[] types = { CELL, FCELL, DCELL };
+		assertEquals(CELL, type("c + 1", c));
+		assertEquals(FCELL, type("c + f", cf));
+		assertEquals(DCELL, type("f + d", fd));
+		assertEquals(DCELL, type("f * 1.5", f));
+		assertEquals(FCELL, type("f * 2", f));
+		assertEquals(CELL, type("f < d", fd));
+		assertEquals(CELL, type("isnull(f)", f));
+		assertEquals(CELL, type("null()", null));
+		assertEquals(FCELL, type("if(c, f)", cf));
+		assertEquals(FCELL, type("if(c, c, f)", cf));
+		assertEquals(DCELL, type("if(f, d, 1)", fd));
+		assertEquals(CELL, type("if(c, 1, null())", c));
+		assertEquals(DCELL, type("c + 1", null));
+
+		// An FCELL result is rounded to single precision, also within an expression; a DCELL result is not.
+		double tenth = (float) 0.1;
+		assertCells(new double[] { (float) (1 + tenth) }, "c + f", cf, new double[] { 1 }, new double[] { tenth });
+		assertCells(new double[] { (float) (1 + tenth) + 0.5 }, "c + f + d", types, new double[] { 1 }, new double[] { tenth }, new double[] { 0.5 });
+		assertCells(new double[] { 0.5 + 1 + tenth }, "d + c + f", new RasterMetadata.CellType[] { DCELL, CELL, FCELL }, new double[] { 0.5 }, new double[] { 1 }, new double[] { tenth });
+		assertCells(new double[] { 2 }, "c / 2", c, new double[] { 5 });
+		assertCells(new double[] { 2.5 }, "f / 2.0", f, new double[] { 5 });
+
+	}
+
+	@Test
+	public void propagatesNulls () {
+		RasterMetadata.CellType[] types = { CELL };
+		double[] a = { NULL, 0, 1, 5 };
+
+		assertCells(new double[] { NULL, 1, 2, 6 }, "a + 1", types, a);
+		assertCells(new double[] { NULL, NULL, NULL, NULL }, "a + null()", types, a);
+		assertCells(new double[] { NULL, 0, 1, 1 }, "a > 0", types, a);
+		assertCells(new double[] { NULL, 0, 0, 0 }, "a && 0", types, a);
+		assertCells(new double[] { NULL, 1, 1, 1 }, "a || 1", types, a);
+		assertCells(new double[] { NULL, 1, 0, 0 }, "!a", types, a);
+		assertCells(new double[] { NULL, NULL, NULL, NULL }, "a / 0", types, a);
+		assertCells(new double[] { NULL, NULL, NULL, NULL }, "a % 0", types, a);
+
+		// isnull() is never null; if() is null only if its condition (or the branch taken) is.
+		assertCells(new double[] { 1, 0, 0, 0 }, "isnull(a)", types, a);
+		assertCells(new double[] { 0, 0, 0, 0 }, "isnull(isnull(a))", types, a);
+		assertCells(new double[] { NULL, 0, 1, 1 }, "if(a)", types, a);
+		assertCells(new double[] { NULL, 0, 7, 7 }, "if(a, 7)", types, a);
+		assertCells(new double[] { NULL, 8, 7, 7 }, "if(a, 7, 8)", types, a);
+		assertCells(new double[] { NULL, 5, NULL, NULL }, "if(a, null(), 5)", types, a);
+		assertCells(new double[] { 0, 0, 1, 5 }, "if(isnull(a), 0, a)", types, a);
+		assertCells(new double[] { NULL, 40, 40, 40 }, "if(isnull(a), null(), 40)", types, a);
+		assertCells(new double[] { NULL, NULL, NULL, NULL }, "if(null(), 1, 2)", types, a);
+
+	}
+
+	/**
+	 * Asserts the value of a formula without maps.
+	 */
+	private static void assertConstant ( double expected, String expression ) {
+		assertCells(new double[] { expected }, expression, null);
+
+	}
+
+	/**
+	 * Provides the cell type of an expression.
+	 * @param types The cell types of its maps, or 'null' to leave them unset.
+	 */
+	private static RasterMetadata.CellType type ( String expression, RasterMetadata.CellType[] types ) {
+		return compile(expression, types).getType();
+
+	}
+
+	private static RasterMetadata.CellType type ( String expression ) {
+		return type(expression, null);
+
+	}
+
+	private static MapcalcExpression compile ( String expression, RasterMetadata.CellType[] types ) {
+		MapcalcExpression compiled = MapcalcExpression.compile("out = " + expression);
+		assertTrue(expression + " was not compiled.", compiled != null);
+
+		return (types == null) ? compiled : compiled.withInputTypes(types);
+
+	}
+
+	/**
+	 * Asserts the values of an expression whose maps (in order of their first use) hold the given cells.
+	 */
+	private static void assertCells ( double[] expected, String expression, RasterMetadata.CellType[] types, double[] ... inputs ) {
+		double[] values = compile(expression, types).evaluate(inputs, expected.length);
+		for ( int i = 0; i < expected.length; i++ ) {
+			String label = expression + ", cell " + i;
+			if ( Double.isNaN(expected[i]) ) {
+				assertTrue(label + " is not null.", Double.isNaN(values[i]));
+			}
+			else {
+				assertEquals(label, expected[i], values[i], 0);
+			}
+		}
+
+	}
+
+}
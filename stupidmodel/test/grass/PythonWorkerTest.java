@@ -0,0 +1,182 @@
+/*
+ * PythonWorkerTest.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ */
+
+package grass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import misc.StringPair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fileMgmt.ExternalExec;
+
+/**
+ * Tests of PythonWorker. The GRASS Python library is replaced by a package whose parser() behaves as
+ * GRASS 6's does: it executes g.parser in place of the interpreter unless sys.argv[1] is
+ * '@ARGS_PARSED@', in which case it reads the GIS_OPT_* and GIS_FLAG_* variables.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class PythonWorkerTest {
+	// grass/script/__init__.py of the replacement library.
+	private static final String[] GRASS_SCRIPT = {
+		"import os, sys",
+		"def parser():",
+		"    if len(sys.argv) > 1 and sys.argv[1] == '@ARGS_PARSED@':",
+		"        options = {}",
+		"        flags = {}",
+		"        for var, val in os.environ.items():",
+		"            if var.startswith('GIS_OPT_'):",
+		"                options[var[8:].lower()] = val",
+		"            if var.startswith('GIS_FLAG_'):",
+		"                flags[var[9:].lower()] = bool(int(val))",
+		"        return (options, flags)",
+		"    os.execvp('g.parser', ['g.parser'] + sys.argv)",
+	};
+
+	// A script in the style of the r.*.py scripts, which also imports a module of its own.
+	private static final String[] PARSER_SCRIPT = {
+		"#!/usr/bin/env python",
+		"#%module",
+		"#% description: Test script",
+		"#%end",
+		"#%option",
+		"#% key: input",
+		"#% type: string",
+		"#% required: yes",
+		"#%end",
+		"#%option",
+		"#% key: scale",
+		"#% type: double",
+		"#% answer: 1.5",
+		"#%end",
+		"#%flag",
+		"#% key: c",
+		"#% description: Clip",
+		"#%end",
+		"import sys",
+		"import grass.script as grass",
+		"import counter",
+		"def main():",
+		"    counter.count += 1",
+		"    sys.stdout.write('%s %s %s %d %s\\n' % (options['input'], options['scale'], flags['c'],",
+		"        counter.count, sys.argv[1]))",
+		"if __name__ == '__main__':",
+		"    options, flags = grass.parser()",
+		"    main()",
+	};
+
+	private File directory = null;		// Directory of the replacement library and the scripts
+	private PythonWorker worker = null;
+
+	@Before
+	public void setUp () throws IOException {
+		this.directory = File.createTempFile("python_worker", "");
+		this.directory.delete();
+		new File(this.directory, "grass/script").mkdirs();
+		write(new File(this.directory, "grass/__init__.py"), new String[0]);
+		write(new File(this.directory, "grass/script/__init__.py"), GRASS_SCRIPT);
+		write(new File(this.directory, "counter.py"), new String[] { "count = 0" });
+		write(new File(this.directory, "r.test.py"), PARSER_SCRIPT);
+
+		ArrayList<StringPair> env = new ArrayList<StringPair> ();
+		env.add(new StringPair("PYTHONPATH", this.directory.getAbsolutePath()));
+		// g.parser must not be found, so that a script which executes it fails rather than replacing the worker.
+		env.add(new StringPair("PATH", "/nonexistent"));
+		this.worker = new PythonWorker("python", env, new String[] { "grass.script" });
+
+	}
+
+	@After
+	public void tearDown () {
+		this.worker.close();
+		delete(this.directory);
+
+	}
+
+	/**
+	 * Runs a g.parser script twice through one worker: each run must see its own options and flags,
+	 * the header defaults, and a fresh copy of the modules the script imports.
+	 */
+	@Test
+	public void runsParserScriptTwice () throws IOException {
+		String script = new File(this.directory, "r.test.py").getAbsolutePath();
+
+		ExternalExec.OpResult first = this.worker.run(script, Arrays.asList("input=dem", "scale=2", "-c", "--quiet"));
+		assertEquals(first.errors, 0, first.exitValue);
+		assertEquals("dem 2 True 1 @ARGS_PARSED@\n", first.output);
+
+		ExternalExec.OpResult second = this.worker.run(script, Arrays.asList("input=soil"));
+		assertEquals(second.errors, 0, second.exitValue);
+		assertEquals("soil 1.5 False 1 @ARGS_PARSED@\n", second.output);
+
+		assertTrue(this.worker.isAlive());
+
+	}
+
+	/**
+	 * Runs a script without a g.parser header, which is given its arguments unchanged.
+	 */
+	@Test
+	public void passesArgumentsToPlainScript () throws IOException {
+		File script = new File(this.directory, "plain.py");
+		write(script, new String[] { "import sys", "sys.stdout.write(' '.join(sys.argv[1:]))" });
+
+		List<String> args = Arrays.asList("input=dem", "-c");
+		ExternalExec.OpResult result = this.worker.run(script.getAbsolutePath(), args);
+		assertEquals(0, result.exitValue);
+		assertEquals("input=dem -c", result.output);
+
+	}
+
+	private static void write ( File file, String[] lines ) throws IOException {
+		FileWriter fw = new FileWriter(file);
+		try {
+			for ( String line : lines ) {
+				fw.write(line);
+				fw.write("\n");
+			}
+		}
+		finally {
+			fw.close();
+		}
+
+	}
+
+	private static void delete ( File file ) {
+		File[] children = file.listFiles();
+		if ( children != null ) {
+			for ( File child : children ) {
+				delete(child);
+			}
+		}
+		file.delete();
+
+	}
+
+}
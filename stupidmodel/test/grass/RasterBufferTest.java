@@ -0,0 +1,169 @@
+/*
+ * RasterBufferTest.java
+ *
+ * Package Version: 5.0
+ *   Class Version: 1.0
+ *
+ * 		   Project: MEDLAND Project
+ * 					Arizona State University
+ *
+ * Fixes / Additions:
+ * 1.0:
+ * 	- Initial version.
+ *
+ * Bugs / Issues:
+ * 1.0:
+ */
+
+package grass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of RasterBuffer: a raster written to a buffer (as for GrassFacade.rInBin()) is read back
+ * from the file (as rOutBin() maps the file r.out.bin writes), in the byte layout of r.in.bin and
+ * r.out.bin.
+ *
+ * @version Package: 5.0, Class: 1.0
+ */
+public class RasterBufferTest {
+	private static final double[] VALUES = { 10, -2.5, Double.NaN, 0, 123456.75, -7 };
+
+	private File mapset_dir = null;		// Directory of the region (WIND) file
+	private File bin_file = null;
+	private RasterMetadata region = null;
+
+	@Before
+	public void setUp () throws IOException {
+		this.mapset_dir = File.createTempFile("raster_buffer", "");
+		this.mapset_dir.delete();
+		this.mapset_dir.mkdir();
+
+		FileWriter fw = new FileWriter(new File(this.mapset_dir, "WIND"));
+		try {
+			fw.write("proj:       99\nzone:       0\nnorth:      4928010\nsouth:      4927990\n" +
+					"east:       590010\nwest:       589980\ncols:       3\nrows:       2\n" +
+					"e-w resol:  10\nn-s resol:  10\n");
+		}
+		finally {
+			fw.close();
+		}
+		this.region = RasterMetadata.readRegion(this.mapset_dir);
+		this.bin_file = new File(this.mapset_dir, "raster.bin");
+
+	}
+
+	@After
+	public void tearDown () {
+		this.bin_file.delete();
+		new File(this.mapset_dir, "WIND").delete();
+		this.mapset_dir.delete();
+
+	}
+
+	@Test
+	public void roundTripsIntegerCells () throws IOException {
+		double[] read = roundTrip(RasterMetadata.CellType.CELL);
+		assertEquals(6 * 4, this.bin_file.length());
+		assertCells(new double[] { 10, -2, Double.NaN, 0, 123457, -7 }, read);
+		assertEquals(RasterBuffer.BIN_NULL, rawCells().getInt(2 * 4));
+
+	}
+
+	@Test
+	public void roundTripsSinglePrecisionCells () throws IOException {
+		double[] read = roundTrip(RasterMetadata.CellType.FCELL);
+		assertEquals(6 * 4, this.bin_file.length());
+		assertCells(VALUES, read);
+		assertEquals((float) RasterBuffer.BIN_NULL, rawCells().getFloat(2 * 4), 0);
+
+	}
+
+	@Test
+	public void roundTripsDoublePrecisionCells () throws IOException {
+		double[] read = roundTrip(RasterMetadata.CellType.DCELL);
+		assertEquals(6 * 8, this.bin_file.length());
+		assertCells(VALUES, read);
+		assertEquals(RasterBuffer.BIN_NULL, rawCells().getDouble(2 * 8), 0);
+
+	}
+
+	@Test
+	public void rejectsFileOfAnotherRegion () throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.bin_file, "rw");
+		raf.setLength(5 * 4);
+		raf.close();
+
+		try {
+			new RasterBuffer(this.bin_file, RasterMetadata.CellType.FCELL, this.region, false);
+			assertTrue("A file of five cells was mapped on a region of six.", false);
+		}
+		catch (IOException ioe) {
+			// Expected.
+		}
+
+	}
+
+	/**
+	 * Writes VALUES to a new buffer of the region and reads them from a read-only mapping of its file.
+	 */
+	private double[] roundTrip ( RasterMetadata.CellType type ) throws IOException {
+		RasterBuffer written = new RasterBuffer(this.bin_file, type, this.region, true);
+		for ( int i = 0; i < VALUES.length; i++ ) {
+			written.setValue(i / 3, i % 3, VALUES[i]);
+		}
+
+		RasterBuffer read = new RasterBuffer(this.bin_file, type, this.region, false);
+		assertEquals(2, read.getRows());
+		assertEquals(3, read.getCols());
+		double[] values = new double[VALUES.length];
+		for ( int i = 0; i < values.length; i++ ) {
+			values[i] = read.getValue(i / 3, i % 3);
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * Reads the file as r.in.bin would: cells in the machine's byte order.
+	 */
+	private ByteBuffer rawCells () throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.bin_file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+		}
+		finally {
+			raf.close();
+		}
+
+	}
+
+	private static void assertCells ( double[] expected, double[] actual ) {
+		assertEquals(expected.length, actual.length);
+		for ( int i = 0; i < expected.length; i++ ) {
+			if ( Double.isNaN(expected[i]) ) {
+				assertTrue("Cell " + i + " is not null.", Double.isNaN(actual[i]));
+			}
+			else {
+				assertEquals(expected[i], actual[i], 0);
+			}
+		}
+
+	}
+
+}